@@ -96,6 +96,7 @@ import android.security.NetworkSecurityPolicy;
 import android.security.net.config.NetworkSecurityConfigProvider;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
+import android.util.ContainerArrayPool;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.Log;
@@ -1234,6 +1235,11 @@ public final class ActivityThread {
                 pw.print(assetAlloc);
             }
 
+            // ArrayMap/ArraySet storage recycling.
+            pw.println(" ");
+            pw.println(" Container Array Pools");
+            pw.print(ContainerArrayPool.getPoolStatistics());
+
             // Unreachable native memory
             if (dumpUnreachable) {
                 boolean showContents = ((mBoundApplication != null)
@@ -5703,6 +5709,36 @@ public final class ActivityThread {
             dalvik.system.VMRuntime.getRuntime().clampGrowthLimit();
         }
 
+        final ApplicationInfo metaDataInfo;
+        try {
+            metaDataInfo = getPackageManager().getApplicationInfo(
+                    data.appInfo.packageName,
+                    PackageManager.GET_META_DATA /*flags*/,
+                    UserHandle.myUserId());
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+
+        // Start loading the preferences the app declares it needs at startup, so that they
+        // load alongside application and provider setup instead of on first use.
+        if (metaDataInfo.metaData != null) {
+            final int preloadedPrefsResource = metaDataInfo.metaData.getInt(
+                    ApplicationInfo.METADATA_PRELOADED_SHARED_PREFS, 0);
+            if (preloadedPrefsResource != 0) {
+                String[] preloadedPrefs = null;
+                try {
+                    preloadedPrefs = data.info.getResources().getStringArray(
+                            preloadedPrefsResource);
+                } catch (Resources.NotFoundException e) {
+                    Slog.w(TAG, "Not preloading shared preferences of " + data.appInfo.packageName
+                            + ": no string array " + Integer.toHexString(preloadedPrefsResource));
+                }
+                if (preloadedPrefs != null) {
+                    appContext.preloadSharedPreferences(preloadedPrefs, true /* lazyParse */);
+                }
+            }
+        }
+
         // Allow disk access during application and provider setup. This could
         // block processing ordered broadcasts, but later processing would
         // probably end up doing the same disk access.
@@ -5756,21 +5792,12 @@ public final class ActivityThread {
 
         // Preload fonts resources
         FontsContract.setApplicationContextForResources(appContext);
-        try {
-            final ApplicationInfo info =
-                    getPackageManager().getApplicationInfo(
-                            data.appInfo.packageName,
-                            PackageManager.GET_META_DATA /*flags*/,
-                            UserHandle.myUserId());
-            if (info.metaData != null) {
-                final int preloadedFontsResource = info.metaData.getInt(
-                        ApplicationInfo.METADATA_PRELOADED_FONTS, 0);
-                if (preloadedFontsResource != 0) {
-                    data.info.getResources().preloadFonts(preloadedFontsResource);
-                }
+        if (metaDataInfo.metaData != null) {
+            final int preloadedFontsResource = metaDataInfo.metaData.getInt(
+                    ApplicationInfo.METADATA_PRELOADED_FONTS, 0);
+            if (preloadedFontsResource != 0) {
+                data.info.getResources().preloadFonts(preloadedFontsResource);
             }
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
         }
     }
 
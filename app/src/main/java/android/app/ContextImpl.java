@@ -393,6 +393,11 @@ class ContextImpl extends Context {
                 return sp;
             }
         }
+        if (!sp.isModeKnown()) {
+            // Preloaded before the mode was known.
+            checkMode(mode);
+            sp.onModeKnown(mode);
+        }
         if ((mode & Context.MODE_MULTI_PROCESS) != 0 ||
             getApplicationInfo().targetSdkVersion < Build.VERSION_CODES.HONEYCOMB) {
             // If somebody else (some other process) changed the prefs
@@ -403,6 +408,44 @@ class ContextImpl extends Context {
         return sp;
     }
 
+    /**
+     * Start loading the named preferences on the shared loader threads, so that they are
+     * ready by the time they are first asked for.  Preferences already loaded or loading
+     * are left alone.
+     *
+     * @param names names as passed to {@link #getSharedPreferences(String, int)}
+     * @param lazyParse if values are only decoded when first asked for; see
+     *                  {@link SharedPreferencesImpl#SharedPreferencesImpl(File, int, boolean,
+     *                  boolean)}
+     */
+    void preloadSharedPreferences(String[] names, boolean lazyParse) {
+        if (isCredentialProtectedStorage()
+                && !getSystemService(UserManager.class)
+                        .isUserUnlockingOrUnlocked(UserHandle.myUserId())) {
+            // Not readable yet; they load on first use instead.
+            return;
+        }
+        synchronized (ContextImpl.class) {
+            if (mSharedPrefsPaths == null) {
+                mSharedPrefsPaths = new ArrayMap<>();
+            }
+            final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
+            for (String name : names) {
+                File file = mSharedPrefsPaths.get(name);
+                if (file == null) {
+                    file = getSharedPreferencesPath(name);
+                    mSharedPrefsPaths.put(name, file);
+                }
+                if (cache.get(file) == null) {
+                    // Their mode is only known, checked and applied once they are asked
+                    // for; see getSharedPreferences(File, int).
+                    cache.put(file, new SharedPreferencesImpl(file, Context.MODE_PRIVATE,
+                            lazyParse, false /* modeKnown */));
+                }
+            }
+        }
+    }
+
     private ArrayMap<File, SharedPreferencesImpl> getSharedPreferencesCacheLocked() {
         if (sSharedPrefsCache == null) {
             sSharedPrefsCache = new ArrayMap<>();
@@ -498,6 +541,7 @@ class ContextImpl extends Context {
         synchronized (ContextImpl.class) {
             final File prefs = getSharedPreferencesPath(name);
             final File prefsBackup = SharedPreferencesImpl.makeBackupFile(prefs);
+            final File prefsLog = SharedPreferencesImpl.makeLogFile(prefs);
 
             // Evict any in-memory caches
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
@@ -505,9 +549,10 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            prefsLog.delete();
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists() || prefsLog.exists());
         }
     }
 
@@ -53,6 +53,9 @@ public class QueuedWork {
     /** Delay for delayed runnables, as big as possible but low enough to be barely perceivable */
     private static final long DELAY = 100;
 
+    /** Delay for deferred runnables, long enough for a burst of work to queue up behind */
+    private static final long DEFERRED_DELAY = 5000;
+
     /** If a {@link #waitToFinish()} takes more than {@value #MAX_WAIT_TIME_MILLIS} ms, warn */
     private static final long MAX_WAIT_TIME_MILLIS = 512;
 
@@ -68,6 +71,9 @@ public class QueuedWork {
      */
     private static Object sProcessingWork = new Object();
 
+    /** Like {@link #sProcessingWork}, for work {@link #queueDeferred deferred}. */
+    private static final Object sProcessingDeferredWork = new Object();
+
     /** Finishers {@link #addFinisher added} and not yet {@link #removeFinisher removed} */
     @GuardedBy("sLock")
     private static final LinkedList<Runnable> sFinishers = new LinkedList<>();
@@ -80,6 +86,10 @@ public class QueuedWork {
     @GuardedBy("sLock")
     private static final LinkedList<Runnable> sWork = new LinkedList<>();
 
+    /** Work queued via {@link #queueDeferred} */
+    @GuardedBy("sLock")
+    private static final LinkedList<Runnable> sDeferredWork = new LinkedList<>();
+
     /** If new work can be delayed or not */
     @GuardedBy("sLock")
     private static boolean sCanDelay = true;
@@ -226,6 +236,54 @@ public class QueuedWork {
         }
     }
 
+    /**
+     * Queue a work-runnable that {@link #waitToFinish} does not wait for, such as compacting
+     * what the queued work wrote.  It runs on the same thread as queued work, after a delay
+     * long enough that several runnables queued in a burst run together, or earlier from
+     * {@link #processDeferredWork}.
+     *
+     * @param work The new runnable to process
+     */
+    public static void queueDeferred(Runnable work) {
+        Handler handler = getHandler();
+
+        synchronized (sLock) {
+            sDeferredWork.add(work);
+
+            if (!handler.hasMessages(QueuedWorkHandler.MSG_RUN_DEFERRED)) {
+                handler.sendEmptyMessageDelayed(QueuedWorkHandler.MSG_RUN_DEFERRED,
+                        DEFERRED_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Process all {@link #queueDeferred deferred work} on this thread, for callers that are
+     * about to read the files that work would change, such as backups.  Call after
+     * {@link #waitToFinish}.
+     */
+    public static void processDeferredWork() {
+        synchronized (sProcessingDeferredWork) {
+            LinkedList<Runnable> work;
+
+            synchronized (sLock) {
+                work = (LinkedList<Runnable>) sDeferredWork.clone();
+                sDeferredWork.clear();
+
+                getHandler().removeMessages(QueuedWorkHandler.MSG_RUN_DEFERRED);
+            }
+
+            StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskWrites();
+            try {
+                for (Runnable w : work) {
+                    w.run();
+                }
+            } finally {
+                StrictMode.setThreadPolicy(oldPolicy);
+            }
+        }
+    }
+
     /**
      * @return True iff there is any {@link #queue async work queued}.
      */
@@ -268,6 +326,7 @@ public class QueuedWork {
 
     private static class QueuedWorkHandler extends Handler {
         static final int MSG_RUN = 1;
+        static final int MSG_RUN_DEFERRED = 2;
 
         QueuedWorkHandler(Looper looper) {
             super(looper);
@@ -276,6 +335,8 @@ public class QueuedWork {
         public void handleMessage(Message msg) {
             if (msg.what == MSG_RUN) {
                 processPendingWork();
+            } else if (msg.what == MSG_RUN_DEFERRED) {
+                processDeferredWork();
             }
         }
     }
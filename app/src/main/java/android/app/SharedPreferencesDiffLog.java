@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.os.FileUtils;
+import android.system.StructStat;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to a {@link SharedPreferencesImpl} since its XML file
+ * was last written.  Each commit appends only the keys it changed; loading replays the log on
+ * top of the XML, and the next full write of the XML removes it again.
+ *
+ * <p>The header records the inode, modification time and size of the XML file the log applies
+ * to, so a log left behind by another writer of the file, or by a full write that did not get
+ * to reset it, is ignored rather than replayed over the wrong contents.  It also records the
+ * generation of that XML; each record carries the generation of its commit, and replay applies
+ * the newer records in generation order, as commits may reach the disk out of order.  Each
+ * record is an int length, the CRC32 of the payload and the payload itself, so a record torn
+ * by a crash is detected and dropped along with anything after it.
+ *
+ * <p>Not thread safe; callers hold the writing-to-disk lock of the preferences.
+ */
+final class SharedPreferencesDiffLog {
+    private static final String TAG = "SharedPreferencesDiffLog";
+
+    /** "SPL" and the format version. */
+    private static final int MAGIC = 0x53504c01;
+    private static final int HEADER_SIZE = 44;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Largest log we append to; beyond that the caller rewrites the XML instead. */
+    private static final int MAX_LOG_SIZE = 1024 * 1024;
+
+    private static final byte TYPE_REMOVE = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private final File mFile;
+    private final int mMode;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(256);
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+
+    private FileOutputStream mOut;
+    /** Identity of the XML file the log applies to. */
+    private long mIno;
+    private long mMtimeSec;
+    private long mMtimeNsec;
+    private long mSize;
+    /** Generation of that XML, or -1 if appending is not safe. */
+    private long mBaseGeneration = -1;
+    private long mLength;
+    private int mRecordCount;
+
+    SharedPreferencesDiffLog(File file, int mode) {
+        mFile = file;
+        mMode = mode;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Returns true if {@link #append} can be used. */
+    boolean isActive() {
+        return mBaseGeneration >= 0;
+    }
+
+    /** Returns true if the log holds records not yet folded into the XML. */
+    boolean hasRecords() {
+        return mRecordCount > 0;
+    }
+
+    long getBaseGeneration() {
+        return mBaseGeneration;
+    }
+
+    /** Returns true if the log applies to the XML file with the given stat. */
+    boolean matches(StructStat xmlStat) {
+        return mBaseGeneration >= 0 && xmlStat.st_ino == mIno
+                && xmlStat.st_mtim.tv_sec == mMtimeSec && xmlStat.st_mtim.tv_nsec == mMtimeNsec
+                && xmlStat.st_size == mSize;
+    }
+
+    /**
+     * Applies the records of the log to the map just read from the XML file with the given
+     * stat, if the log belongs to that file, then leaves the log ready for further appends.
+     * The log is mapped rather than read, as it is only walked once.
+     *
+     * @return the generation of the resulting state, or -1 if the log does not apply to the
+     *     file and the map was left untouched.
+     */
+    long replay(StructStat xmlStat, Map<String, Object> map) {
+        close();
+        FileInputStream in = null;
+        final ArrayList<Record> records = new ArrayList<>();
+        long pos = 0;
+        try {
+            in = new FileInputStream(mFile);
+            final FileChannel channel = in.getChannel();
+            final long length = channel.size();
+            if (length < HEADER_SIZE || length > MAX_LOG_SIZE) {
+                return -1;
+            }
+            final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (data.getInt() != MAGIC) {
+                return -1;
+            }
+            mIno = data.getLong();
+            mMtimeSec = data.getLong();
+            mMtimeNsec = data.getLong();
+            mSize = data.getLong();
+            mBaseGeneration = data.getLong();
+            if (!matches(xmlStat)) {
+                // Written against another version of the file, which supersedes it.
+                mBaseGeneration = -1;
+                return -1;
+            }
+
+            pos = HEADER_SIZE;
+            final byte[] payload = new byte[(int) length];
+            while (pos + RECORD_HEADER_SIZE <= length) {
+                data.position((int) pos);
+                final int recordLength = data.getInt();
+                final int crc = data.getInt();
+                if (recordLength < 0 || recordLength > length - pos - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                data.get(payload, 0, recordLength);
+                mCrc.reset();
+                mCrc.update(payload, 0, recordLength);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                final Record record = Record.read(payload, recordLength);
+                if (record == null) {
+                    break;
+                }
+                records.add(record);
+                pos += RECORD_HEADER_SIZE + recordLength;
+            }
+            if (pos != length) {
+                Log.w(TAG, "Dropping " + (length - pos) + " torn bytes from " + mFile);
+            }
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read " + mFile, e);
+            mBaseGeneration = -1;
+            return -1;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        // Commits can be appended out of order; apply them in the order they were made.
+        records.sort((a, b) -> Long.compare(a.generation, b.generation));
+        long generation = mBaseGeneration;
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            if (record.generation > generation) {
+                record.applyTo(map);
+                generation = record.generation;
+            }
+        }
+
+        // Cut off a torn tail so that later appends are not hidden behind it.
+        try {
+            mOut = new FileOutputStream(mFile, true);
+            mOut.getChannel().truncate(pos);
+            mLength = pos;
+            mRecordCount = records.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to reopen " + mFile, e);
+            close();
+        }
+        return generation;
+    }
+
+    /**
+     * Empties the log and points it at the XML file with the given stat, which holds the
+     * state of the given generation.
+     */
+    void reset(StructStat xmlStat, long generation) {
+        close();
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putLong(xmlStat.st_ino);
+            header.putLong(xmlStat.st_mtim.tv_sec);
+            header.putLong(xmlStat.st_mtim.tv_nsec);
+            header.putLong(xmlStat.st_size);
+            header.putLong(generation);
+            mOut = new FileOutputStream(mFile, false);
+            mOut.write(header.array());
+            ContextImpl.setFilePermissionsFromMode(mFile.getPath(), mMode, 0);
+            mIno = xmlStat.st_ino;
+            mMtimeSec = xmlStat.st_mtim.tv_sec;
+            mMtimeNsec = xmlStat.st_mtim.tv_nsec;
+            mSize = xmlStat.st_size;
+            mBaseGeneration = generation;
+            mLength = HEADER_SIZE;
+            mRecordCount = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to reset " + mFile, e);
+            close();
+        }
+    }
+
+    /**
+     * Appends the changes of one commit.  Returns false if the log is not active, is full or
+     * the write failed, in which case the caller has to fall back to a full write.
+     *
+     * @param generation The generation of the commit.
+     * @param cleared Whether the commit cleared the preferences before applying changes.
+     * @param changes The changed keys and their new values, null for removed keys.
+     * @param sync Whether to sync the log before returning.
+     */
+    boolean append(long generation, boolean cleared, Map<String, Object> changes,
+            boolean sync) {
+        if (mOut == null || mBaseGeneration < 0) {
+            return false;
+        }
+        mRecord.reset();
+        try {
+            // Reserve room for the record header, filled in below.
+            mRecordOut.writeLong(0);
+            mRecordOut.writeLong(generation);
+            mRecordOut.writeBoolean(cleared);
+            mRecordOut.writeInt(changes.size());
+            for (Map.Entry<String, Object> e : changes.entrySet()) {
+                mRecordOut.writeUTF(e.getKey());
+                writeValue(mRecordOut, e.getValue());
+            }
+            mRecordOut.flush();
+        } catch (IOException | IllegalArgumentException e) {
+            // Keys or values the log cannot represent, such as very long strings.
+            return false;
+        }
+
+        final byte[] record = mRecord.toByteArray();
+        final int length = record.length - RECORD_HEADER_SIZE;
+        if (mLength + record.length > MAX_LOG_SIZE) {
+            return false;
+        }
+        mCrc.reset();
+        mCrc.update(record, RECORD_HEADER_SIZE, length);
+        putInt(record, 0, length);
+        putInt(record, 4, (int) mCrc.getValue());
+        try {
+            mOut.write(record);
+            if (sync) {
+                FileUtils.sync(mOut);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to " + mFile, e);
+            // Whatever made it out is covered by the CRC; stop appending until the next
+            // full write resets the log.
+            close();
+            return false;
+        }
+        mLength += record.length;
+        mRecordCount++;
+        return true;
+    }
+
+    /** Stops appending; the log becomes active again on the next replay or reset. */
+    void close() {
+        IoUtils.closeQuietly(mOut);
+        mOut = null;
+        mBaseGeneration = -1;
+        mLength = 0;
+        mRecordCount = 0;
+    }
+
+    /**
+     * Removes the log, once the XML holds everything in it.  A log file therefore only exists
+     * while it may hold changes the XML does not.
+     */
+    void delete() {
+        close();
+        mFile.delete();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_REMOVE);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            final Set<?> set = (Set<?>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (Object o : set) {
+                if (!(o instanceof String)) {
+                    throw new IllegalArgumentException("Not a string: " + o);
+                }
+                out.writeUTF((String) o);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value: " + value);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case TYPE_REMOVE:
+                return null;
+            case TYPE_STRING:
+                return in.readUTF();
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_STRING_SET:
+                final int size = in.readInt();
+                final HashSet<String> set = new HashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(in.readUTF());
+                }
+                return set;
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static void putInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /** One decoded commit. */
+    private static final class Record {
+        final long generation;
+        final boolean cleared;
+        final String[] keys;
+        final Object[] values;
+
+        private Record(long generation, boolean cleared, String[] keys, Object[] values) {
+            this.generation = generation;
+            this.cleared = cleared;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        static Record read(byte[] payload, int length) {
+            final DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(payload, 0, length));
+            try {
+                final long generation = in.readLong();
+                final boolean cleared = in.readBoolean();
+                final int count = in.readInt();
+                if (count < 0 || count > length) {
+                    return null;
+                }
+                final String[] keys = new String[count];
+                final Object[] values = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    keys[i] = in.readUTF();
+                    values[i] = readValue(in);
+                }
+                return new Record(generation, cleared, keys, values);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        void applyTo(Map<String, Object> map) {
+            if (cleared) {
+                map.clear();
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] == null) {
+                    map.remove(keys[i]);
+                } else {
+                    map.put(keys[i], values[i]);
+                }
+            }
+        }
+    }
+}
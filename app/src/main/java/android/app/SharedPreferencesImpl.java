@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -52,6 +53,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
@@ -61,19 +67,80 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /** Most preloaded files loaded at the same time, across all preferences of the process */
+    private static final int MAX_LOAD_THREADS = 2;
+
+    /**
+     * Loads files ahead of use; its threads exit once idle for a while.  Files asked for
+     * are loaded on a thread of their own, so they never wait behind preloads.
+     */
+    private static final ThreadPoolExecutor sLoadExecutor = new ThreadPoolExecutor(
+            MAX_LOAD_THREADS, MAX_LOAD_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mThreadNum = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SharedPreferencesImpl-load-"
+                            + mThreadNum.incrementAndGet());
+                }
+            });
+
+    static {
+        sLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
-    private final int mMode;
+    /** Mode the file is written with; only changes in {@link #onModeKnown} */
+    private volatile int mMode;
+    /** If values are only decoded from the file when first asked for */
+    private final boolean mLazyParse;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
+    /**
+     * Changes since the file was last written, or null if every write rewrites the file, as
+     * other processes read it directly.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private final SharedPreferencesDiffLog mDiffLog;
+
+    /** If {@link #mCompactDiffLog} is queued */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mCompactionQueued;
+
+    private final Runnable mCompactDiffLog = new Runnable() {
+            public void run() {
+                compactDiffLog();
+            }
+        };
+
     @GuardedBy("mLock")
     private Map<String, Object> mMap;
 
+    /** If the mode the preferences are asked for with is known */
+    private volatile boolean mModeKnown;
+
+    /**
+     * If commits go to {@link #mDiffLog}.  Off until the mode is known, as other processes
+     * may read the file directly.
+     */
+    @GuardedBy("mLock")
+    private boolean mLogsChanges;
+
+    /** The preload waiting in {@link #sLoadExecutor}, if it may not have started yet */
+    @GuardedBy("mLock")
+    private Runnable mQueuedLoad;
+
+    /** If {@link #mMap} may hold values not decoded yet */
+    @GuardedBy("mLock")
+    private boolean mHasLazyValues;
+
     @GuardedBy("mLock")
     private int mDiskWritesInFlight = 0;
 
@@ -98,29 +165,56 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mWritingToDiskLock")
     private long mDiskStateGeneration;
 
+    /** Memory state held by the file itself, without the diff log */
+    @GuardedBy("mWritingToDiskLock")
+    private long mFileStateGeneration;
+
     /** Time (and number of instances) of file-system sync requests */
     @GuardedBy("mWritingToDiskLock")
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
     SharedPreferencesImpl(File file, int mode) {
+        this(file, mode, false, true);
+    }
+
+    /**
+     * @param lazyParse if only the names in the file are read up front, and each value is
+     *                  decoded the first time it is asked for.  Suits large files of which
+     *                  only a few values are read early on.
+     * @param modeKnown if {@code mode} is the one the preferences are asked for with.  If
+     *                  not, as for preferences loaded ahead of use, every write rewrites the
+     *                  file until {@link #onModeKnown} supplies the real mode.
+     */
+    SharedPreferencesImpl(File file, int mode, boolean lazyParse, boolean modeKnown) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
         mMode = mode;
+        mLazyParse = lazyParse;
+        mDiffLog = (mode & Context.MODE_MULTI_PROCESS) != 0
+                ? null : new SharedPreferencesDiffLog(makeLogFile(file), mode);
+        mModeKnown = modeKnown;
+        mLogsChanges = modeKnown && mDiffLog != null;
         mLoaded = false;
         mMap = null;
-        startLoadFromDisk();
+        startLoadFromDisk(!modeKnown);
     }
 
-    private void startLoadFromDisk() {
-        synchronized (mLock) {
-            mLoaded = false;
-        }
-        new Thread("SharedPreferencesImpl-load") {
+    private void startLoadFromDisk(boolean preload) {
+        final Runnable load = new Runnable() {
             public void run() {
                 loadFromDisk();
             }
-        }.start();
+        };
+        synchronized (mLock) {
+            mLoaded = false;
+            mQueuedLoad = preload ? load : null;
+        }
+        if (preload) {
+            sLoadExecutor.execute(load);
+        } else {
+            new Thread(load, "SharedPreferencesImpl-load").start();
+        }
     }
 
     private void loadFromDisk() {
@@ -140,15 +234,22 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
 
         Map map = null;
+        boolean lazy = false;
         StructStat stat = null;
         try {
             stat = Os.stat(mFile.getPath());
             if (mFile.canRead()) {
                 BufferedInputStream str = null;
                 try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16*1024);
-                    map = XmlUtils.readMapXml(str);
+                    if (mLazyParse) {
+                        map = SharedPreferencesXmlIndex.read(mFile);
+                        lazy = map != null;
+                    }
+                    if (map == null) {
+                        str = new BufferedInputStream(
+                                new FileInputStream(mFile), 16*1024);
+                        map = XmlUtils.readMapXml(str);
+                    }
                 } catch (Exception e) {
                     Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
                 } finally {
@@ -159,14 +260,38 @@ final class SharedPreferencesImpl implements SharedPreferences {
             /* ignore */
         }
 
+        // Apply the changes logged since the file was written.
+        long generation = 0;
+        if (map != null && mDiffLog != null) {
+            synchronized (mWritingToDiskLock) {
+                generation = mDiffLog.replay(stat, map);
+                if (generation >= 0) {
+                    mFileStateGeneration = mDiffLog.getBaseGeneration();
+                    mDiskStateGeneration = Math.max(mDiskStateGeneration, generation);
+                    if (mDiffLog.hasRecords() && !mCompactionQueued) {
+                        // Left behind by an earlier process; fold it in soon.
+                        mCompactionQueued = true;
+                        QueuedWork.queueDeferred(mCompactDiffLog);
+                    }
+                } else {
+                    generation = 0;
+                    mFileStateGeneration = mDiskStateGeneration;
+                }
+            }
+        }
+
         synchronized (mLock) {
             mLoaded = true;
             if (map != null) {
                 mMap = map;
+                mHasLazyValues = lazy;
                 mStatTimestamp = stat.st_mtim;
                 mStatSize = stat.st_size;
+                mCurrentMemoryStateGeneration =
+                        Math.max(mCurrentMemoryStateGeneration, generation);
             } else {
                 mMap = new HashMap<>();
+                mHasLazyValues = false;
             }
             mLock.notifyAll();
         }
@@ -176,13 +301,49 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeLogFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".log");
+    }
+
+    /** If the mode the preferences are asked for with is known */
+    boolean isModeKnown() {
+        return mModeKnown;
+    }
+
+    /**
+     * Called with the mode the preferences are asked for with.  For preferences created
+     * before that mode was known, writes the file with that mode from now on, starts logging
+     * changes unless other processes read the file, see {@link Context#MODE_MULTI_PROCESS},
+     * and starts loading the file right away if its preload is still queued.
+     */
+    void onModeKnown(int mode) {
+        if (mModeKnown) {
+            return;
+        }
+        final Runnable queuedLoad;
+        synchronized (mLock) {
+            if (mModeKnown) {
+                return;
+            }
+            mMode = mode;
+            mLogsChanges = mDiffLog != null && (mode & Context.MODE_MULTI_PROCESS) == 0;
+            mModeKnown = true;
+            queuedLoad = mQueuedLoad;
+            mQueuedLoad = null;
+        }
+        // Now that the file is asked for, do not leave it waiting behind other preloads.
+        if (queuedLoad != null && sLoadExecutor.remove(queuedLoad)) {
+            new Thread(queuedLoad, "SharedPreferencesImpl-load").start();
+        }
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
             if (!hasFileChangedUnexpectedly()) {
                 return;
             }
-            startLoadFromDisk();
+            startLoadFromDisk(false);
         }
     }
 
@@ -241,9 +402,52 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /**
+     * Get a value from {@link #mMap}, decoding it first if it was loaded lazily.
+     *
+     * {@link #mMap} only holds values not decoded yet while no write owns it, so they are
+     * safe to decode in place.
+     */
+    @GuardedBy("mLock")
+    private Object getValueLocked(String key) {
+        Object v = mMap.get(key);
+        if (v instanceof SharedPreferencesXmlIndex.LazyValue) {
+            v = decodeLocked(key, (SharedPreferencesXmlIndex.LazyValue) v);
+        }
+        return v;
+    }
+
+    @GuardedBy("mLock")
+    private Object decodeLocked(String key, SharedPreferencesXmlIndex.LazyValue lazyValue) {
+        try {
+            final Object v = lazyValue.decode();
+            mMap.put(key, v);
+            return v;
+        } catch (Exception e) {
+            // A full parse would have dropped the whole file; drop just this value.
+            Log.w(TAG, "Cannot read " + key + " from " + mFile.getAbsolutePath(), e);
+            mMap.remove(key);
+            return null;
+        }
+    }
+
+    /** Decode every value of {@link #mMap} that was loaded lazily. */
+    @GuardedBy("mLock")
+    private void decodeAllLocked() {
+        if (!mHasLazyValues) {
+            return;
+        }
+        final ArrayList<String> keys = new ArrayList<>(mMap.keySet());
+        for (int i = 0; i < keys.size(); i++) {
+            getValueLocked(keys.get(i));
+        }
+        mHasLazyValues = false;
+    }
+
     public Map<String, ?> getAll() {
         synchronized (mLock) {
             awaitLoadedLocked();
+            decodeAllLocked();
             //noinspection unchecked
             return new HashMap<String, Object>(mMap);
         }
@@ -253,7 +457,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public String getString(String key, @Nullable String defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            String v = (String)mMap.get(key);
+            String v = (String)getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -262,7 +466,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
+            Set<String> v = (Set<String>) getValueLocked(key);
             return v != null ? v : defValues;
         }
     }
@@ -270,28 +474,28 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public int getInt(String key, int defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Integer v = (Integer)mMap.get(key);
+            Integer v = (Integer)getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     public long getLong(String key, long defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Long v = (Long)mMap.get(key);
+            Long v = (Long)getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     public float getFloat(String key, float defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Float v = (Float)mMap.get(key);
+            Float v = (Float)getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     public boolean getBoolean(String key, boolean defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Boolean v = (Boolean)mMap.get(key);
+            Boolean v = (Boolean)getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -324,6 +528,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** If the commit cleared the map before applying {@link #changes} */
+        final boolean cleared;
+        /** Keys changed by the commit and their new values, null when removed */
+        @Nullable final Map<String, Object> changes;
+        /** If this is a full write to fold the diff log into the file */
+        final boolean compactsDiffLog;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -332,11 +542,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, boolean cleared,
+                @Nullable Map<String, Object> changes, boolean compactsDiffLog) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.cleared = cleared;
+            this.changes = changes;
+            this.compactsDiffLog = compactsDiffLog;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -450,6 +664,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            boolean cleared = false;
+            Map<String, Object> changes = null;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
@@ -462,6 +678,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     // noinspection unchecked
                     mMap = new HashMap<String, Object>(mMap);
                 }
+                // The write gets the map as it is, with nothing left to decode.
+                decodeAllLocked();
                 mapToWriteToDisk = mMap;
                 mDiskWritesInFlight++;
 
@@ -473,10 +691,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
                 synchronized (mLock) {
                     boolean changesMade = false;
+                    if (mLogsChanges) {
+                        changes = new HashMap<>();
+                    }
 
                     if (mClear) {
                         if (!mMap.isEmpty()) {
                             changesMade = true;
+                            cleared = true;
                             mMap.clear();
                         }
                         mClear = false;
@@ -507,19 +729,24 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (changes != null) {
+                            changes.put(k, (v == this) ? null : v);
+                        }
                     }
 
                     mModified.clear();
 
                     if (changesMade) {
                         mCurrentMemoryStateGeneration++;
+                    } else {
+                        changes = null;
                     }
 
                     memoryStateGeneration = mCurrentMemoryStateGeneration;
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, cleared, changes, false);
         }
 
         public boolean commit() {
@@ -662,6 +889,16 @@ final class SharedPreferencesImpl implements SharedPreferences {
             startTime = System.currentTimeMillis();
         }
 
+        // Write only the changes if we can; if not, they have to reach the file now rather
+        // than with a later commit, as that one may go to the log without them.
+        boolean mustWrite = isFromSyncCommit || mcr.compactsDiffLog;
+        if (mDiffLog != null && mcr.changes != null) {
+            if (appendToDiffLog(mcr, isFromSyncCommit)) {
+                return;
+            }
+            mustWrite = true;
+        }
+
         boolean fileExists = mFile.exists();
 
         if (DEBUG) {
@@ -675,9 +912,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         if (fileExists) {
             boolean needsWrite = false;
 
-            // Only need to write if the disk state is older than this commit
-            if (mDiskStateGeneration < mcr.memoryStateGeneration) {
-                if (isFromSyncCommit) {
+            // Only need to write if the disk state is older than this commit, or to fold
+            // the diff log into the file
+            if (mDiskStateGeneration < mcr.memoryStateGeneration || mcr.compactsDiffLog) {
+                if (mustWrite) {
                     needsWrite = true;
                 } else {
                     synchronized (mLock) {
@@ -752,6 +990,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 // Do nothing
             }
 
+            if (mDiffLog != null) {
+                // The file now holds everything the log did.
+                mDiffLog.delete();
+            }
+
             if (DEBUG) {
                 fstatTime = System.currentTimeMillis();
             }
@@ -763,7 +1006,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 deleteTime = System.currentTimeMillis();
             }
 
-            mDiskStateGeneration = mcr.memoryStateGeneration;
+            mDiskStateGeneration = Math.max(mDiskStateGeneration, mcr.memoryStateGeneration);
+            mFileStateGeneration = mcr.memoryStateGeneration;
 
             mcr.setDiskWriteResult(true, true);
 
@@ -801,4 +1045,89 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Append the changes of a commit to the diff log instead of rewriting the file.
+     *
+     * Note: must hold mWritingToDiskLock
+     *
+     * @return true if the commit is on disk, false if the file has to be written instead.
+     */
+    private boolean appendToDiffLog(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        if (mBackupFile.exists()) {
+            // The last full write did not finish, so the file is not one to log against.
+            return false;
+        }
+
+        final StructStat stat;
+        try {
+            stat = Os.stat(mFile.getPath());
+        } catch (ErrnoException e) {
+            return false;
+        }
+
+        if (!mDiffLog.matches(stat)) {
+            // Start a new log against the file, unless the file was written behind our back
+            // or an earlier log that failed holds changes the file does not.
+            if (mFileStateGeneration != mDiskStateGeneration) {
+                return false;
+            }
+            synchronized (mLock) {
+                if (!stat.st_mtim.equals(mStatTimestamp) || mStatSize != stat.st_size) {
+                    return false;
+                }
+            }
+            mDiffLog.reset(stat, mFileStateGeneration);
+            if (!mDiffLog.isActive()) {
+                return false;
+            }
+        }
+
+        if (mcr.memoryStateGeneration <= mDiffLog.getBaseGeneration()) {
+            // Already part of the file.
+            mcr.setDiskWriteResult(false, true);
+            return true;
+        }
+
+        // Only a commit() is synced; apply() has never promised more than an eventual write.
+        if (!mDiffLog.append(mcr.memoryStateGeneration, mcr.cleared, mcr.changes,
+                isFromSyncCommit)) {
+            return false;
+        }
+        mDiskStateGeneration = Math.max(mDiskStateGeneration, mcr.memoryStateGeneration);
+        mcr.setDiskWriteResult(true, true);
+
+        if (!mCompactionQueued) {
+            mCompactionQueued = true;
+            QueuedWork.queueDeferred(mCompactDiffLog);
+        }
+        return true;
+    }
+
+    /**
+     * Fold the diff log into the file with a full write of the current state.  Runs as
+     * deferred work, so it does not hold up {@link QueuedWork#waitToFinish}.
+     */
+    private void compactDiffLog() {
+        synchronized (mWritingToDiskLock) {
+            mCompactionQueued = false;
+            if (!mDiffLog.hasRecords()) {
+                return;
+            }
+
+            // Snapshot under mWritingToDiskLock, so that no later commit reaches the log
+            // before the write below removes it.
+            final MemoryCommitResult mcr;
+            synchronized (mLock) {
+                decodeAllLocked();
+                mDiskWritesInFlight++;
+                mcr = new MemoryCommitResult(mCurrentMemoryStateGeneration, null, null, mMap,
+                        false, null, true);
+            }
+            writeToFile(mcr, true);
+        }
+        synchronized (mLock) {
+            mDiskWritesInFlight--;
+        }
+    }
 }
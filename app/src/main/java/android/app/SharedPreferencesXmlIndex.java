@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.util.Xml;
+
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Index of the values in a preferences XML file, for {@link SharedPreferencesImpl} to load
+ * without parsing every value up front.  {@link #read} only finds where each value element
+ * starts and ends and decodes its name; the value itself is decoded from the bytes of the
+ * file the first time it is asked for.
+ *
+ * Only the XML that {@link XmlUtils#writeMapXml} writes is indexed.  For anything else
+ * {@link #read} returns null and the file has to be parsed in full.
+ */
+final class SharedPreferencesXmlIndex {
+    /** A value still to be decoded from the file. */
+    static final class LazyValue {
+        private final byte[] mData;
+        private final int mStart;
+        private final int mEnd;
+
+        LazyValue(byte[] data, int start, int end) {
+            mData = data;
+            mStart = start;
+            mEnd = end;
+        }
+
+        Object decode() throws XmlPullParserException, IOException {
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(mData, mStart, mEnd - mStart),
+                    StandardCharsets.UTF_8.name());
+            return XmlUtils.readValueXml(parser, new String[1]);
+        }
+    }
+
+    private final byte[] mData;
+    private int mPos;
+
+    /** Name of the tag last passed to {@link #skipTag} */
+    private String mTagName;
+
+    /** Value of the name attribute of the tag last passed to {@link #skipTag}, if any */
+    private String mName;
+
+    /** If the tag last passed to {@link #skipTag} ended with "/>" */
+    private boolean mEmptyTag;
+
+    private SharedPreferencesXmlIndex(byte[] data) {
+        mData = data;
+    }
+
+    /**
+     * Index the given preferences file.
+     *
+     * @return the names in the file mapped to their {@link LazyValue}s, or null if the file
+     *         has to be parsed in full.
+     */
+    static HashMap<String, Object> read(File file) throws IOException {
+        return new SharedPreferencesXmlIndex(IoUtils.readFileAsByteArray(file.getPath()))
+                .index();
+    }
+
+    private HashMap<String, Object> index() {
+        skipWhitespace();
+        if (startsWith("<?xml")) {
+            // The declaration may not contain a '>' of its own.
+            mPos = indexOf('>', mPos);
+            if (mPos < 0) {
+                return null;
+            }
+            mPos++;
+            skipWhitespace();
+        }
+        if (!startsWith("<map") || !skipTag() || !"map".equals(mTagName)) {
+            return null;
+        }
+
+        final HashMap<String, Object> map = new HashMap<>();
+        if (mEmptyTag) {
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (mPos >= mData.length || mData[mPos] != '<') {
+                // Text in the map or a truncated file
+                return null;
+            }
+            if (startsWith("</")) {
+                return startsWith("</map>") ? map : null;
+            }
+
+            final int start = mPos;
+            if (!skipTag() || mName == null) {
+                return null;
+            }
+            final String name = mName;
+            if (!mEmptyTag && !skipContent()) {
+                return null;
+            }
+            map.put(name, new LazyValue(mData, start, mPos));
+        }
+    }
+
+    /**
+     * Move past the start tag at the current position, noting its name, its name attribute
+     * and if it is empty.
+     *
+     * @return false if it is not a start tag this index handles.
+     */
+    private boolean skipTag() {
+        final byte[] data = mData;
+        int i = mPos + 1;
+        final int tagStart = i;
+        while (i < data.length && isNameChar(data[i])) {
+            i++;
+        }
+        if (i == tagStart) {
+            // "<!", "<?", "</" and the like
+            return false;
+        }
+        mTagName = new String(data, tagStart, i - tagStart, StandardCharsets.UTF_8);
+        mName = null;
+
+        while (true) {
+            while (i < data.length && isWhitespace(data[i])) {
+                i++;
+            }
+            if (i >= data.length) {
+                return false;
+            }
+            if (data[i] == '>' || data[i] == '/') {
+                mEmptyTag = data[i] == '/';
+                if (mEmptyTag && (++i >= data.length || data[i] != '>')) {
+                    return false;
+                }
+                mPos = i + 1;
+                return true;
+            }
+
+            final int attrStart = i;
+            while (i < data.length && isNameChar(data[i])) {
+                i++;
+            }
+            final int attrEnd = i;
+            if (attrEnd == attrStart || attrEnd + 1 >= data.length || data[attrEnd] != '='
+                    || (data[attrEnd + 1] != '"' && data[attrEnd + 1] != '\'')) {
+                return false;
+            }
+            final int valueStart = attrEnd + 2;
+            final int valueEnd = indexOf(data[attrEnd + 1], valueStart);
+            if (valueEnd < 0) {
+                return false;
+            }
+            if (attrEnd - attrStart == 4 && data[attrStart] == 'n' && data[attrStart + 1] == 'a'
+                    && data[attrStart + 2] == 'm' && data[attrStart + 3] == 'e') {
+                mName = unescape(new String(data, valueStart, valueEnd - valueStart,
+                        StandardCharsets.UTF_8));
+                if (mName == null) {
+                    return false;
+                }
+            }
+            i = valueEnd + 1;
+        }
+    }
+
+    /**
+     * Move past the content and end tag of the element whose start tag was just skipped.
+     *
+     * @return false if the content is not something this index handles.
+     */
+    private boolean skipContent() {
+        int depth = 1;
+        while (true) {
+            mPos = indexOf('<', mPos);
+            if (mPos < 0) {
+                return false;
+            }
+            if (startsWith("</")) {
+                mPos = indexOf('>', mPos);
+                if (mPos < 0) {
+                    return false;
+                }
+                mPos++;
+                if (--depth == 0) {
+                    return true;
+                }
+            } else {
+                if (!skipTag()) {
+                    return false;
+                }
+                if (!mEmptyTag) {
+                    depth++;
+                }
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mData.length && isWhitespace(mData[mPos])) {
+            mPos++;
+        }
+    }
+
+    private boolean startsWith(String prefix) {
+        final int length = prefix.length();
+        if (mPos + length > mData.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mData[mPos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int b, int from) {
+        final byte[] data = mData;
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '-' || b == '_' || b == ':' || b == '.';
+    }
+
+    /**
+     * Resolve the entity and character references in an attribute value.
+     *
+     * @return the value, or null if it has a reference this index does not handle.
+     */
+    private static String unescape(String s) {
+        int amp = s.indexOf('&');
+        if (amp < 0) {
+            return s;
+        }
+        final StringBuilder sb = new StringBuilder(s.length());
+        int pos = 0;
+        while (amp >= 0) {
+            final int semi = s.indexOf(';', amp);
+            if (semi < 0) {
+                return null;
+            }
+            sb.append(s, pos, amp);
+            final String ref = s.substring(amp + 1, semi);
+            switch (ref) {
+                case "amp": sb.append('&'); break;
+                case "lt": sb.append('<'); break;
+                case "gt": sb.append('>'); break;
+                case "quot": sb.append('"'); break;
+                case "apos": sb.append('\''); break;
+                default:
+                    if (ref.length() < 2 || ref.charAt(0) != '#') {
+                        return null;
+                    }
+                    try {
+                        final int codePoint = (ref.charAt(1) == 'x')
+                                ? Integer.parseInt(ref.substring(2), 16)
+                                : Integer.parseInt(ref.substring(1));
+                        sb.appendCodePoint(codePoint);
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+            }
+            pos = semi + 1;
+            amp = s.indexOf('&', pos);
+        }
+        sb.append(s, pos, s.length());
+        return sb.toString();
+    }
+}
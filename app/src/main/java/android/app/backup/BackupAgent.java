@@ -158,6 +158,7 @@ public abstract class BackupAgent extends ContextWrapper {
         @Override
         public void run() {
             QueuedWork.waitToFinish();
+            QueuedWork.processDeferredWork();
             mLatch.countDown();
         }
     };
@@ -173,6 +174,17 @@ public abstract class BackupAgent extends ContextWrapper {
     }
 
 
+    // Change logs left by earlier processes are only folded into their files once loaded
+    private void loadLoggedSharedPrefs() {
+        final Context[] contexts = { createCredentialProtectedStorageContext(),
+                createDeviceProtectedStorageContext() };
+        for (Context context : contexts) {
+            final File sharedPrefsDir = context.getSharedPreferencesPath("foo").getParentFile();
+            SharedPreferencesBackupHelper.loadLoggedPrefs(context,
+                    sharedPrefsDir.listFiles((dir, name) -> name.endsWith(".xml")));
+        }
+    }
+
     public BackupAgent() {
         super(null);
     }
@@ -996,6 +1008,7 @@ public abstract class BackupAgent extends ContextWrapper {
 
             // Ensure that any SharedPreferences writes have landed *before*
             // we potentially try to back up the underlying files directly.
+            loadLoggedSharedPrefs();
             waitForSharedPrefs();
 
             try {
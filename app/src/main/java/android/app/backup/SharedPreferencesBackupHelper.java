@@ -95,22 +95,46 @@ public class SharedPreferencesBackupHelper extends FileBackupHelperBase implemen
             ParcelFileDescriptor newState) {
         Context context = mContext;
 
-        // If a SharedPreference has an outstanding write in flight,
-        // wait for it to finish flushing to disk.
-        QueuedWork.waitToFinish();
-
         // make filenames for the prefGroups
         String[] prefGroups = mPrefGroups;
         final int N = prefGroups.length;
+        File[] prefsFiles = new File[N];
         String[] files = new String[N];
         for (int i=0; i<N; i++) {
-            files[i] = context.getSharedPrefsFile(prefGroups[i]).getAbsolutePath();
+            prefsFiles[i] = context.getSharedPrefsFile(prefGroups[i]);
+            files[i] = prefsFiles[i].getAbsolutePath();
         }
 
+        // If a SharedPreference has an outstanding write in flight,
+        // wait for it to finish flushing to disk, and fold any change
+        // logs into the files we are about to read.
+        loadLoggedPrefs(context, prefsFiles);
+        QueuedWork.waitToFinish();
+        QueuedWork.processDeferredWork();
+
         // go
         performBackup_checked(oldState, data, newState, files, prefGroups);
     }
 
+    /**
+     * Loads each of the given preferences files that still has a change log next to it, as
+     * left by a process that died before folding the log in.  Loading queues the log to be
+     * folded into the file by {@link QueuedWork#processDeferredWork}, which the caller must
+     * run before reading the file.
+     */
+    static void loadLoggedPrefs(Context context, File[] prefsFiles) {
+        if (prefsFiles == null) {
+            return;
+        }
+        for (File prefsFile : prefsFiles) {
+            // Named as by SharedPreferencesImpl.makeLogFile()
+            if (new File(prefsFile.getPath() + ".log").exists()) {
+                // getAll() waits for the load, and so for the log to be queued.
+                context.getSharedPreferences(prefsFile, Context.MODE_PRIVATE).getAll();
+            }
+        }
+    }
+
     /**
      * Restores one entity from the restore data stream to its proper shared
      * preferences file store.
@@ -620,6 +620,13 @@ public class ApplicationInfo extends PackageItemInfo implements Parcelable {
      */
     public static final String METADATA_PRELOADED_FONTS = "preloaded_fonts";
 
+    /**
+     * Meta-data naming a string-array resource that lists the
+     * {@link android.content.SharedPreferences} to start loading when the process starts.
+     * @hide
+     */
+    public static final String METADATA_PRELOADED_SHARED_PREFS = "preloaded_shared_prefs";
+
     /**
      * The required smallest screen width the application can run on.  If 0,
      * nothing has been specified.  Comes from
@@ -102,11 +102,14 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -118,14 +121,22 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 
 /**
@@ -243,6 +254,23 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /**
+     * Total number of packages that were looked up in the cache but not read from it.  We use
+     * it only for logging.
+     */
+    public static final AtomicInteger sCachedPackageMissCount = new AtomicInteger();
+
+    /**
+     * Total size of the cache entries that were mapped.  We use it only for logging.
+     */
+    public static final AtomicLong sCachedPackageBytesMapped = new AtomicLong();
+
+    /**
+     * Total size of the parts of cache entries that were unmarshalled, which excludes the
+     * components that were never used.  We use it only for logging.
+     */
+    public static final AtomicLong sCachedPackageBytesMaterialized = new AtomicLong();
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -993,6 +1021,9 @@ public class PackageParser {
         if (parsed != null) {
             return parsed;
         }
+        if (useCaches && mCacheDir != null) {
+            sCachedPackageMissCount.incrementAndGet();
+        }
 
         long parseTime = LOG_PARSE_TIMINGS ? SystemClock.uptimeMillis() : 0;
         if (packageFile.isDirectory()) {
@@ -1037,9 +1068,50 @@ public class PackageParser {
         return fromCacheEntryStatic(bytes);
     }
 
+    /**
+     * Reads a cache entry that may be mapped from a file.  The entry must not change as long
+     * as the package it returns has components that were not used yet.
+     */
+    @VisibleForTesting
+    protected Package fromCacheEntry(ByteBuffer entry) {
+        return fromCacheEntryStatic(entry);
+    }
+
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
+        return fromCacheEntryStatic(ByteBuffer.wrap(bytes));
+    }
+
+    /** static version of {@link #fromCacheEntry} for unit tests. */
+    @VisibleForTesting
+    public static Package fromCacheEntryStatic(ByteBuffer entry) {
+        // See toCacheEntryStatic() for the layout.
+        final ByteBuffer in = entry.duplicate();
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        final ByteBuffer[] componentSections = new ByteBuffer[Package.NUM_COMPONENT_SECTIONS];
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < componentSections.length; i++) {
+            final int length = in.getInt();
+            final int expectedCrc = in.getInt();
+            final ByteBuffer section = in.slice();
+            section.limit(length);
+            // The section is only unmarshalled when its list is first used, long after the
+            // caller stopped handling errors in the entry, so check it for corruption now.
+            crc.reset();
+            crc.update(section.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IllegalStateException("Bad checksum for section " + i
+                        + " of cache entry");
+            }
+            componentSections[i] = section;
+            in.position(in.position() + length);
+        }
+        if (in.hasRemaining()) {
+            throw new IllegalStateException("Unexpected data at the end of cache entry");
+        }
+
         final Parcel p = Parcel.obtain();
         p.unmarshall(bytes, 0, bytes.length);
         p.setDataPosition(0);
@@ -1047,11 +1119,12 @@ public class PackageParser {
         final ReadHelper helper = new ReadHelper(p);
         helper.startAndInstall();
 
-        Package pkg = new Package(p);
+        Package pkg = new Package(p, componentSections);
 
         p.recycle();
 
         sCachedPackageReadCount.incrementAndGet();
+        sCachedPackageBytesMaterialized.addAndGet(bytes.length);
 
         return pkg;
     }
@@ -1062,13 +1135,56 @@ public class PackageParser {
 
     }
 
-    /** static version of {@link #toCacheEntry} for unit tests. */
+    /**
+     * static version of {@link #toCacheEntry} for unit tests.
+     *
+     * The entry starts with the length and marshalled contents of a parcel that holds the
+     * package without its components, followed by the length, CRC32 and contents of a
+     * section for each list of components in the order of
+     * {@link Package#Package(Parcel, ByteBuffer[])}.  Each section has its own string pool,
+     * so that it can be read by itself when the list is first used.
+     */
     @VisibleForTesting
     public static byte[] toCacheEntryStatic(Package pkg) {
         final Parcel p = Parcel.obtain();
         final WriteHelper helper = new WriteHelper(p);
 
-        pkg.writeToParcel(p, 0 /* flags */);
+        pkg.writeToParcel(p, 0 /* flags */, true /* componentsInSections */);
+
+        helper.finishAndUninstall();
+
+        byte[] serialized = p.marshall();
+        p.recycle();
+
+        final byte[][] componentSections = {
+                toCacheSection(pkg.permissions),
+                toCacheSection(pkg.permissionGroups),
+                toCacheSection(pkg.activities),
+                toCacheSection(pkg.receivers),
+                toCacheSection(pkg.providers),
+                toCacheSection(pkg.services),
+                toCacheSection(pkg.instrumentation),
+        };
+        int size = 4 + serialized.length;
+        for (byte[] section : componentSections) {
+            size += 8 + section.length;
+        }
+        final ByteBuffer entry = ByteBuffer.allocate(size);
+        entry.putInt(serialized.length).put(serialized);
+        final CRC32 crc = new CRC32();
+        for (byte[] section : componentSections) {
+            crc.reset();
+            crc.update(section);
+            entry.putInt(section.length).putInt((int) crc.getValue()).put(section);
+        }
+        return entry.array();
+    }
+
+    private static <T extends Parcelable> byte[] toCacheSection(List<T> components) {
+        final Parcel p = Parcel.obtain();
+        final WriteHelper helper = new WriteHelper(p);
+
+        p.writeParcelableList(components, 0 /* flags */);
 
         helper.finishAndUninstall();
 
@@ -1078,6 +1194,28 @@ public class PackageParser {
         return serialized;
     }
 
+    private static <T extends Parcelable> ArrayList<T> fromCacheSection(ByteBuffer section) {
+        final byte[] bytes = new byte[section.remaining()];
+        section.duplicate().get(bytes);
+
+        final Parcel p = Parcel.obtain();
+        p.unmarshall(bytes, 0, bytes.length);
+        p.setDataPosition(0);
+
+        final ReadHelper helper = new ReadHelper(p);
+        helper.startAndInstall();
+
+        // We use the boot classloader for all classes that we load.
+        final ArrayList<T> components = new ArrayList<>();
+        p.readParcelableList(components, Object.class.getClassLoader());
+
+        p.recycle();
+
+        sCachedPackageBytesMaterialized.addAndGet(bytes.length);
+
+        return components;
+    }
+
     /**
      * Given a {@code packageFile} and a {@code cacheFile} returns whether the
      * cache file is up to date based on the mod-time of both files.
@@ -1127,8 +1265,14 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            // The components are read from the mapping when they are first used, which is
+            // never for many of them.
+            final ByteBuffer entry;
+            try (FileChannel channel = new FileInputStream(cacheFile).getChannel()) {
+                entry = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            sCachedPackageBytesMapped.addAndGet(entry.capacity());
+            Package p = fromCacheEntry(entry);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1165,7 +1309,10 @@ public class PackageParser {
 
             if (cacheFile.exists()) {
                 if (!cacheFile.delete()) {
+                    // Don't truncate it instead, since packages read from it may still
+                    // have it mapped.
                     Slog.e(TAG, "Unable to delete cache file: " + cacheFile);
+                    return;
                 }
             }
 
@@ -5857,13 +6004,17 @@ public class PackageParser {
         // For now we only support one application per package.
         public ApplicationInfo applicationInfo = new ApplicationInfo();
 
-        public final ArrayList<Permission> permissions = new ArrayList<Permission>(0);
-        public final ArrayList<PermissionGroup> permissionGroups = new ArrayList<PermissionGroup>(0);
-        public final ArrayList<Activity> activities = new ArrayList<Activity>(0);
-        public final ArrayList<Activity> receivers = new ArrayList<Activity>(0);
-        public final ArrayList<Provider> providers = new ArrayList<Provider>(0);
-        public final ArrayList<Service> services = new ArrayList<Service>(0);
-        public final ArrayList<Instrumentation> instrumentation = new ArrayList<Instrumentation>(0);
+        // Lists of components, which are read lazily from a cache entry.
+        public final ArrayList<Permission> permissions;
+        public final ArrayList<PermissionGroup> permissionGroups;
+        public final ArrayList<Activity> activities;
+        public final ArrayList<Activity> receivers;
+        public final ArrayList<Provider> providers;
+        public final ArrayList<Service> services;
+        public final ArrayList<Instrumentation> instrumentation;
+
+        /** Number of lists of components that a cache entry has a section for. */
+        static final int NUM_COMPONENT_SECTIONS = 7;
 
         public final ArrayList<String> requestedPermissions = new ArrayList<String>();
 
@@ -5982,6 +6133,14 @@ public class PackageParser {
         public boolean isStub;
 
         public Package(String packageName) {
+            permissions = new ArrayList<>(0);
+            permissionGroups = new ArrayList<>(0);
+            activities = new ArrayList<>(0);
+            receivers = new ArrayList<>(0);
+            providers = new ArrayList<>(0);
+            services = new ArrayList<>(0);
+            instrumentation = new ArrayList<>(0);
+
             this.packageName = packageName;
             this.manifestPackageName = packageName;
             applicationInfo.packageName = packageName;
@@ -6305,6 +6464,15 @@ public class PackageParser {
         }
 
         public Package(Parcel dest) {
+            this(dest, null);
+        }
+
+        /**
+         * Reads a package that was written by {@link #writeToParcel(Parcel, int, boolean)}.
+         * If {@code componentSections} is not null, the components were written to separate
+         * sections, which are read when each list is first used.
+         */
+        Package(Parcel dest, ByteBuffer[] componentSections) {
             // We use the boot classloader for all classes that we load.
             final ClassLoader boot = Object.class.getClassLoader();
 
@@ -6325,23 +6493,41 @@ public class PackageParser {
                 applicationInfo.permission = applicationInfo.permission.intern();
             }
 
-            // We don't serialize the "owner" package and the application info object for each of
-            // these components, in order to save space and to avoid circular dependencies while
-            // serialization. We need to fix them all up here.
-            dest.readParcelableList(permissions, boot);
-            fixupOwner(permissions);
-            dest.readParcelableList(permissionGroups, boot);
-            fixupOwner(permissionGroups);
-            dest.readParcelableList(activities, boot);
-            fixupOwner(activities);
-            dest.readParcelableList(receivers, boot);
-            fixupOwner(receivers);
-            dest.readParcelableList(providers, boot);
-            fixupOwner(providers);
-            dest.readParcelableList(services, boot);
-            fixupOwner(services);
-            dest.readParcelableList(instrumentation, boot);
-            fixupOwner(instrumentation);
+            if (componentSections != null) {
+                permissions = new LazyComponentList<>(this, componentSections[0]);
+                permissionGroups = new LazyComponentList<>(this, componentSections[1]);
+                activities = new LazyComponentList<>(this, componentSections[2]);
+                receivers = new LazyComponentList<>(this, componentSections[3]);
+                providers = new LazyComponentList<>(this, componentSections[4]);
+                services = new LazyComponentList<>(this, componentSections[5]);
+                instrumentation = new LazyComponentList<>(this, componentSections[6]);
+            } else {
+                permissions = new ArrayList<>(0);
+                permissionGroups = new ArrayList<>(0);
+                activities = new ArrayList<>(0);
+                receivers = new ArrayList<>(0);
+                providers = new ArrayList<>(0);
+                services = new ArrayList<>(0);
+                instrumentation = new ArrayList<>(0);
+
+                // We don't serialize the "owner" package and the application info object for
+                // each of these components, in order to save space and to avoid circular
+                // dependencies while serialization. We need to fix them all up here.
+                dest.readParcelableList(permissions, boot);
+                fixupOwner(permissions);
+                dest.readParcelableList(permissionGroups, boot);
+                fixupOwner(permissionGroups);
+                dest.readParcelableList(activities, boot);
+                fixupOwner(activities);
+                dest.readParcelableList(receivers, boot);
+                fixupOwner(receivers);
+                dest.readParcelableList(providers, boot);
+                fixupOwner(providers);
+                dest.readParcelableList(services, boot);
+                fixupOwner(services);
+                dest.readParcelableList(instrumentation, boot);
+                fixupOwner(instrumentation);
+            }
 
             dest.readStringList(requestedPermissions);
             internStringArrayList(requestedPermissions);
@@ -6483,6 +6669,14 @@ public class PackageParser {
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
+            writeToParcel(dest, flags, false /* componentsInSections */);
+        }
+
+        /**
+         * Writes this package, without its lists of components if
+         * {@code componentsInSections}, in which case the caller writes them separately.
+         */
+        void writeToParcel(Parcel dest, int flags, boolean componentsInSections) {
             dest.writeString(packageName);
             dest.writeString(manifestPackageName);
             dest.writeStringArray(splitNames);
@@ -6497,13 +6691,15 @@ public class PackageParser {
             dest.writeInt(baseHardwareAccelerated ? 1 : 0);
             dest.writeParcelable(applicationInfo, flags);
 
-            dest.writeParcelableList(permissions, flags);
-            dest.writeParcelableList(permissionGroups, flags);
-            dest.writeParcelableList(activities, flags);
-            dest.writeParcelableList(receivers, flags);
-            dest.writeParcelableList(providers, flags);
-            dest.writeParcelableList(services, flags);
-            dest.writeParcelableList(instrumentation, flags);
+            if (!componentsInSections) {
+                dest.writeParcelableList(permissions, flags);
+                dest.writeParcelableList(permissionGroups, flags);
+                dest.writeParcelableList(activities, flags);
+                dest.writeParcelableList(receivers, flags);
+                dest.writeParcelableList(providers, flags);
+                dest.writeParcelableList(services, flags);
+                dest.writeParcelableList(instrumentation, flags);
+            }
 
             dest.writeStringList(requestedPermissions);
             dest.writeStringList(protectedBroadcasts);
@@ -6646,6 +6842,252 @@ public class PackageParser {
         };
     }
 
+    /**
+     * A list of the components of a package that was read from a cache entry.  The components
+     * are only unmarshalled from their section of the entry when the list is first used.
+     */
+    static final class LazyComponentList<T extends Component<?>> extends ArrayList<T> {
+        private final Package mOwner;
+
+        /** The section to read the components from, or null once they were read. */
+        private volatile ByteBuffer mSection;
+
+        LazyComponentList(Package owner, ByteBuffer section) {
+            super(0);
+            mOwner = owner;
+            mSection = section;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void materialize() {
+            if (mSection == null) {
+                return;
+            }
+            synchronized (this) {
+                final ByteBuffer section = mSection;
+                if (section == null) {
+                    return;
+                }
+                final ArrayList<Parcelable> parcelables = fromCacheSection(section);
+                final ArrayList<T> components = (ArrayList<T>) (ArrayList<?>) parcelables;
+                // See Package(Parcel, ByteBuffer[]).
+                mOwner.fixupOwner(components);
+                super.addAll(components);
+                mSection = null;
+            }
+        }
+
+        @Override
+        public void trimToSize() {
+            materialize();
+            super.trimToSize();
+        }
+
+        @Override
+        public void ensureCapacity(int minCapacity) {
+            materialize();
+            super.ensureCapacity(minCapacity);
+        }
+
+        @Override
+        public int size() {
+            materialize();
+            return super.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            materialize();
+            return super.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            materialize();
+            return super.contains(o);
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            materialize();
+            return super.containsAll(c);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            materialize();
+            return super.indexOf(o);
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            materialize();
+            return super.lastIndexOf(o);
+        }
+
+        @Override
+        public Object clone() {
+            materialize();
+            return super.clone();
+        }
+
+        @Override
+        public Object[] toArray() {
+            materialize();
+            return super.toArray();
+        }
+
+        @Override
+        public <E> E[] toArray(E[] a) {
+            materialize();
+            return super.toArray(a);
+        }
+
+        @Override
+        public T get(int index) {
+            materialize();
+            return super.get(index);
+        }
+
+        @Override
+        public T set(int index, T element) {
+            materialize();
+            return super.set(index, element);
+        }
+
+        @Override
+        public boolean add(T t) {
+            materialize();
+            return super.add(t);
+        }
+
+        @Override
+        public void add(int index, T element) {
+            materialize();
+            super.add(index, element);
+        }
+
+        @Override
+        public T remove(int index) {
+            materialize();
+            return super.remove(index);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            materialize();
+            return super.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            materialize();
+            super.clear();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends T> c) {
+            materialize();
+            return super.addAll(c);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends T> c) {
+            materialize();
+            return super.addAll(index, c);
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            materialize();
+            super.removeRange(fromIndex, toIndex);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            materialize();
+            return super.removeAll(c);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            materialize();
+            return super.retainAll(c);
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super T> filter) {
+            materialize();
+            return super.removeIf(filter);
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<T> operator) {
+            materialize();
+            super.replaceAll(operator);
+        }
+
+        @Override
+        public void sort(Comparator<? super T> c) {
+            materialize();
+            super.sort(c);
+        }
+
+        @Override
+        public void forEach(Consumer<? super T> action) {
+            materialize();
+            super.forEach(action);
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            materialize();
+            return super.iterator();
+        }
+
+        @Override
+        public ListIterator<T> listIterator() {
+            materialize();
+            return super.listIterator();
+        }
+
+        @Override
+        public ListIterator<T> listIterator(int index) {
+            materialize();
+            return super.listIterator(index);
+        }
+
+        @Override
+        public List<T> subList(int fromIndex, int toIndex) {
+            materialize();
+            return super.subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public Spliterator<T> spliterator() {
+            materialize();
+            return super.spliterator();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            materialize();
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            materialize();
+            return super.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            materialize();
+            return super.toString();
+        }
+    }
+
     public static abstract class Component<II extends IntentInfo> {
         public final ArrayList<II> intents;
         public final String className;
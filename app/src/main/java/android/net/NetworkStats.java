@@ -87,6 +87,12 @@ public class NetworkStats implements Parcelable {
     /** Denotes a request for stats at the interface and UID level. */
     public static final int STATS_PER_UID = 1;
 
+    /**
+     * Row count at which lookups switch from a linear scan to {@link #index}.
+     * Below it a scan is as fast and needs no extra memory.
+     */
+    private static final int INDEX_MIN_SIZE = 32;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -108,6 +114,15 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    /**
+     * Open-addressing hash index over the identity columns, mapping each
+     * distinct identity to its first row. Slots hold {@code row + 1}, with
+     * {@code 0} marking an empty slot, and the table is kept at most half
+     * full. Built lazily by {@link #findIndex} once {@link #INDEX_MIN_SIZE}
+     * is reached, maintained by {@link #addValues(Entry)}, and never parceled.
+     */
+    private int[] index;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -348,6 +363,14 @@ public class NetworkStats implements Parcelable {
         operations[size] = entry.operations;
         size++;
 
+        if (index != null) {
+            if (size * 2 > index.length) {
+                rebuildIndex();
+            } else {
+                indexRow(index, size - 1);
+            }
+        }
+
         return this;
     }
 
@@ -445,6 +468,26 @@ public class NetworkStats implements Parcelable {
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming) {
+        if (index == null && size >= INDEX_MIN_SIZE) {
+            rebuildIndex();
+        }
+        if (index != null) {
+            final int mask = index.length - 1;
+            int slot = hashIdentity(iface, uid, set, tag, metered, roaming) & mask;
+            while (true) {
+                final int i = index[slot] - 1;
+                if (i < 0) {
+                    return -1;
+                }
+                if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                        && metered == this.metered[i] && roaming == this.roaming[i]
+                        && Objects.equals(iface, this.iface[i])) {
+                    return i;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -457,11 +500,22 @@ public class NetworkStats implements Parcelable {
 
     /**
      * Find first stats index that matches the requested parameters, starting
-     * search around the hinted index as an optimization.
+     * search around the hinted index as an optimization. Large tables whose
+     * hinted row doesn't match go through the index instead.
      */
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int hintIndex) {
+        if (size >= INDEX_MIN_SIZE) {
+            final int i = hintIndex % size;
+            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                    && metered == this.metered[i] && roaming == this.roaming[i]
+                    && Objects.equals(iface, this.iface[i])) {
+                return i;
+            }
+            return findIndex(iface, uid, set, tag, metered, roaming);
+        }
+
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -482,6 +536,55 @@ public class NetworkStats implements Parcelable {
         return -1;
     }
 
+    /**
+     * Rebuild {@link #index} over all current rows, sized for further growth.
+     */
+    private void rebuildIndex() {
+        final int length = Integer.highestOneBit(Math.max(size, INDEX_MIN_SIZE)) * 4;
+        final int[] index = new int[length];
+        for (int i = 0; i < size; i++) {
+            indexRow(index, i);
+        }
+        this.index = index;
+    }
+
+    /**
+     * Insert the given row into an index, unless an earlier row with the same
+     * identity is already there.
+     */
+    private void indexRow(int[] index, int row) {
+        final int mask = index.length - 1;
+        int slot = hashIdentity(iface[row], uid[row], set[row], tag[row], metered[row],
+                roaming[row]) & mask;
+        while (true) {
+            final int i = index[slot] - 1;
+            if (i < 0) {
+                index[slot] = row + 1;
+                return;
+            }
+            if (uid[row] == uid[i] && set[row] == set[i] && tag[row] == tag[i]
+                    && metered[row] == metered[i] && roaming[row] == roaming[i]
+                    && Objects.equals(iface[row], iface[i])) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Hash of a row identity. The small set, metered and roaming values are
+     * packed into one word with the tag before mixing with the uid and iface.
+     */
+    private static int hashIdentity(String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        final int packed = (set << 4) ^ ((metered & 0x3) << 2) ^ (roaming & 0x3);
+        int h = uid * 0x9E3779B9 + tag;
+        h = h * 31 + packed;
+        h = h * 31 + (iface != null ? iface.hashCode() : 0);
+        // spread the high bits, since the table is indexed by the low ones
+        return h ^ (h >>> 16) ^ (h >>> 8);
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -666,6 +769,7 @@ public class NetworkStats implements Parcelable {
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.index = null;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
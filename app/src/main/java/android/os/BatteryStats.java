@@ -581,6 +581,17 @@ public abstract class BatteryStats implements Parcelable {
          */
         public abstract int getUid();
 
+        /**
+         * Returns a value that changes whenever the statistics of this uid may have changed, so
+         * that results computed from them can be reused while it stays the same, or -1 if they
+         * may change at any time, such as while a timer of the uid is running.
+         *
+         * {@hide}
+         */
+        public long getStatsGeneration() {
+            return -1;
+        }
+
         public abstract void noteWifiRunningLocked(long elapsedRealtime);
         public abstract void noteWifiStoppedLocked(long elapsedRealtime);
         public abstract void noteFullWifiLockAcquiredLocked(long elapsedRealtime);
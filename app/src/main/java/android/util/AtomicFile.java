@@ -138,6 +138,24 @@ public class AtomicFile {
         }
     }
 
+    /**
+     * Like {@link #finishWrite(FileOutputStream)}, for callers that have already
+     * sync'd the stream themselves, typically together with other files so that
+     * they share one sync pass.  The stream must be sync'd before calling this,
+     * or the backup may be removed before the new data is durable.
+     * @hide
+     */
+    public void finishSyncedWrite(FileOutputStream str) {
+        if (str != null) {
+            try {
+                str.close();
+                mBackupName.delete();
+            } catch (IOException e) {
+                Log.w("AtomicFile", "finishSyncedWrite: Got exception:", e);
+            }
+        }
+    }
+
     /**
      * Call when you have failed for some reason at writing to the stream
      * returned by {@link #startWrite()}.  This will close the current
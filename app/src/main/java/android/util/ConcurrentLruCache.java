@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A variant of {@link LruCache} intended for caches that are hit from many
+ * threads at once. It keeps the {@link #sizeOf}, {@link #create} and
+ * {@link #entryRemoved} contract of {@link LruCache}, but replaces the single
+ * monitor with a set of independently locked segments.
+ *
+ * <p>Lookups never take a lock: a hit is a read from a
+ * {@link ConcurrentHashMap} plus setting a reference bit on the entry. Inserts
+ * and removals lock only the segment that owns the key. Eviction uses the
+ * CLOCK algorithm within each segment, and segments are visited round-robin,
+ * so the eviction order only approximates least-recently-used: an entry that
+ * has been read since the clock hand last passed it gets a second chance.
+ *
+ * <p>The hit, miss, put, create and eviction counters are striped and are
+ * updated without locking. Their values are exact once the cache is quiescent,
+ * but may lag slightly behind concurrent operations.
+ *
+ * <p>Unlike {@link LruCache}, synchronizing on the cache does <em>not</em>
+ * make a sequence of operations atomic.
+ *
+ * <p>This class does not allow null to be used as a key or value. A return
+ * value of null from {@link #get}, {@link #put} or {@link #remove} is
+ * unambiguous: the key was not in the cache.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final int segmentShift;
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile int maxSize;
+
+    /** Next segment the evictor will take a victim from. */
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    private final LongAdder putCount = new LongAdder();
+    private final LongAdder createCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param concurrencyLevel the estimated number of threads that will update
+     *     the cache concurrently. It is rounded up to a power of two and used as
+     *     the number of segments.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize, int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        this.maxSize = maxSize;
+
+        int segmentCount = 1;
+        int shift = 32;
+        while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENTS) {
+            segmentCount <<= 1;
+            shift--;
+        }
+        this.segmentMask = segmentCount - 1;
+        this.segmentShift = shift;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>();
+        }
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is marked as
+     * recently used. This returns null if a value is not cached and cannot be
+     * created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        Node<K, V> node = segment.map.get(key);
+        if (node != null) {
+            node.referenced = true;
+            hitCount.increment();
+            return node.value;
+        }
+        missCount.increment();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        Node<K, V> created = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+        synchronized (segment) {
+            createCount.increment();
+            node = segment.map.putIfAbsent(key, created);
+            if (node == null) {
+                segment.linkLocked(created);
+                size.addAndGet(created.size);
+            }
+        }
+
+        if (node != null) {
+            entryRemoved(false, key, createdValue, node.value);
+            return node.value;
+        } else {
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is marked as recently
+     * used.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        putCount.increment();
+        final Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        final Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            previous = segment.map.put(key, node);
+            if (previous != null) {
+                segment.unlinkLocked(previous);
+            }
+            segment.linkLocked(node);
+            size.addAndGet(previous != null ? node.size - previous.size : node.size);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Remove entries, in approximately least recently used order, until the
+     * total of remaining entries is at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        int emptySegments = 0;
+        while (emptySegments < segments.length) {
+            final int currentSize = size.get();
+            if (currentSize <= maxSize) {
+                break;
+            }
+
+            final Segment<K, V> segment =
+                    segments[evictionCursor.getAndIncrement() & segmentMask];
+            final Node<K, V> victim;
+            synchronized (segment) {
+                victim = segment.evictLocked();
+                if (victim != null) {
+                    size.addAndGet(-victim.size);
+                    evictionCount.increment();
+                }
+            }
+
+            if (victim == null) {
+                emptySegments++;
+                continue;
+            }
+            emptySegments = 0;
+            entryRemoved(true, victim.key, victim.value, null);
+        }
+
+        if (size.get() < 0) {
+            throw new IllegalStateException(getClass().getName()
+                    + ".sizeOf() is reporting inconsistent results!");
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                segment.unlinkLocked(previous);
+                size.addAndGet(-previous.size);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without holding any segment lock: other threads
+     * may access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without holding any segment lock: other threads
+     * may access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded. This can occur when multiple threads request the same key
+     * at the same time (causing multiple values to be created), or when one
+     * thread calls {@link #put} while another is creating a value for the same
+     * key.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        return hitCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return missCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        return createCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.intValue();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount.intValue();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache. Within each segment
+     * entries are ordered by their position relative to the clock hand, which
+     * approximates least recently used first. Each segment is copied under its
+     * own lock, so the snapshot is not atomic across segments.
+     */
+    public final Map<K, V> snapshot() {
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                Node<K, V> node = segment.hand;
+                if (node == null) {
+                    continue;
+                }
+                do {
+                    result.put(node.key, node.value);
+                    node = node.next;
+                } while (node != segment.hand);
+            }
+        }
+        return result;
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount();
+        int accesses = hits + missCount();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        if (segmentMask == 0) {
+            return segments[0];
+        }
+        // Use the high bits of a scrambled hash; ConcurrentHashMap consumes the low ones.
+        int h = key.hashCode() * 0x9E3779B9;
+        return segments[(h >>> segmentShift) & segmentMask];
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        /** Set on every hit, cleared when the clock hand sweeps past. */
+        volatile boolean referenced;
+
+        // Clock ring links, guarded by the owning segment.
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static final class Segment<K, V> {
+        final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+        /** Clock hand; the next candidate for eviction. Null when empty. */
+        Node<K, V> hand;
+
+        /** Inserts {@code node} just behind the hand, so it is swept last. */
+        void linkLocked(Node<K, V> node) {
+            if (hand == null) {
+                node.prev = node;
+                node.next = node;
+                hand = node;
+                return;
+            }
+            Node<K, V> tail = hand.prev;
+            node.prev = tail;
+            node.next = hand;
+            tail.next = node;
+            hand.prev = node;
+        }
+
+        void unlinkLocked(Node<K, V> node) {
+            if (node.next == node) {
+                hand = null;
+            } else {
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+                if (hand == node) {
+                    hand = node.next;
+                }
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        /**
+         * Advances the hand past recently referenced entries, clearing their
+         * bit, and removes the first unreferenced entry. Terminates within two
+         * sweeps of the ring.
+         */
+        Node<K, V> evictLocked() {
+            if (hand == null) {
+                return null;
+            }
+            Node<K, V> victim = hand;
+            while (victim.referenced) {
+                victim.referenced = false;
+                victim = victim.next;
+            }
+            hand = victim;
+            unlinkLocked(victim);
+            map.remove(victim.key, victim);
+            return victim;
+        }
+    }
+}
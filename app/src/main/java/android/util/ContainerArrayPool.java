@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Recycles the parallel {@code int[]} hash / {@code Object[]} storage arrays used by
+ * {@link ArrayMap} and {@link ArraySet}.
+ *
+ * <p>Each thread owns a private magazine of free arrays, so acquiring and releasing
+ * never takes a lock and never contends with other threads.  Arrays are cached for
+ * each capacity the containers' growth policy produces (4, 8, 12, 18, 27, 40, 60), not
+ * only the two smallest ones.  An array released on a different thread than the one
+ * that allocated it simply ends up in the releasing thread's magazine.
+ *
+ * <p>A pair of arrays is handed back as a single {@code Object[]}: on a hit, element 0
+ * of the returned storage array holds the matching hash array.  Callers must read it
+ * and clear the slot before using the storage.
+ *
+ * @hide
+ */
+public final class ContainerArrayPool {
+    /** Capacities that are cached; these are the sizes ArrayMap/ArraySet grow through. */
+    private static final int[] SIZE_CLASSES = { 4, 8, 12, 18, 27, 40, 60 };
+
+    /** Per-thread limit on cached pairs for each entry of {@link #SIZE_CLASSES}. */
+    private static final int[] CLASS_CAPACITY = { 10, 10, 6, 6, 4, 4, 2 };
+
+    private final String mName;
+    private final int mArrayMultiplier;
+
+    /** Weak references to every thread's magazine, for aggregating statistics. */
+    private final ArrayList<WeakReference<Magazine>> mMagazines = new ArrayList<>();
+
+    private final ThreadLocal<Magazine> mLocalMagazine = new ThreadLocal<Magazine>() {
+        @Override
+        protected Magazine initialValue() {
+            final Magazine magazine = new Magazine();
+            synchronized (mMagazines) {
+                for (int i = mMagazines.size() - 1; i >= 0; i--) {
+                    if (mMagazines.get(i).get() == null) {
+                        mMagazines.remove(i);
+                    }
+                }
+                mMagazines.add(new WeakReference<>(magazine));
+            }
+            return magazine;
+        }
+    };
+
+    /**
+     * @param name used when dumping statistics.
+     * @param arrayMultiplier length of the storage array relative to the hash array:
+     *     2 for maps (key and value per entry), 1 for sets.
+     */
+    public ContainerArrayPool(String name, int arrayMultiplier) {
+        mName = name;
+        mArrayMultiplier = arrayMultiplier;
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == size) {
+                return i;
+            } else if (SIZE_CLASSES[i] > size) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns cached storage for a container of capacity {@code size}, or null if none is
+     * available on this thread.  Element 0 of the returned array holds the hash array.
+     */
+    public Object[] acquire(int size) {
+        final int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            return null;
+        }
+        final Magazine magazine = mLocalMagazine.get();
+        final int count = magazine.counts[sizeClass];
+        if (count == 0) {
+            magazine.misses++;
+            return null;
+        }
+        final Object[][] slots = magazine.slots[sizeClass];
+        final Object[] array = slots[count - 1];
+        slots[count - 1] = null;
+        magazine.counts[sizeClass] = count - 1;
+        magazine.hits++;
+        return array;
+    }
+
+    /**
+     * Offers a pair of arrays back to this thread's magazine.  The first {@code size}
+     * entries of {@code array} (scaled by the multiplier) are cleared if it is kept.
+     */
+    public void release(int[] hashes, Object[] array, int size) {
+        final int sizeClass = sizeClassOf(hashes.length);
+        if (sizeClass < 0 || array.length != hashes.length * mArrayMultiplier) {
+            return;
+        }
+        final Magazine magazine = mLocalMagazine.get();
+        final int count = magazine.counts[sizeClass];
+        if (count >= CLASS_CAPACITY[sizeClass]) {
+            magazine.drops++;
+            return;
+        }
+        for (int i = (size * mArrayMultiplier) - 1; i >= 1; i--) {
+            array[i] = null;
+        }
+        array[0] = hashes;
+        magazine.slots[sizeClass][count] = array;
+        magazine.counts[sizeClass] = count + 1;
+        magazine.stores++;
+    }
+
+    /**
+     * Returns {hits, misses, stores, drops} summed over all live threads.  The values
+     * are read without synchronization and are only approximate while the pool is in use.
+     */
+    public long[] getStats() {
+        final long[] stats = new long[4];
+        synchronized (mMagazines) {
+            for (int i = mMagazines.size() - 1; i >= 0; i--) {
+                final Magazine magazine = mMagazines.get(i).get();
+                if (magazine == null) {
+                    mMagazines.remove(i);
+                    continue;
+                }
+                stats[0] += magazine.hits;
+                stats[1] += magazine.misses;
+                stats[2] += magazine.stores;
+                stats[3] += magazine.drops;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the statistics of the pools of {@link ArrayMap} and {@link ArraySet}, one
+     * line each, for the meminfo dump.
+     */
+    public static String getPoolStatistics() {
+        return "  " + ArrayMap.sArrayPool + "\n  " + ArraySet.sArrayPool + "\n";
+    }
+
+    @Override
+    public String toString() {
+        final long[] stats = getStats();
+        final long accesses = stats[0] + stats[1];
+        final long hitPercent = accesses != 0 ? (100 * stats[0] / accesses) : 0;
+        return mName + "ArrayPool[hits=" + stats[0] + ",misses=" + stats[1]
+                + ",hitRate=" + hitPercent + "%,stores=" + stats[2] + ",drops=" + stats[3] + "]";
+    }
+
+    private static final class Magazine {
+        final Object[][][] slots = new Object[SIZE_CLASSES.length][][];
+        final int[] counts = new int[SIZE_CLASSES.length];
+
+        // Only written by the owning thread.
+        long hits;
+        long misses;
+        long stores;
+        long drops;
+
+        Magazine() {
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                slots[i] = new Object[CLASS_CAPACITY[i]][];
+            }
+        }
+    }
+}
@@ -62,24 +62,24 @@ public class EventLog {
 
         // Layout of event log entry received from Android logger.
         //  see system/core/include/log/log.h
-        private static final int LENGTH_OFFSET = 0;
-        private static final int HEADER_SIZE_OFFSET = 2;
-        private static final int PROCESS_OFFSET = 4;
-        private static final int THREAD_OFFSET = 8;
-        private static final int SECONDS_OFFSET = 12;
-        private static final int NANOSECONDS_OFFSET = 16;
-        private static final int UID_OFFSET = 24;
+        /*package*/ static final int LENGTH_OFFSET = 0;
+        /*package*/ static final int HEADER_SIZE_OFFSET = 2;
+        /*package*/ static final int PROCESS_OFFSET = 4;
+        /*package*/ static final int THREAD_OFFSET = 8;
+        /*package*/ static final int SECONDS_OFFSET = 12;
+        /*package*/ static final int NANOSECONDS_OFFSET = 16;
+        /*package*/ static final int UID_OFFSET = 24;
 
         // Layout for event log v1 format, v2 and v3 use HEADER_SIZE_OFFSET
-        private static final int V1_PAYLOAD_START = 20;
-        private static final int DATA_OFFSET = 4;
+        /*package*/ static final int V1_PAYLOAD_START = 20;
+        /*package*/ static final int DATA_OFFSET = 4;
 
         // Value types
-        private static final byte INT_TYPE    = 0;
-        private static final byte LONG_TYPE   = 1;
-        private static final byte STRING_TYPE = 2;
-        private static final byte LIST_TYPE   = 3;
-        private static final byte FLOAT_TYPE = 4;
+        /*package*/ static final byte INT_TYPE    = 0;
+        /*package*/ static final byte LONG_TYPE   = 1;
+        /*package*/ static final byte STRING_TYPE = 2;
+        /*package*/ static final byte LIST_TYPE   = 3;
+        /*package*/ static final byte FLOAT_TYPE = 4;
 
         /** @param data containing event, read from the system */
         /*package*/ Event(byte[] data) {
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static android.util.EventLog.Event.DATA_OFFSET;
+import static android.util.EventLog.Event.FLOAT_TYPE;
+import static android.util.EventLog.Event.HEADER_SIZE_OFFSET;
+import static android.util.EventLog.Event.INT_TYPE;
+import static android.util.EventLog.Event.LENGTH_OFFSET;
+import static android.util.EventLog.Event.LIST_TYPE;
+import static android.util.EventLog.Event.LONG_TYPE;
+import static android.util.EventLog.Event.NANOSECONDS_OFFSET;
+import static android.util.EventLog.Event.PROCESS_OFFSET;
+import static android.util.EventLog.Event.SECONDS_OFFSET;
+import static android.util.EventLog.Event.STRING_TYPE;
+import static android.util.EventLog.Event.THREAD_OFFSET;
+import static android.util.EventLog.Event.UID_OFFSET;
+import static android.util.EventLog.Event.V1_PAYLOAD_START;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Pure Java access to files of binary event log entries, in the same layout that
+ * {@link EventLog#readEvents} returns and {@code logcat -b events -B} writes: a plain
+ * concatenation of logger entries, with no file header.
+ *
+ * <p>Files are opened through memory mappings and indexed once, by file order, by tag
+ * and by time.  Records are read through a {@link Cursor}, which decodes fields straight
+ * out of the mapping, so scanning even a multi-gigabyte capture does not allocate an
+ * {@link EventLog.Event} per record.  Use {@link Writer} to produce such files, e.g. to
+ * replay or synthesize event streams in tests and host tools.
+ *
+ * <p>Instances are safe to read from multiple threads, as long as each thread uses its
+ * own {@link Cursor}.
+ *
+ * @hide
+ */
+public final class EventLogFile implements Closeable {
+    private static final String TAG = "EventLogFile";
+
+    /** Header written by {@link Writer}: the v4 logger_entry, which carries the uid. */
+    private static final int WRITE_HEADER_SIZE = 28;
+    private static final int LOG_ID_OFFSET = 20;
+    private static final int LOG_ID_EVENTS = 2;
+
+    /** Same limit as LOGGER_ENTRY_MAX_PAYLOAD in liblog. */
+    public static final int MAX_PAYLOAD = 4068;
+
+    /** Returned by {@link Cursor#nextValue} once the payload is exhausted. */
+    public static final int NO_MORE_VALUES = -1;
+
+    /**
+     * Mappings are limited to 2GB by {@link ByteBuffer}; larger files are split into
+     * several windows, each of which starts on a record boundary.
+     */
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer[] mWindows;
+
+    /** Per record, (window index << 32) | offset inside the window. */
+    private final LongArray mPositions = new LongArray();
+    /** Per tag, the indices of its records in file order. */
+    private final SparseArray<IntArray> mTagIndex = new SparseArray<>();
+    private final boolean mTimeOrdered;
+    /** Record indices sorted by time; only built when the file is not already in order. */
+    private int[] mTimeOrder;
+
+    private EventLogFile(FileChannel channel) throws IOException {
+        mChannel = channel;
+        final long size = channel.size();
+        final ArrayList<ByteBuffer> windows = new ArrayList<>();
+        boolean timeOrdered = true;
+        long lastTime = Long.MIN_VALUE;
+        IntArray lastTagRecords = null;
+        int lastTag = 0;
+
+        long windowStart = 0;
+        while (windowStart < size) {
+            final long windowSize = Math.min(MAX_WINDOW_SIZE, size - windowStart);
+            final ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    windowStart, windowSize).order(ByteOrder.nativeOrder());
+            final int windowIndex = windows.size();
+            windows.add(window);
+
+            int offset = 0;
+            final int limit = (int) windowSize;
+            while (offset + V1_PAYLOAD_START <= limit) {
+                final int recordSize = recordSize(window, offset);
+                if (offset + recordSize > limit) {
+                    break;
+                }
+                final int tag = window.getInt(offset + headerSize(window, offset));
+                final long time = timeNanos(window, offset);
+                if (time < lastTime) {
+                    timeOrdered = false;
+                }
+                lastTime = time;
+
+                final int index = mPositions.size();
+                mPositions.add(((long) windowIndex << 32) | offset);
+                if (lastTagRecords == null || tag != lastTag) {
+                    lastTagRecords = mTagIndex.get(tag);
+                    if (lastTagRecords == null) {
+                        lastTagRecords = new IntArray();
+                        mTagIndex.put(tag, lastTagRecords);
+                    }
+                    lastTag = tag;
+                }
+                lastTagRecords.add(index);
+                offset += recordSize;
+            }
+
+            if (windowStart + windowSize == size) {
+                if (offset != limit) {
+                    Log.w(TAG, "Ignoring truncated entry at end of file, offset "
+                            + (windowStart + offset));
+                }
+                break;
+            } else if (offset == 0) {
+                throw new IOException("Malformed entry at offset " + windowStart);
+            }
+            windowStart += offset;
+        }
+
+        mWindows = windows.toArray(new ByteBuffer[windows.size()]);
+        mTimeOrdered = timeOrdered;
+    }
+
+    /** Maps and indexes the given file of binary event log entries. */
+    public static EventLogFile open(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new EventLogFile(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private static int headerSize(ByteBuffer buffer, int offset) {
+        final int headerSize = buffer.getShort(offset + HEADER_SIZE_OFFSET) & 0xffff;
+        return headerSize == 0 ? V1_PAYLOAD_START : headerSize;
+    }
+
+    private static int recordSize(ByteBuffer buffer, int offset) {
+        return headerSize(buffer, offset) + (buffer.getShort(offset + LENGTH_OFFSET) & 0xffff);
+    }
+
+    private static long timeNanos(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + SECONDS_OFFSET) * 1000000000L
+                + buffer.getInt(offset + NANOSECONDS_OFFSET);
+    }
+
+    /** @return the number of records in the file. */
+    public int getEventCount() {
+        return mPositions.size();
+    }
+
+    /** @return the distinct tags present in the file, in ascending order. */
+    public int[] getTags() {
+        final int[] tags = new int[mTagIndex.size()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = mTagIndex.keyAt(i);
+        }
+        return tags;
+    }
+
+    /** @return the number of records with the given tag. */
+    public int getEventCountForTag(int tag) {
+        final IntArray records = mTagIndex.get(tag);
+        return records != null ? records.size() : 0;
+    }
+
+    /** @return the index of the {@code n}th record with the given tag, in file order. */
+    public int getEventIndexForTag(int tag, int n) {
+        final IntArray records = mTagIndex.get(tag);
+        if (records == null) {
+            throw new ArrayIndexOutOfBoundsException(n);
+        }
+        return records.get(n);
+    }
+
+    /** @return the timestamp of the record at {@code index}, in nanoseconds. */
+    public long getTimeNanos(int index) {
+        final long position = mPositions.get(index);
+        return timeNanos(mWindows[(int) (position >>> 32)], (int) position);
+    }
+
+    /**
+     * @return the index of the record that comes {@code rank}th when the file is ordered
+     *     by time.  Records with equal timestamps keep their file order.  This is the
+     *     identity for files that were written in time order, as logd produces them.
+     */
+    public int getEventIndexByTime(int rank) {
+        if (mTimeOrdered) {
+            if (rank < 0 || rank >= mPositions.size()) {
+                throw new ArrayIndexOutOfBoundsException(rank);
+            }
+            return rank;
+        }
+        return getTimeOrder()[rank];
+    }
+
+    /**
+     * @return the smallest time rank (see {@link #getEventIndexByTime}) whose record was
+     *     written at or after {@code timeNanos}, or {@link #getEventCount()} if none was.
+     */
+    public int findTimeRank(long timeNanos) {
+        int lo = 0;
+        int hi = mPositions.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getTimeNanos(getEventIndexByTime(mid)) < timeNanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private synchronized int[] getTimeOrder() {
+        if (mTimeOrder == null) {
+            final int count = mPositions.size();
+            final long[] times = new long[count];
+            final int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = getTimeNanos(i);
+                order[i] = i;
+            }
+            sortByTime(order, new int[count], times, 0, count);
+            mTimeOrder = order;
+        }
+        return mTimeOrder;
+    }
+
+    /** Stable merge sort of {@code order[from, to)} by {@code times}. */
+    private static void sortByTime(int[] order, int[] scratch, long[] times, int from, int to) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                final int value = order[i];
+                int j = i - 1;
+                while (j >= from && times[order[j]] > times[value]) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = value;
+            }
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        sortByTime(order, scratch, times, from, mid);
+        sortByTime(order, scratch, times, mid, to);
+        if (times[order[mid - 1]] <= times[order[mid]]) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && times[scratch[i]] <= times[scratch[j]])) {
+                order[k] = scratch[i++];
+            } else {
+                order[k] = scratch[j++];
+            }
+        }
+    }
+
+    /** @return a new cursor, positioned before the first record. */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reads records in place.  A cursor is positioned on one record at a time; all
+     * accessors read directly from the file mapping and do not allocate, except
+     * {@link #getStringValue()} and {@link #toEvent()}.  Cursors are not thread safe.
+     */
+    public final class Cursor {
+        private int mIndex = -1;
+        private ByteBuffer mBuffer;
+        private int mOffset;
+        private int mPayloadEnd;
+        /** Offset of the next value's type byte. */
+        private int mNextValue;
+        /** Offset just after the current value's type byte. */
+        private int mValue;
+
+        private Cursor() {
+        }
+
+        /** @return the index of the current record, or -1 before the first move. */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** Moves to the next record in file order; returns false past the last one. */
+        public boolean moveToNext() {
+            return moveToIndex(mIndex + 1);
+        }
+
+        /** Moves to the record at {@code index}; returns false if there is none. */
+        public boolean moveToIndex(int index) {
+            if (index < 0 || index >= mPositions.size()) {
+                mIndex = index < 0 ? -1 : mPositions.size();
+                mBuffer = null;
+                return false;
+            }
+            final long position = mPositions.get(index);
+            mIndex = index;
+            mBuffer = mWindows[(int) (position >>> 32)];
+            mOffset = (int) position;
+            final int headerSize = headerSize(mBuffer, mOffset);
+            mPayloadEnd = mOffset + headerSize
+                    + (mBuffer.getShort(mOffset + LENGTH_OFFSET) & 0xffff);
+            mNextValue = mOffset + headerSize + DATA_OFFSET;
+            mValue = -1;
+            return true;
+        }
+
+        private ByteBuffer buffer() {
+            if (mBuffer == null) {
+                throw new IllegalStateException("Cursor is not positioned on a record");
+            }
+            return mBuffer;
+        }
+
+        /** @return the process ID which wrote the record */
+        public int getProcessId() {
+            return buffer().getInt(mOffset + PROCESS_OFFSET);
+        }
+
+        /** @return the thread ID which wrote the record */
+        public int getThreadId() {
+            return buffer().getInt(mOffset + THREAD_OFFSET);
+        }
+
+        /** @return the UID which wrote the record, or -1 if the header has none */
+        public int getUid() {
+            if (headerSize(buffer(), mOffset) < UID_OFFSET + 4) {
+                return -1;
+            }
+            return mBuffer.getInt(mOffset + UID_OFFSET);
+        }
+
+        /** @return the wall clock time when the record was written */
+        public long getTimeNanos() {
+            return timeNanos(buffer(), mOffset);
+        }
+
+        /** @return the type tag code of the record */
+        public int getTag() {
+            return buffer().getInt(mOffset + headerSize(mBuffer, mOffset));
+        }
+
+        /**
+         * Advances to the next value of the payload and returns its type, or
+         * {@link #NO_MORE_VALUES}.  Lists are walked in pre-order: a list value is
+         * followed by its {@link #getListSize()} elements.
+         */
+        public int nextValue() {
+            final ByteBuffer buffer = buffer();
+            mValue = -1;
+            if (mNextValue >= mPayloadEnd) {
+                return NO_MORE_VALUES;
+            }
+            final byte type = buffer.get(mNextValue);
+            final int value = mNextValue + 1;
+            final int next;
+            switch (type) {
+                case INT_TYPE:
+                case FLOAT_TYPE:
+                    next = value + 4;
+                    break;
+                case LONG_TYPE:
+                    next = value + 8;
+                    break;
+                case STRING_TYPE:
+                    next = value + 4
+                            + (value + 4 <= mPayloadEnd ? buffer.getInt(value) : 0);
+                    break;
+                case LIST_TYPE:
+                    next = value + 1;
+                    break;
+                default:
+                    Log.wtf(TAG, "Unknown entry type: " + type + ", tag=" + getTag());
+                    mNextValue = mPayloadEnd;
+                    return NO_MORE_VALUES;
+            }
+            if (next > mPayloadEnd || next < value) {
+                Log.wtf(TAG, "Truncated entry payload: tag=" + getTag());
+                mNextValue = mPayloadEnd;
+                return NO_MORE_VALUES;
+            }
+            mNextValue = next;
+            mValue = value;
+            return type;
+        }
+
+        private int value() {
+            if (mValue < 0) {
+                throw new IllegalStateException("No current value");
+            }
+            return mValue;
+        }
+
+        public int getIntValue() {
+            return mBuffer.getInt(value());
+        }
+
+        public long getLongValue() {
+            return mBuffer.getLong(value());
+        }
+
+        public float getFloatValue() {
+            return mBuffer.getFloat(value());
+        }
+
+        /** @return the number of elements of the current list value. */
+        public int getListSize() {
+            return mBuffer.get(value()) & 0xff;
+        }
+
+        /** @return the length in bytes of the current string value's UTF-8 encoding. */
+        public int getStringLength() {
+            return mBuffer.getInt(value());
+        }
+
+        /** Copies the UTF-8 bytes of the current string value into {@code dest}. */
+        public void getStringBytes(byte[] dest, int destOffset) {
+            final int length = getStringLength();
+            final ByteBuffer source = mBuffer.duplicate();
+            source.position(mValue + 4);
+            source.get(dest, destOffset, length);
+        }
+
+        /** @return the current string value.  Allocates. */
+        public String getStringValue() {
+            final byte[] bytes = new byte[getStringLength()];
+            getStringBytes(bytes, 0);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** @return a standalone copy of the current record.  Allocates. */
+        public EventLog.Event toEvent() {
+            final ByteBuffer source = buffer().duplicate();
+            source.position(mOffset);
+            final byte[] bytes = new byte[mPayloadEnd - mOffset];
+            source.get(bytes);
+            return new EventLog.Event(bytes);
+        }
+    }
+
+    /**
+     * Appends records in the binary event log format to a file.  Records are buffered;
+     * call {@link #flush()} or {@link #close()} before opening the file for reading.
+     * Not thread safe.
+     */
+    public static final class Writer implements Closeable, Flushable {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer;
+
+        public Writer(File file) throws IOException {
+            this(file, 64 * 1024);
+        }
+
+        public Writer(File file, int bufferSize) throws IOException {
+            if (bufferSize < WRITE_HEADER_SIZE + MAX_PAYLOAD) {
+                throw new IllegalArgumentException("bufferSize too small: " + bufferSize);
+            }
+            mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            mBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        }
+
+        /** Appends a copy of an event, e.g. one returned by {@link EventLog#readEvents}. */
+        public void writeEvent(EventLog.Event event) throws IOException {
+            final byte[] bytes = event.getBytes();
+            ensureSpace(bytes.length);
+            mBuffer.put(bytes);
+        }
+
+        public void writeEvent(long timeNanos, int pid, int tid, int uid, int tag, int value)
+                throws IOException {
+            final int start = beginRecord(timeNanos, pid, tid, uid, tag);
+            mBuffer.put(INT_TYPE);
+            mBuffer.putInt(value);
+            endRecord(start);
+        }
+
+        public void writeEvent(long timeNanos, int pid, int tid, int uid, int tag, long value)
+                throws IOException {
+            final int start = beginRecord(timeNanos, pid, tid, uid, tag);
+            mBuffer.put(LONG_TYPE);
+            mBuffer.putLong(value);
+            endRecord(start);
+        }
+
+        /**
+         * Appends a record whose payload is {@code value}: an Integer, Long, Float, String,
+         * null (no payload), or an Object[] of those, as {@link EventLog#writeEvent} takes.
+         *
+         * @throws IllegalArgumentException if the payload has an unsupported type or
+         *     exceeds {@link #MAX_PAYLOAD}; nothing is written in that case.
+         */
+        public void writeEvent(long timeNanos, int pid, int tid, int uid, int tag, Object value)
+                throws IOException {
+            final int start = beginRecord(timeNanos, pid, tid, uid, tag);
+            try {
+                if (value != null) {
+                    putValue(value, start + WRITE_HEADER_SIZE + MAX_PAYLOAD);
+                }
+            } catch (IllegalArgumentException e) {
+                mBuffer.position(start);
+                throw e;
+            }
+            endRecord(start);
+        }
+
+        private int beginRecord(long timeNanos, int pid, int tid, int uid, int tag)
+                throws IOException {
+            ensureSpace(WRITE_HEADER_SIZE + MAX_PAYLOAD);
+            final int start = mBuffer.position();
+            mBuffer.putShort(start + HEADER_SIZE_OFFSET, (short) WRITE_HEADER_SIZE);
+            mBuffer.putInt(start + PROCESS_OFFSET, pid);
+            mBuffer.putInt(start + THREAD_OFFSET, tid);
+            mBuffer.putInt(start + SECONDS_OFFSET, (int) (timeNanos / 1000000000L));
+            mBuffer.putInt(start + NANOSECONDS_OFFSET, (int) (timeNanos % 1000000000L));
+            mBuffer.putInt(start + LOG_ID_OFFSET, LOG_ID_EVENTS);
+            mBuffer.putInt(start + UID_OFFSET, uid);
+            mBuffer.position(start + WRITE_HEADER_SIZE);
+            mBuffer.putInt(tag);
+            return start;
+        }
+
+        private void endRecord(int start) {
+            mBuffer.putShort(start + LENGTH_OFFSET,
+                    (short) (mBuffer.position() - start - WRITE_HEADER_SIZE));
+        }
+
+        private void putValue(Object value, int limit) {
+            final int needed;
+            if (value instanceof Integer || value instanceof Float) {
+                needed = 5;
+            } else if (value instanceof Long) {
+                needed = 9;
+            } else if (value instanceof String) {
+                final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                checkSpace(5 + bytes.length, limit);
+                mBuffer.put(STRING_TYPE);
+                mBuffer.putInt(bytes.length);
+                mBuffer.put(bytes);
+                return;
+            } else if (value instanceof Object[]) {
+                final Object[] list = (Object[]) value;
+                if (list.length > 255) {
+                    throw new IllegalArgumentException("Too many list elements: " + list.length);
+                }
+                checkSpace(2, limit);
+                mBuffer.put(LIST_TYPE);
+                mBuffer.put((byte) list.length);
+                for (Object item : list) {
+                    if (item == null) {
+                        throw new IllegalArgumentException("null list element");
+                    }
+                    putValue(item, limit);
+                }
+                return;
+            } else {
+                throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+            }
+            checkSpace(needed, limit);
+            if (value instanceof Integer) {
+                mBuffer.put(INT_TYPE);
+                mBuffer.putInt((Integer) value);
+            } else if (value instanceof Float) {
+                mBuffer.put(FLOAT_TYPE);
+                mBuffer.putFloat((Float) value);
+            } else {
+                mBuffer.put(LONG_TYPE);
+                mBuffer.putLong((Long) value);
+            }
+        }
+
+        private void checkSpace(int needed, int limit) {
+            if (mBuffer.position() + needed > limit) {
+                throw new IllegalArgumentException("Payload exceeds " + MAX_PAYLOAD + " bytes");
+            }
+        }
+
+        private void ensureSpace(int needed) throws IOException {
+            if (mBuffer.remaining() < needed) {
+                writeBuffer();
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBuffer();
+            } finally {
+                mChannel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import java.util.Arrays;
+
+import libcore.util.EmptyArray;
+
+/**
+ * IntIntHashMaps map integers to integers using open addressing with linear probing.
+ * Unlike {@link SparseIntArray}, which keeps its keys sorted and binary searches them,
+ * {@link #put}, {@link #get} and {@link #delete} run in expected constant time, so
+ * this class remains fast with tens of thousands of mappings.  Like {@link SparseIntArray}
+ * it avoids auto-boxing of keys and values and does not allocate an entry object per mapping.
+ *
+ * <p>Mappings are stored densely in parallel key and value arrays, with a separate
+ * table of indices into them, so it is possible to iterate over the items in this
+ * container using {@link #keyAt(int)} and {@link #valueAt(int)}.  Unlike
+ * {@link SparseIntArray}, the keys are <em>not</em> returned in ascending order:
+ * they are in insertion order, except that removing a mapping moves the last mapping
+ * into its index.</p>
+ *
+ * @hide
+ */
+public class IntIntHashMap implements Cloneable {
+    /** Smallest index table; the table is grown to stay at most half full. */
+    private static final int MIN_TABLE_SIZE = 8;
+
+    private int[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    /**
+     * Open addressed table of (index into mKeys + 1); 0 marks an empty slot.  Its length
+     * is a power of two.
+     */
+    private int[] mTable;
+
+    /**
+     * Creates a new IntIntHashMap containing no mappings.
+     */
+    public IntIntHashMap() {
+        this(10);
+    }
+
+    /**
+     * Creates a new IntIntHashMap containing no mappings that will not
+     * require any additional memory allocation to store the specified
+     * number of mappings.
+     */
+    public IntIntHashMap(int initialCapacity) {
+        if (initialCapacity == 0) {
+            mKeys = EmptyArray.INT;
+            mValues = EmptyArray.INT;
+        } else {
+            mKeys = ArrayUtils.newUnpaddedIntArray(initialCapacity);
+            mValues = new int[mKeys.length];
+        }
+        mTable = new int[tableSizeFor(initialCapacity)];
+        mSize = 0;
+    }
+
+    @Override
+    public IntIntHashMap clone() {
+        IntIntHashMap clone = null;
+        try {
+            clone = (IntIntHashMap) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            clone.mTable = mTable.clone();
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = MIN_TABLE_SIZE;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the table slot holding {@code key}, or the bitwise complement of the
+     * empty slot where it would be inserted.
+     */
+    private int findSlot(int key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return ~slot;
+            }
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the int mapped from the specified key, or <code>0</code>
+     * if no such mapping has been made.
+     */
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    /**
+     * Gets the int mapped from the specified key, or the specified value
+     * if no such mapping has been made.
+     */
+    public int get(int key, int valueIfKeyNotFound) {
+        final int slot = findSlot(key);
+
+        if (slot < 0) {
+            return valueIfKeyNotFound;
+        } else {
+            return mValues[mTable[slot] - 1];
+        }
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(int key) {
+        final int slot = findSlot(key);
+
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Removes the mapping at the given index.  The mapping at index
+     * <code>size()-1</code>, if different, moves to <code>index</code>.
+     */
+    public void removeAt(int index) {
+        removeSlot(findSlot(mKeys[index]));
+    }
+
+    private void removeSlot(int slot) {
+        final int index = mTable[slot] - 1;
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+
+        // Backward shift deletion: pull later entries of the probe run into the hole so
+        // that lookups never need tombstones.
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            final int entry = table[next];
+            if (entry == 0) {
+                break;
+            }
+            final int ideal = hash(mKeys[entry - 1]) & mask;
+            final boolean inRun = hole <= next
+                    ? (hole < ideal && ideal <= next)
+                    : (hole < ideal || ideal <= next);
+            if (!inRun) {
+                table[hole] = entry;
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+
+        final int last = mSize - 1;
+        if (index != last) {
+            // Move the last mapping into the freed index and repoint its slot.
+            int lastSlot = hash(mKeys[last]) & mask;
+            while (table[lastSlot] != last + 1) {
+                lastSlot = (lastSlot + 1) & mask;
+            }
+            table[lastSlot] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mSize = last;
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(int key, int value) {
+        int slot = findSlot(key);
+
+        if (slot >= 0) {
+            mValues[mTable[slot] - 1] = value;
+        } else {
+            if ((mSize + 1) * 2 > mTable.length) {
+                rehash(mTable.length << 1);
+                slot = findSlot(key);
+            }
+            mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+            mValues = GrowingArrayUtils.append(mValues, mSize, value);
+            mSize++;
+            mTable[~slot] = mSize;
+        }
+    }
+
+    private void rehash(int tableSize) {
+        final int[] table = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+
+    /**
+     * Returns the number of key-value mappings that this IntIntHashMap
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * IntIntHashMap stores.
+     */
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * IntIntHashMap stores.
+     */
+    public int valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Directly set the value at a particular index.
+     */
+    public void setValueAt(int index, int value) {
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(int key) {
+        final int slot = findSlot(key);
+        return slot >= 0 ? mTable[slot] - 1 : -1;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     */
+    public int indexOfValue(int value) {
+        for (int i = 0; i < mSize; i++)
+            if (mValues[i] == value)
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this IntIntHashMap.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Provides a copy of keys, in index order.
+     */
+    public int[] copyKeys() {
+        if (size() == 0) {
+            return null;
+        }
+        return Arrays.copyOf(mKeys, size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            int key = keyAt(i);
+            buffer.append(key);
+            buffer.append('=');
+            int value = valueAt(i);
+            buffer.append(value);
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
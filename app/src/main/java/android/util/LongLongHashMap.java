@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import java.util.Arrays;
+
+import libcore.util.EmptyArray;
+
+/**
+ * LongLongHashMaps map longs to longs using open addressing with linear probing.
+ * Unlike {@link LongSparseLongArray}, which keeps its keys sorted and binary searches them,
+ * {@link #put}, {@link #get} and {@link #delete} run in expected constant time, so
+ * this class remains fast with tens of thousands of mappings.  Like {@link LongSparseLongArray}
+ * it avoids auto-boxing of keys and values and does not allocate an entry object per mapping.
+ *
+ * <p>Mappings are stored densely in parallel key and value arrays, with a separate
+ * table of indices into them, so it is possible to iterate over the items in this
+ * container using {@link #keyAt(int)} and {@link #valueAt(int)}.  Unlike
+ * {@link LongSparseLongArray}, the keys are <em>not</em> returned in ascending order:
+ * they are in insertion order, except that removing a mapping moves the last mapping
+ * into its index.</p>
+ *
+ * @hide
+ */
+public class LongLongHashMap implements Cloneable {
+    /** Smallest index table; the table is grown to stay at most half full. */
+    private static final int MIN_TABLE_SIZE = 8;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private int mSize;
+
+    /**
+     * Open addressed table of (index into mKeys + 1); 0 marks an empty slot.  Its length
+     * is a power of two.
+     */
+    private int[] mTable;
+
+    /**
+     * Creates a new LongLongHashMap containing no mappings.
+     */
+    public LongLongHashMap() {
+        this(10);
+    }
+
+    /**
+     * Creates a new LongLongHashMap containing no mappings that will not
+     * require any additional memory allocation to store the specified
+     * number of mappings.
+     */
+    public LongLongHashMap(int initialCapacity) {
+        if (initialCapacity == 0) {
+            mKeys = EmptyArray.LONG;
+            mValues = EmptyArray.LONG;
+        } else {
+            mKeys = ArrayUtils.newUnpaddedLongArray(initialCapacity);
+            mValues = new long[mKeys.length];
+        }
+        mTable = new int[tableSizeFor(initialCapacity)];
+        mSize = 0;
+    }
+
+    @Override
+    public LongLongHashMap clone() {
+        LongLongHashMap clone = null;
+        try {
+            clone = (LongLongHashMap) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            clone.mTable = mTable.clone();
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = MIN_TABLE_SIZE;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash(long key) {
+        final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the table slot holding {@code key}, or the bitwise complement of the
+     * empty slot where it would be inserted.
+     */
+    private int findSlot(long key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return ~slot;
+            }
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or <code>0</code>
+     * if no such mapping has been made.
+     */
+    public long get(long key) {
+        return get(key, 0);
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or the specified value
+     * if no such mapping has been made.
+     */
+    public long get(long key, long valueIfKeyNotFound) {
+        final int slot = findSlot(key);
+
+        if (slot < 0) {
+            return valueIfKeyNotFound;
+        } else {
+            return mValues[mTable[slot] - 1];
+        }
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(long key) {
+        final int slot = findSlot(key);
+
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Removes the mapping at the given index.  The mapping at index
+     * <code>size()-1</code>, if different, moves to <code>index</code>.
+     */
+    public void removeAt(int index) {
+        removeSlot(findSlot(mKeys[index]));
+    }
+
+    private void removeSlot(int slot) {
+        final int index = mTable[slot] - 1;
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+
+        // Backward shift deletion: pull later entries of the probe run into the hole so
+        // that lookups never need tombstones.
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            final int entry = table[next];
+            if (entry == 0) {
+                break;
+            }
+            final int ideal = hash(mKeys[entry - 1]) & mask;
+            final boolean inRun = hole <= next
+                    ? (hole < ideal && ideal <= next)
+                    : (hole < ideal || ideal <= next);
+            if (!inRun) {
+                table[hole] = entry;
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+
+        final int last = mSize - 1;
+        if (index != last) {
+            // Move the last mapping into the freed index and repoint its slot.
+            int lastSlot = hash(mKeys[last]) & mask;
+            while (table[lastSlot] != last + 1) {
+                lastSlot = (lastSlot + 1) & mask;
+            }
+            table[lastSlot] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mSize = last;
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(long key, long value) {
+        int slot = findSlot(key);
+
+        if (slot >= 0) {
+            mValues[mTable[slot] - 1] = value;
+        } else {
+            if ((mSize + 1) * 2 > mTable.length) {
+                rehash(mTable.length << 1);
+                slot = findSlot(key);
+            }
+            mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+            mValues = GrowingArrayUtils.append(mValues, mSize, value);
+            mSize++;
+            mTable[~slot] = mSize;
+        }
+    }
+
+    private void rehash(int tableSize) {
+        final int[] table = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+
+    /**
+     * Returns the number of key-value mappings that this LongLongHashMap
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * LongLongHashMap stores.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * LongLongHashMap stores.
+     */
+    public long valueAt(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Directly set the value at a particular index.
+     */
+    public void setValueAt(int index, long value) {
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(long key) {
+        final int slot = findSlot(key);
+        return slot >= 0 ? mTable[slot] - 1 : -1;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     */
+    public int indexOfValue(long value) {
+        for (int i = 0; i < mSize; i++)
+            if (mValues[i] == value)
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this LongLongHashMap.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Provides a copy of keys, in index order.
+     */
+    public long[] copyKeys() {
+        if (size() == 0) {
+            return null;
+        }
+        return Arrays.copyOf(mKeys, size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            long key = keyAt(i);
+            buffer.append(key);
+            buffer.append('=');
+            long value = valueAt(i);
+            buffer.append(value);
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
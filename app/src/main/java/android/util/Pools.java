@@ -16,6 +16,10 @@
 
 package android.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Helper class for crating pools of objects. An example use looks like this:
  * <pre>
@@ -162,4 +166,136 @@ public final class Pools {
             }
         }
     }
+
+    /**
+     * Lock-free pool of objects, for pools that are hit from several threads at
+     * once.  Pooled instances live in a fixed array of slots that are claimed
+     * and filled with compare-and-set; each thread starts probing at a different
+     * slot so that concurrent callers rarely touch the same one.
+     *
+     * <p>Acquire/release statistics are kept in striped counters and can be read
+     * at any time without blocking the pool.
+     *
+     * @param <T> The pooled type.
+     */
+    public static class ConcurrentPool<T> implements Pool<T> {
+        private final AtomicReferenceArray<T> mPool;
+
+        /** Number of occupied slots; may briefly lag behind the slots themselves. */
+        private final AtomicInteger mPoolSize = new AtomicInteger();
+
+        private final LongAdder mHitCount = new LongAdder();
+        private final LongAdder mMissCount = new LongAdder();
+        private final LongAdder mDropCount = new LongAdder();
+
+        /**
+         * Creates a new instance.
+         *
+         * @param maxPoolSize The max pool size.
+         *
+         * @throws IllegalArgumentException If the max pool size is less than zero.
+         */
+        public ConcurrentPool(int maxPoolSize) {
+            if (maxPoolSize <= 0) {
+                throw new IllegalArgumentException("The max pool size must be > 0");
+            }
+            mPool = new AtomicReferenceArray<>(maxPoolSize);
+        }
+
+        @Override
+        public T acquire() {
+            if (mPoolSize.get() > 0) {
+                final int length = mPool.length();
+                final int start = probeStart(length);
+                for (int i = 0; i < length; i++) {
+                    final int index = (start + i) % length;
+                    final T instance = mPool.get(index);
+                    if (instance != null && mPool.compareAndSet(index, instance, null)) {
+                        mPoolSize.decrementAndGet();
+                        mHitCount.increment();
+                        return instance;
+                    }
+                }
+            }
+            mMissCount.increment();
+            return null;
+        }
+
+        @Override
+        public boolean release(T instance) {
+            if (isInPool(instance)) {
+                throw new IllegalStateException("Already in the pool!");
+            }
+            final int length = mPool.length();
+            if (mPoolSize.get() < length) {
+                final int start = probeStart(length);
+                for (int i = 0; i < length; i++) {
+                    final int index = (start + i) % length;
+                    if (mPool.get(index) == null && mPool.compareAndSet(index, null, instance)) {
+                        mPoolSize.incrementAndGet();
+                        return true;
+                    }
+                }
+            }
+            mDropCount.increment();
+            return false;
+        }
+
+        /**
+         * @return The number of instances currently in the pool.
+         */
+        public int getPoolSize() {
+            return mPoolSize.get();
+        }
+
+        /**
+         * @return The number of times {@link #acquire} returned a pooled instance.
+         */
+        public long getHitCount() {
+            return mHitCount.sum();
+        }
+
+        /**
+         * @return The number of times {@link #acquire} found the pool empty.
+         */
+        public long getMissCount() {
+            return mMissCount.sum();
+        }
+
+        /**
+         * @return The number of instances {@link #release} dropped because the
+         *     pool was full.
+         */
+        public long getDropCount() {
+            return mDropCount.sum();
+        }
+
+        @Override
+        public String toString() {
+            final long hits = getHitCount();
+            final long accesses = hits + getMissCount();
+            final long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+            return "ConcurrentPool[size=" + getPoolSize() + "/" + mPool.length()
+                    + ",hits=" + hits + ",hitRate=" + hitPercent + "%,drops=" + getDropCount()
+                    + "]";
+        }
+
+        private static int probeStart(int length) {
+            final long id = Thread.currentThread().getId();
+            return (int) ((id ^ (id >>> 32)) & Integer.MAX_VALUE) % length;
+        }
+
+        /**
+         * Best-effort check; an instance released concurrently by another
+         * thread may not be seen.
+         */
+        private boolean isInPool(T instance) {
+            for (int i = 0; i < mPool.length(); i++) {
+                if (mPool.get(i) == instance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
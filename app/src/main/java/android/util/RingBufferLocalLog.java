@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link LocalLog} for hot paths.  Entries live in a fixed ring of preallocated slots
+ * and store only the raw wall clock time, the message or format string, and the format
+ * arguments; the {@code String.format} and timestamp rendering that {@link LocalLog}
+ * does on every call is deferred until {@link #dump}.  Appending takes no lock.
+ *
+ * <p>Because formatting is deferred, format arguments must be immutable (Strings,
+ * boxed primitives, enums, ...) or at least must still print the same at dump time.
+ *
+ * <p>Slot assignment follows {@link com.android.internal.util.RingBufferIndices}, except
+ * that positions come from an atomic sequence number so that concurrent writers never
+ * block each other.  Each slot carries the sequence number of the entry it holds, which
+ * readers use to skip slots that are being rewritten while they dump.  When two writers
+ * that are a full ring apart race for the same slot, the later one to arrive drops its
+ * entry.
+ *
+ * @hide
+ */
+public final class RingBufferLocalLog {
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final int mMaxLines;
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    /**
+     * Per slot, sequence + 1 of the entry it holds, or -(sequence + 1) while that entry
+     * is being written.  0 means the slot has never been used.
+     */
+    private final AtomicLongArray mSlotSequences;
+    private final AtomicLongArray mTimes;
+    private final AtomicReferenceArray<String> mMessages;
+    private final AtomicReferenceArray<Object[]> mArgs;
+
+    public RingBufferLocalLog(int maxLines) {
+        mMaxLines = Math.max(0, maxLines);
+        mSlotSequences = new AtomicLongArray(mMaxLines);
+        mTimes = new AtomicLongArray(mMaxLines);
+        mMessages = new AtomicReferenceArray<>(mMaxLines);
+        mArgs = new AtomicReferenceArray<>(mMaxLines);
+    }
+
+    public void log(String msg) {
+        append(msg, NO_ARGS);
+    }
+
+    /**
+     * Logs {@code String.format(format, args)}.  Formatting happens at dump time, so the
+     * caller's argument array is kept as is and must not be modified afterwards.
+     */
+    public void log(String format, Object... args) {
+        append(format, args != null ? args : NO_ARGS);
+    }
+
+    private void append(String msg, Object[] args) {
+        if (mMaxLines <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long sequence = mNextSequence.getAndIncrement();
+        final int index = (int) (sequence % mMaxLines);
+        final long tag = sequence + 1;
+        while (true) {
+            final long current = mSlotSequences.get(index);
+            if (current < 0 || current >= tag) {
+                // Another writer is filling this slot, or a newer entry already owns it.
+                return;
+            }
+            if (mSlotSequences.compareAndSet(index, current, -tag)) {
+                break;
+            }
+        }
+        mTimes.set(index, now);
+        mMessages.set(index, msg);
+        mArgs.set(index, args);
+        mSlotSequences.set(index, tag);
+    }
+
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        dump(pw, false);
+    }
+
+    public void reverseDump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        dump(pw, true);
+    }
+
+    private void dump(PrintWriter pw, boolean reverse) {
+        if (mMaxLines <= 0) {
+            return;
+        }
+        final long end = mNextSequence.get();
+        final long start = Math.max(0, end - mMaxLines);
+        final int count = (int) (end - start);
+        for (int i = 0; i < count; i++) {
+            final long sequence = reverse ? end - 1 - i : start + i;
+            final String line = formatEntry(sequence);
+            if (line != null) {
+                pw.println(line);
+            }
+        }
+    }
+
+    /** @return the formatted entry, or null if it was dropped or is being overwritten. */
+    private String formatEntry(long sequence) {
+        final int index = (int) (sequence % mMaxLines);
+        final long tag = sequence + 1;
+        if (mSlotSequences.get(index) != tag) {
+            return null;
+        }
+        final long time = mTimes.get(index);
+        final String msg = mMessages.get(index);
+        final Object[] args = mArgs.get(index);
+        if (mSlotSequences.get(index) != tag) {
+            return null;
+        }
+        final LocalDateTime dateTime = LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        String text = msg;
+        if (args.length > 0) {
+            try {
+                text = String.format(msg, args);
+            } catch (RuntimeException e) {
+                text = msg + " <format failed: " + e + ">";
+            }
+        }
+        return dateTime + " - " + text;
+    }
+}
@@ -21,6 +21,9 @@ import com.android.internal.util.GrowingArrayUtils;
 
 import libcore.util.EmptyArray;
 
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
 /**
  * SparseArrays map integers to Objects.  Unlike a normal array of Objects,
  * there can be gaps in the indices.  It is intended to be more memory efficient
@@ -187,6 +190,32 @@ public class SparseArray<E> implements Cloneable {
         }
     }
 
+    /**
+     * Removes all mappings whose keys fall in the range
+     * <code>[fromKey, toKey)</code>.  The removed entries are marked as deleted
+     * and compacted by the next garbage collection step, so this costs a binary
+     * search plus one pass over the removed entries.
+     */
+    public void removeRange(int fromKey, int toKey) {
+        if (fromKey >= toKey) {
+            return;
+        }
+        int start = ContainerHelpers.binarySearch(mKeys, mSize, fromKey);
+        if (start < 0) {
+            start = ~start;
+        }
+        int end = ContainerHelpers.binarySearch(mKeys, mSize, toKey);
+        if (end < 0) {
+            end = ~end;
+        }
+        for (int i = start; i < end; i++) {
+            if (mValues[i] != DELETED) {
+                mValues[i] = DELETED;
+                mGarbage = true;
+            }
+        }
+    }
+
     private void gc() {
         // Log.e("SparseArray", "gc start with " + mSize);
 
@@ -247,6 +276,93 @@ public class SparseArray<E> implements Cloneable {
         }
     }
 
+    /**
+     * Adds all of the given mappings, replacing any previous mapping for the
+     * same key.  If {@code keys} contains a key more than once, the last
+     * occurrence wins.
+     *
+     * <p>Unlike calling {@link #put} in a loop, which costs O(n) per key when
+     * keys do not arrive in increasing order, this sorts the new mappings and
+     * merges them with the existing ones in a single pass, dropping deleted
+     * entries along the way.</p>
+     */
+    public void putAll(int[] keys, E[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys.length != values.length");
+        }
+        final int n = keys.length;
+        if (n == 0) {
+            return;
+        }
+
+        // Sort by key and then by position, so the last duplicate sorts last.
+        final long[] order = new long[n];
+        for (int j = 0; j < n; j++) {
+            order[j] = ((long) keys[j] << 32) | j;
+        }
+        Arrays.sort(order);
+
+        final int[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        final int oldSize = mSize;
+        final int[] newKeys = ArrayUtils.newUnpaddedIntArray(oldSize + n);
+        final Object[] newValues = new Object[newKeys.length];
+
+        int i = 0;
+        int j = 0;
+        int o = 0;
+        while (i < oldSize || j < n) {
+            if (i < oldSize && oldValues[i] == DELETED) {
+                i++;
+                continue;
+            }
+            if (j < n) {
+                // Skip to the last occurrence of this key in the new mappings.
+                final int key = (int) (order[j] >> 32);
+                while (j + 1 < n && (int) (order[j + 1] >> 32) == key) {
+                    j++;
+                }
+                if (i >= oldSize || key <= oldKeys[i]) {
+                    if (i < oldSize && key == oldKeys[i]) {
+                        i++;
+                    }
+                    newKeys[o] = key;
+                    newValues[o] = values[(int) order[j]];
+                    o++;
+                    j++;
+                    continue;
+                }
+            }
+            newKeys[o] = oldKeys[i];
+            newValues[o] = oldValues[i];
+            o++;
+            i++;
+        }
+
+        mKeys = newKeys;
+        mValues = newValues;
+        mSize = o;
+        mGarbage = false;
+    }
+
+    /**
+     * Calls {@code action} with each value and its key, in ascending key
+     * order.  Deleted entries are skipped without forcing a garbage collection
+     * step.  The array must not be modified from within {@code action}.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super E> action) {
+        final int n = mSize;
+        final int[] keys = mKeys;
+        final Object[] values = mValues;
+        for (int i = 0; i < n; i++) {
+            final Object value = values[i];
+            if (value != DELETED) {
+                action.accept((E) value, keys[i]);
+            }
+        }
+    }
+
     /**
      * Returns the number of key-value mappings that this SparseArray
      * currently stores.
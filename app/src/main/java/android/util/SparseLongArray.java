@@ -200,6 +200,14 @@ public class SparseLongArray implements Cloneable {
         return mValues[index];
     }
 
+    /**
+     * Directly set the value at a particular index.
+     * @hide
+     */
+    public void setValueAt(int index, long value) {
+        mValues[index] = value;
+    }
+
     /**
      * Returns the index for which {@link #keyAt} would return the
      * specified key, or a negative number if the specified
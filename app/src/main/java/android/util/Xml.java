@@ -16,11 +16,22 @@
 
 package android.util;
 
+import android.os.SystemProperties;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.TypedXmlPullParser;
+import com.android.internal.util.TypedXmlSerializer;
+
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import org.apache.harmony.xml.ExpatReader;
 import org.kxml2.io.KXmlParser;
 import org.xml.sax.ContentHandler;
@@ -109,6 +120,77 @@ public class Xml {
         }
     }
 
+    /**
+     * Whether {@link #resolveSerializer} writes the binary format.  Readers always accept
+     * both formats, so this can be flipped back without losing any state.
+     */
+    private static final String PROP_BINARY_XML = "persist.sys.binary_xml";
+
+    /**
+     * Returns a new pull parser for the compact binary format written by
+     * {@link #newBinarySerializer()}.
+     * @hide
+     */
+    public static TypedXmlPullParser newBinaryPullParser() {
+        return new BinaryXmlPullParser();
+    }
+
+    /**
+     * Returns a new serializer for the compact binary format, meant for the private state
+     * files of system services.
+     * @hide
+     */
+    public static TypedXmlSerializer newBinarySerializer() {
+        return new BinaryXmlSerializer();
+    }
+
+    /**
+     * Returns a parser for {@code in}, which may hold either text XML or the binary format.
+     * The format is detected from the first bytes of the stream, so files written before
+     * the binary format was enabled keep loading.
+     * @hide
+     */
+    public static XmlPullParser resolvePullParser(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final byte[] magic = BinaryXmlSerializer.PROTOCOL_MAGIC;
+        in.mark(magic.length);
+        boolean binary = true;
+        for (int i = 0; i < magic.length; i++) {
+            if (in.read() != (magic[i] & 0xff)) {
+                binary = false;
+                break;
+            }
+        }
+        in.reset();
+
+        final XmlPullParser parser = binary ? newBinaryPullParser() : newPullParser();
+        try {
+            parser.setInput(in, binary ? StandardCharsets.UTF_8.name() : null);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+        return parser;
+    }
+
+    /**
+     * Returns a serializer for a system service state file, already attached to
+     * {@code out}.  Unless disabled with the persist.sys.binary_xml property, it writes the
+     * binary format; files must then be read with {@link #resolvePullParser}.
+     * @hide
+     */
+    public static TypedXmlSerializer resolveSerializer(OutputStream out) throws IOException {
+        final TypedXmlSerializer serializer;
+        if (SystemProperties.getBoolean(PROP_BINARY_XML, true)) {
+            serializer = newBinarySerializer();
+        } else {
+            serializer = new FastXmlSerializer();
+        }
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        return serializer;
+    }
+
     /** Factory for xml serializers. Initialized on demand. */
     static class XmlSerializerFactory {
         static final String TYPE
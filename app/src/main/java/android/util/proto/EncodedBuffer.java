@@ -19,6 +19,10 @@ package android.util.proto;
 import android.annotation.TestApi;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
 
 /**
@@ -131,6 +135,21 @@ public final class EncodedBuffer {
         mReadIndex = 0;
     }
 
+    /**
+     * Discard all data, keeping the allocated chunks for reuse.
+     */
+    public void clear() {
+        mWriteBuffer = mBuffers.get(0);
+        mWriteIndex = 0;
+        mWriteBufIndex = 0;
+
+        mReadBuffer = null;
+        mReadBufIndex = 0;
+        mReadIndex = 0;
+        mReadLimit = -1;
+        mReadableSize = -1;
+    }
+
     /**
      * Rewind the read pointer. Don't touch the write pointer.
      */
@@ -583,6 +602,58 @@ public final class EncodedBuffer {
         return result;
     }
 
+    /**
+     * Write the first _size_ bytes of data to a channel with a single gathering
+     * write of the chunks, without copying them into one array first.
+     */
+    public void writeTo(GatheringByteChannel channel, int size) throws IOException {
+        final int bufCount = (size + mChunkSize - 1) / mChunkSize;
+        final ByteBuffer[] srcs = new ByteBuffer[bufCount];
+        long remaining = 0;
+        for (int bufIndex=0; bufIndex<bufCount; bufIndex++) {
+            final int length = Math.min(mChunkSize, size - (bufIndex * mChunkSize));
+            srcs[bufIndex] = ByteBuffer.wrap(mBuffers.get(bufIndex), 0, length);
+            remaining += length;
+        }
+
+        // A channel may accept fewer bytes than offered; keep going until it is all out.
+        int first = 0;
+        while (remaining > 0) {
+            remaining -= channel.write(srcs, first, bufCount - first);
+            while (first < bufCount && !srcs[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    /**
+     * Copy the first _size_ bytes of data into _dest_, chunk by chunk.
+     *
+     * @throws java.nio.BufferOverflowException if _dest_ does not have room.
+     */
+    public void writeTo(ByteBuffer dest, int size) {
+        int bufIndex = 0;
+        while (size > 0) {
+            final int length = Math.min(mChunkSize, size);
+            dest.put(mBuffers.get(bufIndex), 0, length);
+            size -= length;
+            bufIndex++;
+        }
+    }
+
+    /**
+     * Write the first _size_ bytes of data to a stream, chunk by chunk.
+     */
+    public void writeTo(OutputStream stream, int size) throws IOException {
+        int bufIndex = 0;
+        while (size > 0) {
+            final int length = Math.min(mChunkSize, size);
+            stream.write(mBuffers.get(bufIndex), 0, length);
+            size -= length;
+            bufIndex++;
+        }
+    }
+
     /**
      * Get the number of chunks allocated.
      */
@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.proto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class to read a protobuf stream, such as one written by {@link ProtoOutputStream}.
+ *
+ * This is a pull parser: call {@link #nextField()} to advance to the next field
+ * of the current message, then either one of the read methods, {@link #start}
+ * to descend into a nested message, or nothing, in which case the field is
+ * skipped.  Nested messages are left with {@link #end}, which skips whatever
+ * the caller did not read.
+ *
+ * The field IDs passed to the read methods are the same constants from the
+ * protoc generated classes that ProtoOutputStream takes, and the field type
+ * encoded in them selects the decoding.  Packed repeated fields are returned
+ * one element per read call; {@link #nextField()} keeps returning the same
+ * field number until the packed run is exhausted.
+ *
+ * Only a fixed size buffer is held, whatever the size of the input, and no
+ * message objects are materialized, so arbitrarily large dumps can be scanned
+ * in constant memory.
+ *
+ * <pre>
+ * ProtoInputStream in = new ProtoInputStream(stream);
+ * while (in.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+ *     switch (in.getFieldNumber()) {
+ *         case (int) FooProto.NAME:
+ *             name = in.readString(FooProto.NAME);
+ *             break;
+ *         case (int) FooProto.CHILD:
+ *             final long token = in.start(FooProto.CHILD);
+ *             readChild(in);
+ *             in.end(token);
+ *             break;
+ *     }
+ * }
+ * </pre>
+ *
+ * @hide
+ */
+public final class ProtoInputStream {
+    public static final String TAG = "ProtoInputStream";
+
+    /**
+     * Returned by {@link #nextField()} at the end of the current message.
+     */
+    public static final int NO_MORE_FIELDS = -1;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /** Longest possible varint encoding. */
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private static final int TYPE_DOUBLE = fieldType(ProtoOutputStream.FIELD_TYPE_DOUBLE);
+    private static final int TYPE_FLOAT = fieldType(ProtoOutputStream.FIELD_TYPE_FLOAT);
+    private static final int TYPE_INT32 = fieldType(ProtoOutputStream.FIELD_TYPE_INT32);
+    private static final int TYPE_INT64 = fieldType(ProtoOutputStream.FIELD_TYPE_INT64);
+    private static final int TYPE_UINT32 = fieldType(ProtoOutputStream.FIELD_TYPE_UINT32);
+    private static final int TYPE_UINT64 = fieldType(ProtoOutputStream.FIELD_TYPE_UINT64);
+    private static final int TYPE_SINT32 = fieldType(ProtoOutputStream.FIELD_TYPE_SINT32);
+    private static final int TYPE_SINT64 = fieldType(ProtoOutputStream.FIELD_TYPE_SINT64);
+    private static final int TYPE_FIXED32 = fieldType(ProtoOutputStream.FIELD_TYPE_FIXED32);
+    private static final int TYPE_FIXED64 = fieldType(ProtoOutputStream.FIELD_TYPE_FIXED64);
+    private static final int TYPE_SFIXED32 = fieldType(ProtoOutputStream.FIELD_TYPE_SFIXED32);
+    private static final int TYPE_SFIXED64 = fieldType(ProtoOutputStream.FIELD_TYPE_SFIXED64);
+    private static final int TYPE_BOOL = fieldType(ProtoOutputStream.FIELD_TYPE_BOOL);
+    private static final int TYPE_STRING = fieldType(ProtoOutputStream.FIELD_TYPE_STRING);
+    private static final int TYPE_BYTES = fieldType(ProtoOutputStream.FIELD_TYPE_BYTES);
+    private static final int TYPE_ENUM = fieldType(ProtoOutputStream.FIELD_TYPE_ENUM);
+    private static final int TYPE_OBJECT = fieldType(ProtoOutputStream.FIELD_TYPE_OBJECT);
+
+    /**
+     * Our stream, or null if we are reading from a byte array.
+     */
+    private final InputStream mStream;
+
+    /**
+     * Window onto the input.  Bytes [mPos, mEnd) have been read but not consumed.
+     */
+    private final byte[] mBuffer;
+    private int mPos;
+    private int mEnd;
+
+    /**
+     * Offset in the whole input of mBuffer[0].
+     */
+    private long mBufferOffset;
+
+    /**
+     * Field number and wire type of the current field.
+     */
+    private int mFieldNumber;
+    private int mWireType;
+
+    /**
+     * Whether the value of the current field has already been read (or skipped).
+     */
+    private boolean mFieldConsumed = true;
+
+    /**
+     * End offset of the current packed run, or -1 when not inside one.
+     */
+    private long mPackedEnd = -1;
+
+    /**
+     * Whether an element of the current packed run was read since the last nextField().
+     */
+    private boolean mPackedRead;
+
+    /**
+     * End offsets of the enclosing messages; the top of the stack bounds nextField().
+     */
+    private long[] mLimits = new long[16];
+    private int mDepth;
+
+    /**
+     * Construct a ProtoInputStream that reads from an InputStream, buffering
+     * {@code bufferSize} bytes at a time.
+     */
+    public ProtoInputStream(InputStream stream, int bufferSize) {
+        if (bufferSize < MAX_VARINT_SIZE) {
+            throw new IllegalArgumentException("bufferSize must be >= " + MAX_VARINT_SIZE);
+        }
+        mStream = stream;
+        mBuffer = new byte[bufferSize];
+        mLimits[0] = Long.MAX_VALUE;
+    }
+
+    /**
+     * Construct a ProtoInputStream that reads from an InputStream with the
+     * default buffer size.
+     */
+    public ProtoInputStream(InputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Construct a ProtoInputStream over an encoded message, for example the
+     * result of {@link ProtoOutputStream#getBytes()}.  The array is not copied.
+     */
+    public ProtoInputStream(byte[] buffer) {
+        mStream = null;
+        mBuffer = buffer;
+        mEnd = buffer.length;
+        mLimits[0] = buffer.length;
+    }
+
+    private static int fieldType(long fieldId) {
+        return (int)((fieldId & ProtoOutputStream.FIELD_TYPE_MASK)
+                >>> ProtoOutputStream.FIELD_TYPE_SHIFT);
+    }
+
+    private static String typeString(long fieldId) {
+        return ProtoOutputStream.getFieldTypeString(fieldId & ProtoOutputStream.FIELD_TYPE_MASK);
+    }
+
+    /**
+     * Offset in the input of the next byte to be consumed.
+     */
+    public long getOffset() {
+        return mBufferOffset + mPos;
+    }
+
+    /**
+     * Field number of the field returned by the last call to {@link #nextField()}.
+     */
+    public int getFieldNumber() {
+        return mFieldNumber;
+    }
+
+    /**
+     * Wire type of the field returned by the last call to {@link #nextField()}.
+     */
+    public int getWireType() {
+        return mWireType;
+    }
+
+    /**
+     * Nesting depth of {@link #start} calls.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Advance to the next field of the current message, skipping the value of the
+     * current field if it was not read.
+     *
+     * @return The field number, or {@link #NO_MORE_FIELDS} at the end of the current
+     *      message (or of the input, at the top level).
+     */
+    public int nextField() throws IOException {
+        if (mPackedEnd >= 0) {
+            if (mPackedRead && getOffset() < mPackedEnd) {
+                mPackedRead = false;
+                return mFieldNumber;
+            }
+            skipBytes(mPackedEnd - getOffset());
+            mPackedEnd = -1;
+            mFieldConsumed = true;
+        }
+        if (!mFieldConsumed) {
+            skip();
+        }
+
+        final long limit = mLimits[mDepth];
+        final long offset = getOffset();
+        if (offset >= limit) {
+            if (offset > limit) {
+                throw new ProtoParseException("Field overran its enclosing message at offset "
+                        + offset + " (limit " + limit + ")");
+            }
+            return NO_MORE_FIELDS;
+        }
+        if (!fill(1)) {
+            if (mDepth > 0) {
+                throw new ProtoParseException("Unexpected end of input inside a message"
+                        + " at offset " + offset);
+            }
+            return NO_MORE_FIELDS;
+        }
+
+        final long tag = readRawVarint();
+        mFieldNumber = (int)(tag >>> ProtoOutputStream.FIELD_ID_SHIFT);
+        mWireType = (int)tag & ProtoOutputStream.WIRE_TYPE_MASK;
+        if (mFieldNumber <= 0) {
+            throw new ProtoParseException("Invalid field number " + mFieldNumber
+                    + " at offset " + offset);
+        }
+        mFieldConsumed = false;
+        return mFieldNumber;
+    }
+
+    /**
+     * Whether the current field is the one identified by {@code fieldId}.
+     */
+    public boolean isNextField(long fieldId) {
+        return (!mFieldConsumed || mPackedEnd >= 0) && mFieldNumber == (int)fieldId;
+    }
+
+    /**
+     * Skip the value of the current field.
+     */
+    public void skip() throws IOException {
+        if (mFieldConsumed) {
+            return;
+        }
+        if (mPackedEnd >= 0) {
+            skipBytes(mPackedEnd - getOffset());
+            mPackedEnd = -1;
+            mFieldConsumed = true;
+            return;
+        }
+        switch (mWireType) {
+            case ProtoOutputStream.WIRE_TYPE_VARINT:
+                readRawVarint();
+                break;
+            case ProtoOutputStream.WIRE_TYPE_FIXED64:
+                skipBytes(8);
+                break;
+            case ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED:
+                skipBytes(readLength());
+                break;
+            case ProtoOutputStream.WIRE_TYPE_FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                throw new ProtoParseException("Unsupported wire type " + mWireType
+                        + " for field " + mFieldNumber + " at offset " + getOffset());
+        }
+        mFieldConsumed = true;
+    }
+
+    /**
+     * Read a value of the current field as a double.  Accepts the field types
+     * accepted by {@link ProtoOutputStream#write(long, double)}.
+     */
+    public double readDouble(long fieldId) throws IOException {
+        final int type = fieldType(fieldId);
+        if (type == TYPE_DOUBLE) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_FIXED64);
+            final double val = Double.longBitsToDouble(readRawFixed64());
+            endRead();
+            return val;
+        } else if (type == TYPE_FLOAT) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_FIXED32);
+            final float val = Float.intBitsToFloat(readRawFixed32());
+            endRead();
+            return val;
+        }
+        return readLong(fieldId);
+    }
+
+    /**
+     * Read a value of the current field as a float.
+     */
+    public float readFloat(long fieldId) throws IOException {
+        return (float)readDouble(fieldId);
+    }
+
+    /**
+     * Read a value of the current field as an int.  Accepts the integral field
+     * types; 64 bit values are truncated.
+     */
+    public int readInt(long fieldId) throws IOException {
+        return (int)readLong(fieldId);
+    }
+
+    /**
+     * Read a value of the current field as a long.  Accepts int32, int64, uint32,
+     * uint64, sint32, sint64, fixed32, fixed64, sfixed32, sfixed64, bool and enum
+     * fields.
+     */
+    public long readLong(long fieldId) throws IOException {
+        final int type = fieldType(fieldId);
+        final long val;
+        if (type == TYPE_INT32 || type == TYPE_INT64 || type == TYPE_UINT64
+                || type == TYPE_BOOL || type == TYPE_ENUM) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_VARINT);
+            val = readRawVarint();
+        } else if (type == TYPE_UINT32) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_VARINT);
+            val = readRawVarint() & 0x0ffffffffL;
+        } else if (type == TYPE_SINT32 || type == TYPE_SINT64) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_VARINT);
+            final long raw = readRawVarint();
+            val = (raw >>> 1) ^ -(raw & 1);
+        } else if (type == TYPE_FIXED32) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_FIXED32);
+            val = readRawFixed32() & 0x0ffffffffL;
+        } else if (type == TYPE_SFIXED32) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_FIXED32);
+            val = readRawFixed32();
+        } else if (type == TYPE_FIXED64 || type == TYPE_SFIXED64) {
+            beginRead(fieldId, ProtoOutputStream.WIRE_TYPE_FIXED64);
+            val = readRawFixed64();
+        } else {
+            throw new IllegalArgumentException("Attempt to read an integer from a "
+                    + typeString(fieldId) + " field");
+        }
+        endRead();
+        return val;
+    }
+
+    /**
+     * Read a value of the current field as a boolean.
+     */
+    public boolean readBoolean(long fieldId) throws IOException {
+        return readLong(fieldId) != 0;
+    }
+
+    /**
+     * Read the current string field.
+     */
+    public String readString(long fieldId) throws IOException {
+        if (fieldType(fieldId) != TYPE_STRING) {
+            throw new IllegalArgumentException("Attempt to read a string from a "
+                    + typeString(fieldId) + " field");
+        }
+        checkField(fieldId, ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final int length = readLength();
+        final String val;
+        if (length <= mBuffer.length && fill(length)) {
+            val = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+        } else {
+            val = new String(readRawBytes(length), StandardCharsets.UTF_8);
+        }
+        mFieldConsumed = true;
+        return val;
+    }
+
+    /**
+     * Read the current bytes field, or the raw encoding of the current message field.
+     */
+    public byte[] readBytes(long fieldId) throws IOException {
+        final int type = fieldType(fieldId);
+        if (type != TYPE_BYTES && type != TYPE_OBJECT) {
+            throw new IllegalArgumentException("Attempt to read bytes from a "
+                    + typeString(fieldId) + " field");
+        }
+        checkField(fieldId, ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final byte[] val = readRawBytes(readLength());
+        mFieldConsumed = true;
+        return val;
+    }
+
+    /**
+     * Start reading the current field as a nested message.  Subsequent calls to
+     * {@link #nextField()} return the fields of the nested message, until it returns
+     * {@link #NO_MORE_FIELDS}.
+     *
+     * @return A token to pass to {@link #end}.
+     */
+    public long start(long fieldId) throws IOException {
+        if (fieldType(fieldId) != TYPE_OBJECT) {
+            throw new IllegalArgumentException("Attempt to start a "
+                    + typeString(fieldId) + " field");
+        }
+        checkField(fieldId, ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final int length = readLength();
+        final long limit = getOffset() + length;
+        if (limit > mLimits[mDepth]) {
+            throw new ProtoParseException("Message of length " + length + " overruns its"
+                    + " enclosing message at offset " + getOffset());
+        }
+        mFieldConsumed = true;
+        mDepth++;
+        if (mDepth == mLimits.length) {
+            mLimits = Arrays.copyOf(mLimits, mDepth * 2);
+        }
+        mLimits[mDepth] = limit;
+        return ((long)mDepth << 32) | mFieldNumber;
+    }
+
+    /**
+     * Finish reading a nested message, skipping any fields that were not read.
+     *
+     * @param token The value returned by the matching call to {@link #start}.
+     */
+    public void end(long token) {
+        if ((int)(token >> 32) != mDepth) {
+            throw new IllegalArgumentException("end called with token for depth "
+                    + (int)(token >> 32) + " at depth " + mDepth);
+        }
+        try {
+            mPackedEnd = -1;
+            mFieldConsumed = true;
+            skipBytes(mLimits[mDepth] - getOffset());
+        } catch (IOException e) {
+            throw new ProtoParseException("Unable to skip to the end of message "
+                    + (int)token + ": " + e);
+        }
+        mDepth--;
+    }
+
+    private void checkField(long fieldId, int wireType) {
+        if (mFieldConsumed) {
+            throw new IllegalStateException("Field " + (int)fieldId + " already read; call"
+                    + " nextField() first");
+        }
+        if (mFieldNumber != (int)fieldId) {
+            throw new IllegalArgumentException("Attempt to read field " + (int)fieldId
+                    + " but the current field is " + mFieldNumber);
+        }
+        if (mWireType != wireType) {
+            throw new ProtoParseException("Field " + mFieldNumber + " has wire type "
+                    + mWireType + ", expected " + wireType + " at offset " + getOffset());
+        }
+    }
+
+    /**
+     * Position the stream at the next value of a scalar field, entering a packed
+     * run if the field was written packed.
+     */
+    private void beginRead(long fieldId, int wireType) throws IOException {
+        if (mPackedEnd >= 0) {
+            if (mFieldNumber != (int)fieldId) {
+                throw new IllegalArgumentException("Attempt to read field " + (int)fieldId
+                        + " but the current field is " + mFieldNumber);
+            }
+            if (getOffset() >= mPackedEnd) {
+                throw new IllegalStateException("Packed field " + mFieldNumber
+                        + " exhausted; call nextField() first");
+            }
+            return;
+        }
+        if (mWireType == ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED) {
+            checkField(fieldId, ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+            final int length = readLength();
+            mPackedEnd = getOffset() + length;
+            return;
+        }
+        checkField(fieldId, wireType);
+    }
+
+    private void endRead() {
+        if (mPackedEnd >= 0) {
+            mPackedRead = true;
+            final long offset = getOffset();
+            if (offset > mPackedEnd) {
+                throw new ProtoParseException("Packed field " + mFieldNumber
+                        + " overran its length at offset " + offset);
+            }
+        } else {
+            mFieldConsumed = true;
+        }
+    }
+
+    /**
+     * Make at least {@code count} bytes available in mBuffer, if the input has them.
+     * {@code count} must not be larger than the buffer.
+     */
+    private boolean fill(int count) throws IOException {
+        if (mEnd - mPos >= count) {
+            return true;
+        }
+        if (mStream == null) {
+            return false;
+        }
+        final int remaining = mEnd - mPos;
+        if (mPos > 0) {
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, remaining);
+            mBufferOffset += mPos;
+            mPos = 0;
+            mEnd = remaining;
+        }
+        while (mEnd < count) {
+            final int read = mStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (read < 0) {
+                return false;
+            }
+            mEnd += read;
+        }
+        return true;
+    }
+
+    private void require(int count) throws IOException {
+        if (!fill(count)) {
+            throw new ProtoParseException("Unexpected end of input at offset " + getOffset());
+        }
+    }
+
+    private long readRawVarint() throws IOException {
+        // A varint may legitimately end less than MAX_VARINT_SIZE bytes before EOF.
+        fill(MAX_VARINT_SIZE);
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPos >= mEnd) {
+                throw new ProtoParseException("Unexpected end of input in varint at offset "
+                        + getOffset());
+            }
+            final byte b = mBuffer[mPos++];
+            result |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ProtoParseException("Varint too long at offset " + getOffset());
+    }
+
+    private int readLength() throws IOException {
+        final long length = readRawVarint();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new ProtoParseException("Invalid length " + length + " at offset "
+                    + getOffset());
+        }
+        return (int)length;
+    }
+
+    private int readRawFixed32() throws IOException {
+        require(4);
+        final byte[] buf = mBuffer;
+        final int p = mPos;
+        mPos += 4;
+        return (buf[p] & 0xff)
+                | ((buf[p + 1] & 0xff) << 8)
+                | ((buf[p + 2] & 0xff) << 16)
+                | ((buf[p + 3] & 0xff) << 24);
+    }
+
+    private long readRawFixed64() throws IOException {
+        final long low = readRawFixed32() & 0x0ffffffffL;
+        final long high = readRawFixed32() & 0x0ffffffffL;
+        return low | (high << 32);
+    }
+
+    private byte[] readRawBytes(int length) throws IOException {
+        final byte[] result = new byte[length];
+        int copied = Math.min(length, mEnd - mPos);
+        System.arraycopy(mBuffer, mPos, result, 0, copied);
+        mPos += copied;
+        while (copied < length) {
+            if (mStream == null) {
+                throw new ProtoParseException("Unexpected end of input at offset " + getOffset());
+            }
+            final int read = mStream.read(result, copied, length - copied);
+            if (read < 0) {
+                throw new ProtoParseException("Unexpected end of input at offset " + getOffset());
+            }
+            copied += read;
+            mBufferOffset += read;
+        }
+        return result;
+    }
+
+    private void skipBytes(long count) throws IOException {
+        if (count < 0) {
+            throw new ProtoParseException("Negative skip of " + count + " at offset "
+                    + getOffset());
+        }
+        final int buffered = (int)Math.min(count, mEnd - mPos);
+        mPos += buffered;
+        count -= buffered;
+        while (count > 0) {
+            if (mStream == null) {
+                throw new ProtoParseException("Unexpected end of input at offset " + getOffset());
+            }
+            long skipped = mStream.skip(count);
+            if (skipped <= 0) {
+                // Some streams cannot skip; fall back to reading into the buffer.
+                final int read = mStream.read(mBuffer, 0, (int)Math.min(count, mBuffer.length));
+                if (read < 0) {
+                    throw new ProtoParseException("Unexpected end of input at offset "
+                            + getOffset());
+                }
+                skipped = read;
+            }
+            count -= skipped;
+            mBufferOffset += skipped;
+        }
+        if (mPos == mEnd && mStream != null) {
+            mBufferOffset += mPos;
+            mPos = 0;
+            mEnd = 0;
+        }
+    }
+}
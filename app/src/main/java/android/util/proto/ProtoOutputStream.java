@@ -24,6 +24,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
 /**
  * Class to write to a protobuf stream.
@@ -37,8 +39,18 @@ import java.io.UnsupportedEncodingException;
  *
  * To retrieve the encoded protobuf stream, call getBytes().
  *
- * TODO: Add a constructor that takes an OutputStream and write to that
- * stream as the top-level objects are finished.
+ * Alternatively, construct it on top of an OutputStream, a channel (such as
+ * a FileChannel) or a ByteBuffer.  Top-level fields are then compacted and
+ * written out once they are finished, in batches of at least one buffer chunk,
+ * and their chunks are reused.  Only the top-level field currently being
+ * written stays buffered, so memory use is bounded by the largest top-level
+ * object rather than by the whole dump.  Call flush() when done.
+ *
+ * Nothing inside an open object is written out, even once finished, because
+ * the object's length prefix comes before its contents and is not known until
+ * endObject.  A dump nested entirely under one top-level object therefore
+ * gets no memory benefit from streaming; to keep memory use down, write
+ * large repeated messages as top-level fields.
  *
  * @hide
  */
@@ -186,6 +198,22 @@ public final class ProtoOutputStream {
      */
     private OutputStream mStream;
 
+    /**
+     * Our channel.  If there is one.  Written with gathering writes straight
+     * from the buffer chunks.
+     */
+    private GatheringByteChannel mChannel;
+
+    /**
+     * Our destination ByteBuffer.  If there is one.
+     */
+    private ByteBuffer mByteBuffer;
+
+    /**
+     * Number of bytes already drained to the stream, channel or ByteBuffer.
+     */
+    private long mBytesWritten;
+
     /**
      * Current nesting depth of startObject calls.
      */
@@ -254,7 +282,33 @@ public final class ProtoOutputStream {
      * points within the writing as well.
      */
     public ProtoOutputStream(FileDescriptor fd) {
-        this(new FileOutputStream(fd));
+        this(new FileOutputStream(fd).getChannel());
+    }
+
+    /**
+     * Construct a ProtoOutputStream that writes to a channel, such as a FileChannel.
+     * @more
+     * Finished top-level fields are written with gathering writes directly from
+     * the internal buffer chunks. The {@link #flush() flush()} method must be
+     * called when done writing to flush any remaining data.
+     */
+    public ProtoOutputStream(GatheringByteChannel channel) {
+        this();
+        mChannel = channel;
+    }
+
+    /**
+     * Construct a ProtoOutputStream that writes into a ByteBuffer, starting at its
+     * current position.
+     * @more
+     * Finished top-level fields are copied into the buffer as they are written.
+     * The {@link #flush() flush()} method must be called when done writing to flush
+     * any remaining data.  A {@link java.nio.BufferOverflowException} is thrown if
+     * the buffer runs out of room.
+     */
+    public ProtoOutputStream(ByteBuffer buffer) {
+        this();
+        mByteBuffer = buffer;
     }
 
     /**
@@ -2207,6 +2261,14 @@ public final class ProtoOutputStream {
             // The object has no data.  Don't include it.
             mBuffer.rewindWriteTo(sizePos - getTagSizeFromToken(token));
         }
+
+        // Everything buffered is now complete.  Once there is at least a chunk's
+        // worth, write it out so the chunks can be reused.  Objects finished at a
+        // deeper level stay buffered until their top-level object is done; see the
+        // class documentation.
+        if (mDepth == 0 && isStreaming() && mBuffer.getWriteBufIndex() > 0) {
+            drain();
+        }
     }
 
     /**
@@ -2342,7 +2404,7 @@ public final class ProtoOutputStream {
     /**
      * Get the developer-usable name of a field type.
      */
-    private static String getFieldTypeString(long fieldType) {
+    static String getFieldTypeString(long fieldType) {
         int index = ((int)((fieldType & FIELD_TYPE_MASK) >>> FIELD_TYPE_SHIFT)) - 1;
         if (index >= 0 && index < FIELD_TYPE_NAMES.length) {
             return FIELD_TYPE_NAMES[index];
@@ -2436,6 +2498,10 @@ public final class ProtoOutputStream {
      * behavior is undefined.
      */
     public byte[] getBytes() {
+        if (isStreaming()) {
+            throw new IllegalStateException("getBytes called on a ProtoOutputStream that"
+                    + " writes to a stream");
+        }
         compactIfNecessary();
 
         return mBuffer.getBytes(mBuffer.getReadableSize());
@@ -2607,36 +2673,69 @@ public final class ProtoOutputStream {
     }
 
     /**
-     * Write remaining data to the output stream.  If there is no output stream,
-     * this function does nothing. Any currently open objects (i.e. ones that
-     * have not had endObject called for them will not be written).  Whether this
-     * writes objects that are closed if there are remaining open objects is
-     * undefined (current implementation does not write it, future ones will).
-     * For now, can either call getBytes() or flush(), but not both.
+     * Write remaining data to the output stream, channel or ByteBuffer.  If there is
+     * none, this function does nothing.  Any currently open objects (i.e. ones that
+     * have not had endObject called for them) are not written, and neither is
+     * anything written at the top level after the first of them; they will be
+     * written by a later flush() once they are closed.  Writing may continue after
+     * flush().
      */
     public void flush() {
-        if (mStream == null) {
+        if (!isStreaming()) {
             return;
         }
         if (mDepth != 0) {
-            // TODO: The compacting code isn't ready yet to compact unless we're done.
-            // TODO: Fix that.
-            return;
-        }
-        if (mCompacted) {
-            // If we're compacted, we already wrote it finished.
+            // The compacting code can only compact complete top-level fields.
             return;
         }
-        compactIfNecessary();
-        final byte[] data = mBuffer.getBytes(mBuffer.getReadableSize());
+        drain();
         try {
-            mStream.write(data);
-            mStream.flush();
+            if (mStream != null) {
+                mStream.flush();
+            }
         } catch (IOException ex) {
             throw new RuntimeException("Error flushing proto to stream", ex);
         }
     }
 
+    /**
+     * Returns the number of bytes written to the output stream, channel or
+     * ByteBuffer so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private boolean isStreaming() {
+        return mStream != null || mChannel != null || mByteBuffer != null;
+    }
+
+    /**
+     * Compact everything buffered, which must all be complete top-level fields,
+     * write it out, and reset the buffer for reuse.
+     */
+    private void drain() {
+        compactIfNecessary();
+        final int size = mBuffer.getReadableSize();
+        if (size > 0) {
+            try {
+                if (mChannel != null) {
+                    mBuffer.writeTo(mChannel, size);
+                } else if (mByteBuffer != null) {
+                    mBuffer.writeTo(mByteBuffer, size);
+                } else {
+                    mBuffer.writeTo(mStream, size);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Error flushing proto to stream", ex);
+            }
+            mBytesWritten += size;
+        }
+        mBuffer.clear();
+        mCopyBegin = 0;
+        mCompacted = false;
+    }
+
     /**
      * Read a raw tag from the buffer.
      */
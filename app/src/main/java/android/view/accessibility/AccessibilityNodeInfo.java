@@ -40,6 +40,7 @@ import android.text.style.ClickableSpan;
 import android.text.style.URLSpan;
 import android.util.ArraySet;
 import android.util.LongArray;
+import android.util.Pools.ConcurrentPool;
 import android.util.Pools.SynchronizedPool;
 import android.view.View;
 
@@ -693,8 +694,8 @@ public class AccessibilityNodeInfo implements Parcelable {
 
     // Housekeeping.
     private static final int MAX_POOL_SIZE = 50;
-    private static final SynchronizedPool<AccessibilityNodeInfo> sPool =
-            new SynchronizedPool<>(MAX_POOL_SIZE);
+    private static final ConcurrentPool<AccessibilityNodeInfo> sPool =
+            new ConcurrentPool<>(MAX_POOL_SIZE);
 
     private static final AccessibilityNodeInfo DEFAULT = new AccessibilityNodeInfo();
 
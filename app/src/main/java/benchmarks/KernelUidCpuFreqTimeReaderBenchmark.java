@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import com.android.internal.os.KernelUidCpuFreqTimeReader;
+import com.android.internal.util.ProcFileReader;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import libcore.io.IoUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Measures {@link KernelUidCpuFreqTimeReader#readDelta} over synthetic copies of
+ * {@code /proc/uid_time_in_state}. Each rep reads the next of a series of snapshots in which
+ * the given share of uids have run since the one before, as between two polls of a busy
+ * device. When the series wraps around, a new reader is primed with the first snapshot, which
+ * is counted in the time of one rep out of {@link #SNAPSHOTS}.
+ */
+public class KernelUidCpuFreqTimeReaderBenchmark {
+
+    private static final int SNAPSHOTS = 16;
+
+    @Param({"500", "2000"})
+    int uids;
+
+    @Param({"20", "50"})
+    int freqs;
+
+    @Param({"10", "100"})
+    int changedPercent;
+
+    private File[] files;
+    private ProcFileReader[] readers;
+
+    private final KernelUidCpuFreqTimeReader.Callback callback =
+            new KernelUidCpuFreqTimeReader.Callback() {
+                @Override
+                public void onCpuFreqs(long[] cpuFreqs) {
+                }
+
+                @Override
+                public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                    reported++;
+                }
+            };
+    private int reported;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        System.setProperty("java.io.tmpdir", "/data/local/tmp");
+        final Random r = new Random(4711);
+        final long[][] times = new long[uids][freqs];
+        files = new File[SNAPSHOTS];
+        readers = new ProcFileReader[SNAPSHOTS];
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            for (int uid = 0; uid < uids; uid++) {
+                if (i == 0 || r.nextInt(100) < changedPercent) {
+                    for (int freq = 0; freq < freqs; freq++) {
+                        times[uid][freq] += r.nextInt(i == 0 ? 1 << 20 : 1 << 8);
+                    }
+                }
+            }
+            files[i] = File.createTempFile(getClass().getName(), ".txt");
+            files[i].deleteOnExit();
+            writeSnapshot(files[i], times);
+            readers[i] = new ProcFileReader(new FileInputStream(files[i]).getChannel(), 8192);
+        }
+    }
+
+    @AfterExperiment
+    protected void tearDown() {
+        for (ProcFileReader reader : readers) {
+            IoUtils.closeQuietly(reader);
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    public int timeReadDelta(int reps) throws IOException {
+        KernelUidCpuFreqTimeReader uidReader = null;
+        reported = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            final int snapshot = rep % SNAPSHOTS;
+            if (snapshot == 0) {
+                uidReader = new KernelUidCpuFreqTimeReader();
+            }
+            final ProcFileReader reader = readers[snapshot];
+            reader.rewind();
+            uidReader.readDelta(reader, snapshot == 0 ? null : callback);
+        }
+        return reported;
+    }
+
+    public int timeReadDeltaUnchanged(int reps) throws IOException {
+        final KernelUidCpuFreqTimeReader uidReader = new KernelUidCpuFreqTimeReader();
+        final ProcFileReader reader = readers[0];
+        reader.rewind();
+        uidReader.readDelta(reader, null);
+        reported = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            reader.rewind();
+            uidReader.readDelta(reader, callback);
+        }
+        return reported;
+    }
+
+    private void writeSnapshot(File file, long[][] times) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            final StringBuilder sb = new StringBuilder("uid:");
+            for (int freq = 0; freq < freqs; freq++) {
+                sb.append(' ').append(300000 + freq * 50000);
+            }
+            sb.append('\n');
+            for (int uid = 0; uid < uids; uid++) {
+                sb.append(10000 + uid).append(':');
+                for (int freq = 0; freq < freqs; freq++) {
+                    sb.append(' ').append(times[uid][freq]);
+                }
+                sb.append('\n');
+                out.append(sb);
+                sb.setLength(0);
+            }
+        }
+    }
+}
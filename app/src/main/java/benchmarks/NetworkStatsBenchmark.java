@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import android.net.NetworkStats;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Measures the row lookups behind {@link NetworkStats#subtract}, {@link NetworkStats#combineValues}
+ * and {@link NetworkStats#groupedByUid} on snapshots shaped like a busy device: a few
+ * interfaces, thousands of uids, both sets and a tail of tagged rows. The newer snapshot lists
+ * its rows in a different order than the older one, as happens when the kernel adds or drops
+ * rows between reads, which defeats the hinted lookup of {@code subtract}.
+ */
+public class NetworkStatsBenchmark {
+
+    private static final String[] IFACES = {
+            "wlan0", "rmnet_data0", "rmnet_data1", "rmnet_data2", "ipsec0", "tun0",
+    };
+
+    @Param({"5000", "20000", "50000"})
+    int rows;
+
+    private NetworkStats older;
+    private NetworkStats newer;
+    private NetworkStats.Entry[] entries;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        final Random r = new Random(5318);
+        final ArrayList<NetworkStats.Entry> list = new ArrayList<>(rows);
+        final HashSet<String> identities = new HashSet<>();
+        final int uids = Math.max(rows / (IFACES.length * 2), 1);
+        for (int uid = 0; list.size() < rows; uid = (uid + 1) % uids) {
+            final String iface = IFACES[r.nextInt(IFACES.length)];
+            final int set = r.nextInt(2);
+            // roughly one row in five carries a socket tag
+            final int tag = r.nextInt(5) == 0 ? 0xffffff00 | r.nextInt(16) : NetworkStats.TAG_NONE;
+            final NetworkStats.Entry entry = new NetworkStats.Entry(iface, 10000 + uid, set, tag,
+                    r.nextInt(1 << 20), r.nextInt(1 << 10), r.nextInt(1 << 20), r.nextInt(1 << 10),
+                    0L);
+            if (identities.add(iface + ':' + entry.uid + ':' + set + ':' + tag)) {
+                list.add(entry);
+            }
+        }
+        entries = list.toArray(new NetworkStats.Entry[rows]);
+
+        older = new NetworkStats(0L, rows);
+        for (NetworkStats.Entry entry : entries) {
+            older.addValues(entry);
+        }
+
+        Collections.shuffle(list, r);
+        newer = new NetworkStats(1000L, rows);
+        for (NetworkStats.Entry entry : list) {
+            newer.addValues(entry.iface, entry.uid, entry.set, entry.tag,
+                    entry.rxBytes + 1024, entry.rxPackets + 1, entry.txBytes + 1024,
+                    entry.txPackets + 1, 0L);
+        }
+    }
+
+    public int timeSubtract(int reps) {
+        int size = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            size += NetworkStats.subtract(newer, older, null, null).size();
+        }
+        return size;
+    }
+
+    public int timeSubtractRecycled(int reps) {
+        NetworkStats recycle = null;
+        for (int rep = 0; rep < reps; rep++) {
+            recycle = NetworkStats.subtract(newer, older, null, null, recycle);
+        }
+        return recycle != null ? recycle.size() : 0;
+    }
+
+    public int timeCombineAllValues(int reps) {
+        int size = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            final NetworkStats combined = new NetworkStats(0L, 10);
+            combined.combineAllValues(older);
+            combined.combineAllValues(newer);
+            size += combined.size();
+        }
+        return size;
+    }
+
+    public int timeGroupedByUid(int reps) {
+        int size = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            size += newer.groupedByUid().size();
+        }
+        return size;
+    }
+
+    public int timeFindIndex(int reps) {
+        int found = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (NetworkStats.Entry entry : entries) {
+                if (newer.findIndex(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
+                        entry.roaming) >= 0) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
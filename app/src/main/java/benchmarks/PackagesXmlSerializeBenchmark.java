@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.TypedXmlSerializer;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Writes a synthetic packages.xml, shaped like the one Settings.writeLPr produces, in three
+ * ways: with every number boxed into a String first (what XmlUtils used to do), with the
+ * typed FastXmlSerializer attribute methods, and with the binary serializer.  Run with
+ * caliper's allocation instrument to see the garbage saved along with the time.
+ */
+public class PackagesXmlSerializeBenchmark {
+
+    @Param({"100", "800"})
+    int packages;
+
+    private String[] names;
+    private String[] codePaths;
+    private int[] uids;
+    private long[] times;
+    private int[] flags;
+    private boolean[] enabled;
+    private String[][] permissions;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        Random r = new Random(854328);
+        names = new String[packages];
+        codePaths = new String[packages];
+        uids = new int[packages];
+        times = new long[packages];
+        flags = new int[packages];
+        enabled = new boolean[packages];
+        permissions = new String[packages][];
+        for (int i = 0; i < packages; i++) {
+            names[i] = "com.example.app" + i;
+            codePaths[i] = "/data/app/com.example.app" + i + "-" + r.nextInt(1000);
+            uids[i] = 10000 + i;
+            times[i] = 1500000000000L + r.nextInt(1000000000);
+            flags[i] = r.nextInt();
+            enabled[i] = r.nextBoolean();
+            permissions[i] = new String[r.nextInt(12)];
+            for (int j = 0; j < permissions[i].length; j++) {
+                permissions[i][j] = "android.permission.PERMISSION_" + r.nextInt(60);
+            }
+        }
+    }
+
+    private void writeStrings(XmlSerializer serializer) throws Exception {
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < packages; i++) {
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", names[i]);
+            serializer.attribute(null, "codePath", codePaths[i]);
+            serializer.attribute(null, "flags", Integer.toString(flags[i]));
+            serializer.attribute(null, "ft", Long.toHexString(times[i]));
+            serializer.attribute(null, "it", Long.toHexString(times[i]));
+            serializer.attribute(null, "ut", Long.toHexString(times[i]));
+            serializer.attribute(null, "version", Integer.toString(i));
+            serializer.attribute(null, "userId", Integer.toString(uids[i]));
+            serializer.attribute(null, "enabled", Boolean.toString(enabled[i]));
+            writePermissions(serializer, i);
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+    }
+
+    private void writeTyped(TypedXmlSerializer serializer) throws Exception {
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < packages; i++) {
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", names[i]);
+            serializer.attribute(null, "codePath", codePaths[i]);
+            serializer.attributeInt(null, "flags", flags[i]);
+            serializer.attributeLongHex(null, "ft", times[i]);
+            serializer.attributeLongHex(null, "it", times[i]);
+            serializer.attributeLongHex(null, "ut", times[i]);
+            serializer.attributeInt(null, "version", i);
+            serializer.attributeInt(null, "userId", uids[i]);
+            serializer.attributeBoolean(null, "enabled", enabled[i]);
+            writePermissions(serializer, i);
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+    }
+
+    private void writePermissions(XmlSerializer serializer, int i) throws Exception {
+        serializer.startTag(null, "perms");
+        for (String permission : permissions[i]) {
+            serializer.startTag(null, "item");
+            serializer.attribute(null, "name", permission);
+            serializer.attribute(null, "granted", "true");
+            serializer.endTag(null, "item");
+        }
+        serializer.endTag(null, "perms");
+    }
+
+    private void begin(XmlSerializer serializer) throws Exception {
+        out.reset();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+    }
+
+    public int timeFastStringAttributes(int reps) throws Exception {
+        for (int rep = 0; rep < reps; rep++) {
+            FastXmlSerializer serializer = new FastXmlSerializer();
+            begin(serializer);
+            writeStrings(serializer);
+            serializer.endDocument();
+        }
+        return out.size();
+    }
+
+    public int timeFastTypedAttributes(int reps) throws Exception {
+        for (int rep = 0; rep < reps; rep++) {
+            FastXmlSerializer serializer = new FastXmlSerializer();
+            begin(serializer);
+            writeTyped(serializer);
+            serializer.endDocument();
+        }
+        return out.size();
+    }
+
+    public int timeBinaryTypedAttributes(int reps) throws Exception {
+        for (int rep = 0; rep < reps; rep++) {
+            BinaryXmlSerializer serializer = new BinaryXmlSerializer();
+            begin(serializer);
+            writeTyped(serializer);
+            serializer.endDocument();
+        }
+        return out.size();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import android.util.IntIntHashMap;
+import android.util.IntObjectHashMap;
+import android.util.LongLongHashMap;
+import android.util.LongObjectHashMap;
+import android.util.LongSparseArray;
+import android.util.LongSparseLongArray;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.util.Random;
+
+/**
+ * Compares the open addressing primitive maps against the binary search Sparse* family.
+ * Keys are inserted in random order, which is the case Sparse* handles worst; expect the
+ * Sparse* put benchmarks to become impractically slow at the largest sizes.
+ */
+public class PrimitiveHashMapBenchmark {
+
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    int size;
+
+    private int[] intKeys;
+    private long[] longKeys;
+    private final Object value = new Object();
+
+    private SparseIntArray sparseIntArray;
+    private IntIntHashMap intIntHashMap;
+    private SparseArray<Object> sparseArray;
+    private IntObjectHashMap<Object> intObjectHashMap;
+    private LongSparseLongArray longSparseLongArray;
+    private LongLongHashMap longLongHashMap;
+    private LongSparseArray<Object> longSparseArray;
+    private LongObjectHashMap<Object> longObjectHashMap;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        Random r = new Random(854328);
+        intKeys = new int[size];
+        longKeys = new long[size];
+        for (int i = 0; i < size; i++) {
+            intKeys[i] = r.nextInt();
+            longKeys[i] = r.nextLong();
+        }
+
+        sparseIntArray = new SparseIntArray();
+        intIntHashMap = new IntIntHashMap();
+        sparseArray = new SparseArray<>();
+        intObjectHashMap = new IntObjectHashMap<>();
+        longSparseLongArray = new LongSparseLongArray();
+        longLongHashMap = new LongLongHashMap();
+        longSparseArray = new LongSparseArray<>();
+        longObjectHashMap = new LongObjectHashMap<>();
+        for (int i = 0; i < size; i++) {
+            sparseIntArray.put(intKeys[i], i);
+            intIntHashMap.put(intKeys[i], i);
+            sparseArray.put(intKeys[i], value);
+            intObjectHashMap.put(intKeys[i], value);
+            longSparseLongArray.put(longKeys[i], i);
+            longLongHashMap.put(longKeys[i], i);
+            longSparseArray.put(longKeys[i], value);
+            longObjectHashMap.put(longKeys[i], value);
+        }
+    }
+
+    public void timeSparseIntArrayPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            SparseIntArray map = new SparseIntArray();
+            for (int i = 0; i < size; i++) {
+                map.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public void timeIntIntHashMapPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            IntIntHashMap map = new IntIntHashMap();
+            for (int i = 0; i < size; i++) {
+                map.put(intKeys[i], i);
+            }
+        }
+    }
+
+    public int timeSparseIntArrayGet(int reps) {
+        int sum = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                sum += sparseIntArray.get(intKeys[i]);
+            }
+        }
+        return sum;
+    }
+
+    public int timeIntIntHashMapGet(int reps) {
+        int sum = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                sum += intIntHashMap.get(intKeys[i]);
+            }
+        }
+        return sum;
+    }
+
+    public void timeSparseIntArrayDelete(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            SparseIntArray map = sparseIntArray.clone();
+            for (int i = 0; i < size; i++) {
+                map.delete(intKeys[i]);
+            }
+        }
+    }
+
+    public void timeIntIntHashMapDelete(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            IntIntHashMap map = intIntHashMap.clone();
+            for (int i = 0; i < size; i++) {
+                map.delete(intKeys[i]);
+            }
+        }
+    }
+
+    public void timeSparseArrayPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            SparseArray<Object> map = new SparseArray<>();
+            for (int i = 0; i < size; i++) {
+                map.put(intKeys[i], value);
+            }
+        }
+    }
+
+    public void timeIntObjectHashMapPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(intKeys[i], value);
+            }
+        }
+    }
+
+    public int timeSparseArrayGet(int reps) {
+        int found = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                if (sparseArray.get(intKeys[i]) != null) found++;
+            }
+        }
+        return found;
+    }
+
+    public int timeIntObjectHashMapGet(int reps) {
+        int found = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                if (intObjectHashMap.get(intKeys[i]) != null) found++;
+            }
+        }
+        return found;
+    }
+
+    public void timeLongSparseLongArrayPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            LongSparseLongArray map = new LongSparseLongArray();
+            for (int i = 0; i < size; i++) {
+                map.put(longKeys[i], i);
+            }
+        }
+    }
+
+    public void timeLongLongHashMapPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            LongLongHashMap map = new LongLongHashMap();
+            for (int i = 0; i < size; i++) {
+                map.put(longKeys[i], i);
+            }
+        }
+    }
+
+    public long timeLongSparseLongArrayGet(int reps) {
+        long sum = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                sum += longSparseLongArray.get(longKeys[i]);
+            }
+        }
+        return sum;
+    }
+
+    public long timeLongLongHashMapGet(int reps) {
+        long sum = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                sum += longLongHashMap.get(longKeys[i]);
+            }
+        }
+        return sum;
+    }
+
+    public void timeLongSparseArrayPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            LongSparseArray<Object> map = new LongSparseArray<>();
+            for (int i = 0; i < size; i++) {
+                map.put(longKeys[i], value);
+            }
+        }
+    }
+
+    public void timeLongObjectHashMapPut(int reps) {
+        for (int rep = 0; rep < reps; rep++) {
+            LongObjectHashMap<Object> map = new LongObjectHashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(longKeys[i], value);
+            }
+        }
+    }
+
+    public int timeLongSparseArrayGet(int reps) {
+        int found = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                if (longSparseArray.get(longKeys[i]) != null) found++;
+            }
+        }
+        return found;
+    }
+
+    public int timeLongObjectHashMapGet(int reps) {
+        int found = 0;
+        for (int rep = 0; rep < reps; rep++) {
+            for (int i = 0; i < size; i++) {
+                if (longObjectHashMap.get(longKeys[i]) != null) found++;
+            }
+        }
+        return found;
+    }
+}
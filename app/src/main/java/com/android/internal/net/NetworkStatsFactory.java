@@ -20,7 +20,6 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
-import static com.android.server.NetworkManagementSocketTagger.kernelToTag;
 
 import android.net.NetworkStats;
 import android.os.StrictMode;
@@ -62,6 +61,17 @@ public class NetworkStatsFactory {
     /** Path to {@code /proc/net/xt_qtaguid/stats}. */
     private final File mStatsXtUid;
 
+    /**
+     * Readers of the files above, kept open between polls and rewound, so
+     * that polling reuses their buffers and interned interface names.
+     */
+    @GuardedBy("this")
+    private ProcFileReader mIfaceAllReader;
+    @GuardedBy("this")
+    private ProcFileReader mIfaceFmtReader;
+    @GuardedBy("this")
+    private ProcFileReader mXtUidReader;
+
     // TODO: to improve testability and avoid global state, do not use a static variable.
     @GuardedBy("sStackedIfaces")
     private static final ArrayMap<String, String> sStackedIfaces = new ArrayMap<>();
@@ -95,7 +105,7 @@ public class NetworkStatsFactory {
      *
      * @throws IllegalStateException when problem parsing stats.
      */
-    public NetworkStats readNetworkStatsSummaryDev() throws IOException {
+    public synchronized NetworkStats readNetworkStatsSummaryDev() throws IOException {
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
 
         final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 6);
@@ -103,10 +113,11 @@ public class NetworkStatsFactory {
 
         ProcFileReader reader = null;
         try {
-            reader = new ProcFileReader(new FileInputStream(mStatsXtIfaceAll));
+            reader = rewindOrOpen(mIfaceAllReader, mStatsXtIfaceAll);
+            mIfaceAllReader = null;
 
             while (reader.hasMoreData()) {
-                entry.iface = reader.nextString();
+                entry.iface = reader.nextInternedString();
                 entry.uid = UID_ALL;
                 entry.set = SET_ALL;
                 entry.tag = TAG_NONE;
@@ -130,6 +141,10 @@ public class NetworkStatsFactory {
                 stats.addValues(entry);
                 reader.finishLine();
             }
+
+            // keep reader for the next poll only after a clean parse
+            mIfaceAllReader = reader;
+            reader = null;
         } catch (NullPointerException|NumberFormatException e) {
             throw new ProtocolException("problem parsing stats", e);
         } finally {
@@ -146,7 +161,7 @@ public class NetworkStatsFactory {
      *
      * @throws IllegalStateException when problem parsing stats.
      */
-    public NetworkStats readNetworkStatsSummaryXt() throws IOException {
+    public synchronized NetworkStats readNetworkStatsSummaryXt() throws IOException {
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
 
         // return null when kernel doesn't support
@@ -158,11 +173,12 @@ public class NetworkStatsFactory {
         ProcFileReader reader = null;
         try {
             // open and consume header line
-            reader = new ProcFileReader(new FileInputStream(mStatsXtIfaceFmt));
+            reader = rewindOrOpen(mIfaceFmtReader, mStatsXtIfaceFmt);
+            mIfaceFmtReader = null;
             reader.finishLine();
 
             while (reader.hasMoreData()) {
-                entry.iface = reader.nextString();
+                entry.iface = reader.nextInternedString();
                 entry.uid = UID_ALL;
                 entry.set = SET_ALL;
                 entry.tag = TAG_NONE;
@@ -175,6 +191,10 @@ public class NetworkStatsFactory {
                 stats.addValues(entry);
                 reader.finishLine();
             }
+
+            // keep reader for the next poll only after a clean parse
+            mIfaceFmtReader = reader;
+            reader = null;
         } catch (NullPointerException|NumberFormatException e) {
             throw new ProtocolException("problem parsing stats", e);
         } finally {
@@ -256,13 +276,61 @@ public class NetworkStatsFactory {
                 throw new IOException("Failed to parse network stats");
             }
             if (SANITY_CHECK_NATIVE) {
-                final NetworkStats javaStats = javaReadNetworkStatsDetail(mStatsXtUid, limitUid,
+                final NetworkStats javaStats = javaReadNetworkStatsDetail(limitUid,
                         limitIfaces, limitTag);
                 assertEquals(javaStats, stats);
             }
             return stats;
         } else {
-            return javaReadNetworkStatsDetail(mStatsXtUid, limitUid, limitIfaces, limitTag);
+            return javaReadNetworkStatsDetail(limitUid, limitIfaces, limitTag);
+        }
+    }
+
+    /**
+     * Like {@link #javaReadNetworkStatsDetail(File, int, String[], int)} for
+     * {@link #mStatsXtUid}, reusing the reader of the previous poll.
+     */
+    private synchronized NetworkStats javaReadNetworkStatsDetail(int limitUid, String[] limitIfaces,
+            int limitTag) throws IOException {
+        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
+        ProcFileReader reader = null;
+        try {
+            reader = rewindOrOpen(mXtUidReader, mStatsXtUid);
+            mXtUidReader = null;
+            final NetworkStats stats = javaReadNetworkStatsDetail(reader, limitUid, limitIfaces,
+                    limitTag);
+
+            // keep reader for the next poll only after a clean parse
+            mXtUidReader = reader;
+            reader = null;
+            return stats;
+        } finally {
+            IoUtils.closeQuietly(reader);
+            StrictMode.setThreadPolicy(savedPolicy);
+        }
+    }
+
+    /**
+     * Return a reader positioned at the start of the given file, rewinding the
+     * reader left open by an earlier poll when there is one.
+     */
+    private static ProcFileReader rewindOrOpen(ProcFileReader reader, File file)
+            throws IOException {
+        if (reader != null) {
+            try {
+                reader.rewind();
+                return reader;
+            } catch (IOException e) {
+                // fall through to reopen
+                IoUtils.closeQuietly(reader);
+            }
+        }
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            return new ProcFileReader(stream.getChannel(), 4096);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(stream);
+            throw e;
         }
     }
 
@@ -276,16 +344,32 @@ public class NetworkStatsFactory {
             throws IOException {
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
 
+        ProcFileReader reader = null;
+        try {
+            // open and parse
+            reader = new ProcFileReader(new FileInputStream(detailPath));
+            return javaReadNetworkStatsDetail(reader, limitUid, limitIfaces, limitTag);
+        } finally {
+            IoUtils.closeQuietly(reader);
+            StrictMode.setThreadPolicy(savedPolicy);
+        }
+    }
+
+    /**
+     * Parse {@link NetworkStats} with UID-level details from the given reader,
+     * positioned at the start of the file. Leaves closing the reader to the
+     * caller.
+     */
+    private static NetworkStats javaReadNetworkStatsDetail(ProcFileReader reader, int limitUid,
+            String[] limitIfaces, int limitTag) throws IOException {
         final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 24);
         final NetworkStats.Entry entry = new NetworkStats.Entry();
 
         int idx = 1;
         int lastIdx = 1;
 
-        ProcFileReader reader = null;
         try {
-            // open and consume header line
-            reader = new ProcFileReader(new FileInputStream(detailPath));
+            // consume header line
             reader.finishLine();
 
             while (reader.hasMoreData()) {
@@ -296,8 +380,9 @@ public class NetworkStatsFactory {
                 }
                 lastIdx = idx;
 
-                entry.iface = reader.nextString();
-                entry.tag = kernelToTag(reader.nextString());
+                entry.iface = reader.nextInternedString();
+                // tag is in the upper 32 bits of the kernel cookie
+                entry.tag = (int) (reader.nextHexLong() >>> 32);
                 entry.uid = reader.nextInt();
                 entry.set = reader.nextInt();
                 entry.rxBytes = reader.nextLong();
@@ -315,9 +400,6 @@ public class NetworkStatsFactory {
             }
         } catch (NullPointerException|NumberFormatException e) {
             throw new ProtocolException("problem parsing idx " + idx, e);
-        } finally {
-            IoUtils.closeQuietly(reader);
-            StrictMode.setThreadPolicy(savedPolicy);
         }
 
         return stats;
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Sealed chunks of the battery history of {@link BatteryStatsImpl}, spilled to files so that
+ * only the chunk being written to has to stay on the heap.
+ *
+ * Chunks are numbered in the order they were sealed, and each is the raw content of the
+ * history buffer at the time.  A sealed chunk is kept on the heap only until a background
+ * thread has written it to {@code <dir>/<number>.bin}; after that it is read back by mapping
+ * the file.  Once there are more than the maximum number of chunks, the oldest are deleted.
+ */
+final class BatteryHistoryChunkStore {
+    private static final String TAG = "BatteryHistoryChunkStore";
+
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final class Chunk {
+        final int seq;
+        final int size;
+
+        /** Content until written to the file, then null */
+        byte[] data;
+
+        Chunk(int seq, int size, byte[] data) {
+            this.seq = seq;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private final File mDir;
+    private final int mMaxChunks;
+
+    /** Chunks from oldest to newest */
+    @GuardedBy("this")
+    private final ArrayList<Chunk> mChunks = new ArrayList<>();
+
+    @GuardedBy("this")
+    private int mNextSeq;
+
+    @GuardedBy("this")
+    private int mTotalSize;
+
+    /** If the chunks found on disk were claimed by {@link #truncate} or dropped */
+    @GuardedBy("this")
+    private boolean mRestored;
+
+    /** Reused buffer for chunks read back from their files */
+    @GuardedBy("this")
+    private byte[] mReadBuffer;
+
+    /**
+     * Find the chunks stored in the given directory.  They are only part of the history once
+     * a checkpoint claims them with {@link #truncate}.
+     */
+    BatteryHistoryChunkStore(File dir, int maxChunks) {
+        mDir = dir;
+        mMaxChunks = maxChunks;
+
+        mDir.mkdirs();
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(FILE_SUFFIX)) {
+                // Left over from a write that did not finish
+                file.delete();
+                continue;
+            }
+            try {
+                final int seq = Integer.parseInt(
+                        name.substring(0, name.length() - FILE_SUFFIX.length()));
+                mChunks.add(new Chunk(seq, (int) file.length(), null));
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        mChunks.sort((a, b) -> Integer.compare(a.seq, b.seq));
+        for (int i = 0; i < mChunks.size(); i++) {
+            mTotalSize += mChunks.get(i).size;
+        }
+        if (!mChunks.isEmpty()) {
+            mNextSeq = mChunks.get(mChunks.size() - 1).seq + 1;
+        }
+    }
+
+    /** @return the number the next chunk sealed will get. */
+    synchronized int getNextSeq() {
+        return mNextSeq;
+    }
+
+    synchronized int getChunkCount() {
+        return mChunks.size();
+    }
+
+    /** @return the size of the chunk at the given index, from oldest to newest. */
+    synchronized int getChunkSize(int index) {
+        return mChunks.get(index).size;
+    }
+
+    /** @return the total size of all chunks. */
+    synchronized int getTotalSize() {
+        return mTotalSize;
+    }
+
+    synchronized boolean isRestored() {
+        return mRestored;
+    }
+
+    /**
+     * Seal the content of the given buffer as the newest chunk.  It is written to disk in the
+     * background, and the oldest chunks are dropped if there are too many.
+     */
+    void seal(Parcel buffer) {
+        final Chunk chunk;
+        synchronized (this) {
+            chunk = new Chunk(mNextSeq++, buffer.dataSize(), buffer.marshall());
+            mChunks.add(chunk);
+            mTotalSize += chunk.size;
+            while (mChunks.size() > mMaxChunks) {
+                dropLocked(mChunks.remove(0));
+            }
+        }
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                writeChunk(chunk);
+            }
+        });
+    }
+
+    /**
+     * Claim the chunks restored from disk that a checkpoint knows of, which are those sealed
+     * before it was taken.  Later chunks hold history that is also in the checkpoint, so
+     * they are dropped.
+     *
+     * @param nextSeq {@link #getNextSeq()} at the time of the checkpoint.
+     */
+    synchronized void truncate(int nextSeq) {
+        for (int i = mChunks.size() - 1; i >= 0 && mChunks.get(i).seq >= nextSeq; i--) {
+            dropLocked(mChunks.remove(i));
+        }
+        mNextSeq = nextSeq;
+        mRestored = true;
+    }
+
+    /** Drop all chunks. */
+    synchronized void clear() {
+        for (int i = mChunks.size() - 1; i >= 0; i--) {
+            dropLocked(mChunks.remove(i));
+        }
+        mRestored = true;
+    }
+
+    /**
+     * Read the chunk at the given index, from oldest to newest, into the given parcel and
+     * rewind it.
+     *
+     * @return false if the chunk could not be read.
+     */
+    synchronized boolean readChunk(int index, Parcel out) {
+        final Chunk chunk = mChunks.get(index);
+        if (chunk.data != null) {
+            out.unmarshall(chunk.data, 0, chunk.size);
+            out.setDataPosition(0);
+            return true;
+        }
+
+        if (mReadBuffer == null || mReadBuffer.length < chunk.size) {
+            mReadBuffer = new byte[chunk.size];
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(getFile(chunk.seq));
+            final FileChannel channel = in.getChannel();
+            if (channel.size() < chunk.size) {
+                Slog.w(TAG, "Chunk " + chunk.seq + " is truncated");
+                return false;
+            }
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    chunk.size);
+            map.get(mReadBuffer, 0, chunk.size);
+        } catch (IOException e) {
+            Slog.w(TAG, "Cannot read chunk " + chunk.seq, e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        out.unmarshall(mReadBuffer, 0, chunk.size);
+        out.setDataPosition(0);
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void dropLocked(Chunk chunk) {
+        mTotalSize -= chunk.size;
+        if (chunk.data == null) {
+            getFile(chunk.seq).delete();
+        }
+        // else it is still being written, and writeChunk() deletes it after
+        chunk.data = null;
+    }
+
+    private void writeChunk(Chunk chunk) {
+        final byte[] data;
+        synchronized (this) {
+            data = chunk.data;
+            if (data == null) {
+                // Dropped before it was written
+                return;
+            }
+        }
+
+        final File file = getFile(chunk.seq);
+        final File tmp = new File(mDir, chunk.seq + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data, 0, chunk.size);
+            FileUtils.sync(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            // Keep it on the heap, where it can still be read until the process dies.
+            Slog.w(TAG, "Cannot write chunk " + chunk.seq, e);
+            IoUtils.closeQuietly(out);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (chunk.data == null) {
+                // Dropped while it was being written
+                file.delete();
+            } else {
+                chunk.data = null;
+            }
+        }
+    }
+
+    private File getFile(int seq) {
+        return new File(mDir, seq + FILE_SUFFIX);
+    }
+}
@@ -54,6 +54,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A helper class for retrieving the power usage information for all applications and services.
@@ -66,6 +68,11 @@ public class BatteryStatsHelper {
 
     private static final String TAG = BatteryStatsHelper.class.getSimpleName();
 
+    /**
+     * Most apps that one task calculates in parallel mode before it splits its share.
+     */
+    private static final int APPS_PER_TASK = 32;
+
     private static BatteryStats sStatsXfer;
     private static Intent sBatteryBroadcastXfer;
     private static ArrayMap<File, BatteryStats> sFileXfer = new ArrayMap<>();
@@ -140,6 +147,39 @@ public class BatteryStatsHelper {
     boolean mHasWifiPowerReporting = false;
     boolean mHasBluetoothPowerReporting = false;
 
+    private boolean mParallelRefresh;
+
+    /**
+     * Apps of the last refresh in parallel mode by uid, as they were calculated.
+     */
+    private SparseArray<CachedApp> mCachedApps = new SparseArray<>();
+
+    /**
+     * An app that was calculated from the stats of a uid at some
+     * {@link Uid#getStatsGeneration generation}.
+     */
+    private static final class CachedApp {
+        final long mGeneration;
+        final double mMobilePowerPerPacket;
+        final BatterySipper mApp;
+
+        CachedApp(long generation, double mobilePowerPerPacket, BatterySipper app) {
+            mGeneration = generation;
+            mMobilePowerPerPacket = mobilePowerPerPacket;
+            mApp = app;
+        }
+
+        boolean isValid(long generation, double mobilePowerPerPacket) {
+            if (generation == -1 || generation != mGeneration) {
+                return false;
+            }
+            // Apps without mobile radio active time are charged by the packet, at a price
+            // that depends on all apps.
+            return mMobilePowerPerPacket == mobilePowerPerPacket || mApp.mobileActive > 0
+                    || mApp.mobileRxPackets + mApp.mobileTxPackets == 0;
+        }
+    }
+
     public static boolean checkWifiOnly(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -244,6 +284,18 @@ public class BatteryStatsHelper {
         return new File(context.getFilesDir(), fname);
     }
 
+    /**
+     * Sets whether {@link #refreshStats} calculates the power of the apps on the common
+     * fork/join pool, rather than on the calling thread.  In this mode, apps are also
+     * reused from the previous refresh if the stats of their uid did not change since.  The
+     * stats must not change during the refresh, which is the case for a snapshot such as
+     * {@link #getStats} loads, or for live stats while the caller holds their lock.
+     */
+    public void setParallelRefresh(boolean parallelRefresh) {
+        mParallelRefresh = parallelRefresh;
+        mCachedApps.clear();
+    }
+
     /** Clears the current stats and forces recreating for future use. */
     public void clearStats() {
         mStats = null;
@@ -269,6 +321,7 @@ public class BatteryStatsHelper {
 
     public void create(BatteryStats stats) {
         mPowerProfile = new PowerProfile(mContext);
+        mCachedApps.clear();
         mStats = stats;
     }
 
@@ -280,6 +333,7 @@ public class BatteryStatsHelper {
         mBatteryInfo = IBatteryStats.Stub.asInterface(
                 ServiceManager.getService(BatteryStats.SERVICE_NAME));
         mPowerProfile = new PowerProfile(mContext);
+        mCachedApps.clear();
     }
 
     public void storeState() {
@@ -393,6 +447,7 @@ public class BatteryStatsHelper {
                     new WifiPowerCalculator(mPowerProfile) :
                     new WifiPowerEstimator(mPowerProfile);
             mHasWifiPowerReporting = hasWifiPowerReporting;
+            mCachedApps.clear();
         }
         mWifiPowerCalculator.reset();
 
@@ -402,6 +457,7 @@ public class BatteryStatsHelper {
                 hasBluetoothPowerReporting != mHasBluetoothPowerReporting) {
             mBluetoothPowerCalculator = new BluetoothPowerCalculator(mPowerProfile);
             mHasBluetoothPowerReporting = hasBluetoothPowerReporting;
+            mCachedApps.clear();
         }
         mBluetoothPowerCalculator.reset();
 
@@ -421,6 +477,9 @@ public class BatteryStatsHelper {
         }
         mFlashlightPowerCalculator.reset();
 
+        if (statsType != mStatsType) {
+            mCachedApps.clear();
+        }
         mStatsType = statsType;
         mRawUptimeUs = rawUptimeUs;
         mRawRealtimeUs = rawRealtimeUs;
@@ -535,6 +594,121 @@ public class BatteryStatsHelper {
         }
     }
 
+    private BatterySipper calculateApp(Uid u) {
+        final BatterySipper app = new BatterySipper(DrainType.APP, u, 0);
+
+        mCpuPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
+        mWakelockPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
+        mMobileRadioPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
+                mStatsType);
+        mWifiPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
+        mBluetoothPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
+                mStatsType);
+        mSensorPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
+        mCameraPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
+        mFlashlightPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
+                mStatsType);
+
+        app.sumPower();
+        return app;
+    }
+
+    /**
+     * Returns a copy of an app as it was calculated, since the apps that are handed out
+     * are changed afterwards.
+     */
+    private static BatterySipper copyApp(BatterySipper app, Uid u) {
+        final BatterySipper copy = new BatterySipper(DrainType.APP, u, 0);
+        copy.add(app);
+        copy.packageWithHighestDrain = app.packageWithHighestDrain;
+        copy.sumPower();
+        return copy;
+    }
+
+    /**
+     * Fills {@code apps} with the apps of {@code uidStats} at the same indices, calculating
+     * those that are not cached on the common fork/join pool.
+     */
+    private void calculateAppsInParallel(SparseArray<? extends Uid> uidStats,
+            BatterySipper[] apps) {
+        final double mobilePowerPerPacket = mMobileRadioPowerCalculator.getMobilePowerPerPacket(
+                mRawRealtimeUs, mStatsType);
+        final int NU = uidStats.size();
+        final long[] generations = new long[NU];
+        final int[] changed = new int[NU];
+        final Uid[] changedUids = new Uid[NU];
+        int numChanged = 0;
+        for (int iu = 0; iu < NU; iu++) {
+            final Uid u = uidStats.valueAt(iu);
+            generations[iu] = u.getStatsGeneration();
+            final CachedApp cached = mCachedApps.get(u.getUid());
+            if (cached != null && cached.isValid(generations[iu], mobilePowerPerPacket)) {
+                apps[iu] = copyApp(cached.mApp, u);
+            } else {
+                changed[numChanged] = iu;
+                changedUids[numChanged++] = u;
+            }
+        }
+
+        if (numChanged > 0) {
+            ForkJoinPool.commonPool().invoke(
+                    new CalculateAppsTask(changedUids, apps, changed, 0, numChanged));
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Calculated " + numChanged + " of " + NU + " apps");
+        }
+
+        // Only keep the uids that still exist.
+        final SparseArray<CachedApp> cachedApps = new SparseArray<>(NU);
+        for (int iu = 0, ic = 0; iu < NU; iu++) {
+            final int uid = uidStats.keyAt(iu);
+            if (ic < numChanged && changed[ic] == iu) {
+                ic++;
+                if (generations[iu] != -1) {
+                    cachedApps.put(uid, new CachedApp(generations[iu], mobilePowerPerPacket,
+                            copyApp(apps[iu], uidStats.valueAt(iu))));
+                }
+            } else {
+                cachedApps.put(uid, mCachedApps.get(uid));
+            }
+        }
+        mCachedApps = cachedApps;
+    }
+
+    /**
+     * Calculates the apps of a range of {@code uids} into {@code apps} at the indices that
+     * {@code changed} holds for them, splitting the range into subtasks if it is large.
+     */
+    private final class CalculateAppsTask extends RecursiveAction {
+        private final Uid[] mUids;
+        private final BatterySipper[] mApps;
+        private final int[] mChanged;
+        private final int mStart;
+        private final int mEnd;
+
+        CalculateAppsTask(Uid[] uids, BatterySipper[] apps, int[] changed, int start,
+                int end) {
+            mUids = uids;
+            mApps = apps;
+            mChanged = changed;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > APPS_PER_TASK) {
+                final int mid = (mStart + mEnd) >>> 1;
+                invokeAll(new CalculateAppsTask(mUids, mApps, mChanged, mStart, mid),
+                        new CalculateAppsTask(mUids, mApps, mChanged, mid, mEnd));
+                return;
+            }
+            for (int i = mStart; i < mEnd; i++) {
+                mApps[mChanged[i]] = calculateApp(mUids[i]);
+            }
+        }
+    }
+
     private void processAppUsage(SparseArray<UserHandle> asUsers) {
         final boolean forAllUsers = (asUsers.get(UserHandle.USER_ALL) != null);
         mStatsPeriod = mTypeBatteryRealtimeUs;
@@ -542,23 +716,29 @@ public class BatteryStatsHelper {
         BatterySipper osSipper = null;
         final SparseArray<? extends Uid> uidStats = mStats.getUidStats();
         final int NU = uidStats.size();
+        final BatterySipper[] apps = new BatterySipper[NU];
+        if (mParallelRefresh) {
+            calculateAppsInParallel(uidStats, apps);
+        } else {
+            for (int iu = 0; iu < NU; iu++) {
+                apps[iu] = calculateApp(uidStats.valueAt(iu));
+            }
+        }
+
         for (int iu = 0; iu < NU; iu++) {
             final Uid u = uidStats.valueAt(iu);
-            final BatterySipper app = new BatterySipper(DrainType.APP, u, 0);
-
-            mCpuPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
-            mWakelockPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
-            mMobileRadioPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
-                    mStatsType);
-            mWifiPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
-            mBluetoothPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
-                    mStatsType);
-            mSensorPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
-            mCameraPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs, mStatsType);
-            mFlashlightPowerCalculator.calculateApp(app, u, mRawRealtimeUs, mRawUptimeUs,
-                    mStatsType);
-
-            final double totalPower = app.sumPower();
+            final BatterySipper app = apps[iu];
+
+            mCpuPowerCalculator.addApp(app);
+            mWakelockPowerCalculator.addApp(app);
+            mMobileRadioPowerCalculator.addApp(app);
+            mWifiPowerCalculator.addApp(app);
+            mBluetoothPowerCalculator.addApp(app);
+            mSensorPowerCalculator.addApp(app);
+            mCameraPowerCalculator.addApp(app);
+            mFlashlightPowerCalculator.addApp(app);
+
+            final double totalPower = app.totalPowerMah;
             if (DEBUG && totalPower != 0) {
                 Log.d(TAG, String.format("UID %d: total power=%s", u.getUid(),
                         makemAh(totalPower)));
@@ -119,7 +119,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 167 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 168 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -151,6 +151,20 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    // Size at which the history buffer is sealed into a chunk and spilled to disk, when
+    // there is a directory to spill to.  The history is then bounded by MAX_HISTORY_CHUNKS
+    // rather than by MAX_HISTORY_BUFFER.
+    static final int HISTORY_CHUNK_SIZE = 32*1024;  // 32KB
+    static final int MAX_HISTORY_CHUNKS = 128;  // 4MB
+
+    // Most history copied into parcels sent to other processes or checked in; older
+    // chunks are left out.
+    static final int MAX_PARCELED_HISTORY = MAX_MAX_HISTORY_BUFFER*2;
+
+    // History deltas refer to tags by 16-bit pool index, and the pool only empties when the
+    // history is cleared, so stop spilling before it can run out.
+    private static final int MAX_SPILLED_HISTORY_TAGS = 0x8000;
+
     // Number of transmit power states the Wifi controller can be in.
     private static final int NUM_WIFI_TX_LEVELS = 1;
 
@@ -296,6 +310,12 @@ public class BatteryStatsImpl extends BatteryStats {
      */
     final SparseArray<Uid> mUidStats = new SparseArray<>();
 
+    /**
+     * Last value handed out for {@link Uid#getStatsGeneration}.  Starts from the clock so that
+     * the generations of different instances do not collide.
+     */
+    long mLastStatsGeneration = SystemClock.elapsedRealtimeNanos();
+
     // A set of pools of currently active timers.  When a timer is queried, we will divide the
     // elapsed time by the number of active timers to arrive at that timer's share of the time.
     // In order to do this, we must refresh each timer whenever the number of active timers
@@ -341,6 +361,15 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryItems;
 
     final Parcel mHistoryBuffer = Parcel.obtain();
+    // Chunks of history sealed before mHistoryBuffer; null if all history stays on the heap
+    final BatteryHistoryChunkStore mHistoryStore;
+    final Parcel mHistoryChunkBuffer = Parcel.obtain();
+    final HistoryItem mHistoryChunkStart = new HistoryItem();
+    // Buffer being iterated, and the next sealed chunk to iterate after it, or -1 once
+    // iterating mHistoryBuffer
+    Parcel mHistoryReadBuffer;
+    int mHistoryReadChunk = -1;
+    boolean mHistoryReadAtStart;
     final HistoryItem mHistoryLastWritten = new HistoryItem();
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
@@ -698,6 +727,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mHistoryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -2118,6 +2148,9 @@ public class BatteryStatsImpl extends BatteryStats {
 
         public void startRunningLocked(long elapsedRealtimeMs) {
             if (mNesting++ == 0) {
+                if (mUid != null) {
+                    mUid.mRunningTimerCount++;
+                }
                 final long batteryRealtime = mTimeBase.getRealtime(elapsedRealtimeMs * 1000);
                 mUpdateTime = batteryRealtime;
                 if (mTimerPool != null) {
@@ -2152,6 +2185,11 @@ public class BatteryStatsImpl extends BatteryStats {
                 return;
             }
             if (--mNesting == 0) {
+                if (mUid != null) {
+                    mUid.mRunningTimerCount--;
+                    // The time it ran is now part of its total.
+                    mUid.noteStatsChangedLocked();
+                }
                 final long batteryRealtime = mTimeBase.getRealtime(elapsedRealtimeMs * 1000);
                 if (mTimerPool != null) {
                     // Accumulate time to all active counters, scaled by the total
@@ -2245,6 +2283,9 @@ public class BatteryStatsImpl extends BatteryStats {
         @Override
         public void readSummaryFromParcelLocked(Parcel in) {
             super.readSummaryFromParcelLocked(in);
+            if (mNesting > 0 && mUid != null) {
+                mUid.mRunningTimerCount--;
+            }
             mNesting = 0;
         }
 
@@ -3267,6 +3308,11 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
+        if (mHistoryStore != null && mHistoryBuffer.dataSize() >= HISTORY_CHUNK_SIZE
+                && mHistoryTagPool.size() < MAX_SPILLED_HISTORY_TAGS) {
+            sealHistoryChunkLocked(elapsedRealtimeMs, uptimeMs);
+        }
+
         final long timeDiff = (mHistoryBaseTime+elapsedRealtimeMs) - mHistoryLastWritten.time;
         final int diffStates = mHistoryLastWritten.states^(cur.states&mActiveHistoryStates);
         final int diffStates2 = mHistoryLastWritten.states2^(cur.states2&mActiveHistoryStates2);
@@ -3397,6 +3443,30 @@ public class BatteryStatsImpl extends BatteryStats {
         addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_UPDATE, cur);
     }
 
+    /**
+     * Spill the history buffer to {@link #mHistoryStore} and start it over.  The new buffer
+     * starts with the full current state rather than a delta, so that each chunk can be read
+     * without the ones before it.
+     */
+    private void sealHistoryChunkLocked(long elapsedRealtimeMs, long uptimeMs) {
+        if (mIteratingHistory) {
+            throw new IllegalStateException("Can't do this while iterating history!");
+        }
+        mHistoryStore.seal(mHistoryBuffer);
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferLastPos = -1;
+
+        mHistoryChunkStart.setTo(mHistoryLastWritten);
+        mHistoryChunkStart.wakelockTag = null;
+        mHistoryChunkStart.wakeReasonTag = null;
+        mHistoryChunkStart.eventCode = HistoryItem.EVENT_NONE;
+        mHistoryChunkStart.eventTag = null;
+        mHistoryChunkStart.currentTime = System.currentTimeMillis();
+        addHistoryBufferLocked(elapsedRealtimeMs, uptimeMs, HistoryItem.CMD_CURRENT_TIME,
+                mHistoryChunkStart);
+    }
+
     private void addHistoryBufferLocked(long elapsedRealtimeMs, long uptimeMs, byte cmd,
             HistoryItem cur) {
         if (mIteratingHistory) {
@@ -3554,7 +3624,11 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
-        mHistoryBuffer.setDataCapacity(MAX_HISTORY_BUFFER / 2);
+        mHistoryBuffer.setDataCapacity(mHistoryStore != null
+                ? HISTORY_CHUNK_SIZE : MAX_HISTORY_BUFFER / 2);
+        if (mHistoryStore != null) {
+            mHistoryStore.clear();
+        }
         mHistoryLastLastWritten.clear();
         mHistoryLastWritten.clear();
         mHistoryTagPool.clear();
@@ -5719,6 +5793,12 @@ public class BatteryStatsImpl extends BatteryStats {
         @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
         public final TimeBase mOnBatteryScreenOffBackgroundTimeBase;
 
+        /** Value for {@link #getStatsGeneration} while no timer of this uid is running */
+        long mStatsGeneration;
+
+        /** Number of this uid's {@link StopwatchTimer}s that are running */
+        int mRunningTimerCount;
+
         boolean mWifiRunning;
         StopwatchTimer mWifiRunningTimer;
 
@@ -5848,6 +5928,7 @@ public class BatteryStatsImpl extends BatteryStats {
         public Uid(BatteryStatsImpl bsi, int uid) {
             mBsi = bsi;
             mUid = uid;
+            noteStatsChangedLocked();
 
             mOnBatteryBackgroundTimeBase = new TimeBase();
             mOnBatteryBackgroundTimeBase.init(mBsi.mClocks.uptimeMillis() * 1000,
@@ -5971,6 +6052,19 @@ public class BatteryStatsImpl extends BatteryStats {
             return mUid;
         }
 
+        @Override
+        public long getStatsGeneration() {
+            // Running timers count up without being updated.
+            return mRunningTimerCount > 0 ? -1 : mStatsGeneration;
+        }
+
+        /**
+         * Change {@link #getStatsGeneration} because the stats of this uid may have changed.
+         */
+        void noteStatsChangedLocked() {
+            mStatsGeneration = ++mBsi.mLastStatsGeneration;
+        }
+
         @Override
         public void noteWifiRunningLocked(long elapsedRealtimeMs) {
             if (!mWifiRunning) {
@@ -6098,6 +6192,8 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateWifiControllerActivityLocked() {
+            // Callers get the counter to update it.
+            noteStatsChangedLocked();
             if (mWifiControllerActivity == null) {
                 mWifiControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         NUM_BT_TX_LEVELS);
@@ -6106,6 +6202,8 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateBluetoothControllerActivityLocked() {
+            // Callers get the counter to update it.
+            noteStatsChangedLocked();
             if (mBluetoothControllerActivity == null) {
                 mBluetoothControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         NUM_BT_TX_LEVELS);
@@ -6114,6 +6212,8 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateModemControllerActivityLocked() {
+            // Callers get the counter to update it.
+            noteStatsChangedLocked();
             if (mModemControllerActivity == null) {
                 mModemControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         ModemActivityInfo.TX_POWER_LEVELS);
@@ -6714,6 +6814,8 @@ public class BatteryStatsImpl extends BatteryStats {
         public boolean reset(long uptime, long realtime) {
             boolean active = false;
 
+            noteStatsChangedLocked();
+
             mOnBatteryBackgroundTimeBase.init(uptime, realtime);
             mOnBatteryScreenOffBackgroundTimeBase.init(uptime, realtime);
 
@@ -7037,6 +7139,9 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         void writeToParcelLocked(Parcel out, long uptimeUs, long elapsedRealtimeUs) {
+            // Running timers are written as they are now, so a later copy may differ without
+            // the generation changing.
+            out.writeLong(getStatsGeneration());
             mOnBatteryBackgroundTimeBase.writeToParcel(out, uptimeUs, elapsedRealtimeUs);
             mOnBatteryScreenOffBackgroundTimeBase.writeToParcel(out, uptimeUs, elapsedRealtimeUs);
 
@@ -7309,6 +7414,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         void readFromParcelLocked(TimeBase timeBase, TimeBase screenOffTimeBase, Parcel in) {
+            mStatsGeneration = in.readLong();
             mOnBatteryBackgroundTimeBase.readFromParcel(in);
             mOnBatteryScreenOffBackgroundTimeBase.readFromParcel(in);
 
@@ -7358,7 +7464,7 @@ public class BatteryStatsImpl extends BatteryStats {
             mProcessStats.clear();
             for (int k = 0; k < numProcs; k++) {
                 String processName = in.readString();
-                Proc proc = new Proc(mBsi, processName);
+                Proc proc = new Proc(mBsi, this, processName);
                 proc.readFromParcelLocked(in);
                 mProcessStats.put(processName, proc);
             }
@@ -7804,6 +7910,11 @@ public class BatteryStatsImpl extends BatteryStats {
              */
             protected BatteryStatsImpl mBsi;
 
+            /**
+             * The uid this process belongs to, if known.
+             */
+            final Uid mUid;
+
             /**
              * The name of this process.
              */
@@ -7907,7 +8018,12 @@ public class BatteryStatsImpl extends BatteryStats {
             ArrayList<ExcessivePower> mExcessivePower;
 
             public Proc(BatteryStatsImpl bsi, String name) {
+                this(bsi, null, name);
+            }
+
+            public Proc(BatteryStatsImpl bsi, Uid uid, String name) {
                 mBsi = bsi;
+                mUid = uid;
                 mName = name;
                 mBsi.mOnBatteryTimeBase.add(this);
             }
@@ -8036,10 +8152,22 @@ public class BatteryStatsImpl extends BatteryStats {
             public void addCpuTimeLocked(int utime, int stime) {
                 mUserTime += utime;
                 mSystemTime += stime;
+                noteStatsChangedLocked();
             }
 
             public void addForegroundTimeLocked(long ttime) {
                 mForegroundTime += ttime;
+                noteStatsChangedLocked();
+            }
+
+            /**
+             * Callers such as the activity manager keep the Proc and update it directly, rather
+             * than through {@link BatteryStatsImpl#getUidStatsLocked}.
+             */
+            private void noteStatsChangedLocked() {
+                if (mUid != null) {
+                    mUid.noteStatsChangedLocked();
+                }
             }
 
             public void incStartsLocked() {
@@ -8484,7 +8612,7 @@ public class BatteryStatsImpl extends BatteryStats {
         public Proc getProcessStatsLocked(String name) {
             Proc ps = mProcessStats.get(name);
             if (ps == null) {
-                ps = new Proc(mBsi, name);
+                ps = new Proc(mBsi, this, name);
                 mProcessStats.put(name, ps);
             }
 
@@ -8555,6 +8683,8 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public boolean updateOnBatteryBgTimeBase(long uptimeUs, long realtimeUs) {
+            // Stats since unplugged start over
+            noteStatsChangedLocked();
             boolean on = mBsi.mOnBatteryTimeBase.isRunning() && isInBackground();
             return mOnBatteryBackgroundTimeBase.setRunning(on, uptimeUs, realtimeUs);
         }
@@ -8911,6 +9041,11 @@ public class BatteryStatsImpl extends BatteryStats {
         mCurrentBatteryLevel = 0;
         initDischarge();
         clearHistoryLocked();
+        // Only after clearing, which would drop the chunks readLocked() is about to restore
+        mHistoryStore = systemDir != null
+                ? new BatteryHistoryChunkStore(new File(systemDir, "battery-history"),
+                        MAX_HISTORY_CHUNKS)
+                : null;
         updateDailyDeadlineLocked();
         mPlatformIdleStateCallback = cb;
         mUserInfoProvider = userInfoProvider;
@@ -8923,6 +9058,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mHistoryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -9343,21 +9479,27 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public int getHistoryTotalSize() {
-        return MAX_HISTORY_BUFFER;
+        return mHistoryStore != null ? HISTORY_CHUNK_SIZE * MAX_HISTORY_CHUNKS
+                : MAX_HISTORY_BUFFER;
     }
 
     public int getHistoryUsedSize() {
-        return mHistoryBuffer.dataSize();
+        return mHistoryBuffer.dataSize()
+                + (mHistoryStore != null ? mHistoryStore.getTotalSize() : 0);
     }
 
     @Override
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        if (getHistoryUsedSize() <= 0) {
             return false;
         }
-        mHistoryBuffer.setDataPosition(0);
+        mHistoryReadChunk = 0;
+        if (!nextHistoryReadBufferLocked()) {
+            return false;
+        }
+        mHistoryReadAtStart = true;
         mReadOverflow = false;
         mIteratingHistory = true;
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
@@ -9395,20 +9537,45 @@ public class BatteryStatsImpl extends BatteryStats {
         return mReadHistoryUids[index];
     }
 
+    /**
+     * Move on to the next buffer to iterate: the sealed chunks from oldest to newest, then
+     * {@link #mHistoryBuffer}.  Chunks that cannot be read are skipped; as each chunk starts
+     * with the full state, the ones after it still read fine.
+     *
+     * @return false if there are no more.
+     */
+    private boolean nextHistoryReadBufferLocked() {
+        if (mHistoryReadChunk < 0) {
+            return false;
+        }
+        final int numChunks = mHistoryStore != null ? mHistoryStore.getChunkCount() : 0;
+        while (mHistoryReadChunk < numChunks) {
+            if (mHistoryStore.readChunk(mHistoryReadChunk++, mHistoryChunkBuffer)) {
+                mHistoryReadBuffer = mHistoryChunkBuffer;
+                return true;
+            }
+        }
+        mHistoryReadChunk = -1;
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryReadBuffer = mHistoryBuffer;
+        return true;
+    }
+
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
-        if (pos == 0) {
+        if (mHistoryReadAtStart) {
+            mHistoryReadAtStart = false;
             out.clear();
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
-        if (end) {
-            return false;
+        while (mHistoryReadBuffer.dataPosition() >= mHistoryReadBuffer.dataSize()) {
+            if (!nextHistoryReadBufferLocked()) {
+                return false;
+            }
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(mHistoryReadBuffer, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -9420,6 +9587,9 @@ public class BatteryStatsImpl extends BatteryStats {
     public void finishIteratingHistoryLocked() {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
+        mHistoryChunkBuffer.setDataSize(0);
+        mHistoryReadBuffer = null;
+        mHistoryReadChunk = -1;
         mReadHistoryStrings = null;
     }
 
@@ -10597,6 +10767,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
                     timer.mUid.mUserCpuTime.addCountLocked(userTimeUs);
                     timer.mUid.mSystemCpuTime.addCountLocked(systemTimeUs);
+                    timer.mUid.noteStatsChangedLocked();
                     final int uid = timer.mUid.getUid();
                     updatedUids.put(uid, updatedUids.get(uid, 0) + userTimeUs + systemTimeUs);
 
@@ -10772,6 +10943,9 @@ public class BatteryStatsImpl extends BatteryStats {
             // we have gone through a significant charge (from a very low
             // level to a now very high level).
             boolean reset = false;
+            // Only the in-heap buffer counts towards the history being full: it reaches
+            // MAX_HISTORY_BUFFER once recording is cut back to overflow mode, whereas chunks
+            // spilled to disk just age out.
             if (!mNoAutoReset && (oldStatus == BatteryManager.BATTERY_STATUS_FULL
                     || level >= 90
                     || (mDischargeCurrentLevel < 20 && level >= 80)
@@ -11428,6 +11602,9 @@ public class BatteryStatsImpl extends BatteryStats {
         if (u == null) {
             u = new Uid(this, uid);
             mUidStats.put(uid, u);
+        } else {
+            // Callers get the uid to update it.
+            u.noteStatsChangedLocked();
         }
         return u;
     }
@@ -11516,7 +11693,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryToParcel(out, true, true);
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
@@ -11591,6 +11768,11 @@ public class BatteryStatsImpl extends BatteryStats {
         } catch(Exception e) {
             Slog.e("BatteryStats", "Error reading battery statistics", e);
             resetAllStatsLocked();
+        } finally {
+            if (mHistoryStore != null && !mHistoryStore.isRestored()) {
+                // No checkpoint to go with the sealed history on disk
+                mHistoryStore.clear();
+            }
         }
 
         mEndPlatformVersion = Build.ID;
@@ -11641,6 +11823,16 @@ public class BatteryStatsImpl extends BatteryStats {
             mNumHistoryTagChars += tag.string.length() + 1;
         }
 
+        // Whether the parcel is a checkpoint that goes with the sealed chunks on disk
+        final int nextChunkSeq = in.readInt();
+        if (mHistoryStore != null) {
+            if (nextChunkSeq >= 0) {
+                mHistoryStore.truncate(nextChunkSeq);
+            } else {
+                mHistoryStore.clear();
+            }
+        }
+
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
         if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
@@ -11700,7 +11892,12 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
-    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+    /**
+     * @param checkpoint if the parcel is only read back together with {@link #mHistoryStore},
+     *                   so that it only needs the history not sealed yet.  Otherwise it gets
+     *                   as much of the sealed history as {@link #MAX_PARCELED_HISTORY} allows.
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory, boolean checkpoint) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -11712,6 +11909,7 @@ public class BatteryStatsImpl extends BatteryStats {
         out.writeLong(mHistoryBaseTime + mLastHistoryElapsedRealtime);
         if (!inclData) {
             out.writeInt(0);
+            out.writeInt(-1);
             out.writeInt(0);
             return;
         }
@@ -11722,16 +11920,63 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
-        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
-        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        if (checkpoint && mHistoryStore != null) {
+            // The sealed chunks are on disk already; only note which.
+            out.writeInt(mHistoryStore.getNextSeq());
+            out.writeInt(mHistoryBuffer.dataSize());
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+            out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        } else {
+            out.writeInt(-1);
+            writeSealedAndActiveHistory(out);
+        }
 
         if (andOldHistory) {
             writeOldHistory(out);
         }
     }
 
+    /**
+     * Write the newest sealed chunks that fit in {@link #MAX_PARCELED_HISTORY}, followed by
+     * the history buffer, as one buffer.  It reads like the history buffer alone would, as
+     * each chunk starts with the full state.
+     */
+    private void writeSealedAndActiveHistory(Parcel out) {
+        final int numChunks = mHistoryStore != null ? mHistoryStore.getChunkCount() : 0;
+        int firstChunk = numChunks;
+        int size = mHistoryBuffer.dataSize();
+        while (firstChunk > 0
+                && size + mHistoryStore.getChunkSize(firstChunk - 1) <= MAX_PARCELED_HISTORY) {
+            firstChunk--;
+            size += mHistoryStore.getChunkSize(firstChunk);
+        }
+
+        // Written again below, as some chunks may turn out to be unreadable
+        final int sizePos = out.dataPosition();
+        out.writeInt(size);
+        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                + size + " bytes at " + out.dataPosition());
+        size = 0;
+        if (firstChunk < numChunks) {
+            final Parcel chunk = Parcel.obtain();
+            for (int i = firstChunk; i < numChunks; i++) {
+                if (mHistoryStore.readChunk(i, chunk)) {
+                    out.appendFrom(chunk, 0, chunk.dataSize());
+                    size += chunk.dataSize();
+                }
+            }
+            chunk.recycle();
+        }
+        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        size += mHistoryBuffer.dataSize();
+
+        final int endPos = out.dataPosition();
+        out.setDataPosition(sizePos);
+        out.writeInt(size);
+        out.setDataPosition(endPos);
+    }
+
     void writeOldHistory(Parcel out) {
         if (!USE_OLD_HISTORY) {
             return;
@@ -12167,6 +12412,14 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, false);
+    }
+
+    /**
+     * @param checkpoint if the summary is only read back by this instance's
+     *                   {@link #readLocked}, which also has the sealed history on disk.
+     */
+    private void writeSummaryToParcel(Parcel out, boolean inclHistory, boolean checkpoint) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -12178,7 +12431,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, true, checkpoint);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -12860,7 +13113,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(MAGIC);
 
-        writeHistory(out, true, false);
+        writeHistory(out, true, false, false);
 
         out.writeInt(mStartCount);
         out.writeLong(startClockTime);
@@ -58,9 +58,12 @@ public class BluetoothPowerCalculator extends PowerCalculator {
         app.bluetoothRunningTimeMs = totalTimeMs;
         app.btRxBytes = u.getNetworkActivityBytes(BatteryStats.NETWORK_BT_RX_DATA, statsType);
         app.btTxBytes = u.getNetworkActivityBytes(BatteryStats.NETWORK_BT_TX_DATA, statsType);
+    }
 
-        mAppTotalPowerMah += powerMah;
-        mAppTotalTimeMs += totalTimeMs;
+    @Override
+    public void addApp(BatterySipper app) {
+        mAppTotalPowerMah += app.bluetoothPowerMah;
+        mAppTotalTimeMs += app.bluetoothRunningTimeMs;
     }
 
     @Override
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.TimingsTraceLog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads and initializes the classes that the zygote preloads, on one or more threads.
+ *
+ * <p>With a single thread, the classes are initialized in the order of the list.  With more,
+ * all classes are first loaded without being initialized, which is safe in any order.  They
+ * are then partitioned into groups, each of which one thread initializes in the order of the
+ * list: a class is in the same group as the classes of the list that it is nested in, extends
+ * or implements, because initializing it initializes its supertypes, and because static
+ * initializers of nested and outer classes tend to refer to each other.  The groups are
+ * initialized concurrently, so their static initializers must not wait for each other.
+ *
+ * <p>The time it took to initialize each class can be written to a profile.  For the same
+ * build, a later preloader that reads the profile starts the groups that took the longest
+ * first, so that the threads finish together, and skips the classes that were not found.
+ *
+ * @hide
+ */
+final class ClassPreloader {
+    private static final String TAG = "ClassPreloader";
+
+    /** Cost of a class that was not found. */
+    private static final long NOT_FOUND = -1;
+
+    private static final String PROFILE_HEADER = "# preloaded class init time in us for ";
+
+    private final String[] mClassNames;
+    private final int mNumThreads;
+
+    /** Time it took to initialize each class, or {@link #NOT_FOUND}. */
+    private final long[] mCostsUs;
+
+    /** Time it took to initialize each class according to the profile. */
+    private final long[] mExpectedCostsUs;
+
+    /** Classes loaded before they are initialized on more than one thread. */
+    private Class<?>[] mClasses;
+
+    /** Groups of indices into {@link #mClassNames}, in the order they are initialized. */
+    private int[][] mGroups;
+
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /** The first error that a thread could not handle. */
+    private volatile Throwable mError;
+
+    ClassPreloader(String[] classNames, int numThreads) {
+        mClassNames = classNames;
+        mNumThreads = Math.max(1, numThreads);
+        mCostsUs = new long[classNames.length];
+        mExpectedCostsUs = new long[classNames.length];
+    }
+
+    /**
+     * Reads the names of the classes to preload, one per line, skipping comments and blank
+     * lines.
+     */
+    static String[] readClassList(InputStream is) throws IOException {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(is), 8192);
+        final ArrayList<String> classNames = new ArrayList<>();
+        String line;
+        while ((line = br.readLine()) != null) {
+            // Skip comments and blank lines.
+            line = line.trim();
+            if (line.startsWith("#") || line.equals("")) {
+                continue;
+            }
+            classNames.add(line);
+        }
+        return classNames.toArray(new String[classNames.size()]);
+    }
+
+    /**
+     * Reads a profile written by {@link #writeProfile}.  Does nothing if there is no profile,
+     * or if it is for another build.
+     */
+    void readProfile(File file) {
+        final InputStream is;
+        try {
+            is = new AtomicFile(file).openRead();
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            final BufferedReader br = new BufferedReader(
+                    new InputStreamReader(is, StandardCharsets.UTF_8), 8192);
+            if (!(PROFILE_HEADER + Build.FINGERPRINT).equals(br.readLine())) {
+                Log.i(TAG, "Ignoring profile " + file + " of another build");
+                return;
+            }
+            final HashMap<String, Integer> indices = new HashMap<>(mClassNames.length * 2);
+            for (int i = 0; i < mClassNames.length; i++) {
+                indices.put(mClassNames[i], i);
+            }
+            int skipped = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                final Integer i = space > 0 ? indices.get(line.substring(0, space)) : null;
+                if (i == null) {
+                    continue;
+                }
+                final long costUs = Long.parseLong(line.substring(space + 1));
+                if (costUs == NOT_FOUND) {
+                    mCostsUs[i] = NOT_FOUND;
+                    skipped++;
+                } else {
+                    mExpectedCostsUs[i] = costUs;
+                }
+            }
+            if (skipped > 0) {
+                Log.i(TAG, "Skipping " + skipped + " classes not found before");
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Error reading profile " + file, e);
+            Arrays.fill(mCostsUs, 0);
+            Arrays.fill(mExpectedCostsUs, 0);
+        } finally {
+            IoUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Writes the time it took to initialize each class to a profile for this build, most
+     * expensive first, so that it can also be used to reorder or prune the list.
+     */
+    void writeProfile(File file) {
+        final Integer[] order = new Integer[mClassNames.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mCostsUs[b], mCostsUs[a]));
+
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final BufferedWriter out = new BufferedWriter(
+                    new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            out.write(PROFILE_HEADER);
+            out.write(Build.FINGERPRINT);
+            out.newLine();
+            for (int i : order) {
+                out.write(mClassNames[i]);
+                out.write(' ');
+                out.write(Long.toString(mCostsUs[i]));
+                out.newLine();
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing profile " + file, e);
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    /**
+     * Loads and initializes the classes, tracing each phase to {@code log}.
+     *
+     * @return the number of classes that were initialized.
+     */
+    int preload(TimingsTraceLog log) {
+        if (mNumThreads == 1) {
+            log.traceBegin("InitPreloadedClasses");
+            for (int i = 0; i < mClassNames.length; i++) {
+                initClass(i);
+            }
+            log.traceEnd(); // InitPreloadedClasses
+            return mCount.get();
+        }
+
+        log.traceBegin("LoadPreloadedClasses");
+        mClasses = new Class<?>[mClassNames.length];
+        mNext.set(0);
+        runOnThreads(this::loadClasses);
+        log.traceEnd(); // LoadPreloadedClasses
+
+        log.traceBegin("GroupPreloadedClasses");
+        mGroups = makeGroups();
+        mClasses = null;
+        log.traceEnd(); // GroupPreloadedClasses
+
+        log.traceBegin("InitPreloadedClasses");
+        mNext.set(0);
+        runOnThreads(this::initGroups);
+        mGroups = null;
+        log.traceEnd(); // InitPreloadedClasses
+        return mCount.get();
+    }
+
+    /**
+     * Runs {@code work} on the calling thread and {@code mNumThreads - 1} new ones, which have
+     * all exited when this returns, since the zygote must not fork with other threads running.
+     */
+    private void runOnThreads(Runnable work) {
+        final Runnable catchingWork = () -> {
+            try {
+                work.run();
+            } catch (Throwable t) {
+                if (mError == null) {
+                    mError = t;
+                }
+            }
+        };
+        final Thread[] threads = new Thread[mNumThreads - 1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(catchingWork, TAG + "-" + i);
+            threads[i].start();
+        }
+        catchingWork.run();
+        for (Thread thread : threads) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Throwable t = mError;
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+    }
+
+    private void loadClasses() {
+        int i;
+        while (mError == null && (i = mNext.getAndIncrement()) < mClassNames.length) {
+            if (mCostsUs[i] == NOT_FOUND) {
+                continue;
+            }
+            try {
+                mClasses[i] = Class.forName(mClassNames[i], false, null);
+            } catch (ClassNotFoundException e) {
+                Log.w(TAG, "Class not found for preloading: " + mClassNames[i]);
+                mCostsUs[i] = NOT_FOUND;
+            } catch (LinkageError e) {
+                // Reported when the class is initialized.
+            }
+        }
+    }
+
+    private void initGroups() {
+        int g;
+        while (mError == null && (g = mNext.getAndIncrement()) < mGroups.length) {
+            for (int i : mGroups[g]) {
+                initClass(i);
+            }
+        }
+    }
+
+    /**
+     * Initializes a class, handling errors like the zygote always has: a class that is not
+     * found or that cannot link its native methods is skipped, anything else is fatal.
+     */
+    private void initClass(int i) {
+        if (mCostsUs[i] == NOT_FOUND) {
+            return;
+        }
+        final String className = mClassNames[i];
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, className);
+        try {
+            final long startTime = System.nanoTime();
+            // Load and explicitly initialize the given class. Use
+            // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
+            // (to derive the caller's class-loader). Use true to force initialization, and
+            // null for the boot classpath class-loader (could as well cache the
+            // class-loader of this class in a variable).
+            Class.forName(className, true, null);
+            mCostsUs[i] = (System.nanoTime() - startTime) / 1000;
+            mCount.incrementAndGet();
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, "Class not found for preloading: " + className);
+            mCostsUs[i] = NOT_FOUND;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Problem preloading " + className + ": " + e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Error preloading " + className + ".", t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new RuntimeException(t);
+        }
+        Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+    }
+
+    /**
+     * Partitions the loaded classes into groups as described for this class, ordered by the
+     * time they took according to the profile.
+     */
+    private int[][] makeGroups() {
+        final int n = mClassNames.length;
+        final HashMap<String, Integer> indices = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            indices.put(mClassNames[i], i);
+        }
+
+        final int[] parents = new int[n];
+        for (int i = 0; i < n; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            final int dollar = mClassNames[i].indexOf('$');
+            if (dollar > 0) {
+                union(parents, i, indices.get(mClassNames[i].substring(0, dollar)));
+            }
+            if (mClasses[i] != null) {
+                unionSupertypes(parents, indices, i, mClasses[i]);
+            }
+        }
+
+        // Collect the members of each group in the order of the list.
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (mCostsUs[i] != NOT_FOUND) {
+                sizes[find(parents, i)]++;
+            }
+        }
+        final ArrayList<int[]> groups = new ArrayList<>();
+        final int[][] groupOfRoot = new int[n][];
+        final long[] groupCostsUs = new long[n];
+        final int[] filled = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (mCostsUs[i] == NOT_FOUND) {
+                continue;
+            }
+            final int root = find(parents, i);
+            if (groupOfRoot[root] == null) {
+                groupOfRoot[root] = new int[sizes[root]];
+                groups.add(groupOfRoot[root]);
+            }
+            groupOfRoot[root][filled[root]++] = i;
+            groupCostsUs[root] += mExpectedCostsUs[i];
+        }
+
+        // Longest first, and otherwise in the order of the list.
+        final int[][] sorted = groups.toArray(new int[groups.size()][]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(groupCostsUs[find(parents, b[0])],
+                groupCostsUs[find(parents, a[0])]));
+        Log.i(TAG, "Initializing " + sorted.length + " groups of classes on " + mNumThreads
+                + " threads");
+        return sorted;
+    }
+
+    private void unionSupertypes(int[] parents, HashMap<String, Integer> indices, int i,
+            Class<?> c) {
+        for (; c != null; c = c.getSuperclass()) {
+            if (c != mClasses[i]) {
+                union(parents, i, indices.get(c.getName()));
+            }
+            for (Class<?> iface : c.getInterfaces()) {
+                union(parents, i, indices.get(iface.getName()));
+                unionSupertypes(parents, indices, i, iface);
+            }
+        }
+    }
+
+    private static void union(int[] parents, int i, Integer j) {
+        if (j != null) {
+            parents[find(parents, i)] = find(parents, j);
+        }
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+}
@@ -18,14 +18,17 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.os.SystemClock;
+import android.util.LongArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.TimeUtils;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ProcFileReader;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import libcore.io.IoUtils;
+
+import java.io.FileInputStream;
 import java.io.IOException;
 
 /**
@@ -40,14 +43,24 @@ import java.io.IOException;
  * The file contains a monotonically increasing count of time for a single boot. This class
  * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
  * delta.
+ *
+ * The file is kept open and parsed in place between calls, so that once every UID has been
+ * seen a call to {@link #readDelta} does not allocate.
  */
 public class KernelUidCpuFreqTimeReader {
     private static final boolean DEBUG = false;
     private static final String TAG = "KernelUidCpuFreqTimeReader";
     private static final String UID_TIMES_PROC_FILE = "/proc/uid_time_in_state";
+    private static final int READ_BUFFER_SIZE = 8192;
 
     public interface Callback {
         void onCpuFreqs(long[] cpuFreqs);
+
+        /**
+         * @param uid UID of the app
+         * @param cpuFreqTimeMs time spent at each cpu frequency since the last read. The array
+         *                      is reused for the next UID, so it must be copied to be kept.
+         */
         void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs);
     }
 
@@ -58,6 +71,13 @@ public class KernelUidCpuFreqTimeReader {
 
     private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
 
+    /** Reader left open by the last read, if it succeeded */
+    private ProcFileReader mProcReader;
+    /** Times of the UID being read, reused for each UID */
+    private long[] mCurUidTimeMs;
+    /** Delta of the UID being read, reused for each UID */
+    private long[] mDeltaUidTimeMs;
+
     // We check the existence of proc file a few times (just in case it is not ready yet when we
     // start reading) and if it is not available, we simply ignore further read requests.
     private static final int TOTAL_READ_ERROR_COUNT = 5;
@@ -68,14 +88,23 @@ public class KernelUidCpuFreqTimeReader {
         if (!mProcFileAvailable && mReadErrorCounter >= TOTAL_READ_ERROR_COUNT) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(UID_TIMES_PROC_FILE))) {
+        ProcFileReader reader = null;
+        try {
+            reader = rewindOrOpen(mProcReader);
+            mProcReader = null;
             mNowTimeMs = SystemClock.elapsedRealtime();
             readDelta(reader, callback);
             mLastTimeReadMs = mNowTimeMs;
             mProcFileAvailable = true;
+
+            // keep reader for the next read only after a clean parse
+            mProcReader = reader;
+            reader = null;
         } catch (IOException e) {
             mReadErrorCounter++;
             Slog.e(TAG, "Failed to read " + UID_TIMES_PROC_FILE + ": " + e);
+        } finally {
+            IoUtils.closeQuietly(reader);
         }
     }
 
@@ -95,38 +124,45 @@ public class KernelUidCpuFreqTimeReader {
     }
 
     @VisibleForTesting
-    public void readDelta(BufferedReader reader, @Nullable Callback callback) throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+    public void readDelta(ProcFileReader reader, @Nullable Callback callback) throws IOException {
+        if (!reader.hasMoreData()) {
             return;
         }
-        readCpuFreqs(line, callback);
-        while ((line = reader.readLine()) != null) {
-            final int index = line.indexOf(' ');
-            final int uid = Integer.parseInt(line.substring(0, index - 1), 10);
-            readTimesForUid(uid, line.substring(index + 1, line.length()), callback);
+        readCpuFreqs(reader, callback);
+        while (reader.hasMoreData()) {
+            final int uid = reader.nextIntWithSuffix(':');
+            readTimesForUid(uid, reader, callback);
         }
     }
 
-    private void readTimesForUid(int uid, String line, Callback callback) {
+    private void readTimesForUid(int uid, ProcFileReader reader, Callback callback)
+            throws IOException {
+        final long[] curUidTimeMs = mCurUidTimeMs;
+        int size = 0;
+        while (reader.hasMoreTokens()) {
+            final long timeTicks = reader.nextLong();
+            if (size < mCpuFreqsCount) {
+                // Times read will be in units of 10ms
+                curUidTimeMs[size] = timeTicks * 10;
+            }
+            size++;
+        }
+        reader.finishLine();
+        if (size != mCpuFreqsCount) {
+            Slog.e(TAG, "No. of readings don't match cpu freqs, readings: " + size
+                    + " cpuFreqsCount: " + mCpuFreqsCount);
+            return;
+        }
+
         long[] uidTimeMs = mLastUidCpuFreqTimeMs.get(uid);
         if (uidTimeMs == null) {
             uidTimeMs = new long[mCpuFreqsCount];
             mLastUidCpuFreqTimeMs.put(uid, uidTimeMs);
         }
-        final String[] timesStr = line.split(" ");
-        final int size = timesStr.length;
-        if (size != uidTimeMs.length) {
-            Slog.e(TAG, "No. of readings don't match cpu freqs, readings: " + size
-                    + " cpuFreqsCount: " + uidTimeMs.length);
-            return;
-        }
-        final long[] deltaUidTimeMs = new long[size];
-        final long[] curUidTimeMs = new long[size];
+        final long[] deltaUidTimeMs = mDeltaUidTimeMs;
         boolean notify = false;
         for (int i = 0; i < size; ++i) {
-            // Times read will be in units of 10ms
-            final long totalTimeMs = Long.parseLong(timesStr[i], 10) * 10;
+            final long totalTimeMs = curUidTimeMs[i];
             deltaUidTimeMs[i] = totalTimeMs - uidTimeMs[i];
             // If there is malformed data for any uid, then we just log about it and ignore
             // the data for that uid.
@@ -145,7 +181,6 @@ public class KernelUidCpuFreqTimeReader {
                 }
                 return;
             }
-            curUidTimeMs[i] = totalTimeMs;
             notify = notify || (deltaUidTimeMs[i] > 0);
         }
         if (notify) {
@@ -156,18 +191,45 @@ public class KernelUidCpuFreqTimeReader {
         }
     }
 
-    private void readCpuFreqs(String line, Callback callback) {
+    private void readCpuFreqs(ProcFileReader reader, Callback callback) throws IOException {
         if (mCpuFreqs == null) {
-            final String[] freqStr = line.split(" ");
             // First item would be "uid:" which needs to be ignored
-            mCpuFreqsCount = freqStr.length - 1;
-            mCpuFreqs = new long[mCpuFreqsCount];
-            for (int i = 0; i < mCpuFreqsCount; ++i) {
-                mCpuFreqs[i] = Long.parseLong(freqStr[i + 1], 10);
+            reader.nextToken();
+            final LongArray cpuFreqs = new LongArray();
+            while (reader.hasMoreTokens()) {
+                cpuFreqs.add(reader.nextLong());
             }
+            mCpuFreqs = cpuFreqs.toArray();
+            mCpuFreqsCount = mCpuFreqs.length;
+            mCurUidTimeMs = new long[mCpuFreqsCount];
+            mDeltaUidTimeMs = new long[mCpuFreqsCount];
         }
+        reader.finishLine();
         if (callback != null) {
             callback.onCpuFreqs(mCpuFreqs);
         }
     }
+
+    /**
+     * Return a reader positioned at the start of {@link #UID_TIMES_PROC_FILE}, rewinding the
+     * reader left open by the last read when there is one.
+     */
+    private static ProcFileReader rewindOrOpen(ProcFileReader reader) throws IOException {
+        if (reader != null) {
+            try {
+                reader.rewind();
+                return reader;
+            } catch (IOException e) {
+                // fall through to reopen
+                IoUtils.closeQuietly(reader);
+            }
+        }
+        final FileInputStream stream = new FileInputStream(UID_TIMES_PROC_FILE);
+        try {
+            return new ProcFileReader(stream.getChannel(), READ_BUFFER_SIZE);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(stream);
+            throw e;
+        }
+    }
 }
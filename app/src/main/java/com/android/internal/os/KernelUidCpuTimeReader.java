@@ -17,13 +17,16 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ProcFileReader;
+
+import libcore.io.IoUtils;
+
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 
@@ -36,11 +39,15 @@ import java.io.IOException;
  * The file contains a monotonically increasing count of time for a single boot. This class
  * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
  * delta.
+ *
+ * The file is kept open and parsed in place between calls, so that once every UID has been
+ * seen a call to {@link #readDelta} does not allocate.
  */
 public class KernelUidCpuTimeReader {
     private static final String TAG = "KernelUidCpuTimeReader";
     private static final String sProcFile = "/proc/uid_cputime/show_uid_stat";
     private static final String sRemoveUidProcFile = "/proc/uid_cputime/remove_uid_range";
+    private static final int READ_BUFFER_SIZE = 4096;
 
     /**
      * Callback interface for processing each line of the proc file.
@@ -58,6 +65,9 @@ public class KernelUidCpuTimeReader {
     private SparseLongArray mLastSystemTimeUs = new SparseLongArray();
     private long mLastTimeReadUs = 0;
 
+    /** Reader left open by the last read, if it succeeded */
+    private ProcFileReader mProcReader;
+
     /**
      * Reads the proc file, calling into the callback with a delta of time for each UID.
      * @param callback The callback to invoke for each line of the proc file. If null,
@@ -65,64 +75,85 @@ public class KernelUidCpuTimeReader {
      *                 a fresh delta.
      */
     public void readDelta(@Nullable Callback callback) {
-        long nowUs = SystemClock.elapsedRealtime() * 1000;
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
-
-                // Only report if there is a callback and if this is not the first read.
-                if (callback != null && mLastTimeReadUs != 0) {
-                    long userTimeDeltaUs = userTimeUs;
-                    long systemTimeDeltaUs = systemTimeUs;
-                    int index = mLastUserTimeUs.indexOfKey(uid);
-                    if (index >= 0) {
-                        userTimeDeltaUs -= mLastUserTimeUs.valueAt(index);
-                        systemTimeDeltaUs -= mLastSystemTimeUs.valueAt(index);
-
-                        final long timeDiffUs = nowUs - mLastTimeReadUs;
-                        if (userTimeDeltaUs < 0 || systemTimeDeltaUs < 0) {
-                            StringBuilder sb = new StringBuilder("Malformed cpu data for UID=");
-                            sb.append(uid).append("!\n");
-                            sb.append("Time between reads: ");
-                            TimeUtils.formatDuration(timeDiffUs / 1000, sb);
-                            sb.append("\n");
-                            sb.append("Previous times: u=");
-                            TimeUtils.formatDuration(mLastUserTimeUs.valueAt(index) / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(mLastSystemTimeUs.valueAt(index) / 1000, sb);
-
-                            sb.append("\nCurrent times: u=");
-                            TimeUtils.formatDuration(userTimeUs / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(systemTimeUs / 1000, sb);
-                            sb.append("\nDelta: u=");
-                            TimeUtils.formatDuration(userTimeDeltaUs / 1000, sb);
-                            sb.append(" s=");
-                            TimeUtils.formatDuration(systemTimeDeltaUs / 1000, sb);
-                            Slog.e(TAG, sb.toString());
-
-                            userTimeDeltaUs = 0;
-                            systemTimeDeltaUs = 0;
-                        }
-                    }
+        final long nowUs = SystemClock.elapsedRealtime() * 1000;
+        ProcFileReader reader = null;
+        try {
+            reader = rewindOrOpen(mProcReader);
+            mProcReader = null;
+            readDelta(reader, nowUs, callback);
+
+            // keep reader for the next read only after a clean parse
+            mProcReader = reader;
+            reader = null;
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+        mLastTimeReadUs = nowUs;
+    }
+
+    @VisibleForTesting
+    public void readDelta(ProcFileReader reader, long nowUs, @Nullable Callback callback)
+            throws IOException {
+        while (reader.hasMoreData()) {
+            final int uid = reader.nextIntWithSuffix(':');
+            final long userTimeUs = reader.nextLong();
+            final long systemTimeUs = reader.nextLong();
+            // Older kernels append a power column, which is ignored
+            reader.finishLine();
+
+            final int index = mLastUserTimeUs.indexOfKey(uid);
+            // Only report if there is a callback and if this is not the first read.
+            if (callback != null && mLastTimeReadUs != 0) {
+                long userTimeDeltaUs = userTimeUs;
+                long systemTimeDeltaUs = systemTimeUs;
+                if (index >= 0) {
+                    userTimeDeltaUs -= mLastUserTimeUs.valueAt(index);
+                    systemTimeDeltaUs -= mLastSystemTimeUs.valueAt(index);
+
+                    final long timeDiffUs = nowUs - mLastTimeReadUs;
+                    if (userTimeDeltaUs < 0 || systemTimeDeltaUs < 0) {
+                        StringBuilder sb = new StringBuilder("Malformed cpu data for UID=");
+                        sb.append(uid).append("!\n");
+                        sb.append("Time between reads: ");
+                        TimeUtils.formatDuration(timeDiffUs / 1000, sb);
+                        sb.append("\n");
+                        sb.append("Previous times: u=");
+                        TimeUtils.formatDuration(mLastUserTimeUs.valueAt(index) / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(mLastSystemTimeUs.valueAt(index) / 1000, sb);
+
+                        sb.append("\nCurrent times: u=");
+                        TimeUtils.formatDuration(userTimeUs / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(systemTimeUs / 1000, sb);
+                        sb.append("\nDelta: u=");
+                        TimeUtils.formatDuration(userTimeDeltaUs / 1000, sb);
+                        sb.append(" s=");
+                        TimeUtils.formatDuration(systemTimeDeltaUs / 1000, sb);
+                        Slog.e(TAG, sb.toString());
 
-                    if (userTimeDeltaUs != 0 || systemTimeDeltaUs != 0) {
-                        callback.onUidCpuTime(uid, userTimeDeltaUs, systemTimeDeltaUs);
+                        userTimeDeltaUs = 0;
+                        systemTimeDeltaUs = 0;
                     }
                 }
+
+                if (userTimeDeltaUs != 0 || systemTimeDeltaUs != 0) {
+                    callback.onUidCpuTime(uid, userTimeDeltaUs, systemTimeDeltaUs);
+                }
+            }
+            // The callback may have removed uids, so the index is only reused if it still
+            // holds this uid.
+            if (index >= 0 && index < mLastUserTimeUs.size()
+                    && mLastUserTimeUs.keyAt(index) == uid) {
+                mLastUserTimeUs.setValueAt(index, userTimeUs);
+                mLastSystemTimeUs.setValueAt(index, systemTimeUs);
+            } else {
                 mLastUserTimeUs.put(uid, userTimeUs);
                 mLastSystemTimeUs.put(uid, systemTimeUs);
             }
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
         }
-        mLastTimeReadUs = nowUs;
     }
 
     /**
@@ -158,6 +189,29 @@ public class KernelUidCpuTimeReader {
         removeUidsFromKernelModule(startUid, endUid);
     }
 
+    /**
+     * Return a reader positioned at the start of {@link #sProcFile}, rewinding the reader left
+     * open by the last read when there is one.
+     */
+    private static ProcFileReader rewindOrOpen(ProcFileReader reader) throws IOException {
+        if (reader != null) {
+            try {
+                reader.rewind();
+                return reader;
+            } catch (IOException e) {
+                // fall through to reopen
+                IoUtils.closeQuietly(reader);
+            }
+        }
+        final FileInputStream stream = new FileInputStream(sProcFile);
+        try {
+            return new ProcFileReader(stream.getChannel(), READ_BUFFER_SIZE);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(stream);
+            throw e;
+        }
+    }
+
     private void removeUidsFromKernelModule(int startUid, int endUid) {
         Slog.d(TAG, "Removing uids " + startUid + "-" + endUid);
         try (FileWriter writer = new FileWriter(sRemoveUidProcFile)) {
@@ -30,8 +30,10 @@ public class MobileRadioPowerCalculator extends PowerCalculator {
 
     /**
      * Return estimated power (in mAs) of sending or receiving a packet with the mobile radio.
+     * This is what {@link #calculateApp} charges per packet for apps without
+     * {@link BatterySipper#mobileActive} time.
      */
-    private double getMobilePowerPerPacket(long rawRealtimeUs, int statsType) {
+    public double getMobilePowerPerPacket(long rawRealtimeUs, int statsType) {
         final long MOBILE_BPS = 200000; // TODO: Extract average bit rates from system
         final double MOBILE_POWER = mPowerRadioOn / 3600;
 
@@ -76,7 +78,6 @@ public class MobileRadioPowerCalculator extends PowerCalculator {
         if (app.mobileActive > 0) {
             // We are tracking when the radio is up, so can use the active time to
             // determine power use.
-            mTotalAppMobileActiveMs += app.mobileActive;
             app.mobileRadioPowerMah = (app.mobileActive * mPowerRadioOn) / (1000*60*60);
         } else {
             // We are not tracking when the radio is up, so must approximate power use
@@ -92,6 +93,13 @@ public class MobileRadioPowerCalculator extends PowerCalculator {
         }
     }
 
+    @Override
+    public void addApp(BatterySipper app) {
+        if (app.mobileActive > 0) {
+            mTotalAppMobileActiveMs += app.mobileActive;
+        }
+    }
+
     @Override
     public void calculateRemaining(BatterySipper app, BatteryStats stats, long rawRealtimeUs,
                                    long rawUptimeUs, int statsType) {
@@ -22,7 +22,9 @@ import android.os.BatteryStats;
  */
 public abstract class PowerCalculator {
     /**
-     * Calculate the amount of power an app used for this subsystem.
+     * Calculate the amount of power an app used for this subsystem.  Only sets fields of
+     * {@code app}, so that apps can be calculated concurrently; totals over all apps are kept
+     * by {@link #addApp}.
      * @param app The BatterySipper that represents the power use of an app.
      * @param u The recorded stats for the app.
      * @param rawRealtimeUs The raw system realtime in microseconds.
@@ -34,6 +36,15 @@ public abstract class PowerCalculator {
     public abstract void calculateApp(BatterySipper app, BatteryStats.Uid u, long rawRealtimeUs,
                                       long rawUptimeUs, int statsType);
 
+    /**
+     * Add an app calculated by {@link #calculateApp} to the totals over all apps that
+     * {@link #calculateRemaining} takes out.  Called once for each app after {@link #reset},
+     * with either a newly calculated app or one reused from an earlier calculation.
+     * @param app The BatterySipper that represents the power use of an app.
+     */
+    public void addApp(BatterySipper app) {
+    }
+
     /**
      * Calculate the remaining power that can not be attributed to an app.
      * @param app The BatterySipper that will represent this remaining power.
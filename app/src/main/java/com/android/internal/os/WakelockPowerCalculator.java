@@ -47,7 +47,6 @@ public class WakelockPowerCalculator extends PowerCalculator {
             }
         }
         app.wakeLockTimeMs = wakeLockTimeUs / 1000; // convert to millis
-        mTotalAppWakelockTimeMs += app.wakeLockTimeMs;
 
         // Add cost of holding a wake lock.
         app.wakeLockPowerMah = (app.wakeLockTimeMs * mPowerWakelock) / (1000*60*60);
@@ -57,6 +56,11 @@ public class WakelockPowerCalculator extends PowerCalculator {
         }
     }
 
+    @Override
+    public void addApp(BatterySipper app) {
+        mTotalAppWakelockTimeMs += app.wakeLockTimeMs;
+    }
+
     @Override
     public void calculateRemaining(BatterySipper app, BatteryStats stats, long rawRealtimeUs,
                                    long rawUptimeUs, int statsType) {
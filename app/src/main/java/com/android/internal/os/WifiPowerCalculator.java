@@ -49,12 +49,10 @@ public class WifiPowerCalculator extends PowerCalculator {
         final long txTime = counter.getTxTimeCounters()[0].getCountLocked(statsType);
         final long rxTime = counter.getRxTimeCounter().getCountLocked(statsType);
         app.wifiRunningTimeMs = idleTime + rxTime + txTime;
-        mTotalAppRunningTime += app.wifiRunningTimeMs;
 
         app.wifiPowerMah =
                 ((idleTime * mIdleCurrentMa) + (txTime * mTxCurrentMa) + (rxTime * mRxCurrentMa))
                 / (1000*60*60);
-        mTotalAppPowerDrain += app.wifiPowerMah;
 
         app.wifiRxPackets = u.getNetworkActivityPackets(BatteryStats.NETWORK_WIFI_RX_DATA,
                 statsType);
@@ -71,6 +69,12 @@ public class WifiPowerCalculator extends PowerCalculator {
         }
     }
 
+    @Override
+    public void addApp(BatterySipper app) {
+        mTotalAppRunningTime += app.wifiRunningTimeMs;
+        mTotalAppPowerDrain += app.wifiPowerMah;
+    }
+
     @Override
     public void calculateRemaining(BatterySipper app, BatteryStats stats, long rawRealtimeUs,
                                    long rawUptimeUs, int statsType) {
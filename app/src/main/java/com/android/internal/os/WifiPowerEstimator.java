@@ -63,7 +63,6 @@ public class WifiPowerEstimator extends PowerCalculator {
                 * mWifiPowerPerPacket;
 
         app.wifiRunningTimeMs = u.getWifiRunningTime(rawRealtimeUs, statsType) / 1000;
-        mTotalAppWifiRunningTimeMs += app.wifiRunningTimeMs;
         final double wifiLockPower = (app.wifiRunningTimeMs * mWifiPowerOn) / (1000*60*60);
 
         final long wifiScanTimeMs = u.getWifiScanTime(rawRealtimeUs, statsType) / 1000;
@@ -84,6 +83,11 @@ public class WifiPowerEstimator extends PowerCalculator {
         }
     }
 
+    @Override
+    public void addApp(BatterySipper app) {
+        mTotalAppWifiRunningTimeMs += app.wifiRunningTimeMs;
+    }
+
     @Override
     public void calculateRemaining(BatterySipper app, BatteryStats stats, long rawRealtimeUs,
                                    long rawUptimeUs, int statsType) {
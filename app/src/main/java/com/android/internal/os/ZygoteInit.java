@@ -59,13 +59,11 @@ import dalvik.system.ZygoteHooks;
 
 import libcore.io.IoUtils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.security.Security;
 import java.security.Provider;
 
@@ -87,6 +85,8 @@ public class ZygoteInit {
     private static final String PROPERTY_DISABLE_OPENGL_PRELOADING = "ro.zygote.disable_gl_preload";
     private static final String PROPERTY_GFX_DRIVER = "ro.gfx.driver.0";
     private static final String PROPERTY_RUNNING_IN_CONTAINER = "ro.boot.container";
+    private static final String PROPERTY_PRELOAD_THREADS = "ro.zygote.preload_threads";
+    private static final String PROPERTY_PRELOAD_PROFILE = "persist.zygote.preload_profile";
 
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
@@ -108,6 +108,12 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * The path of a file that contains the time it took to initialize each preloaded class.
+     */
+    private static final String PRELOADED_CLASSES_PROFILE =
+            "/data/system/preloaded-classes-profile";
+
     /** Controls whether we should preload resources during zygote init. */
     public static final boolean PRELOAD_RESOURCES = true;
 
@@ -119,13 +125,19 @@ public class ZygoteInit {
 
     private static boolean sPreloadComplete;
 
+    /**
+     * Class preloader whose timings are to be written to {@link #PRELOADED_CLASSES_PROFILE}.
+     * The system server, forked from the zygote, writes them as the system user.
+     */
+    private static ClassPreloader sProfiledClassPreloader;
+
     static void preload(TimingsTraceLog bootTimingsTraceLog) {
         Log.d(TAG, "begin preload");
         bootTimingsTraceLog.traceBegin("BeginIcuCachePinning");
         beginIcuCachePinning();
         bootTimingsTraceLog.traceEnd(); // BeginIcuCachePinning
         bootTimingsTraceLog.traceBegin("PreloadClasses");
-        preloadClasses();
+        preloadClasses(bootTimingsTraceLog);
         bootTimingsTraceLog.traceEnd(); // PreloadClasses
         bootTimingsTraceLog.traceBegin("PreloadResources");
         preloadResources();
@@ -235,8 +247,11 @@ public class ZygoteInit {
      *
      * Most classes only cause a few hundred bytes to be allocated, but
      * a few will allocate a dozen Kbytes (in one case, 500+K).
+     *
+     * The classes are initialized on {@link #PROPERTY_PRELOAD_THREADS} threads, one by
+     * default and one per CPU if it is 0; see {@link ClassPreloader}.
      */
-    private static void preloadClasses() {
+    private static void preloadClasses(TimingsTraceLog bootTimingsTraceLog) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
         InputStream is;
@@ -247,6 +262,24 @@ public class ZygoteInit {
             return;
         }
 
+        final String[] classNames;
+        try {
+            classNames = ClassPreloader.readClassList(is);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
+            return;
+        } finally {
+            IoUtils.closeQuietly(is);
+        }
+
+        int numThreads = SystemProperties.getInt(PROPERTY_PRELOAD_THREADS, 1);
+        if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        final ClassPreloader preloader = new ClassPreloader(classNames, numThreads);
+        final File profile = new File(PRELOADED_CLASSES_PROFILE);
+        preloader.readProfile(profile);
+
         Log.i(TAG, "Preloading classes...");
         long startTime = SystemClock.uptimeMillis();
 
@@ -275,60 +308,20 @@ public class ZygoteInit {
         runtime.setTargetHeapUtilization(0.8f);
 
         try {
-            BufferedReader br
-                = new BufferedReader(new InputStreamReader(is), 256);
-
-            int count = 0;
-            String line;
-            while ((line = br.readLine()) != null) {
-                // Skip comments and blank lines.
-                line = line.trim();
-                if (line.startsWith("#") || line.equals("")) {
-                    continue;
-                }
-
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    if (false) {
-                        Log.v(TAG, "Preloading " + line + "...");
-                    }
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
-                    count++;
-                } catch (ClassNotFoundException e) {
-                    Log.w(TAG, "Class not found for preloading: " + line);
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    }
-                    if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    }
-                    throw new RuntimeException(t);
-                }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
-            }
+            // The threads of the preloader inherit the dropped perms, and have exited when
+            // it returns.
+            final int count = preloader.preload(bootTimingsTraceLog);
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis()-startTime) + "ms.");
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
         } finally {
-            IoUtils.closeQuietly(is);
             // Restore default.
             runtime.setTargetHeapUtilization(defaultUtilization);
 
             // Fill in dex caches with classes, fields, and methods brought in by preloading.
-            Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "PreloadDexCaches");
+            bootTimingsTraceLog.traceBegin("PreloadDexCaches");
             runtime.preloadDexCaches();
-            Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+            bootTimingsTraceLog.traceEnd(); // PreloadDexCaches
 
             // Bring back root. We'll need it later if we're in the zygote.
             if (droppedPriviliges) {
@@ -340,6 +333,12 @@ public class ZygoteInit {
                 }
             }
         }
+
+        if (SystemProperties.getBoolean(PROPERTY_PRELOAD_PROFILE, false)) {
+            // Not written here: the zygote runs as root, and the profile has to stay owned
+            // by the system user like the rest of /data/system.
+            sProfiledClassPreloader = preloader;
+        }
     }
 
     /**
@@ -457,6 +456,11 @@ public class ZygoteInit {
             Process.setArgV0(parsedArgs.niceName);
         }
 
+        if (sProfiledClassPreloader != null) {
+            sProfiledClassPreloader.writeProfile(new File(PRELOADED_CLASSES_PROFILE));
+            sProfiledClassPreloader = null;
+        }
+
         final String systemServerClasspath = Os.getenv("SYSTEMSERVERCLASSPATH");
         if (systemServerClasspath != null) {
             performSystemServerDexOpt(systemServerClasspath);
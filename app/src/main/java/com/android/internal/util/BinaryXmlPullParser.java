@@ -0,0 +1,723 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.MAX_UNSIGNED_SHORT;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_FALSE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_TRUE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_FLOAT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT_HEX;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG_HEX;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the binary encoding written by {@link BinaryXmlSerializer}.
+ *
+ * <p>Typed attributes are returned by the {@link TypedXmlPullParser} getters without any
+ * string conversion; {@link #getAttributeValue} renders them exactly as a text serializer
+ * would have written them, so existing readers work unchanged.  Line and column numbers
+ * are not available.
+ *
+ * {@hide}
+ */
+public class BinaryXmlPullParser implements TypedXmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private long mConsumed;
+
+    private String[] mInterned = new String[64];
+    private int mInternedCount;
+
+    private int mEventType;
+    private int mDepth;
+    private boolean mDecrementDepth;
+    private String mName;
+    private String mText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private int[] mAttributeTypes = new int[8];
+    private String[] mAttributeStrings = new String[8];
+    private long[] mAttributeNumbers = new long[8];
+
+    private final StringBuilder mTextBuilder = new StringBuilder();
+
+    @Override
+    public void setInput(InputStream is, String inputEncoding) throws XmlPullParserException {
+        if (inputEncoding != null
+                && !StandardCharsets.UTF_8.name().equalsIgnoreCase(inputEncoding)) {
+            throw new UnsupportedOperationException("Binary XML is always UTF-8");
+        }
+        mIn = is;
+        mPos = 0;
+        mLimit = 0;
+        mConsumed = 0;
+        mInternedCount = 0;
+        mDepth = 0;
+        mDecrementDepth = false;
+        mAttributeCount = 0;
+        mName = null;
+        mText = null;
+        mEventType = START_DOCUMENT;
+        try {
+            for (byte b : PROTOCOL_MAGIC) {
+                if (readByte() != (b & 0xff)) {
+                    throw new XmlPullParserException("Not a binary XML stream", this, null);
+                }
+            }
+            // Consume the START_DOCUMENT token, which the parser is already positioned on.
+            if (peekByte() == (START_DOCUMENT | TYPE_NULL)) {
+                readByte();
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read binary XML header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException("Binary XML requires an InputStream");
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Namespace and DOCDECL processing features do not apply.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        while (true) {
+            final int event = nextToken();
+            switch (event) {
+                case START_TAG:
+                case END_TAG:
+                case END_DOCUMENT:
+                    return event;
+                case TEXT:
+                case CDSECT:
+                case ENTITY_REF:
+                case IGNORABLE_WHITESPACE:
+                    // Report adjacent text tokens as a single TEXT event, as text parsers do.
+                    if (isTextToken(peekToken())) {
+                        mTextBuilder.setLength(0);
+                        mTextBuilder.append(mText);
+                        while (isTextToken(peekToken())) {
+                            nextToken();
+                            mTextBuilder.append(mText);
+                        }
+                        mText = mTextBuilder.toString();
+                    }
+                    return setEvent(TEXT, null, mText);
+                default:
+                    // Comments, processing instructions and DOCDECL are skipped.
+                    break;
+            }
+        }
+    }
+
+    private static boolean isTextToken(int token) {
+        return token == TEXT || token == CDSECT || token == ENTITY_REF
+                || token == IGNORABLE_WHITESPACE;
+    }
+
+    private int peekToken() throws IOException {
+        return mPos < mLimit || fill(1) ? mBuffer[mPos] & 0x0f : END_DOCUMENT;
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        if (mDecrementDepth) {
+            mDepth--;
+            mDecrementDepth = false;
+        }
+        if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        if (mPos >= mLimit && !fill(1)) {
+            // Tolerate streams that were not closed with endDocument().
+            return setEvent(END_DOCUMENT, null, null);
+        }
+        final int command = readByte();
+        final int token = command & 0x0f;
+        final int type = command & 0xf0;
+        mAttributeCount = 0;
+        switch (token) {
+            case START_DOCUMENT:
+                return nextToken();
+            case END_DOCUMENT:
+                return setEvent(END_DOCUMENT, null, null);
+            case START_TAG: {
+                final String name = readInternedString();
+                mDepth++;
+                while (peekToken() == ATTRIBUTE) {
+                    readAttribute();
+                }
+                return setEvent(START_TAG, name, null);
+            }
+            case END_TAG: {
+                final String name = readInternedString();
+                mDecrementDepth = true;
+                return setEvent(END_TAG, name, null);
+            }
+            case TEXT:
+            case CDSECT:
+            case IGNORABLE_WHITESPACE:
+            case PROCESSING_INSTRUCTION:
+            case COMMENT:
+            case DOCDECL: {
+                final String text = type == TYPE_NULL ? "" : readString();
+                return setEvent(token, null, text);
+            }
+            case ENTITY_REF: {
+                final String name = type == TYPE_NULL ? "" : readString();
+                return setEvent(ENTITY_REF, name, resolveEntity(name));
+            }
+            default:
+                throw new XmlPullParserException("Unknown token " + token, this, null);
+        }
+    }
+
+    private int setEvent(int event, String name, String text) {
+        mEventType = event;
+        mName = name;
+        mText = text;
+        return event;
+    }
+
+    private static String resolveEntity(String name) {
+        switch (name) {
+            case "amp": return "&";
+            case "lt": return "<";
+            case "gt": return ">";
+            case "quot": return "\"";
+            case "apos": return "'";
+            default: return "&" + name + ";";
+        }
+    }
+
+    private void readAttribute() throws IOException, XmlPullParserException {
+        final int type = readByte() & 0xf0;
+        final int i = mAttributeCount;
+        if (i == mAttributeNames.length) {
+            final int size = i * 2;
+            mAttributeNames = Arrays.copyOf(mAttributeNames, size);
+            mAttributeTypes = Arrays.copyOf(mAttributeTypes, size);
+            mAttributeStrings = Arrays.copyOf(mAttributeStrings, size);
+            mAttributeNumbers = Arrays.copyOf(mAttributeNumbers, size);
+        }
+        mAttributeNames[i] = readInternedString();
+        mAttributeTypes[i] = type;
+        mAttributeStrings[i] = null;
+        switch (type) {
+            case TYPE_NULL:
+            case TYPE_BOOLEAN_TRUE:
+            case TYPE_BOOLEAN_FALSE:
+                break;
+            case TYPE_STRING:
+                mAttributeStrings[i] = readString();
+                break;
+            case TYPE_STRING_INTERNED:
+                mAttributeStrings[i] = readInternedString();
+                break;
+            case TYPE_INT:
+            case TYPE_INT_HEX:
+            case TYPE_FLOAT:
+                mAttributeNumbers[i] = readInt();
+                break;
+            case TYPE_LONG:
+            case TYPE_LONG_HEX:
+                mAttributeNumbers[i] = readLong();
+                break;
+            default:
+                throw new XmlPullParserException("Unknown attribute type " + type, this, null);
+        }
+        mAttributeCount = i + 1;
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT && mEventType != IGNORABLE_WHITESPACE
+                && mEventType != CDSECT) {
+            throw new XmlPullParserException("Not a text event", this, null);
+        }
+        for (int i = 0; i < mText.length(); i++) {
+            if (!Character.isWhitespace(mText.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not at a start tag", this, null);
+        }
+        try {
+            return peekToken() == END_TAG;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getNamespace() {
+        return (mEventType == START_TAG || mEventType == END_TAG) ? NO_NAMESPACE : null;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        final StringBuilder sb = new StringBuilder("binary XML ");
+        sb.append(mEventType < TYPES.length ? TYPES[mEventType] : "?");
+        if (mName != null) {
+            sb.append(' ').append(mName);
+        }
+        sb.append(" at depth ").append(mDepth);
+        sb.append(", offset ").append(mConsumed + mPos);
+        return sb.toString();
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mEventType
+                || (namespace != null && !namespace.equals(getNamespace()))
+                || (name != null && !name.equals(mName))) {
+            throw new XmlPullParserException(
+                    "expected " + TYPES[type] + " " + getPositionDescription(), this, null);
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("precondition: START_TAG", this, null);
+        }
+        int event = next();
+        if (event == TEXT) {
+            final String result = mText;
+            event = next();
+            if (event != END_TAG) {
+                throw new XmlPullParserException(
+                        "TEXT must be immediately followed by END_TAG", this, null);
+            }
+            return result;
+        } else if (event == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException(
+                    "parser must be on START_TAG or TEXT to read text", this, null);
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int event = next();
+        if (event == TEXT && isWhitespace()) {
+            event = next();
+        }
+        if (event != START_TAG && event != END_TAG) {
+            throw new XmlPullParserException("expected START_TAG or END_TAG", this, null);
+        }
+        return event;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        final long number = mAttributeNumbers[index];
+        switch (mAttributeTypes[index]) {
+            case TYPE_INT:
+                return Integer.toString((int) number);
+            case TYPE_INT_HEX:
+                return Integer.toHexString((int) number);
+            case TYPE_LONG:
+                return Long.toString(number);
+            case TYPE_LONG_HEX:
+                return Long.toHexString(number);
+            case TYPE_FLOAT:
+                return Float.toString(Float.intBitsToFloat((int) number));
+            case TYPE_BOOLEAN_TRUE:
+                return "true";
+            case TYPE_BOOLEAN_FALSE:
+                return "false";
+            default:
+                return mAttributeStrings[index];
+        }
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        final int index = getAttributeIndex(namespace, name);
+        return index >= 0 ? getAttributeValue(index) : null;
+    }
+
+    @Override
+    public int getAttributeIndex(String namespace, String name) {
+        if (mEventType != START_TAG) {
+            return -1;
+        }
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (name.equals(mAttributeNames[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getAttributeInt(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        if (mAttributeTypes[index] == TYPE_INT) {
+            return (int) mAttributeNumbers[index];
+        }
+        try {
+            return Integer.parseInt(getAttributeValue(index));
+        } catch (NumberFormatException e) {
+            throw invalidAttribute(index, "int", e);
+        }
+    }
+
+    @Override
+    public int getAttributeIntHex(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        if (mAttributeTypes[index] == TYPE_INT_HEX) {
+            return (int) mAttributeNumbers[index];
+        }
+        try {
+            return Integer.parseUnsignedInt(getAttributeValue(index), 16);
+        } catch (NumberFormatException e) {
+            throw invalidAttribute(index, "hex int", e);
+        }
+    }
+
+    @Override
+    public long getAttributeLong(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        final int type = mAttributeTypes[index];
+        if (type == TYPE_LONG || type == TYPE_INT) {
+            return mAttributeNumbers[index];
+        }
+        try {
+            return Long.parseLong(getAttributeValue(index));
+        } catch (NumberFormatException e) {
+            throw invalidAttribute(index, "long", e);
+        }
+    }
+
+    @Override
+    public long getAttributeLongHex(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        if (mAttributeTypes[index] == TYPE_LONG_HEX) {
+            return mAttributeNumbers[index];
+        }
+        try {
+            return Long.parseUnsignedLong(getAttributeValue(index), 16);
+        } catch (NumberFormatException e) {
+            throw invalidAttribute(index, "hex long", e);
+        }
+    }
+
+    @Override
+    public float getAttributeFloat(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        if (mAttributeTypes[index] == TYPE_FLOAT) {
+            return Float.intBitsToFloat((int) mAttributeNumbers[index]);
+        }
+        try {
+            return Float.parseFloat(getAttributeValue(index));
+        } catch (NumberFormatException e) {
+            throw invalidAttribute(index, "float", e);
+        }
+    }
+
+    @Override
+    public boolean getAttributeBoolean(int index) throws XmlPullParserException {
+        checkAttributeIndex(index);
+        switch (mAttributeTypes[index]) {
+            case TYPE_BOOLEAN_TRUE:
+                return true;
+            case TYPE_BOOLEAN_FALSE:
+                return false;
+        }
+        final String value = getAttributeValue(index);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw invalidAttribute(index, "boolean", null);
+    }
+
+    private XmlPullParserException invalidAttribute(int index, String type, Throwable cause) {
+        return new XmlPullParserException("Invalid " + type + " attribute "
+                + mAttributeNames[index] + "=" + getAttributeValue(index), this, cause);
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mEventType != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Invalid attribute index " + index);
+        }
+    }
+
+    private boolean fill(int count) throws IOException {
+        if (mLimit - mPos >= count) {
+            return true;
+        }
+        if (mPos > 0) {
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+            mConsumed += mPos;
+            mLimit -= mPos;
+            mPos = 0;
+        }
+        while (mLimit < count) {
+            final int read = mIn.read(mBuffer, mLimit, BUFFER_SIZE - mLimit);
+            if (read == -1) {
+                return false;
+            }
+            mLimit += read;
+        }
+        return true;
+    }
+
+    private void require(int count) throws IOException {
+        if (!fill(count)) {
+            throw new EOFException("Truncated binary XML");
+        }
+    }
+
+    private int peekByte() throws IOException {
+        require(1);
+        return mBuffer[mPos] & 0xff;
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    private int readShort() throws IOException {
+        require(2);
+        final byte[] buffer = mBuffer;
+        final int pos = mPos;
+        mPos = pos + 2;
+        return ((buffer[pos] & 0xff) << 8) | (buffer[pos + 1] & 0xff);
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        final byte[] buffer = mBuffer;
+        final int pos = mPos;
+        mPos = pos + 4;
+        return ((buffer[pos] & 0xff) << 24) | ((buffer[pos + 1] & 0xff) << 16)
+                | ((buffer[pos + 2] & 0xff) << 8) | (buffer[pos + 3] & 0xff);
+    }
+
+    private long readLong() throws IOException {
+        return (((long) readInt()) << 32) | (readInt() & 0xffffffffL);
+    }
+
+    private String readString() throws IOException {
+        int length = readShort();
+        if (length == MAX_UNSIGNED_SHORT) {
+            length = readInt();
+        }
+        if (length <= BUFFER_SIZE) {
+            require(length);
+            final String s = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return s;
+        }
+        final byte[] bytes = new byte[length];
+        int copied = Math.min(length, mLimit - mPos);
+        System.arraycopy(mBuffer, mPos, bytes, 0, copied);
+        mPos += copied;
+        while (copied < length) {
+            final int read = mIn.read(bytes, copied, length - copied);
+            if (read == -1) {
+                throw new EOFException("Truncated binary XML");
+            }
+            copied += read;
+            mConsumed += read;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readInternedString() throws IOException {
+        final int index = readShort();
+        if (index != MAX_UNSIGNED_SHORT) {
+            if (index >= mInternedCount) {
+                throw new IOException("Invalid interned string index " + index);
+            }
+            return mInterned[index];
+        }
+        final String s = readString();
+        if (mInternedCount < MAX_UNSIGNED_SHORT) {
+            if (mInternedCount == mInterned.length) {
+                mInterned = Arrays.copyOf(mInterned, mInternedCount * 2);
+            }
+            mInterned[mInternedCount++] = s;
+        }
+        return s;
+    }
+}
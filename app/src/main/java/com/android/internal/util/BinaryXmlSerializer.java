@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes the XML infoset in a compact binary encoding that {@link BinaryXmlPullParser}
+ * reads back much faster than text XML can be parsed.  Meant for the private state files
+ * of system services, which are written and read by the same code and never edited by
+ * hand; {@link android.util.Xml#resolvePullParser} detects which format a file uses.
+ *
+ * <p>The stream starts with {@link #PROTOCOL_MAGIC}, followed by one record per token.
+ * Each record starts with a byte holding the token (the {@link XmlPullParser} event type,
+ * or {@link #ATTRIBUTE}) in the low nibble and the type of its value in the high nibble:
+ * <ul>
+ * <li>tag and attribute names are {@link #TYPE_STRING_INTERNED}: an unsigned short index
+ * into a table built up while reading, or 0xFFFF followed by a new string to append;
+ * <li>strings are an unsigned short count of UTF-8 bytes, or 0xFFFF followed by an int
+ * count for longer values, followed by the bytes;
+ * <li>int, long and float attributes are stored in big-endian binary, and booleans are
+ * folded into the type nibble, so none of them go through a string.
+ * </ul>
+ * Namespaces are not supported.
+ *
+ * {@hide}
+ */
+public class BinaryXmlSerializer implements TypedXmlSerializer {
+    /** First four bytes of every binary XML stream: "ABX" and the format version. */
+    public static final byte[] PROTOCOL_MAGIC = new byte[] { 0x41, 0x42, 0x58, 0x00 };
+
+    /** Token for an attribute of the preceding START_TAG. */
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_INTERNED = 3 << 4;
+    static final int TYPE_INT = 5 << 4;
+    static final int TYPE_INT_HEX = 6 << 4;
+    static final int TYPE_LONG = 7 << 4;
+    static final int TYPE_LONG_HEX = 8 << 4;
+    static final int TYPE_FLOAT = 9 << 4;
+    static final int TYPE_BOOLEAN_TRUE = 12 << 4;
+    static final int TYPE_BOOLEAN_FALSE = 13 << 4;
+
+    /** Marks a new interned string, or a string longer than an unsigned short can count. */
+    static final int MAX_UNSIGNED_SHORT = 0xFFFF;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+    private String[] mTagNames = new String[8];
+    private int mTagCount;
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Binary XML is always UTF-8");
+        }
+        mOut = os;
+        mPos = 0;
+        mInterned.clear();
+        mTagCount = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException("Binary XML requires an OutputStream");
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Formatting features such as indent-output have no meaning here.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException("Namespaces are not supported");
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException("Namespaces are not supported");
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagCount;
+    }
+
+    @Override
+    public String getNamespace() {
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    @Override
+    public String getName() {
+        return mTagCount > 0 ? mTagNames[mTagCount - 1] : null;
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        writeBytes(PROTOCOL_MAGIC, 0, PROTOCOL_MAGIC.length);
+        writeByte(XmlPullParser.START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        writeByte(XmlPullParser.END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        checkNamespace(namespace);
+        if (mTagCount == mTagNames.length) {
+            mTagNames = Arrays.copyOf(mTagNames, mTagCount * 2);
+        }
+        mTagNames[mTagCount++] = name;
+        writeByte(XmlPullParser.START_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        checkNamespace(namespace);
+        mTagCount--;
+        writeByte(XmlPullParser.END_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        checkNamespace(namespace);
+        writeByte(ATTRIBUTE | TYPE_STRING);
+        writeInternedString(name);
+        writeString(value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attributeInt(String namespace, String name, int value)
+            throws IOException {
+        return attributeNumber(namespace, name, TYPE_INT, value);
+    }
+
+    @Override
+    public XmlSerializer attributeIntHex(String namespace, String name, int value)
+            throws IOException {
+        return attributeNumber(namespace, name, TYPE_INT_HEX, value);
+    }
+
+    @Override
+    public XmlSerializer attributeLong(String namespace, String name, long value)
+            throws IOException {
+        return attributeNumber(namespace, name, TYPE_LONG, value);
+    }
+
+    @Override
+    public XmlSerializer attributeLongHex(String namespace, String name, long value)
+            throws IOException {
+        return attributeNumber(namespace, name, TYPE_LONG_HEX, value);
+    }
+
+    @Override
+    public XmlSerializer attributeFloat(String namespace, String name, float value)
+            throws IOException {
+        return attributeNumber(namespace, name, TYPE_FLOAT, Float.floatToIntBits(value));
+    }
+
+    @Override
+    public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+            throws IOException {
+        checkNamespace(namespace);
+        writeByte(ATTRIBUTE | (value ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE));
+        writeInternedString(name);
+        return this;
+    }
+
+    private XmlSerializer attributeNumber(String namespace, String name, int type, long value)
+            throws IOException {
+        checkNamespace(namespace);
+        writeByte(ATTRIBUTE | type);
+        writeInternedString(name);
+        if (type == TYPE_LONG || type == TYPE_LONG_HEX) {
+            writeLong(value);
+        } else {
+            writeInt((int) value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        writeToken(XmlPullParser.TEXT, text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        writeToken(XmlPullParser.TEXT, new String(buf, start, len));
+        return this;
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        writeToken(XmlPullParser.CDSECT, text);
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException {
+        writeToken(XmlPullParser.ENTITY_REF, text);
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException {
+        writeToken(XmlPullParser.PROCESSING_INSTRUCTION, text);
+    }
+
+    @Override
+    public void comment(String text) throws IOException {
+        writeToken(XmlPullParser.COMMENT, text);
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException {
+        writeToken(XmlPullParser.DOCDECL, text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException {
+        writeToken(XmlPullParser.IGNORABLE_WHITESPACE, text);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mPos > 0) {
+            mOut.write(mBuffer, 0, mPos);
+            mPos = 0;
+        }
+        mOut.flush();
+    }
+
+    private static void checkNamespace(String namespace) {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new UnsupportedOperationException("Namespaces are not supported");
+        }
+    }
+
+    private void writeToken(int token, String text) throws IOException {
+        if (text == null) {
+            writeByte(token | TYPE_NULL);
+        } else {
+            writeByte(token | TYPE_STRING);
+            writeString(text);
+        }
+    }
+
+    private void writeInternedString(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            writeShort(index);
+            return;
+        }
+        writeShort(MAX_UNSIGNED_SHORT);
+        writeString(s);
+        if (mInterned.size() < MAX_UNSIGNED_SHORT) {
+            mInterned.put(s, mInterned.size());
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        final int length = s.length();
+        // Fast path for ASCII, which nearly every value in system state files is.
+        if (length < MAX_UNSIGNED_SHORT && length + 2 <= BUFFER_SIZE) {
+            ensure(length + 2);
+            final byte[] buffer = mBuffer;
+            int pos = mPos + 2;
+            for (int i = 0; i < length; i++) {
+                final char c = s.charAt(i);
+                if (c >= 0x80) {
+                    pos = -1;
+                    break;
+                }
+                buffer[pos++] = (byte) c;
+            }
+            if (pos >= 0) {
+                buffer[mPos] = (byte) (length >> 8);
+                buffer[mPos + 1] = (byte) length;
+                mPos = pos;
+                return;
+            }
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < MAX_UNSIGNED_SHORT) {
+            writeShort(bytes.length);
+        } else {
+            writeShort(MAX_UNSIGNED_SHORT);
+            writeInt(bytes.length);
+        }
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    private void ensure(int count) throws IOException {
+        if (mPos + count > BUFFER_SIZE) {
+            mOut.write(mBuffer, 0, mPos);
+            mPos = 0;
+        }
+    }
+
+    private void writeByte(int value) throws IOException {
+        ensure(1);
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeShort(int value) throws IOException {
+        ensure(2);
+        mBuffer[mPos++] = (byte) (value >> 8);
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeInt(int value) throws IOException {
+        ensure(4);
+        mBuffer[mPos++] = (byte) (value >> 24);
+        mBuffer[mPos++] = (byte) (value >> 16);
+        mBuffer[mPos++] = (byte) (value >> 8);
+        mBuffer[mPos++] = (byte) value;
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) (value >> 32));
+        writeInt((int) value);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int count) throws IOException {
+        if (count > BUFFER_SIZE) {
+            ensure(BUFFER_SIZE);
+            mOut.write(bytes, offset, count);
+            return;
+        }
+        ensure(count);
+        System.arraycopy(bytes, offset, mBuffer, mPos, count);
+        mPos += count;
+    }
+}
@@ -37,7 +37,7 @@ import java.nio.charset.UnsupportedCharsetException;
  * painfully slow like the normal one.  It only does what is needed for the
  * specific XML files being written with it.
  */
-public class FastXmlSerializer implements XmlSerializer {
+public class FastXmlSerializer implements TypedXmlSerializer {
     private static final String ESCAPE_TABLE[] = new String[] {
         "&#0;",   "&#1;",   "&#2;",   "&#3;",  "&#4;",    "&#5;",   "&#6;",  "&#7;",  // 0-7
         "&#8;",   "&#9;",   "&#10;",  "&#11;", "&#12;",   "&#13;",  "&#14;", "&#15;", // 8-15
@@ -51,6 +51,11 @@ public class FastXmlSerializer implements XmlSerializer {
 
     private static final int DEFAULT_BUFFER_LEN = 32*1024;
 
+    // Longest formatted long, "-9223372036854775808".
+    private static final int MAX_NUMBER_LEN = 20;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private static String sSpace = "                                                              ";
 
     private final int mBufferLen;
@@ -147,11 +152,40 @@ public class FastXmlSerializer implements XmlSerializer {
 
     private void escapeAndAppendString(final String string) throws IOException {
         final int N = string.length();
+        if (N > mBufferLen) {
+            escapeAndAppendString(string, 0);
+            return;
+        }
+        // Most values need no escaping at all: copy the whole string in one go and only
+        // fall back to escaping from the first character that needs it.
+        int pos = mPos;
+        if ((pos+N) > mBufferLen) {
+            flush();
+            pos = mPos;
+        }
+        final char[] text = mText;
+        string.getChars(0, N, text, pos);
         final char NE = (char)ESCAPE_TABLE.length;
         final String[] escapes = ESCAPE_TABLE;
-        int lastPos = 0;
+        final int end = pos + N;
+        int i;
+        for (i=pos; i<end; i++) {
+            final char c = text[i];
+            if (c < NE && escapes[c] != null) break;
+        }
+        mPos = i;
+        if (i < end) {
+            escapeAndAppendString(string, i - pos);
+        }
+    }
+
+    private void escapeAndAppendString(final String string, int start) throws IOException {
+        final int N = string.length();
+        final char NE = (char)ESCAPE_TABLE.length;
+        final String[] escapes = ESCAPE_TABLE;
+        int lastPos = start;
         int pos;
-        for (pos=0; pos<N; pos++) {
+        for (pos=start; pos<N; pos++) {
             char c = string.charAt(pos);
             if (c >= NE) continue;
             String escape = escapes[c];
@@ -181,8 +215,52 @@ public class FastXmlSerializer implements XmlSerializer {
         if (lastPos < pos) append(buf, lastPos, pos-lastPos);
     }
 
-    public XmlSerializer attribute(String namespace, String name, String value) throws IOException,
-            IllegalArgumentException, IllegalStateException {
+    private void appendDecimal(long value) throws IOException {
+        if (value == Long.MIN_VALUE || mBufferLen < MAX_NUMBER_LEN) {
+            append(Long.toString(value));
+            return;
+        }
+        if ((mPos+MAX_NUMBER_LEN) > mBufferLen) {
+            flush();
+        }
+        final char[] text = mText;
+        int pos = mPos;
+        if (value < 0) {
+            text[pos++] = '-';
+            value = -value;
+        }
+        final int start = pos;
+        do {
+            text[pos++] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int lo=start, hi=pos-1; lo<hi; lo++, hi--) {
+            final char c = text[lo];
+            text[lo] = text[hi];
+            text[hi] = c;
+        }
+        mPos = pos;
+    }
+
+    /** Appends {@code value} as unsigned hexadecimal, like Long.toHexString. */
+    private void appendHex(long value) throws IOException {
+        if (mBufferLen < MAX_NUMBER_LEN) {
+            append(Long.toHexString(value));
+            return;
+        }
+        if ((mPos+MAX_NUMBER_LEN) > mBufferLen) {
+            flush();
+        }
+        final char[] text = mText;
+        int pos = mPos;
+        final int digits = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for (int shift=(digits-1)*4; shift>=0; shift-=4) {
+            text[pos++] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+        }
+        mPos = pos;
+    }
+
+    private void appendAttributeName(String namespace, String name) throws IOException {
         append(' ');
         if (namespace != null) {
             append(namespace);
@@ -190,13 +268,69 @@ public class FastXmlSerializer implements XmlSerializer {
         }
         append(name);
         append("=\"");
+    }
 
-        escapeAndAppendString(value);
+    private XmlSerializer endAttribute() throws IOException {
         append('"');
         mLineStart = false;
         return this;
     }
 
+    public XmlSerializer attribute(String namespace, String name, String value) throws IOException,
+            IllegalArgumentException, IllegalStateException {
+        appendAttributeName(namespace, name);
+        escapeAndAppendString(value);
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeInt(String namespace, String name, int value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        appendDecimal(value);
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeIntHex(String namespace, String name, int value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        appendHex(value & 0xffffffffL);
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeLong(String namespace, String name, long value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        appendDecimal(value);
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeLongHex(String namespace, String name, long value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        appendHex(value);
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeFloat(String namespace, String name, float value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        append(Float.toString(value));
+        return endAttribute();
+    }
+
+    @Override
+    public XmlSerializer attributeBoolean(String namespace, String name, boolean value)
+            throws IOException {
+        appendAttributeName(namespace, name);
+        append(value ? "true" : "false");
+        return endAttribute();
+    }
+
     public void cdsect(String text) throws IOException, IllegalArgumentException,
             IllegalStateException {
         throw new UnsupportedOperationException();
@@ -27,6 +27,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -59,8 +61,6 @@ public class FileRotator {
     private static final String SUFFIX_BACKUP = ".backup";
     private static final String SUFFIX_NO_BACKUP = ".no_backup";
 
-    // TODO: provide method to append to active file
-
     /**
      * External class that reads data from a given {@link InputStream}. May be
      * called multiple times when reading rotated data.
@@ -85,6 +85,28 @@ public class FileRotator {
         public boolean shouldWrite();
     }
 
+    /**
+     * External class that appends data to the end of an existing file, which
+     * may be empty. Responsible for recognizing and truncating any partial
+     * write left behind by an earlier append.
+     */
+    public interface Appender {
+        /**
+         * Append data through the given channel. Returns false without
+         * writing anything when the existing contents can't be appended to,
+         * in which case the caller should rewrite the file instead.
+         */
+        public boolean append(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * External class that operates on a file in place, for example by
+     * mapping it into memory. Must not modify the file.
+     */
+    public interface FileVisitor {
+        public void visit(File file) throws IOException;
+    }
+
     /**
      * Create a file rotator.
      *
@@ -184,6 +206,32 @@ public class FileRotator {
         rewriteSingle(rewriter, activeName);
     }
 
+    /**
+     * Append to the currently active file without reading or rewriting its
+     * existing contents. The file is synced once the append finishes. Unlike
+     * {@link #rewriteActive(Rewriter, long)} no backup is kept, so the
+     * {@link Appender} must tolerate a partial append from an earlier crash.
+     *
+     * @return false if the {@link Appender} declined to append.
+     */
+    public boolean appendActive(Appender appender, long currentTimeMillis)
+            throws IOException {
+        final String activeName = getActiveName(currentTimeMillis);
+        if (LOGD) Slog.d(TAG, "appending " + activeName);
+
+        final File file = new File(mBasePath, activeName);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (!appender.append(raf.getChannel())) {
+                return false;
+            }
+            raf.getFD().sync();
+            return true;
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
     @Deprecated
     public void combineActive(final Reader reader, final Writer writer, long currentTimeMillis)
             throws IOException {
@@ -298,6 +346,25 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Visit any rotated files that overlap the requested time range, handing
+     * out the files themselves rather than streams over their contents.
+     */
+    public void visitMatching(FileVisitor visitor, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // visit file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "visiting matching " + name);
+
+                visitor.visit(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
@@ -20,6 +20,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -28,65 +30,135 @@ import java.nio.charset.StandardCharsets;
  * requires each line boundary to be explicitly acknowledged using
  * {@link #finishLine()}. Assumes {@link StandardCharsets#US_ASCII} encoding.
  * <p>
+ * Besides the {@link String} based accessors, tokens can be compared in place
+ * with {@link #nextTokenEquals(byte[])}, viewed through a reused
+ * {@link CharSequence} with {@link #nextToken()}, or mapped to a previously
+ * returned {@link String} with {@link #nextInternedString()}. Together with
+ * {@link #nextLong()}, which parses straight from the buffer, and a reader
+ * built over a {@link FileChannel} that is {@link #rewind() rewound} between
+ * polls, parsing a file again allocates nothing once warmed up.
+ * <p>
  * Currently doesn't support formats based on {@code \0}, tabs, or repeated
  * delimiters.
  */
 public class ProcFileReader implements Closeable {
+    /** Number of slots in {@link #mInterned}; a power of two. */
+    private static final int INTERNED_SIZE = 64;
+
     private final InputStream mStream;
+    private final FileChannel mChannel;
     private final byte[] mBuffer;
+    /** Wrapper of {@link #mBuffer} used for channel reads. */
+    private final ByteBuffer mByteBuffer;
 
+    /** Read pointer in {@link #mBuffer}; data before it has been consumed. */
+    private int mHead;
     /** Write pointer in {@link #mBuffer}. */
     private int mTail;
+    /** Offset in {@link #mChannel} of the next read. */
+    private long mPosition;
     /** Flag when last read token finished current line. */
     private boolean mLineFinished;
 
+    private Token mToken;
+    private String[] mInterned;
+
     public ProcFileReader(InputStream stream) throws IOException {
         this(stream, 4096);
     }
 
     public ProcFileReader(InputStream stream, int bufferSize) throws IOException {
         mStream = stream;
+        mChannel = null;
+        mBuffer = new byte[bufferSize];
+        mByteBuffer = null;
+
+        // read enough to answer hasMoreData
+        fillBuf();
+    }
+
+    /**
+     * Create a reader that reads the given channel with positional reads, so
+     * that the same reader and channel can parse the file again after
+     * {@link #rewind()}.
+     */
+    public ProcFileReader(FileChannel channel, int bufferSize) throws IOException {
+        mStream = null;
+        mChannel = channel;
         mBuffer = new byte[bufferSize];
+        mByteBuffer = ByteBuffer.wrap(mBuffer);
 
         // read enough to answer hasMoreData
         fillBuf();
     }
 
     /**
-     * Read more data from {@link #mStream} into internal buffer.
+     * Start parsing again from the beginning of the file, which for
+     * {@code /proc/} files returns their current contents. Only supported by
+     * readers created over a {@link FileChannel}.
+     */
+    public void rewind() throws IOException {
+        if (mChannel == null) {
+            throw new IllegalStateException("rewind requires a FileChannel");
+        }
+        mHead = 0;
+        mTail = 0;
+        mPosition = 0;
+        mLineFinished = false;
+        fillBuf();
+    }
+
+    /**
+     * Read more data from {@link #mStream} into internal buffer, first moving
+     * any unconsumed data to the front if the buffer is full.
      */
     private int fillBuf() throws IOException {
+        if (mTail == mBuffer.length && mHead > 0) {
+            System.arraycopy(mBuffer, mHead, mBuffer, 0, mTail - mHead);
+            mTail -= mHead;
+            mHead = 0;
+        }
+
         final int length = mBuffer.length - mTail;
         if (length == 0) {
             throw new IOException("attempting to fill already-full buffer");
         }
 
-        final int read = mStream.read(mBuffer, mTail, length);
-        if (read != -1) {
+        final int read;
+        if (mChannel != null) {
+            mByteBuffer.limit(mBuffer.length);
+            mByteBuffer.position(mTail);
+            read = mChannel.read(mByteBuffer, mPosition);
+            if (read > 0) {
+                mPosition += read;
+            }
+        } else {
+            read = mStream.read(mBuffer, mTail, length);
+        }
+        if (read > 0) {
             mTail += read;
         }
         return read;
     }
 
     /**
-     * Consume number of bytes from beginning of internal buffer. If consuming
+     * Consume number of bytes from beginning of unconsumed data. If consuming
      * all remaining bytes, will attempt to {@link #fillBuf()}.
      */
     private void consumeBuf(int count) throws IOException {
-        // TODO: consider moving to read pointer, but for now traceview says
-        // these copies aren't a bottleneck.
-        System.arraycopy(mBuffer, count, mBuffer, 0, mTail - count);
-        mTail -= count;
-        if (mTail == 0) {
+        mHead += count;
+        if (mHead == mTail) {
+            mHead = 0;
+            mTail = 0;
             fillBuf();
         }
     }
 
     /**
-     * Find buffer index of next token delimiter, usually space or newline.
-     * Fills buffer as needed.
+     * Find length of next token up to its delimiter, usually space or newline.
+     * Fills buffer as needed; the token then starts at {@link #mHead}.
      *
-     * @return Index of next delimeter, otherwise -1 if no tokens remain on
+     * @return Length of next token, otherwise -1 if no tokens remain on
      *         current line.
      */
     private int nextTokenIndex() throws IOException {
@@ -97,8 +169,8 @@ public class ProcFileReader implements Closeable {
         int i = 0;
         do {
             // scan forward for token boundary
-            for (; i < mTail; i++) {
-                final byte b = mBuffer[i];
+            for (; mHead + i < mTail; i++) {
+                final byte b = mBuffer[mHead + i];
                 if (b == '\n') {
                     mLineFinished = true;
                     return i;
@@ -116,7 +188,14 @@ public class ProcFileReader implements Closeable {
      * Check if stream has more data to be parsed.
      */
     public boolean hasMoreData() {
-        return mTail > 0;
+        return mTail > mHead;
+    }
+
+    /**
+     * Check if current line has more tokens to be parsed.
+     */
+    public boolean hasMoreTokens() {
+        return !mLineFinished;
     }
 
     /**
@@ -129,15 +208,17 @@ public class ProcFileReader implements Closeable {
             return;
         }
 
-        int i = 0;
         do {
             // scan forward for line boundary and consume
-            for (; i < mTail; i++) {
-                if (mBuffer[i] == '\n') {
+            for (int i = 0; mHead + i < mTail; i++) {
+                if (mBuffer[mHead + i] == '\n') {
                     consumeBuf(i + 1);
                     return;
                 }
             }
+            // drop scanned data so lines longer than the buffer can be skipped
+            mHead = 0;
+            mTail = 0;
         } while (fillBuf() > 0);
 
         throw new ProtocolException("End of stream while looking for line boundary");
@@ -155,6 +236,72 @@ public class ProcFileReader implements Closeable {
         }
     }
 
+    /**
+     * Parse next token as {@link String}, returning the same instance as an
+     * earlier call for the same token when possible. Suited to columns with
+     * few distinct values, like interface names, which then stop allocating
+     * after the first poll.
+     */
+    public String nextInternedString() throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required string");
+        }
+
+        int hash = 0;
+        for (int i = 0; i < tokenIndex; i++) {
+            hash = hash * 31 + mBuffer[mHead + i];
+        }
+        if (mInterned == null) {
+            mInterned = new String[INTERNED_SIZE];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (INTERNED_SIZE - 1);
+        String s = mInterned[slot];
+        if (s == null || !equalsToken(s, tokenIndex)) {
+            // new or colliding token replaces whatever was cached in its slot
+            s = new String(mBuffer, mHead, tokenIndex, StandardCharsets.US_ASCII);
+            mInterned[slot] = s;
+        }
+        consumeBuf(tokenIndex + 1);
+        return s;
+    }
+
+    /**
+     * Consume next token and return a view of it, which is only valid until
+     * the next call to this method. The returned object is reused across
+     * calls, so callers must copy it, for example with
+     * {@link CharSequence#toString()}, to keep it.
+     */
+    public CharSequence nextToken() throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required string");
+        }
+        if (mToken == null) {
+            mToken = new Token();
+        }
+        mToken.set(mBuffer, mHead, tokenIndex);
+        consumeBuf(tokenIndex + 1);
+        return mToken;
+    }
+
+    /**
+     * Consume next token and return whether it equals the given ASCII bytes,
+     * without creating a {@link String}.
+     */
+    public boolean nextTokenEquals(byte[] expected) throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required string");
+        }
+        boolean equals = tokenIndex == expected.length;
+        for (int i = 0; equals && i < tokenIndex; i++) {
+            equals = mBuffer[mHead + i] == expected[i];
+        }
+        consumeBuf(tokenIndex + 1);
+        return equals;
+    }
+
     /**
      * Parse and return next token as base-10 encoded {@code long}.
      */
@@ -180,19 +327,73 @@ public class ProcFileReader implements Closeable {
         }
     }
 
+    /**
+     * Parse and return next token as an unsigned base-16 encoded {@code long},
+     * with an optional {@code 0x} prefix.
+     */
+    public long nextHexLong() throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required long");
+        }
+
+        int i = 0;
+        if (tokenIndex > 2 && mBuffer[mHead] == '0'
+                && (mBuffer[mHead + 1] == 'x' || mBuffer[mHead + 1] == 'X')) {
+            i = 2;
+        }
+        if (i == tokenIndex || tokenIndex - i > 16) {
+            throw invalidLong(tokenIndex);
+        }
+
+        long result = 0;
+        for (; i < tokenIndex; i++) {
+            final int digit = Character.digit(mBuffer[mHead + i], 16);
+            if (digit < 0) {
+                throw invalidLong(tokenIndex);
+            }
+            result = (result << 4) | digit;
+        }
+
+        consumeBuf(tokenIndex + 1);
+        return result;
+    }
+
+    private boolean equalsToken(String s, int tokenIndex) {
+        if (s.length() != tokenIndex) {
+            return false;
+        }
+        for (int i = 0; i < tokenIndex; i++) {
+            if (s.charAt(i) != mBuffer[mHead + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private String parseAndConsumeString(int tokenIndex) throws IOException {
-        final String s = new String(mBuffer, 0, tokenIndex, StandardCharsets.US_ASCII);
+        final String s = new String(mBuffer, mHead, tokenIndex, StandardCharsets.US_ASCII);
         consumeBuf(tokenIndex + 1);
         return s;
     }
 
     private long parseAndConsumeLong(int tokenIndex) throws IOException {
-        final boolean negative = mBuffer[0] == '-';
+        final long result = parseLong(tokenIndex, tokenIndex);
+        consumeBuf(tokenIndex + 1);
+        return result;
+    }
+
+    /**
+     * Parse the first {@code length} bytes of the token of the given length
+     * as a base-10 encoded {@code long}.
+     */
+    private long parseLong(int length, int tokenIndex) {
+        final boolean negative = length > 0 && mBuffer[mHead] == '-';
 
         // TODO: refactor into something like IntegralToString
         long result = 0;
-        for (int i = negative ? 1 : 0; i < tokenIndex; i++) {
-            final int digit = mBuffer[i] - '0';
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            final int digit = mBuffer[mHead + i] - '0';
             if (digit < 0 || digit > 9) {
                 throw invalidLong(tokenIndex);
             }
@@ -205,14 +406,12 @@ public class ProcFileReader implements Closeable {
             }
             result = next;
         }
-
-        consumeBuf(tokenIndex + 1);
         return negative ? result : -result;
     }
 
     private NumberFormatException invalidLong(int tokenIndex) {
-        return new NumberFormatException(
-                "invalid long: " + new String(mBuffer, 0, tokenIndex, StandardCharsets.US_ASCII));
+        return new NumberFormatException("invalid long: "
+                + new String(mBuffer, mHead, tokenIndex, StandardCharsets.US_ASCII));
     }
 
     /**
@@ -226,8 +425,73 @@ public class ProcFileReader implements Closeable {
         return (int) value;
     }
 
+    /**
+     * Parse and return next token as base-10 encoded {@code int} directly
+     * followed by the given suffix, like the {@code "10023:"} keys that start
+     * the lines of the {@code /proc/uid_*} files.
+     */
+    public int nextIntWithSuffix(char suffix) throws IOException {
+        final int tokenIndex = nextTokenIndex();
+        if (tokenIndex == -1) {
+            throw new ProtocolException("Missing required int");
+        }
+        if (tokenIndex < 2 || mBuffer[mHead + tokenIndex - 1] != suffix) {
+            throw invalidLong(tokenIndex);
+        }
+        final long value = parseLong(tokenIndex - 1, tokenIndex);
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new NumberFormatException("parsed value larger than integer");
+        }
+        consumeBuf(tokenIndex + 1);
+        return (int) value;
+    }
+
     @Override
     public void close() throws IOException {
-        mStream.close();
+        if (mChannel != null) {
+            mChannel.close();
+        } else {
+            mStream.close();
+        }
+    }
+
+    /**
+     * Reusable {@link CharSequence} over a copy of the last token returned by
+     * {@link #nextToken()}.
+     */
+    private static class Token implements CharSequence {
+        private byte[] mBytes = new byte[32];
+        private int mLength;
+
+        void set(byte[] buffer, int offset, int length) {
+            if (length > mBytes.length) {
+                mBytes = new byte[Math.max(length, mBytes.length * 2)];
+            }
+            System.arraycopy(buffer, offset, mBytes, 0, length);
+            mLength = length;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= mLength) {
+                throw new IndexOutOfBoundsException("index=" + index + " length=" + mLength);
+            }
+            return (char) mBytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBytes, 0, mLength, StandardCharsets.US_ASCII);
+        }
     }
 }
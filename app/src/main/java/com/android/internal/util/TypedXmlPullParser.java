@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * An {@link XmlPullParser} that can return primitive attribute values without going
+ * through a string, when they were written by a {@link TypedXmlSerializer} into a format
+ * that keeps them typed.  Attributes stored as strings are parsed, so callers do not
+ * need to know how the value was written.
+ *
+ * {@hide}
+ */
+public interface TypedXmlPullParser extends XmlPullParser {
+    /**
+     * Returns the index of the attribute of the current start tag with the given name,
+     * or -1 if there is none.  The namespace is ignored when it is null.
+     */
+    int getAttributeIndex(String namespace, String name);
+
+    /** @throws XmlPullParserException if the value is not a decimal int. */
+    int getAttributeInt(int index) throws XmlPullParserException;
+
+    /** @throws XmlPullParserException if the value is not a hexadecimal int. */
+    int getAttributeIntHex(int index) throws XmlPullParserException;
+
+    /** @throws XmlPullParserException if the value is not a decimal long. */
+    long getAttributeLong(int index) throws XmlPullParserException;
+
+    /** @throws XmlPullParserException if the value is not a hexadecimal long. */
+    long getAttributeLongHex(int index) throws XmlPullParserException;
+
+    /** @throws XmlPullParserException if the value is not a float. */
+    float getAttributeFloat(int index) throws XmlPullParserException;
+
+    /** @throws XmlPullParserException if the value is not "true" or "false". */
+    boolean getAttributeBoolean(int index) throws XmlPullParserException;
+}
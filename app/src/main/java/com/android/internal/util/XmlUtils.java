@@ -1593,6 +1593,18 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name, int defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            final int index = typed.getAttributeIndex(null, name);
+            if (index < 0) {
+                return defaultValue;
+            }
+            try {
+                return typed.getAttributeInt(index);
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1605,6 +1617,15 @@ public class XmlUtils {
     }
 
     public static int readIntAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            try {
+                return typed.getAttributeInt(typed.getAttributeIndex(null, name));
+            } catch (XmlPullParserException | IndexOutOfBoundsException e) {
+                throw new ProtocolException("problem parsing " + name + "="
+                        + typed.getAttributeValue(null, name) + " as int");
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Integer.parseInt(value);
@@ -1615,10 +1636,26 @@ public class XmlUtils {
 
     public static void writeIntAttribute(XmlSerializer out, String name, int value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeInt(null, name, value);
+            return;
+        }
         out.attribute(null, name, Integer.toString(value));
     }
 
     public static long readLongAttribute(XmlPullParser in, String name, long defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            final int index = typed.getAttributeIndex(null, name);
+            if (index < 0) {
+                return defaultValue;
+            }
+            try {
+                return typed.getAttributeLong(index);
+            } catch (XmlPullParserException e) {
+                return defaultValue;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (TextUtils.isEmpty(value)) {
             return defaultValue;
@@ -1631,6 +1668,15 @@ public class XmlUtils {
     }
 
     public static long readLongAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            try {
+                return typed.getAttributeLong(typed.getAttributeIndex(null, name));
+            } catch (XmlPullParserException | IndexOutOfBoundsException e) {
+                throw new ProtocolException("problem parsing " + name + "="
+                        + typed.getAttributeValue(null, name) + " as long");
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Long.parseLong(value);
@@ -1641,30 +1687,58 @@ public class XmlUtils {
 
     public static void writeLongAttribute(XmlSerializer out, String name, long value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeLong(null, name, value);
+            return;
+        }
         out.attribute(null, name, Long.toString(value));
     }
 
     public static float readFloatAttribute(XmlPullParser in, String name) throws IOException {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            try {
+                return typed.getAttributeFloat(typed.getAttributeIndex(null, name));
+            } catch (XmlPullParserException | IndexOutOfBoundsException e) {
+                throw new ProtocolException("problem parsing " + name + "="
+                        + typed.getAttributeValue(null, name) + " as float");
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         try {
             return Float.parseFloat(value);
         } catch (NumberFormatException e) {
-            throw new ProtocolException("problem parsing " + name + "=" + value + " as long");
+            throw new ProtocolException("problem parsing " + name + "=" + value + " as float");
         }
     }
 
     public static void writeFloatAttribute(XmlSerializer out, String name, float value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeFloat(null, name, value);
+            return;
+        }
         out.attribute(null, name, Float.toString(value));
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name) {
-        final String value = in.getAttributeValue(null, name);
-        return Boolean.parseBoolean(value);
+        return readBooleanAttribute(in, name, false);
     }
 
     public static boolean readBooleanAttribute(XmlPullParser in, String name,
             boolean defaultValue) {
+        if (in instanceof TypedXmlPullParser) {
+            final TypedXmlPullParser typed = (TypedXmlPullParser) in;
+            final int index = typed.getAttributeIndex(null, name);
+            if (index < 0) {
+                return defaultValue;
+            }
+            try {
+                return typed.getAttributeBoolean(index);
+            } catch (XmlPullParserException e) {
+                return false;
+            }
+        }
         final String value = in.getAttributeValue(null, name);
         if (value == null) {
             return defaultValue;
@@ -1675,6 +1749,10 @@ public class XmlUtils {
 
     public static void writeBooleanAttribute(XmlSerializer out, String name, boolean value)
             throws IOException {
+        if (out instanceof TypedXmlSerializer) {
+            ((TypedXmlSerializer) out).attributeBoolean(null, name, value);
+            return;
+        }
         out.attribute(null, name, Boolean.toString(value));
     }
 
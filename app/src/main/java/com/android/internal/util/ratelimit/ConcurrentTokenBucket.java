@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util.ratelimit;
+
+import android.os.SystemClock;
+
+import static com.android.internal.util.Preconditions.checkArgumentInRange;
+import static com.android.internal.util.Preconditions.checkArgumentNonnegative;
+import static com.android.internal.util.Preconditions.checkArgumentPositive;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, lock-free version of {@link com.android.internal.util.TokenBucket}.
+ *
+ * The bucket gains one token every filling period, up to its capacity, and the amount of
+ * available tokens is computed lazily whenever the bucket is inspected.  The whole state,
+ * the number of tokens and the time of the last fill, is packed into a single long that
+ * is updated with compare-and-set, so any number of threads can take tokens without
+ * blocking each other.
+ *
+ * Capacity is limited to {@link #MAX_CAPACITY} tokens.  Methods that take a {@code nowMs}
+ * argument expect {@link SystemClock#elapsedRealtime()} based times.
+ *
+ * {@hide}
+ */
+public class ConcurrentTokenBucket {
+
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    /** Largest supported capacity. */
+    public static final int MAX_CAPACITY = (int) TOKEN_MASK;
+
+    private final int mFillDelta; // Time in ms it takes to generate one token.
+    private final int mCapacity;  // Maximum number of tokens that can be stored.
+    private final long mBaseTick; // Fill period of construction; packed ticks are relative.
+
+    // (last fill tick - mBaseTick) << TOKEN_BITS | available tokens
+    private final AtomicLong mState = new AtomicLong();
+
+    /**
+     * Create a new ConcurrentTokenBucket.
+     * @param deltaMs the time in milliseconds it takes to generate a new token.
+     * Must be strictly positive.
+     * @param capacity the maximum token capacity. Must be in [1, MAX_CAPACITY].
+     * @param tokens the starting amount of token. Must be positive or zero.
+     */
+    public ConcurrentTokenBucket(int deltaMs, int capacity, int tokens) {
+        this(deltaMs, capacity, tokens, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Create a new ConcurrentTokenBucket that starts completely filled.
+     * @param deltaMs the time in milliseconds it takes to generate a new token.
+     * Must be strictly positive.
+     * @param capacity the maximum token capacity. Must be in [1, MAX_CAPACITY].
+     */
+    public ConcurrentTokenBucket(int deltaMs, int capacity) {
+        this(deltaMs, capacity, capacity);
+    }
+
+    /** Same as {@link #ConcurrentTokenBucket(int, int, int)}, created at {@code nowMs}. */
+    public ConcurrentTokenBucket(int deltaMs, int capacity, int tokens, long nowMs) {
+        mFillDelta = checkArgumentPositive(deltaMs, "deltaMs must be strictly positive");
+        mCapacity = checkArgumentInRange(capacity, 1, MAX_CAPACITY, "capacity");
+        mBaseTick = nowMs / mFillDelta;
+        mState.set(Math.min(checkArgumentNonnegative(tokens), mCapacity));
+    }
+
+    /** Reset this bucket and set its number of available tokens. */
+    public void reset(int tokens) {
+        reset(tokens, SystemClock.elapsedRealtime());
+    }
+
+    public void reset(int tokens, long nowMs) {
+        checkArgumentNonnegative(tokens);
+        mState.set(pack(tick(nowMs), Math.min(tokens, mCapacity)));
+    }
+
+    /** Returns this bucket maximum token capacity. */
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /** Returns the number of tokens currently available. */
+    public int available() {
+        return available(SystemClock.elapsedRealtime());
+    }
+
+    public int available(long nowMs) {
+        return fill(mState.get(), tick(nowMs));
+    }
+
+    /** Returns true if this bucket has one or more tokens available. */
+    public boolean has() {
+        return available() > 0;
+    }
+
+    /**
+     * Returns true if this bucket is at capacity at {@code nowMs}.  A full bucket behaves
+     * exactly like a newly created one, so it can be discarded and recreated later.
+     */
+    public boolean isFull(long nowMs) {
+        return available(nowMs) == mCapacity;
+    }
+
+    /** Consumes a token from this bucket and returns true if a token was available. */
+    public boolean get() {
+        return (get(1) == 1);
+    }
+
+    /**
+     * Try to consume many tokens from this bucket.
+     * @param n the number of tokens to consume.
+     * @return the number of tokens that were actually consumed.
+     */
+    public int get(int n) {
+        return get(n, SystemClock.elapsedRealtime());
+    }
+
+    public int get(int n, long nowMs) {
+        if (n <= 0) {
+            return 0;
+        }
+        final long now = tick(nowMs);
+        while (true) {
+            final long state = mState.get();
+            final int available = fill(state, now);
+            if (available == 0) {
+                return 0;
+            }
+            final int got = Math.min(n, available);
+            final long lastFill = Math.max(now, state >>> TOKEN_BITS);
+            if (mState.compareAndSet(state, pack(lastFill, available - got))) {
+                return got;
+            }
+        }
+    }
+
+    private int fill(long state, long now) {
+        final long diff = now - (state >>> TOKEN_BITS);
+        final long available = state & TOKEN_MASK;
+        if (diff <= 0) {
+            return (int) available;
+        }
+        return (int) Math.min(mCapacity, available + diff);
+    }
+
+    private long tick(long nowMs) {
+        // Clamp times from before construction, which a racing caller may pass.
+        return Math.max(0, nowMs / mFillDelta - mBaseTick);
+    }
+
+    private static long pack(long tick, int tokens) {
+        return (tick << TOKEN_BITS) | tokens;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util.ratelimit;
+
+import android.os.SystemClock;
+
+import static com.android.internal.util.Preconditions.checkArgumentInRange;
+import static com.android.internal.util.Preconditions.checkArgumentPositive;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rate limits events per key, e.g. per uid or per package, with one
+ * {@link ConcurrentTokenBucket} for each key.  Safe to call from any number of threads;
+ * callers with different keys never contend on a shared lock.
+ *
+ * Memory is bounded by {@code maxKeys}.  When the limit is reached, buckets that have
+ * refilled completely are dropped first: a full bucket is indistinguishable from a new
+ * one, so this changes nothing.  If every bucket is still in use, arbitrary keys are
+ * evicted, which forgets their history and briefly lets them through at full capacity.
+ * That only happens when more than {@code maxKeys} keys are throttled at the same time.
+ *
+ * {@hide}
+ */
+public class KeyedRateLimiter<K> {
+
+    private final int mFillDelta;
+    private final int mCapacity;
+    private final int mMaxKeys;
+
+    private final ConcurrentHashMap<K, ConcurrentTokenBucket> mBuckets;
+    private final AtomicBoolean mTrimming = new AtomicBoolean();
+
+    /**
+     * @param deltaMs the time in milliseconds it takes a key to regain one token.
+     * @param capacity the number of events a key may burst before being throttled.
+     * @param maxKeys the maximum number of keys tracked at once.
+     */
+    public KeyedRateLimiter(int deltaMs, int capacity, int maxKeys) {
+        mFillDelta = checkArgumentPositive(deltaMs, "deltaMs must be strictly positive");
+        mCapacity = checkArgumentInRange(capacity, 1, ConcurrentTokenBucket.MAX_CAPACITY,
+                "capacity");
+        mMaxKeys = checkArgumentPositive(maxKeys, "maxKeys must be strictly positive");
+        mBuckets = new ConcurrentHashMap<>(Math.min(maxKeys, 16));
+    }
+
+    /**
+     * Consumes a token for {@code key}.
+     * @return true if the event is allowed, false if it should be throttled.
+     */
+    public boolean tryAcquire(K key) {
+        return tryAcquire(key, SystemClock.elapsedRealtime());
+    }
+
+    public boolean tryAcquire(K key, long nowMs) {
+        ConcurrentTokenBucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            if (mBuckets.size() >= mMaxKeys) {
+                trim(nowMs);
+            }
+            bucket = mBuckets.computeIfAbsent(key,
+                    k -> new ConcurrentTokenBucket(mFillDelta, mCapacity, mCapacity, nowMs));
+        }
+        return bucket.get(1, nowMs) == 1;
+    }
+
+    /** Returns the number of tokens {@code key} has left. */
+    public int available(K key, long nowMs) {
+        final ConcurrentTokenBucket bucket = mBuckets.get(key);
+        return bucket != null ? bucket.available(nowMs) : mCapacity;
+    }
+
+    /** Forgets the history of {@code key}, e.g. when its package is removed. */
+    public void remove(K key) {
+        mBuckets.remove(key);
+    }
+
+    /** Returns the number of keys currently tracked. */
+    public int size() {
+        return mBuckets.size();
+    }
+
+    private void trim(long nowMs) {
+        // One thread trims at a time; others proceed and may briefly exceed the limit.
+        if (!mTrimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final Iterator<ConcurrentTokenBucket> it = mBuckets.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isFull(nowMs)) {
+                    it.remove();
+                }
+            }
+            if (mBuckets.size() >= mMaxKeys) {
+                // Every key is being throttled: evict down to 3/4 of the limit, so that the
+                // next trim is not immediate.
+                final int target = mMaxKeys - Math.max(1, mMaxKeys / 4);
+                final Iterator<K> keys = mBuckets.keySet().iterator();
+                while (mBuckets.size() > target && keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                }
+            }
+        } finally {
+            mTrimming.set(false);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util.ratelimit;
+
+import android.os.SystemClock;
+
+import static com.android.internal.util.Preconditions.checkArgumentInRange;
+import static com.android.internal.util.Preconditions.checkArgumentPositive;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe count of the events that happened during the last window of time.
+ *
+ * The window is divided into a fixed number of buckets, so memory use is constant and
+ * the window slides with the granularity of one bucket.  Each bucket packs the bucket
+ * period it counts for and its count into a single long, updated with compare-and-set,
+ * so recording an event never takes a lock.
+ *
+ * {@link #tryAcquire} checks the count and records the event as two separate steps;
+ * when many threads race at the limit it may let a few extra events through.
+ *
+ * Methods that take a {@code nowMs} argument expect {@link SystemClock#elapsedRealtime()}
+ * based times.
+ *
+ * {@hide}
+ */
+public class SlidingWindowCounter {
+
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final long mBucketMs;
+    private final int mBucketCount;
+
+    // Per bucket: period << COUNT_BITS | count, where period = nowMs / mBucketMs.
+    private final AtomicLongArray mBuckets;
+
+    /**
+     * @param windowMs length of the window. Must be strictly positive.
+     * @param buckets number of buckets the window is divided into; more buckets slide the
+     * window more smoothly. Must be in [1, 1024].
+     */
+    public SlidingWindowCounter(int windowMs, int buckets) {
+        checkArgumentPositive(windowMs, "windowMs must be strictly positive");
+        mBucketCount = checkArgumentInRange(buckets, 1, 1024, "buckets");
+        mBucketMs = Math.max(1, windowMs / buckets);
+        mBuckets = new AtomicLongArray(mBucketCount);
+    }
+
+    /** Records one event now. */
+    public void increment() {
+        add(1, SystemClock.elapsedRealtime());
+    }
+
+    /** Records {@code n} events at {@code nowMs}. Counts saturate at 2^24 - 1 per bucket. */
+    public void add(int n, long nowMs) {
+        final long period = nowMs / mBucketMs;
+        final int index = (int) (period % mBucketCount);
+        while (true) {
+            final long bucket = mBuckets.get(index);
+            final long bucketPeriod = bucket >>> COUNT_BITS;
+            final long next;
+            if (bucketPeriod == period) {
+                next = (period << COUNT_BITS)
+                        | Math.min(COUNT_MASK, (bucket & COUNT_MASK) + n);
+            } else if (bucketPeriod < period) {
+                next = (period << COUNT_BITS) | Math.min(COUNT_MASK, n);
+            } else {
+                // A racing caller with a later clock already recycled this bucket; the
+                // event is older than anything the bucket now counts, so drop it.
+                return;
+            }
+            if (mBuckets.compareAndSet(index, bucket, next)) {
+                return;
+            }
+        }
+    }
+
+    /** Returns the number of events recorded during the window ending now. */
+    public int getCount() {
+        return getCount(SystemClock.elapsedRealtime());
+    }
+
+    public int getCount(long nowMs) {
+        final long period = nowMs / mBucketMs;
+        long count = 0;
+        for (int i = 0; i < mBucketCount; i++) {
+            final long bucket = mBuckets.get(i);
+            final long age = period - (bucket >>> COUNT_BITS);
+            if (age >= 0 && age < mBucketCount) {
+                count += bucket & COUNT_MASK;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    /**
+     * Records an event if fewer than {@code limit} were recorded during the window.
+     * @return true if the event was recorded, false if it should be throttled.
+     */
+    public boolean tryAcquire(int limit) {
+        return tryAcquire(limit, SystemClock.elapsedRealtime());
+    }
+
+    public boolean tryAcquire(int limit, long nowMs) {
+        if (getCount(nowMs) >= limit) {
+            return false;
+        }
+        add(1, nowMs);
+        return true;
+    }
+
+    /** Forgets all recorded events. */
+    public void reset() {
+        for (int i = 0; i < mBucketCount; i++) {
+            mBuckets.set(i, 0);
+        }
+    }
+}
@@ -28,7 +28,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManagerInternal;
 import android.content.pm.UserInfo;
 import android.media.AudioAttributes;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
@@ -57,7 +56,6 @@ import com.android.internal.app.IAppOpsService;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 
@@ -71,10 +69,9 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -89,28 +86,15 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
+    // Changes that must not wait that long, such as removed uids, go out within 10 seconds.
+    static final long FAST_WRITE_DELAY = 10*1000;
 
     Context mContext;
     final AtomicFile mFile;
     final Handler mHandler;
 
-    boolean mWriteScheduled;
-    boolean mFastWriteScheduled;
-    final Runnable mWriteRunner = new Runnable() {
-        public void run() {
-            synchronized (AppOpsService.this) {
-                mWriteScheduled = false;
-                mFastWriteScheduled = false;
-                AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
-                    @Override protected Void doInBackground(Void... params) {
-                        writeState();
-                        return null;
-                    }
-                };
-                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[])null);
-            }
-        }
-    };
+    /** Batches our state file with the writes of other services. */
+    final GroupCommitScheduler.Client mWriteClient;
 
     private final SparseArray<UidState> mUidStates = new SparseArray<>();
 
@@ -242,6 +226,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath);
         mHandler = handler;
+        mWriteClient = GroupCommitScheduler.getInstance().register("appops", mFile, WRITE_DELAY,
+                this::writeState);
         readState();
     }
 
@@ -381,14 +367,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void shutdown() {
         Slog.w(TAG, "Writing app ops before shutdown...");
-        boolean doWrite = false;
-        synchronized (this) {
-            if (mWriteScheduled) {
-                mWriteScheduled = false;
-                doWrite = true;
-            }
-        }
-        if (doWrite) {
+        if (mWriteClient.isDirty()) {
             writeState();
         }
     }
@@ -1335,19 +1314,11 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleWriteLocked() {
-        if (!mWriteScheduled) {
-            mWriteScheduled = true;
-            mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
-        }
+        mWriteClient.markDirty();
     }
 
     private void scheduleFastWriteLocked() {
-        if (!mFastWriteScheduled) {
-            mWriteScheduled = true;
-            mFastWriteScheduled = true;
-            mHandler.removeCallbacks(mWriteRunner);
-            mHandler.postDelayed(mWriteRunner, 10*1000);
-        }
+        mWriteClient.markDirty(FAST_WRITE_DELAY);
     }
 
     private Op getOpLocked(int code, int uid, String packageName, boolean edit) {
@@ -1410,8 +1381,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 boolean success = false;
                 mUidStates.clear();
                 try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
+                    XmlPullParser parser = Xml.resolvePullParser(stream);
                     int type;
                     while ((type = parser.next()) != XmlPullParser.START_TAG
                             && type != XmlPullParser.END_DOCUMENT) {
@@ -1596,113 +1566,101 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /** Writes our state file now, on the calling thread. */
     void writeState() {
-        synchronized (mFile) {
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+        mWriteClient.flush();
+    }
 
-            FileOutputStream stream;
-            try {
-                stream = mFile.startWrite();
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state: " + e);
-                return;
-            }
+    private void writeState(OutputStream stream) throws IOException {
+        List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
 
-            try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.startTag(null, "app-ops");
-
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
+        XmlSerializer out = Xml.resolveSerializer(stream);
+        out.startDocument(null, true);
+        out.startTag(null, "app-ops");
+
+        final int uidStateCount = mUidStates.size();
+        for (int i = 0; i < uidStateCount; i++) {
+            UidState uidState = mUidStates.valueAt(i);
+            if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                out.startTag(null, "uid");
+                out.attribute(null, "n", Integer.toString(uidState.uid));
+                SparseIntArray uidOpModes = uidState.opModes;
+                final int opCount = uidOpModes.size();
+                for (int j = 0; j < opCount; j++) {
+                    final int op = uidOpModes.keyAt(j);
+                    final int mode = uidOpModes.valueAt(j);
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op));
+                    out.attribute(null, "m", Integer.toString(mode));
+                    out.endTag(null, "op");
                 }
+                out.endTag(null, "uid");
+            }
+        }
 
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!pkg.getPackageName().equals(lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            out.startTag(null, "pkg");
-                            out.attribute(null, "n", lastPkg);
-                        }
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
-                            if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
-                            }
-                            long time = op.getTime();
-                            if (time != 0) {
-                                out.attribute(null, "t", Long.toString(time));
-                            }
-                            time = op.getRejectTime();
-                            if (time != 0) {
-                                out.attribute(null, "r", Long.toString(time));
-                            }
-                            int dur = op.getDuration();
-                            if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
-                            }
-                            int proxyUid = op.getProxyUid();
-                            if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
-                            }
-                            String proxyPackageName = op.getProxyPackageName();
-                            if (proxyPackageName != null) {
-                                out.attribute(null, "pp", proxyPackageName);
-                            }
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
+        if (allOps != null) {
+            String lastPkg = null;
+            for (int i=0; i<allOps.size(); i++) {
+                AppOpsManager.PackageOps pkg = allOps.get(i);
+                if (!pkg.getPackageName().equals(lastPkg)) {
                     if (lastPkg != null) {
                         out.endTag(null, "pkg");
                     }
+                    lastPkg = pkg.getPackageName();
+                    out.startTag(null, "pkg");
+                    out.attribute(null, "n", lastPkg);
+                }
+                out.startTag(null, "uid");
+                out.attribute(null, "n", Integer.toString(pkg.getUid()));
+                synchronized (this) {
+                    Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
+                    // Should always be present as the list of PackageOps is generated
+                    // from Ops.
+                    if (ops != null) {
+                        out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
+                    } else {
+                        out.attribute(null, "p", Boolean.toString(false));
+                    }
                 }
-
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
+                List<AppOpsManager.OpEntry> ops = pkg.getOps();
+                for (int j=0; j<ops.size(); j++) {
+                    AppOpsManager.OpEntry op = ops.get(j);
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op.getOp()));
+                    if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
+                        out.attribute(null, "m", Integer.toString(op.getMode()));
+                    }
+                    long time = op.getTime();
+                    if (time != 0) {
+                        out.attribute(null, "t", Long.toString(time));
+                    }
+                    time = op.getRejectTime();
+                    if (time != 0) {
+                        out.attribute(null, "r", Long.toString(time));
+                    }
+                    int dur = op.getDuration();
+                    if (dur != 0) {
+                        out.attribute(null, "d", Integer.toString(dur));
+                    }
+                    int proxyUid = op.getProxyUid();
+                    if (proxyUid != -1) {
+                        out.attribute(null, "pu", Integer.toString(proxyUid));
+                    }
+                    String proxyPackageName = op.getProxyPackageName();
+                    if (proxyPackageName != null) {
+                        out.attribute(null, "pp", proxyPackageName);
+                    }
+                    out.endTag(null, "op");
+                }
+                out.endTag(null, "uid");
+            }
+            if (lastPkg != null) {
+                out.endTag(null, "pkg");
             }
         }
+
+        out.endTag(null, "app-ops");
+        out.endDocument();
     }
 
     static class Shell extends ShellCommand {
@@ -2094,9 +2052,6 @@ public class AppOpsService extends IAppOpsService.Stub {
                             Binder.getCallingPid(), Binder.getCallingUid(), null);
                     long token = Binder.clearCallingIdentity();
                     try {
-                        synchronized (shell.mInternal) {
-                            shell.mInternal.mHandler.removeCallbacks(shell.mInternal.mWriteRunner);
-                        }
                         shell.mInternal.writeState();
                         pw.println("Current settings written.");
                     } finally {
@@ -103,6 +103,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.LocalLog;
 import android.util.LocalLog.ReadOnlyLocalLog;
+import android.util.RingBufferLocalLog;
 import android.util.Log;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -454,10 +455,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     // NetworkInfo blocked and unblocked String log entries
     private static final int MAX_NETWORK_INFO_LOGS = 40;
-    private final LocalLog mNetworkInfoBlockingLogs = new LocalLog(MAX_NETWORK_INFO_LOGS);
+    private final RingBufferLocalLog mNetworkInfoBlockingLogs =
+            new RingBufferLocalLog(MAX_NETWORK_INFO_LOGS);
 
     private static final int MAX_WAKELOCK_LOGS = 20;
-    private final LocalLog mWakelockLogs = new LocalLog(MAX_WAKELOCK_LOGS);
+    private final RingBufferLocalLog mWakelockLogs = new RingBufferLocalLog(MAX_WAKELOCK_LOGS);
     private int mTotalWakelockAcquisitions = 0;
     private int mTotalWakelockReleases = 0;
     private long mTotalWakelockDurationMs = 0;
@@ -1042,7 +1044,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         String action = blocked ? "BLOCKED" : "UNBLOCKED";
         log(String.format("Returning %s NetworkInfo to uid=%d", action, uid));
-        mNetworkInfoBlockingLogs.log(action + " " + uid);
+        mNetworkInfoBlockingLogs.log("%s %d", action, uid);
     }
 
     /**
@@ -3030,7 +3032,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             mLastWakeLockAcquireTimestamp = SystemClock.elapsedRealtime();
             mTotalWakelockAcquisitions++;
         }
-        mWakelockLogs.log("ACQUIRE for " + forWhom);
+        mWakelockLogs.log("ACQUIRE for %s", forWhom);
         Message msg = mHandler.obtainMessage(EVENT_EXPIRE_NET_TRANSITION_WAKELOCK);
         mHandler.sendMessageDelayed(msg, mNetTransitionWakeLockTimeout);
     }
@@ -3056,7 +3058,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         String event = eventName(eventId);
         synchronized (this) {
             if (!mNetTransitionWakeLock.isHeld()) {
-                mWakelockLogs.log(String.format("RELEASE: already released (%s)", event));
+                mWakelockLogs.log("RELEASE: already released (%s)", event);
                 Slog.w(TAG, "expected Net Transition WakeLock to be held");
                 return;
             }
@@ -3066,7 +3068,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             mMaxWakelockDurationMs = Math.max(mMaxWakelockDurationMs, lockDuration);
             mTotalWakelockReleases++;
         }
-        mWakelockLogs.log(String.format("RELEASE (%s)", event));
+        mWakelockLogs.log("RELEASE (%s)", event);
     }
 
     // 100 percent is full good, 0 is full bad.
@@ -137,6 +137,7 @@ public class DiskStatsService extends Binder {
             reportCachedValuesProto(proto);
         } else {
             reportCachedValues(pw);
+            GroupCommitScheduler.getInstance().dump(pw, "");
         }
 
         if (protoFormat) {
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batches the {@link AtomicFile} writes of many system services into shared passes on the
+ * I/O thread.  A service registers each file it persists together with a {@link Writer}
+ * that serializes its current state, and then only marks the file dirty when that state
+ * changes instead of scheduling its own delayed write.
+ *
+ * <p>Each dirty file is written no later than the maximum latency it was marked dirty
+ * with.  When a pass runs it also picks up every other file that would be due within
+ * {@link #COALESCE_WINDOW_MS}, writes all of them, and then syncs them back to back in a
+ * single barrier before committing any of them, so that the file system can fold their
+ * flushes into as few journal commits as possible.  A file's backup is only removed once
+ * the barrier has completed, which keeps the usual {@link AtomicFile} guarantees.
+ *
+ * <p>Writers serialize into memory without any scheduler lock held, on the I/O thread or
+ * on the thread calling {@link Client#flush()}, and take whatever locks they need to
+ * snapshot their state; a service may therefore flush while holding its own lock.  Every
+ * serialization is ticketed when its file is marked clean, and a file is never overwritten
+ * by a snapshot older than the one it already holds.
+ */
+public final class GroupCommitScheduler {
+    private static final String TAG = "GroupCommitScheduler";
+    private static final boolean DEBUG = false;
+
+    /** Files due within this long of a pass are written by that pass. */
+    @VisibleForTesting
+    static final long COALESCE_WINDOW_MS = 5 * 1000;
+
+    /** Minimum delay before retrying a file that could not be written. */
+    private static final long RETRY_DELAY_MS = 10 * 1000;
+
+    private static GroupCommitScheduler sInstance;
+
+    /** Serializes the current state of a registered file. */
+    public interface Writer {
+        /**
+         * Writes the full contents of the file to {@code out}, which buffers them in
+         * memory.  Throwing leaves the file untouched until it is next marked dirty.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /** A file registered with the scheduler. */
+    public final class Client {
+        private final String mName;
+        private final AtomicFile mFile;
+        private final long mMaxLatencyMs;
+        private final Writer mWriter;
+
+        /** Uptime by which the pending write must happen, or -1 when clean. */
+        @GuardedBy("mLock")
+        private long mDeadline = -1;
+        /** Ticket of the newest snapshot on disk. */
+        @GuardedBy("mCommitLock")
+        private long mCommittedTicket;
+
+        private Client(String name, AtomicFile file, long maxLatencyMs, Writer writer) {
+            mName = name;
+            mFile = file;
+            mMaxLatencyMs = maxLatencyMs;
+            mWriter = writer;
+        }
+
+        /** Marks the file dirty, to be written within its registered maximum latency. */
+        public void markDirty() {
+            markDirty(mMaxLatencyMs);
+        }
+
+        /**
+         * Marks the file dirty, to be written within the given latency or any earlier
+         * deadline it already has.
+         */
+        public void markDirty(long maxLatencyMs) {
+            synchronized (mLock) {
+                final long deadline = SystemClock.uptimeMillis() + Math.max(maxLatencyMs, 0);
+                if (mDeadline < 0 || deadline < mDeadline) {
+                    mDeadline = deadline;
+                    scheduleLocked(deadline);
+                }
+            }
+        }
+
+        public boolean isDirty() {
+            synchronized (mLock) {
+                return mDeadline >= 0;
+            }
+        }
+
+        /**
+         * Writes and syncs the file on the calling thread whether or not it is dirty,
+         * for shutdown and other paths that need the data on disk before returning.
+         */
+        public void flush() {
+            final ArrayList<Pending> batch = new ArrayList<>(1);
+            synchronized (mLock) {
+                mDeadline = -1;
+                batch.add(new Pending(this, ++mLastTicket));
+            }
+            commit(batch);
+        }
+    }
+
+    /** One snapshot of a client on its way to disk. */
+    private static final class Pending {
+        final Client client;
+        final long ticket;
+        byte[] data;
+
+        Pending(Client client, long ticket) {
+            this.client = client;
+            this.ticket = ticket;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    /** Held while files are written and synced, so that writes to one file never overlap. */
+    private final Object mCommitLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayList<Client> mClients = new ArrayList<>();
+    /** Uptime the pass runnable is posted for, or -1 if none is. */
+    @GuardedBy("mLock")
+    private long mScheduledPass = -1;
+    @GuardedBy("mLock")
+    private long mLastTicket;
+    /** Longest a file has waited past its deadline, which shows how well it is kept. */
+    @GuardedBy("mLock")
+    private long mMaxLateMs;
+
+    @GuardedBy("mCommitLock")
+    private long mBatchCount;
+    @GuardedBy("mCommitLock")
+    private long mFileCount;
+    @GuardedBy("mCommitLock")
+    private long mFsyncCount;
+    private final AtomicLong mFailureCount = new AtomicLong();
+    @GuardedBy("mCommitLock")
+    private long mBytesWritten;
+    @GuardedBy("mCommitLock")
+    private long mSerializeTimeMs;
+    @GuardedBy("mCommitLock")
+    private long mWriteTimeMs;
+    @GuardedBy("mCommitLock")
+    private long mSyncTimeMs;
+
+    private final Runnable mPassRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runPass();
+        }
+    };
+
+    @VisibleForTesting
+    GroupCommitScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /** Returns the scheduler shared by all of system_server, running on {@link IoThread}. */
+    public static GroupCommitScheduler getInstance() {
+        synchronized (GroupCommitScheduler.class) {
+            if (sInstance == null) {
+                sInstance = new GroupCommitScheduler(IoThread.getHandler());
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Registers a file.  The returned client starts out clean.  Clients stay registered
+     * for the life of the process, so register each file once, from a service that lives
+     * as long.
+     *
+     * @param name short name used in logs and dumps.
+     * @param maxLatencyMs how long {@link Client#markDirty()} may leave the file unwritten.
+     */
+    public Client register(String name, AtomicFile file, long maxLatencyMs, Writer writer) {
+        final Client client = new Client(name, file, maxLatencyMs, writer);
+        synchronized (mLock) {
+            mClients.add(client);
+        }
+        return client;
+    }
+
+    /** Writes every dirty file now, on the calling thread. */
+    public void flush() {
+        final ArrayList<Pending> batch = new ArrayList<>();
+        synchronized (mLock) {
+            collectLocked(batch, Long.MAX_VALUE);
+        }
+        commit(batch);
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleLocked(long deadline) {
+        if (mScheduledPass >= 0 && mScheduledPass <= deadline) {
+            return;
+        }
+        mHandler.removeCallbacks(mPassRunnable);
+        mHandler.postAtTime(mPassRunnable, deadline);
+        mScheduledPass = deadline;
+    }
+
+    /** Moves every client due by {@code horizon} into {@code batch} and marks it clean. */
+    @GuardedBy("mLock")
+    private void collectLocked(ArrayList<Pending> batch, long horizon) {
+        final long now = SystemClock.uptimeMillis();
+        final int count = mClients.size();
+        for (int i = 0; i < count; i++) {
+            final Client client = mClients.get(i);
+            if (client.mDeadline >= 0 && client.mDeadline <= horizon) {
+                final long late = now - client.mDeadline;
+                if (late > mMaxLateMs) {
+                    mMaxLateMs = late;
+                }
+                client.mDeadline = -1;
+                batch.add(new Pending(client, ++mLastTicket));
+            }
+        }
+    }
+
+    private void runPass() {
+        final ArrayList<Pending> batch = new ArrayList<>();
+        synchronized (mLock) {
+            mScheduledPass = -1;
+            collectLocked(batch, SystemClock.uptimeMillis() + COALESCE_WINDOW_MS);
+            // Anything left is due later; wait for the earliest of it.
+            long next = -1;
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                final long deadline = mClients.get(i).mDeadline;
+                if (deadline >= 0 && (next < 0 || deadline < next)) {
+                    next = deadline;
+                }
+            }
+            if (next >= 0) {
+                scheduleLocked(next);
+            }
+        }
+        commit(batch);
+    }
+
+    /** Serializes every client of the batch, writes and syncs them all, then commits them. */
+    private void commit(ArrayList<Pending> batch) {
+        final int count = batch.size();
+        if (count == 0) {
+            return;
+        }
+        final long serializeStart = SystemClock.elapsedRealtime();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            final Pending pending = batch.get(i);
+            buffer.reset();
+            try {
+                pending.client.mWriter.write(buffer);
+                pending.data = buffer.toByteArray();
+            } catch (IOException | RuntimeException e) {
+                // Serializing the same state again would most likely fail the same way.
+                Slog.w(TAG, "Failed to serialize " + pending.client.mName, e);
+                mFailureCount.incrementAndGet();
+            }
+        }
+
+        synchronized (mCommitLock) {
+            final FileOutputStream[] streams = new FileOutputStream[count];
+            final long writeStart = SystemClock.elapsedRealtime();
+            for (int i = 0; i < count; i++) {
+                final Pending pending = batch.get(i);
+                final Client client = pending.client;
+                if (pending.data == null || pending.ticket < client.mCommittedTicket) {
+                    // Failed, or overtaken by a newer snapshot of the same file.
+                    continue;
+                }
+                FileOutputStream out = null;
+                try {
+                    out = client.mFile.startWrite();
+                    out.write(pending.data);
+                    streams[i] = out;
+                    mBytesWritten += pending.data.length;
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write " + client.mName + ", retrying later", e);
+                    client.mFile.failWrite(out);
+                    retry(client);
+                }
+            }
+
+            // The barrier: nothing is committed until every file of the batch is durable.
+            final long syncStart = SystemClock.elapsedRealtime();
+            for (int i = 0; i < count; i++) {
+                if (streams[i] != null) {
+                    if (!FileUtils.sync(streams[i])) {
+                        Slog.w(TAG, "Failed to sync " + batch.get(i).client.mName);
+                    }
+                    mFsyncCount++;
+                }
+            }
+            final long syncEnd = SystemClock.elapsedRealtime();
+
+            for (int i = 0; i < count; i++) {
+                if (streams[i] != null) {
+                    final Pending pending = batch.get(i);
+                    pending.client.mFile.finishSyncedWrite(streams[i]);
+                    pending.client.mCommittedTicket = pending.ticket;
+                    mFileCount++;
+                }
+            }
+            mBatchCount++;
+            mSerializeTimeMs += writeStart - serializeStart;
+            mWriteTimeMs += syncStart - writeStart;
+            mSyncTimeMs += syncEnd - syncStart;
+            if (DEBUG) {
+                Slog.d(TAG, "Committed " + count + " files, serialize "
+                        + (writeStart - serializeStart) + "ms, write "
+                        + (syncStart - writeStart) + "ms, sync " + (syncEnd - syncStart) + "ms");
+            }
+        }
+    }
+
+    private void retry(Client client) {
+        mFailureCount.incrementAndGet();
+        client.markDirty(Math.max(client.mMaxLatencyMs, RETRY_DELAY_MS));
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mCommitLock) {
+            pw.print(prefix); pw.print("Group commit: batches="); pw.print(mBatchCount);
+            pw.print(" files="); pw.print(mFileCount);
+            pw.print(" fsyncs="); pw.print(mFsyncCount);
+            pw.print(" failures="); pw.print(mFailureCount.get());
+            pw.print(" bytes="); pw.println(mBytesWritten);
+            pw.print(prefix); pw.print("  serialize time="); pw.print(mSerializeTimeMs);
+            pw.print("ms write time="); pw.print(mWriteTimeMs);
+            pw.print("ms sync time="); pw.print(mSyncTimeMs); pw.println("ms");
+        }
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("  max late="); pw.print(mMaxLateMs); pw.println("ms");
+            final long now = SystemClock.uptimeMillis();
+            for (int i = 0; i < mClients.size(); i++) {
+                final Client client = mClients.get(i);
+                pw.print(prefix); pw.print("  "); pw.print(client.mName);
+                pw.print(": max latency=");
+                TimeUtils.formatDuration(client.mMaxLatencyMs, pw);
+                if (client.mDeadline >= 0) {
+                    pw.print(" dirty, due in ");
+                    TimeUtils.formatDuration(client.mDeadline - now, pw);
+                }
+                pw.println();
+            }
+        }
+    }
+}
@@ -46,6 +46,7 @@ import android.util.*;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.server.GroupCommitScheduler;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -54,6 +55,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -130,6 +133,8 @@ public class SyncStorageEngine extends Handler {
 
     public static final int MAX_HISTORY = 100;
 
+    private static final long WRITE_ACCOUNT_INFO_DELAY = 1000*5; // 5 seconds
+
     private static final int MSG_WRITE_STATUS = 1;
     private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
 
@@ -439,6 +444,7 @@ public class SyncStorageEngine extends Handler {
      * infrequently, so it is stored as an XML file.
      */
     private final AtomicFile mAccountInfoFile;
+    private final GroupCommitScheduler.Client mAccountInfoWriteClient;
 
     /**
      * This file contains the current sync status.  We would like to retain
@@ -478,6 +484,12 @@ public class SyncStorageEngine extends Handler {
         maybeDeleteLegacyPendingInfoLocked(syncDir);
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"));
+        mAccountInfoWriteClient = GroupCommitScheduler.getInstance().register("sync-accounts",
+                mAccountInfoFile, WRITE_ACCOUNT_INFO_DELAY, out -> {
+                    synchronized (mAuthorities) {
+                        writeAccountInfoLocked(out);
+                    }
+                });
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
 
@@ -659,7 +671,7 @@ public class SyncStorageEngine extends Handler {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
 
         if (sync) {
@@ -722,7 +734,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle());
@@ -881,7 +893,7 @@ public class SyncStorageEngine extends Handler {
                 }
                 authority.periodicSyncs.clear();
             }
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return true;
     }
@@ -893,7 +905,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1005,7 +1017,7 @@ public class SyncStorageEngine extends Handler {
                         }
                     }
                 }
-                writeAccountInfoLocked();
+                scheduleWriteAccountInfoLocked();
                 writeStatusLocked();
                 writeStatisticsLocked();
             }
@@ -1430,7 +1442,7 @@ public class SyncStorageEngine extends Handler {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return authority;
     }
@@ -1457,7 +1469,7 @@ public class SyncStorageEngine extends Handler {
                 }
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    scheduleWriteAccountInfoLocked();
                 }
             }
         }
@@ -1474,7 +1486,9 @@ public class SyncStorageEngine extends Handler {
 
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
+            if (mAccountInfoWriteClient.isDirty()) {
+                writeAccountInfoLocked();
+            }
             writeStatusLocked();
             writeStatisticsLocked();
         }
@@ -1859,60 +1873,61 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Write all account information to the account file.
+     * Schedule writing all account information to the account file, batched with the
+     * writes of other services.
+     */
+    private void scheduleWriteAccountInfoLocked() {
+        mAccountInfoWriteClient.markDirty();
+    }
+
+    /**
+     * Write all account information to the account file now.
      */
     private void writeAccountInfoLocked() {
+        mAccountInfoWriteClient.flush();
+    }
+
+    private void writeAccountInfoLocked(OutputStream fos) throws IOException {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
-        FileOutputStream fos = null;
+        XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(fos, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
-        try {
-            fos = mAccountInfoFile.startWrite();
-            XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, StandardCharsets.UTF_8.name());
-            out.startDocument(null, true);
-            out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-            out.startTag(null, "accounts");
-            out.attribute(null, "version", Integer.toString(ACCOUNTS_VERSION));
-            out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID, Integer.toString(mNextAuthorityId));
-            out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET, Integer.toString(mSyncRandomOffset));
-
-            // Write the Sync Automatically flags for each user
-            final int M = mMasterSyncAutomatically.size();
-            for (int m = 0; m < M; m++) {
-                int userId = mMasterSyncAutomatically.keyAt(m);
-                Boolean listen = mMasterSyncAutomatically.valueAt(m);
-                out.startTag(null, XML_TAG_LISTEN_FOR_TICKLES);
-                out.attribute(null, XML_ATTR_USER, Integer.toString(userId));
-                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(listen));
-                out.endTag(null, XML_TAG_LISTEN_FOR_TICKLES);
-            }
-
-            final int N = mAuthorities.size();
-            for (int i = 0; i < N; i++) {
-                AuthorityInfo authority = mAuthorities.valueAt(i);
-                EndPoint info = authority.target;
-                out.startTag(null, "authority");
-                out.attribute(null, "id", Integer.toString(authority.ident));
-                out.attribute(null, XML_ATTR_USER, Integer.toString(info.userId));
-                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(authority.enabled));
-                out.attribute(null, "account", info.account.name);
-                out.attribute(null, "type", info.account.type);
-                out.attribute(null, "authority", info.provider);
-                out.attribute(null, "syncable", Integer.toString(authority.syncable));
-                out.endTag(null, "authority");
-            }
-            out.endTag(null, "accounts");
-            out.endDocument();
-            mAccountInfoFile.finishWrite(fos);
-        } catch (java.io.IOException e1) {
-            Slog.w(TAG, "Error writing accounts", e1);
-            if (fos != null) {
-                mAccountInfoFile.failWrite(fos);
-            }
+        out.startTag(null, "accounts");
+        out.attribute(null, "version", Integer.toString(ACCOUNTS_VERSION));
+        out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID, Integer.toString(mNextAuthorityId));
+        out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET, Integer.toString(mSyncRandomOffset));
+
+        // Write the Sync Automatically flags for each user
+        final int M = mMasterSyncAutomatically.size();
+        for (int m = 0; m < M; m++) {
+            int userId = mMasterSyncAutomatically.keyAt(m);
+            Boolean listen = mMasterSyncAutomatically.valueAt(m);
+            out.startTag(null, XML_TAG_LISTEN_FOR_TICKLES);
+            out.attribute(null, XML_ATTR_USER, Integer.toString(userId));
+            out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(listen));
+            out.endTag(null, XML_TAG_LISTEN_FOR_TICKLES);
         }
+
+        final int N = mAuthorities.size();
+        for (int i = 0; i < N; i++) {
+            AuthorityInfo authority = mAuthorities.valueAt(i);
+            EndPoint info = authority.target;
+            out.startTag(null, "authority");
+            out.attribute(null, "id", Integer.toString(authority.ident));
+            out.attribute(null, XML_ATTR_USER, Integer.toString(info.userId));
+            out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(authority.enabled));
+            out.attribute(null, "account", info.account.name);
+            out.attribute(null, "type", info.account.type);
+            out.attribute(null, "authority", info.provider);
+            out.attribute(null, "syncable", Integer.toString(authority.syncable));
+            out.endTag(null, "authority");
+        }
+        out.endTag(null, "accounts");
+        out.endDocument();
     }
 
     static int getIntColumn(Cursor c, String name) {
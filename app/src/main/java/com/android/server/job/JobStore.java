@@ -22,7 +22,6 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
-import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
@@ -37,18 +36,15 @@ import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
-import com.android.server.IoThread;
+import com.android.server.GroupCommitScheduler;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -64,7 +60,7 @@ import org.xmlpull.v1.XmlSerializer;
  *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
- *      This is important b/c {@link JobStore.WriteJobsMapToDiskRunnable}
+ *      This is important b/c {@link #mWriteJobsMapToDisk}
  *      and {@link ReadJobMapFromDiskRunnable} lock on that
  *      object.
  */
@@ -75,6 +71,12 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /**
+     * Jobs are written as soon as the I/O thread gets to them; any other service's pending
+     * write that is due soon goes out in the same batch.
+     */
+    private static final long WRITE_DELAY = 0;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
     final Context mContext;
@@ -87,8 +89,8 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
-    /** Handler backed by IoThread for writing to disk. */
-    private final Handler mIoHandler = IoThread.getHandler();
+    /** Writes {@link #mJobsFile} on the I/O thread, batched with other services' files. */
+    private final GroupCommitScheduler.Client mWriteClient;
     private static JobStore sSingleton;
 
     private JobStorePersistStats mPersistInfo = new JobStorePersistStats();
@@ -126,6 +128,8 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mWriteClient = GroupCommitScheduler.getInstance().register("jobs", mJobsFile,
+                WRITE_DELAY, mWriteJobsMapToDisk);
 
         mJobSet = new JobSet();
 
@@ -306,8 +310,7 @@ public final class JobStore {
             if (DEBUG) {
                 Slog.v(TAG, "Writing jobs to disk.");
             }
-            mIoHandler.removeCallbacks(mWriteRunnable);
-            mIoHandler.post(mWriteRunnable);
+            mWriteClient.markDirty();
         }
     }
 
@@ -317,12 +320,13 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
-     * NOTE: This Runnable locks on mLock
+     * Writer that serializes {@link #mJobSet} out to xml.
+     * NOTE: This Writer locks on mLock
      */
-    private final Runnable mWriteRunnable = new Runnable() {
+    private final GroupCommitScheduler.Writer mWriteJobsMapToDisk =
+            new GroupCommitScheduler.Writer() {
         @Override
-        public void run() {
+        public void write(OutputStream out) throws IOException {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
             synchronized (mLock) {
@@ -336,21 +340,20 @@ public final class JobStore {
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            writeJobsMapImpl(storeCopy, out);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private void writeJobsMapImpl(List<JobStatus> jobList, OutputStream os)
+                throws IOException {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
+                XmlSerializer out = Xml.resolveSerializer(os);
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
@@ -379,19 +382,13 @@ public final class JobStore {
                 out.endTag(null, "job-info");
                 out.endDocument();
 
-                // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
+                // The scheduler writes this out to disk in one fell swoop.
                 mDirtyOperations = 0;
-            } catch (IOException e) {
-                if (DEBUG) {
-                    Slog.v(TAG, "Error writing out job data.", e);
-                }
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
+                throw new IOException(e);
             } finally {
                 mPersistInfo.countAllJobsSaved = numJobs;
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
@@ -618,8 +615,7 @@ public final class JobStore {
 
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = Xml.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
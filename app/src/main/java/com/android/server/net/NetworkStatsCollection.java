@@ -66,6 +66,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -277,14 +278,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
-            }
-        }
+        combineHistory(combined, template, uid, set, tag, collectStart, collectEnd);
 
         if (augmentStart != SubscriptionPlan.TIME_UNKNOWN) {
             final NetworkStatsHistory.Entry entry = combined.getValues(
@@ -336,6 +330,23 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Record all {@link NetworkStatsHistory} in this collection which match
+     * the requested parameters into the given history, copying only buckets
+     * that atomically occur in the inclusive time range.
+     */
+    void combineHistory(NetworkStatsHistory combined, NetworkTemplate template,
+            int uid, int set, int tag, long start, long end) {
+        for (int i = 0; i < mStats.size(); i++) {
+            final Key key = mStats.keyAt(i);
+            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+                    && templateMatches(template, key.ident)) {
+                final NetworkStatsHistory value = mStats.valueAt(i);
+                combined.recordHistory(value, start, end);
+            }
+        }
+    }
+
     /**
      * Summarize all {@link NetworkStatsHistory} in this collection which match
      * the requested parameters.
@@ -394,7 +405,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     /**
      * Record given {@link NetworkStatsHistory} into this collection.
      */
-    private void recordHistory(Key key, NetworkStatsHistory history) {
+    void recordHistory(Key key, NetworkStatsHistory history) {
         if (history.size() == 0) return;
         noteRecordedHistory(history.getStart(), history.getEnd(), history.getTotalBytes());
 
@@ -447,6 +458,10 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     public void read(DataInputStream in) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
+        if (magic == NetworkStatsColumnarFile.BLOCK_MAGIC) {
+            NetworkStatsColumnarFile.read(in, this);
+            return;
+        }
         if (magic != FILE_MAGIC) {
             throw new ProtocolException("unexpected magic: " + magic);
         }
@@ -511,6 +526,25 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         out.flush();
     }
 
+    /**
+     * Write this collection in the {@link NetworkStatsColumnarFile} format,
+     * which {@link #read(DataInputStream)} also understands.
+     */
+    public void writeColumnar(DataOutputStream out) throws IOException {
+        NetworkStatsColumnarFile.writeBlock(out, mBucketDuration, mStats);
+    }
+
+    /**
+     * Append this collection as a new block of the
+     * {@link NetworkStatsColumnarFile} behind the given channel, without
+     * reading what is already there.
+     *
+     * @return false if the file has to be rewritten instead.
+     */
+    public boolean appendColumnar(FileChannel channel) throws IOException {
+        return NetworkStatsColumnarFile.append(channel, mBucketDuration, mStats);
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -749,7 +783,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+    static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
         for (NetworkIdentity ident : identSet) {
             if (template.matches(ident)) {
                 return true;
@@ -758,7 +792,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
-    private static class Key implements Comparable<Key> {
+    static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
         public final int set;
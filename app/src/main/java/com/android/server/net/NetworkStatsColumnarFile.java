@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import static com.android.server.net.NetworkStatsService.TAG;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * Columnar on-disk format for {@link NetworkStatsCollection}, laid out so that
+ * a file can be memory-mapped and queried in place.
+ * <p>
+ * A file is a sequence of self-contained blocks. The first block is written
+ * when the file is rewritten, and each persist of pending stats appends
+ * another block holding only the new deltas; since stats are additive, the
+ * contents of a file are the sum of its blocks. Each block is:
+ * <pre>
+ * header  := magic version length crc32
+ * payload := bucketDuration identCount keyCount bucketCount identLength
+ *            idents pad keys pad bucketStart rxBytes rxPackets txBytes txPackets
+ *            operations
+ * key     := identIndex uid set tag firstBucket bucketCount
+ * </pre>
+ * Keys are sorted by uid, tag, set, so lookups binary search the key table
+ * for the requested uid; the buckets of each key are stored contiguously and
+ * sorted by start time in each long column, so a time range is found by
+ * binary searching the {@code bucketStart} column. Blocks are 8-byte aligned.
+ * Active time isn't stored, since {@link NetworkStatsCollection} recomputes it
+ * from the bucket ranges whenever it records a history.
+ * <p>
+ * A torn block from an interrupted append fails its length or CRC check and is
+ * ignored, along with anything after it, and {@link #append} truncates it
+ * before appending again.
+ */
+final class NetworkStatsColumnarFile {
+    /** Block header magic number: "NCOL" */
+    static final int BLOCK_MAGIC = 0x4E434F4C;
+
+    private static final int VERSION_INIT = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int PAYLOAD_FIXED_SIZE = 24;
+    private static final int KEY_SIZE = 24;
+    private static final int COLUMN_COUNT = 6;
+
+    private static final int COL_BUCKET_START = 0;
+    private static final int COL_RX_BYTES = 1;
+    private static final int COL_RX_PACKETS = 2;
+    private static final int COL_TX_BYTES = 3;
+    private static final int COL_TX_PACKETS = 4;
+    private static final int COL_OPERATIONS = 5;
+
+    /** Largest block we accept, well above any real collection. */
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    /** Number of blocks after which {@link #append} asks for a compacting rewrite. */
+    static final int MAX_BLOCKS = 16;
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final ByteBuffer mBuffer;
+    private final Block[] mBlocks;
+
+    /** Location of one block within the mapped file. */
+    private static class Block {
+        long bucketDuration;
+        int identCount;
+        int keyCount;
+        int bucketCount;
+        int identsOffset;
+        int identsLength;
+        int keysOffset;
+        int columnsOffset;
+
+        /** Idents decoded on first use; small compared to the columns. */
+        NetworkIdentitySet[] idents;
+    }
+
+    private NetworkStatsColumnarFile(File file, long length, long lastModified,
+            ByteBuffer buffer, Block[] blocks) {
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mBuffer = buffer;
+        mBlocks = blocks;
+    }
+
+    /**
+     * Map the given file read-only and validate its blocks. Returns null when
+     * the file isn't in this format, such as files written before it existed.
+     */
+    static NetworkStatsColumnarFile open(File file) throws IOException {
+        final long lastModified = file.lastModified();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new ProtocolException("file too large: " + length);
+            }
+            if (length >= 4 && readMagic(channel) != BLOCK_MAGIC) {
+                return null;
+            }
+
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            final ArrayList<Block> blocks = new ArrayList<>();
+            final CRC32 crc = new CRC32();
+            int pos = 0;
+            while (pos < length) {
+                final int payloadLength = checkHeader(buffer, pos, (int) length);
+                if (payloadLength < 0) break;
+
+                final ByteBuffer payload = slice(buffer, pos + HEADER_SIZE, payloadLength);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != buffer.getInt(pos + 12)) break;
+
+                final Block block = parseBlock(buffer, pos + HEADER_SIZE, payloadLength);
+                if (block == null) break;
+                blocks.add(block);
+                pos += HEADER_SIZE + payloadLength;
+            }
+            if (pos != length) {
+                Slog.w(TAG, "ignoring " + (length - pos) + " torn bytes in " + file);
+            }
+            return new NetworkStatsColumnarFile(file, length, lastModified, buffer,
+                    blocks.toArray(new Block[blocks.size()]));
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Return true if this mapping still reflects the file on disk. Rotated
+     * files never change, and the active file only grows by appending.
+     */
+    boolean isCurrent() {
+        return mFile.length() == mLength && mFile.lastModified() == mLastModified;
+    }
+
+    /**
+     * Combine the buckets of all keys matching the requested parameters into
+     * the given history, reading only the matching keys and the buckets that
+     * atomically occur in the inclusive time range. Same semantics as
+     * {@link NetworkStatsHistory#recordHistory(NetworkStatsHistory, long, long)}.
+     */
+    void combineHistory(NetworkStatsHistory combined, NetworkTemplate template,
+            int uid, int set, int tag, long start, long end) throws IOException {
+        final ByteBuffer buffer = mBuffer;
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+
+        for (Block block : mBlocks) {
+            final long duration = block.bucketDuration;
+            final int columns = block.columnsOffset;
+            final int stride = block.bucketCount * 8;
+
+            boolean[] identMatches = null;
+            for (int k = findFirstKey(block, uid); k < block.keyCount; k++) {
+                final int keyOffset = block.keysOffset + k * KEY_SIZE;
+                if (buffer.getInt(keyOffset + 4) != uid) break;
+                if (buffer.getInt(keyOffset + 12) != tag
+                        || !NetworkStats.setMatches(set, buffer.getInt(keyOffset + 8))) {
+                    continue;
+                }
+
+                // only decode idents once something else matched
+                if (identMatches == null) {
+                    identMatches = matchIdents(block, template);
+                }
+                if (!identMatches[buffer.getInt(keyOffset)]) continue;
+
+                final int first = buffer.getInt(keyOffset + 16);
+                final int last = first + buffer.getInt(keyOffset + 20);
+                final int startOffset = columns + COL_BUCKET_START * stride;
+                for (int i = lowerBound(buffer, startOffset, first, last, start); i < last; i++) {
+                    final long bucketStart = buffer.getLong(startOffset + i * 8);
+                    final long bucketEnd = bucketStart + duration;
+                    if (bucketEnd > end) break;
+
+                    final int offset = columns + i * 8;
+                    entry.rxBytes = buffer.getLong(offset + COL_RX_BYTES * stride);
+                    entry.rxPackets = buffer.getLong(offset + COL_RX_PACKETS * stride);
+                    entry.txBytes = buffer.getLong(offset + COL_TX_BYTES * stride);
+                    entry.txPackets = buffer.getLong(offset + COL_TX_PACKETS * stride);
+                    entry.operations = buffer.getLong(offset + COL_OPERATIONS * stride);
+                    combined.recordData(bucketStart, bucketEnd, entry);
+                }
+            }
+        }
+    }
+
+    private boolean[] matchIdents(Block block, NetworkTemplate template) throws IOException {
+        if (block.idents == null) {
+            block.idents = readIdents(mBuffer, block);
+        }
+        final boolean[] matches = new boolean[block.idents.length];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = NetworkStatsCollection.templateMatches(template, block.idents[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * Return the index of the first key with the given uid, or of the first
+     * key with a larger uid when none match.
+     */
+    private int findFirstKey(Block block, int uid) {
+        int lo = 0;
+        int hi = block.keyCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mBuffer.getInt(block.keysOffset + mid * KEY_SIZE + 4) < uid) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return the index of the first long in {@code [first, last)} of the column
+     * at {@code offset} which is at least {@code value}.
+     */
+    private static int lowerBound(ByteBuffer buffer, int offset, int first, int last,
+            long value) {
+        int lo = first;
+        int hi = last;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (buffer.getLong(offset + mid * 8) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Append the given collection to the file behind the channel as a new
+     * block, first truncating any torn block left by an interrupted append.
+     * Only the block headers and the last block are read. Returns false when
+     * the file is in another format or already holds {@link #MAX_BLOCKS}
+     * blocks, so that the caller rewrites it instead.
+     */
+    static boolean append(FileChannel channel, long bucketDuration,
+            ArrayMap<NetworkStatsCollection.Key, NetworkStatsHistory> stats) throws IOException {
+        final long length = channel.size();
+        if (length > Integer.MAX_VALUE) return false;
+        if (length >= 4 && readMagic(channel) != BLOCK_MAGIC) {
+            // written in another format; needs a full rewrite
+            return false;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        int pos = 0;
+        int lastPos = -1;
+        int blockCount = 0;
+        while (pos < length) {
+            header.clear();
+            if (!readFully(channel, header, pos)) break;
+            final int payloadLength = checkHeader(header, 0, (int) (length - pos));
+            if (payloadLength < 0) break;
+            lastPos = pos;
+            pos += HEADER_SIZE + payloadLength;
+            blockCount++;
+        }
+
+        // the last block is the only one an interrupted append can have torn
+        // without also breaking its length
+        if (lastPos >= 0 && !checkCrc(channel, lastPos, pos - lastPos - HEADER_SIZE)) {
+            pos = lastPos;
+            blockCount--;
+        }
+        if (blockCount >= MAX_BLOCKS) {
+            return false;
+        }
+        if (pos != length) {
+            Slog.w(TAG, "truncating " + (length - pos) + " torn bytes before append");
+            channel.truncate(pos);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeBlock(new DataOutputStream(bytes), bucketDuration, stats);
+        final ByteBuffer block = ByteBuffer.wrap(bytes.toByteArray());
+        while (block.hasRemaining()) {
+            channel.write(block, pos + block.position());
+        }
+        return true;
+    }
+
+    /**
+     * Write the given collection as a single block.
+     */
+    static void writeBlock(DataOutputStream out, long bucketDuration,
+            ArrayMap<NetworkStatsCollection.Key, NetworkStatsHistory> stats) throws IOException {
+        final ArrayList<NetworkStatsCollection.Key> keys = new ArrayList<>(stats.keySet());
+        Collections.sort(keys, (a, b) -> {
+            int res = Integer.compare(a.uid, b.uid);
+            if (res == 0) res = Integer.compare(a.tag, b.tag);
+            if (res == 0) res = Integer.compare(a.set, b.set);
+            return res;
+        });
+
+        // assign ident indexes and lay out buckets
+        final ArrayMap<NetworkIdentitySet, Integer> identIndex = new ArrayMap<>();
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        int bucketCount = 0;
+        for (NetworkStatsCollection.Key key : keys) {
+            if (!identIndex.containsKey(key.ident)) {
+                identIndex.put(key.ident, identIndex.size());
+                key.ident.writeToStream(identOut);
+            }
+            bucketCount += stats.get(key).size();
+        }
+        identOut.flush();
+
+        final int identsLength = identBytes.size();
+        final int keysOffset = align(PAYLOAD_FIXED_SIZE + identsLength);
+        final int columnsOffset = align(keysOffset + keys.size() * KEY_SIZE);
+        final int payloadLength = columnsOffset + bucketCount * 8 * COLUMN_COUNT;
+
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        payload.putLong(bucketDuration);
+        payload.putInt(identIndex.size());
+        payload.putInt(keys.size());
+        payload.putInt(bucketCount);
+        payload.putInt(identsLength);
+        payload.put(identBytes.toByteArray(), 0, identsLength);
+
+        final int stride = bucketCount * 8;
+        NetworkStatsHistory.Entry entry = null;
+        int first = 0;
+        payload.position(keysOffset);
+        for (NetworkStatsCollection.Key key : keys) {
+            final NetworkStatsHistory history = stats.get(key);
+            final int size = history.size();
+            payload.putInt(identIndex.get(key.ident));
+            payload.putInt(key.uid);
+            payload.putInt(key.set);
+            payload.putInt(key.tag);
+            payload.putInt(first);
+            payload.putInt(size);
+
+            for (int i = 0; i < size; i++) {
+                entry = history.getValues(i, entry);
+                final int offset = columnsOffset + (first + i) * 8;
+                payload.putLong(offset + COL_BUCKET_START * stride, entry.bucketStart);
+                payload.putLong(offset + COL_RX_BYTES * stride, known(entry.rxBytes));
+                payload.putLong(offset + COL_RX_PACKETS * stride, known(entry.rxPackets));
+                payload.putLong(offset + COL_TX_BYTES * stride, known(entry.txBytes));
+                payload.putLong(offset + COL_TX_PACKETS * stride, known(entry.txPackets));
+                payload.putLong(offset + COL_OPERATIONS * stride, known(entry.operations));
+            }
+            first += size;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payloadLength);
+        out.writeInt(BLOCK_MAGIC);
+        out.writeInt(VERSION_INIT);
+        out.writeInt(payloadLength);
+        out.writeInt((int) crc.getValue());
+        out.write(payload.array(), 0, payloadLength);
+        out.flush();
+    }
+
+    /**
+     * Read all blocks from the given stream into a collection, after the
+     * caller already consumed the {@link #BLOCK_MAGIC} of the first block.
+     */
+    static void read(DataInputStream in, NetworkStatsCollection collection) throws IOException {
+        final CRC32 crc = new CRC32();
+        boolean first = true;
+        while (true) {
+            if (first) {
+                first = false;
+                final int version = in.readInt();
+                if (version != VERSION_INIT) {
+                    throw new ProtocolException("unexpected version: " + version);
+                }
+            } else {
+                final int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    // clean end of file
+                    return;
+                }
+                if (magic != BLOCK_MAGIC) {
+                    Slog.w(TAG, "ignoring torn stats block with magic " + magic);
+                    return;
+                }
+
+                // like checkHeader(), an appended block with a bad version is
+                // torn, and must not fail the blocks read before it
+                final int version;
+                try {
+                    version = in.readInt();
+                } catch (EOFException e) {
+                    Slog.w(TAG, "ignoring torn stats block", e);
+                    return;
+                }
+                if (version != VERSION_INIT) {
+                    Slog.w(TAG, "ignoring torn stats block with version " + version);
+                    return;
+                }
+            }
+
+            final byte[] payload;
+            try {
+                final int payloadLength = in.readInt();
+                if (payloadLength < PAYLOAD_FIXED_SIZE || payloadLength > MAX_BLOCK_SIZE) {
+                    throw new ProtocolException("unexpected length: " + payloadLength);
+                }
+                final int expectedCrc = in.readInt();
+                payload = new byte[payloadLength];
+                in.readFully(payload);
+
+                crc.reset();
+                crc.update(payload, 0, payloadLength);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new ProtocolException("bad crc");
+                }
+            } catch (EOFException | ProtocolException e) {
+                // a torn append only loses the deltas it was adding
+                Slog.w(TAG, "ignoring torn stats block", e);
+                return;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(payload);
+            final Block block = parseBlock(buffer, 0, payload.length);
+            if (block == null) {
+                throw new ProtocolException("corrupt stats block");
+            }
+            readBlock(buffer, block, collection);
+        }
+    }
+
+    private static void readBlock(ByteBuffer buffer, Block block,
+            NetworkStatsCollection collection) throws IOException {
+        final NetworkIdentitySet[] idents = readIdents(buffer, block);
+        final int stride = block.bucketCount * 8;
+        final NetworkStatsHistory.Entry entry = new NetworkStatsHistory.Entry();
+        entry.bucketDuration = block.bucketDuration;
+
+        for (int k = 0; k < block.keyCount; k++) {
+            final int keyOffset = block.keysOffset + k * KEY_SIZE;
+            final int identIndex = buffer.getInt(keyOffset);
+            final int uid = buffer.getInt(keyOffset + 4);
+            final int set = buffer.getInt(keyOffset + 8);
+            final int tag = buffer.getInt(keyOffset + 12);
+            final int first = buffer.getInt(keyOffset + 16);
+            final int size = buffer.getInt(keyOffset + 20);
+
+            final NetworkStatsHistory history = new NetworkStatsHistory(
+                    block.bucketDuration, size);
+            final NetworkStats.Entry data = new NetworkStats.Entry(
+                    IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+            for (int i = first; i < first + size; i++) {
+                final int offset = block.columnsOffset + i * 8;
+                final long bucketStart = buffer.getLong(offset + COL_BUCKET_START * stride);
+                data.rxBytes = buffer.getLong(offset + COL_RX_BYTES * stride);
+                data.rxPackets = buffer.getLong(offset + COL_RX_PACKETS * stride);
+                data.txBytes = buffer.getLong(offset + COL_TX_BYTES * stride);
+                data.txPackets = buffer.getLong(offset + COL_TX_PACKETS * stride);
+                data.operations = buffer.getLong(offset + COL_OPERATIONS * stride);
+                history.recordData(bucketStart, bucketStart + block.bucketDuration, data);
+            }
+            collection.recordHistory(
+                    new NetworkStatsCollection.Key(idents[identIndex], uid, set, tag), history);
+        }
+    }
+
+    /**
+     * Validate the header of the block at {@code pos}, returning its payload
+     * length, or -1 if the block is torn or doesn't fit in {@code limit}.
+     */
+    private static int checkHeader(ByteBuffer buffer, int pos, int limit) {
+        if (limit - pos < HEADER_SIZE) return -1;
+        if (buffer.getInt(pos) != BLOCK_MAGIC) return -1;
+        if (buffer.getInt(pos + 4) != VERSION_INIT) return -1;
+        final int payloadLength = buffer.getInt(pos + 8);
+        if (payloadLength < PAYLOAD_FIXED_SIZE || payloadLength > MAX_BLOCK_SIZE
+                || payloadLength > limit - pos - HEADER_SIZE) {
+            return -1;
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Parse and bounds check the fixed part of a block payload starting at
+     * {@code pos}, returning null if it's inconsistent.
+     */
+    private static Block parseBlock(ByteBuffer buffer, int pos, int payloadLength) {
+        final Block block = new Block();
+        block.bucketDuration = buffer.getLong(pos);
+        block.identCount = buffer.getInt(pos + 8);
+        block.keyCount = buffer.getInt(pos + 12);
+        block.bucketCount = buffer.getInt(pos + 16);
+        block.identsLength = buffer.getInt(pos + 20);
+        block.identsOffset = pos + PAYLOAD_FIXED_SIZE;
+        if (block.bucketDuration <= 0 || block.identCount < 0 || block.keyCount < 0
+                || block.bucketCount < 0 || block.identsLength < 0
+                || block.identsLength > payloadLength) {
+            return null;
+        }
+
+        final long keysOffset = align(PAYLOAD_FIXED_SIZE + block.identsLength);
+        final long columnsOffset = align(keysOffset + (long) block.keyCount * KEY_SIZE);
+        final long expectedLength = columnsOffset + (long) block.bucketCount * 8 * COLUMN_COUNT;
+        if (expectedLength != payloadLength) {
+            return null;
+        }
+        block.keysOffset = pos + (int) keysOffset;
+        block.columnsOffset = pos + (int) columnsOffset;
+        block.idents = null;
+
+        // keys must reference valid idents and buckets, so that queries never
+        // read outside of their block
+        for (int k = 0; k < block.keyCount; k++) {
+            final int keyOffset = block.keysOffset + k * KEY_SIZE;
+            final int identIndex = buffer.getInt(keyOffset);
+            final int first = buffer.getInt(keyOffset + 16);
+            final int size = buffer.getInt(keyOffset + 20);
+            if (identIndex < 0 || identIndex >= block.identCount || first < 0 || size < 0
+                    || first > block.bucketCount - size) {
+                return null;
+            }
+        }
+        return block;
+    }
+
+    private static NetworkIdentitySet[] readIdents(ByteBuffer buffer, Block block)
+            throws IOException {
+        final byte[] bytes = new byte[block.identsLength];
+        final ByteBuffer src = buffer.duplicate();
+        src.position(block.identsOffset);
+        src.get(bytes);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[block.identCount];
+        for (int i = 0; i < block.identCount; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+        return idents;
+    }
+
+    private static boolean checkCrc(FileChannel channel, int pos, int payloadLength)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        if (!readFully(channel, header, pos)
+                || !readFully(channel, payload, pos + HEADER_SIZE)) {
+            return false;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payloadLength);
+        return (int) crc.getValue() == header.getInt(12);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dst, long pos)
+            throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readMagic(FileChannel channel) throws IOException {
+        final ByteBuffer magic = ByteBuffer.allocate(4);
+        return readFully(channel, magic, 0) ? magic.getInt(0) : 0;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int pos, int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.position(pos);
+        slice.limit(pos + length);
+        return slice;
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static long known(long value) {
+        return value == NetworkStatsHistory.Entry.UNKNOWN ? 0L : value;
+    }
+}
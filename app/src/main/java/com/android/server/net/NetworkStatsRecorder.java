@@ -32,6 +32,8 @@ import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
 import android.service.NetworkStatsRecorderProto;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
@@ -45,9 +47,11 @@ import libcore.io.IoUtils;
 
 import com.google.android.collect.Sets;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -90,6 +94,10 @@ public class NetworkStatsRecorder {
     private final NetworkStatsCollection mSinceBoot;
 
     private final CombiningRewriter mPendingRewriter;
+    private final FileRotator.Appender mPendingAppender;
+
+    /** Mapped {@link NetworkStatsColumnarFile} by file name, reused while current. */
+    private final ArrayMap<String, NetworkStatsColumnarFile> mMapped = new ArrayMap<>();
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
@@ -111,6 +119,7 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
 
         mPendingRewriter = null;
+        mPendingAppender = null;
     }
 
     /**
@@ -130,6 +139,7 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
 
         mPendingRewriter = new CombiningRewriter(mPending);
+        mPendingAppender = mPending::appendColumnar;
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -149,6 +159,7 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        mMapped.clear();
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -201,6 +212,85 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Combine history matching the requested parameters, like
+     * {@link NetworkStatsCollection#getHistory}, without loading the complete
+     * history. Persisted files are memory-mapped and only the matching keys
+     * and buckets are read from them; files written in the older stream format
+     * are loaded individually.
+     */
+    public NetworkStatsHistory getHistoryLocked(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete.getHistory(template, null, uid, set, tag, fields, start, end,
+                    accessLevel, callerUid);
+        }
+
+        if (!NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+            throw new SecurityException("Network stats history of uid " + uid
+                    + " is forbidden for caller " + callerUid);
+        }
+
+        final int bucketEstimate = (int) ((end - start) / mBucketDuration);
+        final NetworkStatsHistory combined = new NetworkStatsHistory(
+                mBucketDuration, bucketEstimate, fields);
+
+        // shortcut when we know stats will be empty
+        if (start == end) return combined;
+
+        final ArraySet<String> visited = new ArraySet<>();
+        try {
+            mRotator.visitMatching(file -> {
+                final String name = file.getName();
+                visited.add(name);
+
+                NetworkStatsColumnarFile mapped = mMapped.get(name);
+                if (mapped == null || !mapped.isCurrent()) {
+                    mapped = NetworkStatsColumnarFile.open(file);
+                    if (mapped != null) {
+                        mMapped.put(name, mapped);
+                    } else {
+                        mMapped.remove(name);
+                    }
+                }
+
+                if (mapped != null) {
+                    mapped.combineHistory(combined, template, uid, set, tag, start, end);
+                } else {
+                    final NetworkStatsCollection legacy =
+                            new NetworkStatsCollection(mBucketDuration);
+                    final FileInputStream in = new FileInputStream(file);
+                    try {
+                        legacy.read(new BufferedInputStream(in));
+                    } finally {
+                        IoUtils.closeQuietly(in);
+                    }
+                    legacy.combineHistory(combined, template, uid, set, tag, start, end);
+                }
+            }, start, end);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats history", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats history", e);
+            recoverFromWtf();
+        }
+
+        // forget mappings of files that were rotated or deleted since
+        for (int i = mMapped.size() - 1; i >= 0; i--) {
+            final String name = mMapped.keyAt(i);
+            if (!visited.contains(name) && !mMapped.valueAt(i).isCurrent()) {
+                mMapped.removeAt(i);
+            }
+        }
+
+        mPending.combineHistory(combined, template, uid, set, tag, start, end);
+        return combined;
+    }
+
     /**
      * Record any delta that occurred since last {@link NetworkStats} snapshot,
      * using the given {@link Map} to identify network interfaces. First
@@ -297,7 +387,10 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                if (!appendPendingLocked(currentTimeMillis)) {
+                    mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                    mMapped.clear();
+                }
                 mRotator.maybeRotate(currentTimeMillis);
                 mPending.reset();
             } catch (IOException e) {
@@ -310,6 +403,21 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Append pending deltas to the active file as a new block, which only
+     * writes to its tail. Returns false when the active file needs to be
+     * rewritten instead, either to compact it or because the append failed.
+     */
+    private boolean appendPendingLocked(long currentTimeMillis) {
+        try {
+            return mRotator.appendActive(mPendingAppender, currentTimeMillis);
+        } catch (IOException e) {
+            // rewriting reads back everything up to any torn block
+            Slog.w(TAG, "problem appending pending stats; rewriting", e);
+            return false;
+        }
+    }
+
     /**
      * Remove the given UID from all {@link FileRotator} history, migrating it
      * to {@link TrafficStats#UID_REMOVED}.
@@ -319,6 +427,7 @@ public class NetworkStatsRecorder {
             try {
                 // Rewrite all persisted data to migrate UID stats
                 mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                mMapped.clear();
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverFromWtf();
@@ -376,7 +485,7 @@ public class NetworkStatsRecorder {
 
         @Override
         public void write(OutputStream out) throws IOException {
-            mCollection.write(new DataOutputStream(out));
+            mCollection.writeColumnar(new DataOutputStream(out));
             mCollection.reset();
         }
     }
@@ -413,7 +522,7 @@ public class NetworkStatsRecorder {
 
         @Override
         public void write(OutputStream out) throws IOException {
-            mTemp.write(new DataOutputStream(out));
+            mTemp.writeColumnar(new DataOutputStream(out));
         }
     }
 
@@ -503,5 +612,6 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        mMapped.clear();
     }
 }
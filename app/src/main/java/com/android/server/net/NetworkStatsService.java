@@ -532,6 +532,24 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Return UID history from the collection this session already
+             * loaded, or else range-scan the persisted files without loading
+             * the complete collection.
+             */
+            private NetworkStatsHistory getUidHistory(NetworkStatsRecorder recorder,
+                    NetworkStatsCollection loaded, NetworkTemplate template, int uid, int set,
+                    int tag, int fields, long start, long end) {
+                if (loaded != null) {
+                    return loaded.getHistory(template, null, uid, set, tag, fields,
+                            start, end, mAccessLevel, mCallingUid);
+                }
+                synchronized (mStatsLock) {
+                    return recorder.getHistoryLocked(template, uid, set, tag, fields,
+                            start, end, mAccessLevel, mCallingUid);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -581,11 +599,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
+                    return getUidHistory(mUidRecorder, mUidComplete, template, uid, set, tag,
+                            fields, Long.MIN_VALUE, Long.MAX_VALUE);
                 } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
+                    return getUidHistory(mUidTagRecorder, mUidTagComplete, template, uid, set,
+                            tag, fields, Long.MIN_VALUE, Long.MAX_VALUE);
                 }
             }
 
@@ -595,11 +613,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidHistory(mUidRecorder, mUidComplete, template, uid, set, tag,
+                            fields, start, end);
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidHistory(mUidTagRecorder, mUidTagComplete, template, uid, set,
+                            tag, fields, start, end);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
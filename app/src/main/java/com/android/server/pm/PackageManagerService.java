@@ -616,7 +616,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "3";
 
     /**
      * Whether the package parser cache is enabled.
@@ -2306,6 +2306,18 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Persists a change to the per-user state of a single package.  Such changes are
+     * appended to the user's package restrictions journal; a full write of the user's
+     * restrictions is only scheduled when the journal cannot take them.
+     */
+    void scheduleWritePackageRestrictionsLocked(PackageSetting ps, int userId) {
+        if (!sUserManager.exists(userId)) return;
+        if (!mSettings.appendPackageRestrictionsLPw(ps, userId, false /*sync*/)) {
+            scheduleWritePackageRestrictionsLocked(userId);
+        }
+    }
+
     public static PackageManagerService main(Context context, Installer installer,
             boolean factoryTest, boolean onlyCore) {
         // Self-check for initial settings.
@@ -2859,6 +2871,12 @@ public class PackageManagerService extends IPackageManager.Stub
             }
             mExpectingBetter.clear();
 
+            final int cacheHits = PackageParser.sCachedPackageReadCount.get();
+            final int cacheLookups = cacheHits + PackageParser.sCachedPackageMissCount.get();
+            Slog.i(TAG, "Package parser cache: hits: " + cacheHits + "/" + cacheLookups
+                    + ", materialized: " + PackageParser.sCachedPackageBytesMaterialized.get()
+                    + "/" + PackageParser.sCachedPackageBytesMapped.get() + " bytes");
+
             // Resolve the storage manager.
             mStorageManagerPackage = getStorageManagerPackageName();
 
@@ -14973,7 +14991,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
                 if (pkgSetting.getHidden(userId) != hidden) {
                     pkgSetting.setHidden(hidden, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    if (!mSettings.appendPackageRestrictionsLPw(pkgSetting, userId,
+                            true /*sync*/)) {
+                        mSettings.writePackageRestrictionsLPr(userId);
+                    }
                     if (hidden) {
                         sendRemoved = true;
                     } else {
@@ -15201,7 +15222,10 @@ public class PackageManagerService extends IPackageManager.Stub
                             continue;
                         }
                         pkgSetting.setSuspended(suspended, userId);
-                        mSettings.writePackageRestrictionsLPr(userId);
+                        if (!mSettings.appendPackageRestrictionsLPw(pkgSetting, userId,
+                                true /*sync*/)) {
+                            mSettings.writePackageRestrictionsLPr(userId);
+                        }
                         changed = true;
                         changedPackages.add(packageName);
                     }
@@ -22056,7 +22080,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             }
         }
         synchronized (mPackages) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWritePackageRestrictionsLocked(pkgSetting, userId);
             updateSequenceNumberLP(pkgSetting, new int[] { userId });
             final long callingId = Binder.clearCallingIdentity();
             try {
@@ -22158,7 +22182,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             if (!filterAppAccessLPr(ps, callingUid, userId)
                     && mSettings.setPackageStoppedStateLPw(this, packageName, stopped,
                             allowedByPermission, callingUid, userId)) {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageRestrictionsLocked(ps, userId);
             }
         }
     }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of per-package changes made since the last full write of a user's
+ * package-restrictions file.  Flipping one package's enabled, stopped, hidden or suspended
+ * state appends that package's new state here instead of rewriting the state of every
+ * package; reading the restrictions file replays the journal on top of it, and the next
+ * full write truncates it again.
+ *
+ * <p>The file starts with {@link #MAGIC} and the generation of the snapshot it applies to;
+ * the snapshot records the same generation, so a journal left behind by an older or newer
+ * snapshot is ignored rather than replayed over the wrong state.  Each record is an int
+ * length, the CRC32 of the payload and the payload itself, so a record torn by a crash is
+ * detected and dropped along with anything after it.
+ *
+ * <p>Appends standing in for a delayed full write are not synced, since that write would
+ * not have reached the disk right away either.  Appends standing in for a synchronous full
+ * write are synced before returning, so they are as durable as the write they replace.
+ * Not thread safe; callers hold the package manager lock.
+ */
+final class PackageRestrictionsJournal {
+    private static final String TAG = "PackageRestrictionsJournal";
+
+    /** "PRJ" and the format version. */
+    private static final int MAGIC = 0x50524a01;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Largest record we accept, well above any real package's state. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** Number of records after which a full write is requested to compact the journal. */
+    static final int COMPACT_THRESHOLD = 256;
+
+    /** Receives the payload of each valid record, in the order they were appended. */
+    interface Replayer {
+        void replay(byte[] data, int offset, int length)
+                throws IOException, XmlPullParserException;
+    }
+
+    private final File mFile;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRecordHeader = new byte[RECORD_HEADER_SIZE];
+
+    private FileOutputStream mOut;
+    /** Generation of the snapshot the journal applies to, or -1 if appending is not safe. */
+    private long mGeneration = -1;
+    private int mRecordCount;
+
+    PackageRestrictionsJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Returns true if {@link #append} can be used, i.e. the journal matches the snapshot. */
+    boolean isActive() {
+        return mGeneration >= 0;
+    }
+
+    boolean needsCompaction() {
+        return mRecordCount >= COMPACT_THRESHOLD;
+    }
+
+    /**
+     * Returns the generation to record in the next snapshot.  It is newer than both the
+     * current generation and whatever journal is on disk, so that a stale journal can never
+     * be taken for one belonging to the new snapshot.
+     */
+    long nextGeneration() {
+        long generation = mGeneration;
+        if (generation < 0) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(mFile));
+                if (in.readInt() == MAGIC) {
+                    generation = in.readLong();
+                }
+            } catch (IOException e) {
+                // Missing or unreadable; nothing on disk to collide with.
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+        return Math.max(generation, 0) + 1;
+    }
+
+    /**
+     * Replays the records of the journal if it belongs to the snapshot of the given
+     * generation, then leaves the journal ready for further appends to that snapshot.
+     *
+     * @return the number of records replayed.
+     */
+    int replay(long generation, Replayer replayer) {
+        close();
+        byte[] data;
+        try {
+            data = IoUtils.readFileAsByteArray(mFile.getPath());
+        } catch (FileNotFoundException e) {
+            reset(generation);
+            return 0;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile, e);
+            reset(generation);
+            return 0;
+        }
+        if (data.length < HEADER_SIZE || readInt(data, 0) != MAGIC
+                || readLong(data, 4) != generation) {
+            // Written against another snapshot, which this one supersedes.
+            reset(generation);
+            return 0;
+        }
+
+        int count = 0;
+        int pos = HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE <= data.length) {
+            final int length = readInt(data, pos);
+            final int crc = readInt(data, pos + 4);
+            if (length < 0 || length > MAX_RECORD_SIZE
+                    || length > data.length - pos - RECORD_HEADER_SIZE) {
+                break;
+            }
+            mCrc.reset();
+            mCrc.update(data, pos + RECORD_HEADER_SIZE, length);
+            if ((int) mCrc.getValue() != crc) {
+                break;
+            }
+            try {
+                replayer.replay(data, pos + RECORD_HEADER_SIZE, length);
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Skipping bad record in " + mFile, e);
+            }
+            pos += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        if (pos != data.length) {
+            Slog.w(TAG, "Dropping " + (data.length - pos) + " torn bytes from " + mFile);
+        }
+
+        // Cut off a torn tail so that later appends are not hidden behind it.
+        try {
+            mOut = new FileOutputStream(mFile, true);
+            mOut.getChannel().truncate(pos);
+            mGeneration = generation;
+            mRecordCount = count;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to reopen " + mFile, e);
+            close();
+        }
+        return count;
+    }
+
+    /**
+     * Empties the journal and points it at the snapshot of the given generation.  Called
+     * once that snapshot is safely on disk.
+     */
+    void reset(long generation) {
+        close();
+        try {
+            final byte[] header = new byte[HEADER_SIZE];
+            writeInt(header, 0, MAGIC);
+            writeLong(header, 4, generation);
+            mOut = new FileOutputStream(mFile, false);
+            mOut.write(header);
+            mGeneration = generation;
+            mRecordCount = 0;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to reset " + mFile, e);
+            close();
+        }
+    }
+
+    /**
+     * Appends one record, syncing it to disk if {@code sync} is set.  Returns false if the
+     * journal is not active or the write failed, in which case the caller has to fall back
+     * to a full write.
+     */
+    boolean append(byte[] data, int offset, int length, boolean sync) {
+        if (mOut == null || mGeneration < 0 || length > MAX_RECORD_SIZE) {
+            return false;
+        }
+        mCrc.reset();
+        mCrc.update(data, offset, length);
+        writeInt(mRecordHeader, 0, length);
+        writeInt(mRecordHeader, 4, (int) mCrc.getValue());
+        try {
+            mOut.write(mRecordHeader);
+            mOut.write(data, offset, length);
+            if (sync) {
+                mOut.getFD().sync();
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append to " + mFile, e);
+            // Whatever made it out is covered by the CRC; stop appending until the next
+            // full write resets the journal.
+            close();
+            return false;
+        }
+        mRecordCount++;
+        return true;
+    }
+
+    /** Stops appending; the journal becomes active again on the next replay or reset. */
+    void close() {
+        IoUtils.closeQuietly(mOut);
+        mOut = null;
+        mGeneration = -1;
+        mRecordCount = 0;
+    }
+
+    void delete() {
+        close();
+        mFile.delete();
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+                | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] buf, int pos) {
+        return ((long) readInt(buf, pos) << 32) | (readInt(buf, pos + 4) & 0xffffffffL);
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >> 24);
+        buf[pos + 1] = (byte) (value >> 16);
+        buf[pos + 2] = (byte) (value >> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] buf, int pos, long value) {
+        writeInt(buf, pos, (int) (value >> 32));
+        writeInt(buf, pos + 4, (int) value);
+    }
+}
@@ -83,7 +83,6 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
 import com.android.internal.util.XmlUtils;
@@ -101,6 +100,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -227,6 +228,7 @@ final class Settings {
     private static final String ATTR_INSTALL_REASON = "install-reason";
     private static final String ATTR_INSTANT_APP = "instant-app";
     private static final String ATTR_VIRTUAL_PRELOAD = "virtual-preload";
+    private static final String ATTR_JOURNAL_GENERATION = "journalGeneration";
 
     private static final String ATTR_PACKAGE_NAME = "packageName";
     private static final String ATTR_FINGERPRINT = "fingerprint";
@@ -279,6 +281,10 @@ final class Settings {
     /** List of packages that are blocked for uninstall for specific users */
     private final SparseArray<ArraySet<String>> mBlockUninstallPackages = new SparseArray<>();
 
+    /** Per-user journals of package state changes made since the last restrictions write */
+    private final SparseArray<PackageRestrictionsJournal> mRestrictionsJournals =
+            new SparseArray<>();
+
     // Set of restored intent-filter verification states
     private final ArrayMap<String, IntentFilterVerificationInfo> mRestoredIntentFilterVerifications =
             new ArrayMap<String, IntentFilterVerificationInfo>();
@@ -1707,8 +1713,7 @@ final class Settings {
                 }
                 str = new FileInputStream(userPackagesStateFile);
             }
-            final XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            final XmlPullParser parser = Xml.resolvePullParser(str);
 
             int type;
             while ((type=parser.next()) != XmlPullParser.START_TAG
@@ -1723,10 +1728,11 @@ final class Settings {
                 return;
             }
 
+            final long journalGeneration = XmlUtils.readLongAttribute(parser,
+                    ATTR_JOURNAL_GENERATION, 0);
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
-            PackageSetting ps = null;
             while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
                    && (type != XmlPullParser.END_TAG
                            || parser.getDepth() > outerDepth)) {
@@ -1737,83 +1743,10 @@ final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals(TAG_PACKAGE)) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    ps = mPackages.get(name);
-                    if (ps == null) {
-                        Slog.w(PackageManagerService.TAG, "No package known for stopped package "
-                                + name);
-                        XmlUtils.skipCurrentTag(parser);
-                        continue;
-                    }
-
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
-                            true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_NOT_LAUNCHED, false);
-
-                    // For backwards compatibility with the previous name of "blocked", which
-                    // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
-                            false);
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_INSTANT_APP, false);
-                    final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_VIRTUAL_PRELOAD, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
-                            COMPONENT_ENABLED_STATE_DEFAULT);
-                    final String enabledCaller = parser.getAttributeValue(null,
-                            ATTR_ENABLED_CALLER);
-
-                    final int verifState = XmlUtils.readIntAttribute(parser,
-                            ATTR_DOMAIN_VERIFICATON_STATE,
-                            PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
-                            ATTR_APP_LINK_GENERATION, 0);
+                    final int linkGeneration = readPackageRestrictionLPr(parser, userId);
                     if (linkGeneration > maxAppLinkGeneration) {
                         maxAppLinkGeneration = linkGeneration;
                     }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-
-                    ArraySet<String> enabledComponents = null;
-                    ArraySet<String> disabledComponents = null;
-
-                    int packageDepth = parser.getDepth();
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG
-                            || parser.getDepth() > packageDepth)) {
-                        if (type == XmlPullParser.END_TAG
-                                || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-                        tagName = parser.getName();
-                        if (tagName.equals(TAG_ENABLED_COMPONENTS)) {
-                            enabledComponents = readComponentsLPr(parser);
-                        } else if (tagName.equals(TAG_DISABLED_COMPONENTS)) {
-                            disabledComponents = readComponentsLPr(parser);
-                        }
-                    }
-
-                    if (blockUninstall) {
-                        setBlockUninstallLPw(userId, name, true);
-                    }
-                    ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
-                            hidden, suspended, instantApp, virtualPreload, enabledCaller,
-                            enabledComponents, disabledComponents, verifState, linkGeneration,
-                            installReason);
                 } else if (tagName.equals("preferred-activities")) {
                     readPreferredActivitiesLPw(parser, userId);
                 } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
@@ -1833,6 +1766,13 @@ final class Settings {
 
             str.close();
 
+            // Apply the changes journaled since this file was written.
+            final int journalLinkGeneration = replayPackageRestrictionsJournalLPr(userId,
+                    journalGeneration);
+            if (journalLinkGeneration > maxAppLinkGeneration) {
+                maxAppLinkGeneration = journalLinkGeneration;
+            }
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -1850,6 +1790,90 @@ final class Settings {
         }
     }
 
+    /**
+     * Reads the state of one package for the given user from a {@link #TAG_PACKAGE} element
+     * and returns its app link generation.
+     */
+    private int readPackageRestrictionLPr(XmlPullParser parser, int userId)
+            throws IOException, XmlPullParserException {
+        String name = parser.getAttributeValue(null, ATTR_NAME);
+        final PackageSetting ps = mPackages.get(name);
+        if (ps == null) {
+            Slog.w(PackageManagerService.TAG, "No package known for stopped package "
+                    + name);
+            XmlUtils.skipCurrentTag(parser);
+            return 0;
+        }
+
+        final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
+                0);
+        final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
+                true);
+        final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
+                false);
+        final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
+                ATTR_NOT_LAUNCHED, false);
+
+        // For backwards compatibility with the previous name of "blocked", which
+        // now means hidden, read the old attribute as well.
+        final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
+        boolean hidden = blockedStr == null
+                ? false : Boolean.parseBoolean(blockedStr);
+        final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
+        hidden = hiddenStr == null
+                ? hidden : Boolean.parseBoolean(hiddenStr);
+
+        final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                false);
+        final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                ATTR_BLOCK_UNINSTALL, false);
+        final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                ATTR_INSTANT_APP, false);
+        final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
+                ATTR_VIRTUAL_PRELOAD, false);
+        final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                COMPONENT_ENABLED_STATE_DEFAULT);
+        final String enabledCaller = parser.getAttributeValue(null,
+                ATTR_ENABLED_CALLER);
+
+        final int verifState = XmlUtils.readIntAttribute(parser,
+                ATTR_DOMAIN_VERIFICATON_STATE,
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
+        final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                ATTR_APP_LINK_GENERATION, 0);
+        final int installReason = XmlUtils.readIntAttribute(parser,
+                ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
+
+        ArraySet<String> enabledComponents = null;
+        ArraySet<String> disabledComponents = null;
+
+        int type;
+        int packageDepth = parser.getDepth();
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG
+                || parser.getDepth() > packageDepth)) {
+            if (type == XmlPullParser.END_TAG
+                    || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            final String tagName = parser.getName();
+            if (tagName.equals(TAG_ENABLED_COMPONENTS)) {
+                enabledComponents = readComponentsLPr(parser);
+            } else if (tagName.equals(TAG_DISABLED_COMPONENTS)) {
+                disabledComponents = readComponentsLPr(parser);
+            }
+        }
+
+        if (blockUninstall) {
+            setBlockUninstallLPw(userId, name, true);
+        }
+        ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
+                hidden, suspended, instantApp, virtualPreload, enabledCaller,
+                enabledComponents, disabledComponents, verifState, linkGeneration,
+                installReason);
+        return linkGeneration;
+    }
+
     void setBlockUninstallLPw(int userId, String packageName, boolean blockUninstall) {
         ArraySet<String> packages = mBlockUninstallPackages.get(userId);
         if (blockUninstall) {
@@ -2058,6 +2082,78 @@ final class Settings {
         }
     }
 
+    private PackageRestrictionsJournal getPackageRestrictionsJournalLPw(int userId) {
+        PackageRestrictionsJournal journal = mRestrictionsJournals.get(userId);
+        if (journal == null) {
+            File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+            journal = new PackageRestrictionsJournal(
+                    new File(userDir, "package-restrictions.journal"));
+            mRestrictionsJournals.put(userId, journal);
+        }
+        return journal;
+    }
+
+    /**
+     * Replays the journal of the given user over the state just read from the package
+     * restrictions file of the given generation, and returns the highest app link
+     * generation found in it.
+     */
+    private int replayPackageRestrictionsJournalLPr(int userId, long generation) {
+        final int[] maxAppLinkGeneration = new int[1];
+        final PackageRestrictionsJournal journal = getPackageRestrictionsJournalLPw(userId);
+        final int count = journal.replay(generation, (data, offset, length) -> {
+            final XmlPullParser parser = Xml.newBinaryPullParser();
+            parser.setInput(new ByteArrayInputStream(data, offset, length),
+                    StandardCharsets.UTF_8.name());
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                ;
+            }
+            if (type == XmlPullParser.START_TAG && TAG_PACKAGE.equals(parser.getName())) {
+                final int linkGeneration = readPackageRestrictionLPr(parser, userId);
+                if (linkGeneration > maxAppLinkGeneration[0]) {
+                    maxAppLinkGeneration[0] = linkGeneration;
+                }
+            }
+        });
+        if (DEBUG_MU) {
+            Log.i(TAG, "Replayed " + count + " journaled package restrictions for user="
+                    + userId);
+        }
+        return maxAppLinkGeneration[0];
+    }
+
+    /**
+     * Persists the current state of one package for the given user by appending it to the
+     * user's package restrictions journal, instead of rewriting the state of every package.
+     *
+     * @param sync whether the record has to be on disk before returning, as it would be after
+     *        a synchronous {@link #writePackageRestrictionsLPr}.
+     * @return false if a full {@link #writePackageRestrictionsLPr} is still needed, either
+     *         because the journal could not take the change or because it has grown enough
+     *         to be compacted.
+     */
+    boolean appendPackageRestrictionsLPw(PackageSetting ps, int userId, boolean sync) {
+        final PackageRestrictionsJournal journal = mRestrictionsJournals.get(userId);
+        if (journal == null || !journal.isActive()) {
+            return false;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            final XmlSerializer serializer = Xml.newBinarySerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            writePackageRestrictionLPr(serializer, ps, userId);
+            serializer.endDocument();
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to journal package restrictions", e);
+            return false;
+        }
+        final byte[] record = out.toByteArray();
+        return journal.append(record, 0, record.length, sync) && !journal.needsCompaction();
+    }
+
     void writePackageRestrictionsLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
@@ -2089,84 +2185,20 @@ final class Settings {
             final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
             final BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            final XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            final XmlSerializer serializer = Xml.resolveSerializer(str);
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
+            // The journal is emptied once this file is safely written, so tag the file with
+            // a new generation that the stale journal cannot match in the meantime.
+            final PackageRestrictionsJournal journal = getPackageRestrictionsJournalLPw(userId);
+            final long journalGeneration = journal.nextGeneration();
+
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            XmlUtils.writeLongAttribute(serializer, ATTR_JOURNAL_GENERATION, journalGeneration);
 
             for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                writePackageRestrictionLPr(serializer, pkg, userId);
             }
 
             writePreferredActivitiesLPr(serializer, userId, true);
@@ -2190,6 +2222,7 @@ final class Settings {
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
+            journal.reset(journalGeneration);
 
             // Done, all is good!
             return;
@@ -2208,6 +2241,80 @@ final class Settings {
         }
     }
 
+    private void writePackageRestrictionLPr(XmlSerializer serializer, PackageSetting pkg,
+            int userId) throws IOException {
+        final PackageUserState ustate = pkg.readUserState(userId);
+        if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+        serializer.startTag(null, TAG_PACKAGE);
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        if (ustate.ceDataInode != 0) {
+            XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+        }
+        if (!ustate.installed) {
+            serializer.attribute(null, ATTR_INSTALLED, "false");
+        }
+        if (ustate.stopped) {
+            serializer.attribute(null, ATTR_STOPPED, "true");
+        }
+        if (ustate.notLaunched) {
+            serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+        }
+        if (ustate.hidden) {
+            serializer.attribute(null, ATTR_HIDDEN, "true");
+        }
+        if (ustate.suspended) {
+            serializer.attribute(null, ATTR_SUSPENDED, "true");
+        }
+        if (ustate.instantApp) {
+            serializer.attribute(null, ATTR_INSTANT_APP, "true");
+        }
+        if (ustate.virtualPreload) {
+            serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+        }
+        if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+            serializer.attribute(null, ATTR_ENABLED,
+                    Integer.toString(ustate.enabled));
+            if (ustate.lastDisableAppCaller != null) {
+                serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        ustate.lastDisableAppCaller);
+            }
+        }
+        if (ustate.domainVerificationStatus !=
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    ustate.domainVerificationStatus);
+        }
+        if (ustate.appLinkGeneration != 0) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    ustate.appLinkGeneration);
+        }
+        if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_INSTALL_REASON,
+                    Integer.toString(ustate.installReason));
+        }
+        if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+            serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+            for (final String name : ustate.enabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+        }
+        if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+            serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+            for (final String name : ustate.disabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+        }
+
+        serializer.endTag(null, TAG_PACKAGE);
+    }
+
     void readInstallPermissionsLPr(XmlPullParser parser,
             PermissionsState permissionsState) throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
@@ -2478,9 +2585,7 @@ final class Settings {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            XmlSerializer serializer = Xml.resolveSerializer(str);
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
@@ -3057,8 +3162,7 @@ final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = Xml.resolvePullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -4280,6 +4384,8 @@ final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getPackageRestrictionsJournalLPw(userId).delete();
+        mRestrictionsJournals.remove(userId);
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -155,7 +155,7 @@ class IntervalStats {
         endTime = timeStamp;
     }
 
-    private String getCachedStringRef(String str) {
+    String getCachedStringRef(String str) {
         final int index = mStringCache.indexOf(str);
         if (index < 0) {
             mStringCache.add(str);
@@ -0,0 +1,663 @@
+/**
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.os.LocaleList;
+import android.util.ArrayMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * UsageStats reader/writer for version 1 of the binary format.
+ *
+ * <p>The file starts with {@link #MAGIC} and the end time, followed by a table of every
+ * string the interval uses (package, class, action, category, shortcut and locale names),
+ * which the rest of the file refers to by index.  Package and configuration stats are
+ * stored column by column.  Events are stored in blocks of {@link #EVENT_BLOCK_SIZE}, each
+ * holding delta-encoded timestamps and varint columns, and a footer at the end of the file
+ * records the first timestamp and offset of every block, so that a range query decodes only
+ * the blocks that overlap it.  All times other than durations are stored as offsets of the
+ * interval's begin time, as in the XML format.
+ */
+final class UsageStatsBinaryV1 {
+    /** "USB" and the format version. */
+    static final int MAGIC = 0x55534201;
+
+    private static final int EVENT_BLOCK_SIZE = 128;
+    private static final int FOOTER_TRAILER_SIZE = 8;
+
+    /**
+     * Reads the whole interval.
+     *
+     * @param data The contents of the file, starting with {@link #MAGIC}.
+     * @param statsOut The stats object to populate; its beginTime must already be set.
+     */
+    public static void read(byte[] data, IntervalStats statsOut) throws IOException {
+        read(data, statsOut, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the interval, keeping only the events in [eventsBegin, eventsEnd).  Blocks of
+     * events entirely outside the range are skipped without being decoded.
+     */
+    public static void read(byte[] data, IntervalStats statsOut, long eventsBegin,
+            long eventsEnd) throws IOException {
+        statsOut.packageStats.clear();
+        statsOut.configurations.clear();
+        statsOut.activeConfiguration = null;
+        if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+
+        final ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new ProtocolException("Bad magic");
+            }
+            statsOut.endTime = statsOut.beginTime + in.getLong();
+
+            final String[] strings = readStrings(in, statsOut);
+            readPackages(in, statsOut, strings);
+            final Configuration[] configs = readConfigurations(in, statsOut, strings);
+            readEvents(in, statsOut, strings, configs, eventsBegin, eventsEnd);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new ProtocolException("Corrupt usage stats: " + e);
+        }
+    }
+
+    /**
+     * Writes the stats object in the binary format.
+     *
+     * @param out The stream to which to write.
+     * @param stats The stats object to write.
+     */
+    public static void write(OutputStream out, IntervalStats stats) throws IOException {
+        final StringTable strings = new StringTable();
+        final ArrayMap<Configuration, Integer> configIndex = new ArrayMap<>();
+        collect(stats, strings, configIndex);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeLong(stats.endTime - stats.beginTime);
+
+        final int stringCount = strings.size();
+        data.writeInt(stringCount);
+        for (int i = 0; i < stringCount; i++) {
+            final byte[] utf8 = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            writeVarint(data, utf8.length);
+            data.write(utf8);
+        }
+
+        writePackages(data, stats, strings);
+        writeConfigurations(data, stats, strings, configIndex);
+        writeEvents(data, bytes, stats, strings, configIndex);
+
+        data.flush();
+        bytes.writeTo(out);
+    }
+
+    private static void collect(IntervalStats stats, StringTable strings,
+            ArrayMap<Configuration, Integer> configIndex) {
+        final int packageCount = stats.packageStats.size();
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            strings.add(usageStats.mPackageName);
+            if (usageStats.mChooserCounts != null) {
+                final int actionCount = usageStats.mChooserCounts.size();
+                for (int j = 0; j < actionCount; j++) {
+                    final ArrayMap<String, Integer> counts =
+                            usageStats.mChooserCounts.valueAt(j);
+                    if (counts == null) {
+                        continue;
+                    }
+                    strings.add(usageStats.mChooserCounts.keyAt(j));
+                    final int categoryCount = counts.size();
+                    for (int k = 0; k < categoryCount; k++) {
+                        strings.add(counts.keyAt(k));
+                    }
+                }
+            }
+        }
+
+        // The configurations of the stats come first, so that their index matches their
+        // position in the configuration columns.
+        final int configCount = stats.configurations.size();
+        for (int i = 0; i < configCount; i++) {
+            addConfiguration(stats.configurations.keyAt(i), strings, configIndex);
+        }
+
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.events.valueAt(i);
+            strings.add(event.mPackage);
+            strings.add(event.mClass);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    if (event.mConfiguration != null) {
+                        addConfiguration(event.mConfiguration, strings, configIndex);
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    strings.add(event.mShortcutId);
+                    break;
+            }
+        }
+    }
+
+    private static void addConfiguration(Configuration config, StringTable strings,
+            ArrayMap<Configuration, Integer> configIndex) {
+        if (configIndex.containsKey(config)) {
+            return;
+        }
+        configIndex.put(config, configIndex.size());
+        final LocaleList locales = config.getLocales();
+        if (!locales.isEmpty()) {
+            strings.add(locales.toLanguageTags());
+        }
+        if (config.appBounds != null) {
+            strings.add(config.appBounds.flattenToString());
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in, IntervalStats statsOut)
+            throws IOException {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new ProtocolException("Bad string count " + count);
+        }
+        final String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int length = readVarint(in);
+            final String str = new String(in.array(), in.position(), length,
+                    StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            strings[i] = statsOut.getCachedStringRef(str);
+        }
+        return strings;
+    }
+
+    private static void writePackages(DataOutputStream out, IntervalStats stats,
+            StringTable strings) throws IOException {
+        final int count = stats.packageStats.size();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, strings.indexOf(stats.packageStats.valueAt(i).mPackageName));
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mLastTimeUsed - stats.beginTime);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mTotalTimeInForeground);
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarint(out, stats.packageStats.valueAt(i).mLastEvent);
+        }
+        for (int i = 0; i < count; i++) {
+            writeChooserCounts(out, stats.packageStats.valueAt(i), strings);
+        }
+    }
+
+    private static void writeChooserCounts(DataOutputStream out, UsageStats usageStats,
+            StringTable strings) throws IOException {
+        final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                usageStats.mChooserCounts;
+        int actionCount = 0;
+        if (chooserCounts != null) {
+            for (int i = chooserCounts.size() - 1; i >= 0; i--) {
+                if (hasCounts(chooserCounts.keyAt(i), chooserCounts.valueAt(i))) {
+                    actionCount++;
+                }
+            }
+        }
+        writeVarint(out, actionCount);
+        if (actionCount == 0) {
+            return;
+        }
+        final int size = chooserCounts.size();
+        for (int i = 0; i < size; i++) {
+            final String action = chooserCounts.keyAt(i);
+            final ArrayMap<String, Integer> counts = chooserCounts.valueAt(i);
+            if (!hasCounts(action, counts)) {
+                continue;
+            }
+            int categoryCount = 0;
+            for (int j = counts.size() - 1; j >= 0; j--) {
+                if (counts.valueAt(j) > 0) {
+                    categoryCount++;
+                }
+            }
+            writeVarint(out, strings.indexOf(action));
+            writeVarint(out, categoryCount);
+            final int countsSize = counts.size();
+            for (int j = 0; j < countsSize; j++) {
+                final int count = counts.valueAt(j);
+                if (count > 0) {
+                    writeVarint(out, strings.indexOf(counts.keyAt(j)));
+                    writeVarint(out, count);
+                }
+            }
+        }
+    }
+
+    private static boolean hasCounts(String action, ArrayMap<String, Integer> counts) {
+        return action != null && counts != null && !counts.isEmpty();
+    }
+
+    private static void readPackages(ByteBuffer in, IntervalStats statsOut, String[] strings)
+            throws IOException {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new ProtocolException("Bad package count " + count);
+        }
+        final UsageStats[] packages = new UsageStats[count];
+        for (int i = 0; i < count; i++) {
+            packages[i] = statsOut.getOrCreateUsageStats(strings[readVarint(in)]);
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mLastTimeUsed = statsOut.beginTime + in.getLong();
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mTotalTimeInForeground = in.getLong();
+        }
+        for (int i = 0; i < count; i++) {
+            packages[i].mLastEvent = readVarint(in);
+        }
+        for (int i = 0; i < count; i++) {
+            final int actionCount = readVarint(in);
+            if (actionCount == 0) {
+                continue;
+            }
+            final UsageStats usageStats = packages[i];
+            if (usageStats.mChooserCounts == null) {
+                usageStats.mChooserCounts = new ArrayMap<>(actionCount);
+            }
+            for (int j = 0; j < actionCount; j++) {
+                final String action = strings[readVarint(in)];
+                final int categoryCount = readVarint(in);
+                ArrayMap<String, Integer> counts = usageStats.mChooserCounts.get(action);
+                if (counts == null) {
+                    counts = new ArrayMap<>(categoryCount);
+                    usageStats.mChooserCounts.put(action, counts);
+                }
+                for (int k = 0; k < categoryCount; k++) {
+                    final String category = strings[readVarint(in)];
+                    counts.put(category, readVarint(in));
+                }
+            }
+        }
+    }
+
+    private static void writeConfigurations(DataOutputStream out, IntervalStats stats,
+            StringTable strings, ArrayMap<Configuration, Integer> configIndex)
+            throws IOException {
+        // Every distinct configuration, including the deltas carried by events.
+        final int configCount = configIndex.size();
+        final Configuration[] configs = new Configuration[configCount];
+        for (int i = 0; i < configCount; i++) {
+            configs[configIndex.valueAt(i)] = configIndex.keyAt(i);
+        }
+        out.writeInt(configCount);
+        for (Configuration config : configs) {
+            writeConfiguration(out, config, strings);
+        }
+
+        // The stats of the first statsCount of them.
+        final int statsCount = stats.configurations.size();
+        out.writeInt(statsCount);
+        int active = -1;
+        for (int i = 0; i < statsCount; i++) {
+            final ConfigurationStats configStats = stats.configurations.valueAt(i);
+            out.writeLong(configStats.mLastTimeActive - stats.beginTime);
+            out.writeLong(configStats.mTotalTimeActive);
+            writeVarint(out, configStats.mActivationCount);
+            if (stats.configurations.keyAt(i).equals(stats.activeConfiguration)) {
+                active = i;
+            }
+        }
+        writeVarint(out, active + 1);
+    }
+
+    private static Configuration[] readConfigurations(ByteBuffer in, IntervalStats statsOut,
+            String[] strings) throws IOException {
+        final int configCount = in.getInt();
+        if (configCount < 0 || configCount > in.remaining()) {
+            throw new ProtocolException("Bad configuration count " + configCount);
+        }
+        final Configuration[] configs = new Configuration[configCount];
+        for (int i = 0; i < configCount; i++) {
+            configs[i] = readConfiguration(in, strings);
+        }
+
+        final int statsCount = in.getInt();
+        if (statsCount < 0 || statsCount > configCount) {
+            throw new ProtocolException("Bad configuration stats count " + statsCount);
+        }
+        for (int i = 0; i < statsCount; i++) {
+            final ConfigurationStats configStats =
+                    statsOut.getOrCreateConfigurationStats(configs[i]);
+            configStats.mLastTimeActive = statsOut.beginTime + in.getLong();
+            configStats.mTotalTimeActive = in.getLong();
+            configStats.mActivationCount = readVarint(in);
+        }
+        final int active = readVarint(in) - 1;
+        if (active >= 0) {
+            statsOut.activeConfiguration = configs[active];
+        }
+        return configs;
+    }
+
+    /** Writes the same fields as {@link Configuration#writeXmlAttrs}. */
+    private static void writeConfiguration(DataOutputStream out, Configuration config,
+            StringTable strings) throws IOException {
+        out.writeInt(Float.floatToIntBits(config.fontScale));
+        writeVarint(out, config.mcc);
+        writeVarint(out, config.mnc);
+        final LocaleList locales = config.getLocales();
+        writeVarint(out, locales.isEmpty() ? 0 : strings.indexOf(locales.toLanguageTags()) + 1);
+        writeVarint(out, config.touchscreen);
+        writeVarint(out, config.keyboard);
+        writeVarint(out, config.keyboardHidden);
+        writeVarint(out, config.hardKeyboardHidden);
+        writeVarint(out, config.navigation);
+        writeVarint(out, config.navigationHidden);
+        writeVarint(out, config.orientation);
+        writeVarint(out, config.screenLayout);
+        writeVarint(out, config.colorMode);
+        writeVarint(out, config.uiMode);
+        writeVarint(out, config.screenWidthDp);
+        writeVarint(out, config.screenHeightDp);
+        writeVarint(out, config.smallestScreenWidthDp);
+        writeVarint(out, config.densityDpi);
+        writeVarint(out, config.appBounds == null ? 0
+                : strings.indexOf(config.appBounds.flattenToString()) + 1);
+    }
+
+    /** Reads the same fields as {@link Configuration#readXmlAttrs}. */
+    private static Configuration readConfiguration(ByteBuffer in, String[] strings) {
+        final Configuration config = new Configuration();
+        config.fontScale = Float.intBitsToFloat(in.getInt());
+        config.mcc = readVarint(in);
+        config.mnc = readVarint(in);
+        final int locales = readVarint(in);
+        config.setLocales(LocaleList.forLanguageTags(locales == 0 ? null : strings[locales - 1]));
+        config.touchscreen = readVarint(in);
+        config.keyboard = readVarint(in);
+        config.keyboardHidden = readVarint(in);
+        config.hardKeyboardHidden = readVarint(in);
+        config.navigation = readVarint(in);
+        config.navigationHidden = readVarint(in);
+        config.orientation = readVarint(in);
+        config.screenLayout = readVarint(in);
+        config.colorMode = readVarint(in);
+        config.uiMode = readVarint(in);
+        config.screenWidthDp = readVarint(in);
+        config.screenHeightDp = readVarint(in);
+        config.smallestScreenWidthDp = readVarint(in);
+        config.densityDpi = readVarint(in);
+        final int appBounds = readVarint(in);
+        config.appBounds = appBounds == 0 ? null : Rect.unflattenFromString(strings[appBounds - 1]);
+        return config;
+    }
+
+    private static void writeEvents(DataOutputStream out, ByteArrayOutputStream bytes,
+            IntervalStats stats, StringTable strings,
+            ArrayMap<Configuration, Integer> configIndex) throws IOException {
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int blockCount = (eventCount + EVENT_BLOCK_SIZE - 1) / EVENT_BLOCK_SIZE;
+        final int[] blockOffsets = new int[blockCount];
+
+        for (int block = 0; block < blockCount; block++) {
+            final int start = block * EVENT_BLOCK_SIZE;
+            final int end = Math.min(start + EVENT_BLOCK_SIZE, eventCount);
+            out.flush();
+            blockOffsets[block] = bytes.size();
+
+            long lastTime = stats.beginTime;
+            for (int i = start; i < end; i++) {
+                final long time = stats.events.valueAt(i).mTimeStamp;
+                writeVarLong(out, time - lastTime);
+                lastTime = time;
+            }
+            for (int i = start; i < end; i++) {
+                writeVarint(out, stats.events.valueAt(i).mEventType);
+            }
+            for (int i = start; i < end; i++) {
+                writeVarint(out, stats.events.valueAt(i).mFlags);
+            }
+            for (int i = start; i < end; i++) {
+                writeVarint(out, strings.indexOf(stats.events.valueAt(i).mPackage));
+            }
+            for (int i = start; i < end; i++) {
+                final String className = stats.events.valueAt(i).mClass;
+                writeVarint(out, className == null ? 0 : strings.indexOf(className) + 1);
+            }
+            // Configuration of configuration changes, shortcut id of shortcut invocations.
+            for (int i = start; i < end; i++) {
+                final UsageEvents.Event event = stats.events.valueAt(i);
+                int extra = 0;
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        if (event.mConfiguration != null) {
+                            extra = configIndex.get(event.mConfiguration) + 1;
+                        }
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        if (event.mShortcutId != null) {
+                            extra = strings.indexOf(event.mShortcutId) + 1;
+                        }
+                        break;
+                }
+                writeVarint(out, extra);
+            }
+        }
+
+        out.flush();
+        final int footerOffset = bytes.size();
+        out.writeInt(eventCount);
+        for (int block = 0; block < blockCount; block++) {
+            out.writeLong(stats.events.keyAt(block * EVENT_BLOCK_SIZE) - stats.beginTime);
+            out.writeInt(blockOffsets[block]);
+        }
+        out.writeInt(footerOffset);
+        out.writeInt(MAGIC);
+    }
+
+    private static void readEvents(ByteBuffer in, IntervalStats statsOut, String[] strings,
+            Configuration[] configs, long eventsBegin, long eventsEnd) throws IOException {
+        final int limit = in.limit();
+        in.position(limit - FOOTER_TRAILER_SIZE);
+        final int footerOffset = in.getInt();
+        if (in.getInt() != MAGIC || footerOffset < 0
+                || footerOffset > limit - FOOTER_TRAILER_SIZE) {
+            throw new ProtocolException("Bad footer");
+        }
+        in.position(footerOffset);
+        final int eventCount = in.getInt();
+        final int blockCount = (eventCount + EVENT_BLOCK_SIZE - 1) / EVENT_BLOCK_SIZE;
+        if (eventCount < 0 || blockCount * 12L != limit - FOOTER_TRAILER_SIZE - in.position()) {
+            throw new ProtocolException("Bad event count " + eventCount);
+        }
+        if (eventCount == 0 || eventsEnd <= eventsBegin) {
+            return;
+        }
+
+        final long[] blockStarts = new long[blockCount];
+        final int[] blockOffsets = new int[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            blockStarts[block] = statsOut.beginTime + in.getLong();
+            blockOffsets[block] = in.getInt();
+        }
+
+        // Start at the last block beginning on or before eventsBegin; earlier blocks only
+        // hold older events.
+        int first = 0;
+        int lo = 1;
+        int hi = blockCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (blockStarts[mid] <= eventsBegin) {
+                first = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        if (statsOut.events == null) {
+            statsOut.events = new TimeSparseArray<>();
+        }
+        final long[] times = new long[EVENT_BLOCK_SIZE];
+        final UsageEvents.Event[] events = new UsageEvents.Event[EVENT_BLOCK_SIZE];
+        for (int block = first; block < blockCount && blockStarts[block] < eventsEnd;
+                block++) {
+            final int size = Math.min(EVENT_BLOCK_SIZE, eventCount - block * EVENT_BLOCK_SIZE);
+            in.position(blockOffsets[block]);
+
+            long time = statsOut.beginTime;
+            for (int i = 0; i < size; i++) {
+                time += readVarLong(in);
+                times[i] = time;
+            }
+            // Decode the remaining columns only for the events inside the range; the
+            // others are skipped over.
+            for (int i = 0; i < size; i++) {
+                final int type = readVarint(in);
+                if (times[i] >= eventsBegin && times[i] < eventsEnd) {
+                    final UsageEvents.Event event = new UsageEvents.Event();
+                    event.mTimeStamp = times[i];
+                    event.mEventType = type;
+                    events[i] = event;
+                } else {
+                    events[i] = null;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                final int flags = readVarint(in);
+                if (events[i] != null) {
+                    events[i].mFlags = flags;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                final int packageIndex = readVarint(in);
+                if (events[i] != null) {
+                    events[i].mPackage = strings[packageIndex];
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                final int classIndex = readVarint(in);
+                if (events[i] != null && classIndex != 0) {
+                    events[i].mClass = strings[classIndex - 1];
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                final int extra = readVarint(in);
+                final UsageEvents.Event event = events[i];
+                if (event == null) {
+                    continue;
+                }
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        // Every event gets its own copy, as the XML reader gives them.
+                        event.mConfiguration = new Configuration();
+                        if (extra != 0) {
+                            event.mConfiguration.setTo(configs[extra - 1]);
+                        }
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        event.mShortcutId = extra != 0 ? strings[extra - 1] : null;
+                        break;
+                }
+                if (event.mPackage == null) {
+                    throw new ProtocolException("Event without package");
+                }
+                statsOut.events.put(event.mTimeStamp, event);
+                events[i] = null;
+            }
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /** Strings of the interval in order of first use, with their index. */
+    private static final class StringTable {
+        private final ArrayList<String> mStrings = new ArrayList<>();
+        private final ArrayMap<String, Integer> mIndex = new ArrayMap<>();
+
+        void add(String str) {
+            if (str != null && !mIndex.containsKey(str)) {
+                mIndex.put(str, mStrings.size());
+                mStrings.add(str);
+            }
+        }
+
+        int indexOf(String str) {
+            return mIndex.get(str);
+        }
+
+        int size() {
+            return mStrings.size();
+        }
+
+        String get(int index) {
+            return mStrings.get(index);
+        }
+    }
+
+    private UsageStatsBinaryV1() {
+    }
+}
@@ -43,7 +43,8 @@ import java.util.List;
  * Provides an interface to query for UsageStat data from an XML database.
  */
 class UsageStatsDatabase {
-    private static final int CURRENT_VERSION = 3;
+    // Version 4 writes intervals in the binary format of UsageStatsBinaryV1.
+    private static final int CURRENT_VERSION = 4;
 
     // Current version of the backup schema
     static final int BACKUP_VERSION = 1;
@@ -443,7 +444,9 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    // Combiners only look at the events inside the range, so don't
+                    // bother decoding the others.
+                    UsageStatsXml.read(f, stats, beginTime, endTime);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -516,6 +519,39 @@ class UsageStatsDatabase {
             // We must re-index our file list or we will be trying to read
             // deleted files.
             indexFilesLocked();
+
+            compactXmlFilesLocked();
+        }
+    }
+
+    /**
+     * Rewrites the files that are still in the XML format of older releases in the binary
+     * format, so that later queries can skip the events they don't need instead of parsing
+     * the whole file.  Runs as part of {@link #prune}, which happens once a day, and only
+     * touches each file once.
+     */
+    private void compactXmlFilesLocked() {
+        int filesCompacted = 0;
+        for (TimeSparseArray<AtomicFile> files : mSortedStatFiles) {
+            final int fileCount = files.size();
+            for (int i = 0; i < fileCount; i++) {
+                final AtomicFile f = files.valueAt(i);
+                try {
+                    if (!UsageStatsXml.isXml(f)) {
+                        continue;
+                    }
+                    final IntervalStats stats = new IntervalStats();
+                    UsageStatsXml.read(f, stats);
+                    UsageStatsXml.write(f, stats);
+                    filesCompacted++;
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to compact usage stats file "
+                            + f.getBaseFile().getPath(), e);
+                }
+            }
+        }
+        if (filesCompacted > 0) {
+            Slog.i(TAG, "Compacted " + filesCompacted + " usage stats files");
         }
     }
 
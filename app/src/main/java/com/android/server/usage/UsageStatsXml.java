@@ -26,6 +26,11 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.*;
 
+/**
+ * Reads and writes the files of {@link UsageStatsDatabase}.  Intervals are written in the
+ * binary format of {@link UsageStatsBinaryV1}; files written as XML by older releases are
+ * still read, until {@link UsageStatsDatabase} compacts them.  Backups remain XML.
+ */
 public class UsageStatsXml {
     private static final String TAG = "UsageStatsXml";
     private static final int CURRENT_VERSION = 1;
@@ -56,29 +61,52 @@ public class UsageStatsXml {
     }
 
     public static void read(AtomicFile file, IntervalStats statsOut) throws IOException {
+        read(file, statsOut, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #read(AtomicFile, IntervalStats)}, for callers that only look at the events
+     * in [eventsBegin, eventsEnd).  Events outside that range may be left out, which for
+     * binary files saves decoding them.
+     */
+    public static void read(AtomicFile file, IntervalStats statsOut, long eventsBegin,
+            long eventsEnd) throws IOException {
+        final byte[] data;
         try {
-            FileInputStream in = file.openRead();
-            try {
-                statsOut.beginTime = parseBeginTime(file);
-                read(in, statsOut);
-                statsOut.lastTimeSaved = file.getLastModifiedTime();
-            } finally {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    // Empty
-                }
-            }
+            data = file.readFully();
         } catch (FileNotFoundException e) {
             Slog.e(TAG, "UsageStats Xml", e);
             throw e;
         }
+        statsOut.beginTime = parseBeginTime(file);
+        if (isBinary(data)) {
+            UsageStatsBinaryV1.read(data, statsOut, eventsBegin, eventsEnd);
+        } else {
+            read(new ByteArrayInputStream(data), statsOut);
+        }
+        statsOut.lastTimeSaved = file.getLastModifiedTime();
+    }
+
+    /**
+     * Returns true if the file was written by an older release in the XML format.
+     */
+    public static boolean isXml(AtomicFile file) throws IOException {
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            return in.readInt() != UsageStatsBinaryV1.MAGIC;
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    private static boolean isBinary(byte[] data) {
+        return data.length >= 4 && ((data[0] & 0xff) << 24 | (data[1] & 0xff) << 16
+                | (data[2] & 0xff) << 8 | (data[3] & 0xff)) == UsageStatsBinaryV1.MAGIC;
     }
 
     public static void write(AtomicFile file, IntervalStats stats) throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
-            write(fos, stats);
+            UsageStatsBinaryV1.write(fos, stats);
             file.finishWrite(fos);
             fos = null;
         } finally {
@@ -113,6 +141,9 @@ public class UsageStatsXml {
         }
     }
 
+    /**
+     * Writes the stats object as XML, the format of backups.
+     */
     static void write(OutputStream out, IntervalStats stats) throws IOException {
         FastXmlSerializer xml = new FastXmlSerializer();
         xml.setOutput(out, "utf-8");